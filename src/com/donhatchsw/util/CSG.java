@@ -104,7 +104,7 @@ package com.donhatchsw.util;
 *       <li> Arrays </li>
 *       <li> VecMath </li>
 *       <li> SortStuff </li>
-*       <li> FuzzyPointHashTable </li>
+*       <li> FuzzyPointIntHashTable </li>
 *  </ul>
 */
 public final class CSG
@@ -120,14 +120,18 @@ public final class CSG
     //public static int verboseLevel = 2; // 3 = show gory details (XXX which are really gory and I should probably do away with)
     //public static int verboseLevel = 1; // 3 = show gory details (XXX which are really gory and I should probably do away with)
     //public static int verboseLevel = 0; // 3 = show gory details (XXX which are really gory and I should probably do away with)
-    public static int verboseLevel = -1; // 3 = show gory details (XXX which are really gory and I should probably do away with)
+    // (volatile so that changing it takes effect in builds already going on in other threads)
+    public static volatile int verboseLevel = -1; // 3 = show gory details (XXX which are really gory and I should probably do away with)
 
     //
     // Data structures...
     //
 
-        private static long nIds = 0; // so we can give a unique integer id to everything ever created
-        private static Object nIdsLock = new Object(); // for synchronization
+        // So we can give a unique integer id to everything ever created.
+        // Ids only ever increase, so within any one build (on any one thread)
+        // things are numbered in the order they were created,
+        // no matter what other builds are going on at the same time.
+        private static final java.util.concurrent.atomic.AtomicLong nIds = new java.util.concurrent.atomic.AtomicLong(0);
         private static java.util.Random randomGenerator = new java.util.Random(0);
 
         /**
@@ -145,10 +149,7 @@ public final class CSG
             /** Creates a Hyperplane from a plane equation. */
             public Hyperplane(double normal[], double offset)
             {
-                synchronized(nIdsLock)
-                {
-                    this.id = nIds++;
-                }
+                this.id = nIds.getAndIncrement();
                 this.normal = normal;
                 this.offset = offset;
                 this.spanningPoints = null;
@@ -156,10 +157,7 @@ public final class CSG
             /** Creates a Hyperplane from a set of dim spanning points. */
             public Hyperplane(double spanningPoints[][])
             {
-                synchronized(nIdsLock)
-                {
-                    this.id = nIds++;
-                }
+                this.id = nIds.getAndIncrement();
                 this.spanningPoints = spanningPoints;
 
                 do { if (!(false)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+155 +"): " + "false" + ""); } while (false); // XXX implement me! normal should be cross product of points vectors
@@ -197,8 +195,9 @@ public final class CSG
             private double _coords[]; // if vertex, null otherwise.  XXX should probably calculate only on demand, but then need a way to differentiate between dirty and nonexistent (for example, this is needed in getBBox below). XXX ctually not currently calculated at all.
             private double _bbox[/*2*/][]; // bounding box of all vertices, so it can be finite even if the polytope is infinite (co-finite).  calculated Lazily via getBBox().
             private Polytope[/*dim+1*/][] _allElements; // sorted lists of vertices, edges, ..., ridges, facets, calculated lazily via getAllElements()
-            private int[/*dim+1*/][][/*dim+1*/][] _allIncidences; // calculated lazily via getAllElements
-            public void resetAllElements() { _allElements = null; _allIncidences = null; }
+            private int[/*dim+1*/][][/*dim+1*/][] _allIncidences; // calculated lazily via getAllIncidences
+            private IncidenceIndex _incidenceIndex; // calculated lazily via getIncidenceIndex
+            public void resetAllElements() { _allElements = null; _allIncidences = null; _incidenceIndex = null; }
             
             public Polytope(int dim,
                             int fullDim,
@@ -208,10 +207,7 @@ public final class CSG
             {
                 if (verboseLevel >= 3)
                     System.out.println("in Polytope ctor");
-                synchronized(nIdsLock)
-                {
-                    this.id = nIds++;
-                }
+                this.id = nIds.getAndIncrement();
                 this.dim = dim;
                 this.fullDim = fullDim;
                 this.facets = facets;
@@ -311,28 +307,25 @@ public final class CSG
             /**
             * Get a list of all verts, edges, faces, ..., ridges, facets, self
             * of this polytope.
-            * getAllElements()[iDim] is the list of iDim-dimensional sub-polytopes.
+            * getAllElements()[iDim] is the list of iDim-dimensional sub-polytopes,
+            * sorted by id.
+            * Doesn't touch anyone's aux.
+            * The result is cached, so it isn't safe for several threads
+            * to be the first to call this on the same polytope;
+            * call it once up front if the polytope is going to be shared.
             */
             public Polytope[/*dim+1*/][] getAllElements()
             {
                 if (_allElements == null)
                 {
-                    class VisitedAux
-                    {
-                        public Object savedAux;
-                        public VisitedAux(Object savedAux)
-                        {
-                            this.savedAux = savedAux;
-                        }
-                    }
-
                     java.util.Vector lists[] = new java.util.Vector[dim+1];
                     {
                         for (int iDim = 0; (iDim) < (dim+1); ++iDim)
                             lists[iDim] = new java.util.Vector();
                         java.util.Vector flatList = new java.util.Vector();
+                        java.util.IdentityHashMap<Polytope,Polytope> visited = new java.util.IdentityHashMap<Polytope,Polytope>();
 
-                        this.aux = new VisitedAux(this.aux); // mark it visited when queued
+                        visited.put(this, this); // mark it visited when queued
                         flatList.addElement(this);
                         for (int flatIndex = 0; (flatIndex) < (flatList.size()); ++flatIndex) // while flatList.size() is increasing!
                         {
@@ -341,36 +334,20 @@ public final class CSG
                             for (int iFacet = 0; (iFacet) < (elt.facets.length); ++iFacet)
                             {
                                 Polytope facet = elt.facets[iFacet].p;
-                                if (!(facet.aux instanceof VisitedAux)) // save even when elt.aux is null
-                                {
-                                    facet.aux = new VisitedAux(facet.aux); // mark it visited when queued
+                                if (visited.put(facet, facet) == null) // mark it visited when queued
                                     flatList.addElement(facet);
-                                }
                             }
                         }
                     }
 
-                    _allElements = new Polytope[dim+1][];
+                    Polytope allElements[][] = new Polytope[dim+1][];
                     for (int iDim = 0; (iDim) < (dim+1); ++iDim)
                     {
-                        _allElements[iDim] = new Polytope[lists[iDim].size()];
-                        lists[iDim].copyInto(_allElements[iDim]);
-                        SortStuff.sort(_allElements[iDim],
-                                       new SortStuff.Comparator() {
-                                           public int compare(Object _a, Object _b)
-                                           {
-                                               Polytope a = (Polytope)_a;
-                                               Polytope b = (Polytope)_b;
-                                               return a.id < b.id ? -1 :
-                                                      a.id > b.id ? 1 : 0;
-                                           }
-                                       });
-                        for (int iElt = 0; (iElt) < (_allElements[iDim].length); ++iElt)
-                        {
-                            Polytope elt = _allElements[iDim][iElt];
-                            elt.aux = ((VisitedAux)elt.aux).savedAux;
-                        }
+                        allElements[iDim] = new Polytope[lists[iDim].size()];
+                        lists[iDim].copyInto(allElements[iDim]);
+                        SortStuff.sort(allElements[iDim], byIdComparator);
                     }
+                    _allElements = allElements;
                 } // if _allElements == null
                 return _allElements;
             } // getAllElements()
@@ -382,140 +359,53 @@ public final class CSG
             * is the list of all indices (into getAllElements()[jDim])
             * of jDim-dimensional elements
             * that are incident on iDim-dimensional element
-            *     getAllElements()[iDim][iElt].
+            *     getAllElements()[iDim][iElt],
+            * in increasing order.
             * The result of this function gets cached,
             * so it is not time-consuming to call it multiple times.
+            * This is just getIncidenceIndex() expanded into jagged arrays;
+            * big callers should use that directly instead.
             */
             public int[/*dim+1*/][][/*dim+1*/][] getAllIncidences()
             {
                 if (_allIncidences == null)
                 {
-                    Polytope allElts[][] = getAllElements();
-
-                    //
-                    // We don't know how many incidences each element
-                    // has beforehand.  We could do this by starting
-                    // with a gzillion Vectors and then converting to arrays
-                    // at the end... but there are a gzillion of them.
-                    // So instead, we do it in two passes--
-                    // a counting pass, then allocate arrays
-                    // of the right size, then a filling pass.
-                    //
-
-                    int counts[][][] = new int[allElts.length][][];
+                    IncidenceIndex index = getIncidenceIndex();
+                    int allIncidences[][][][] = new int[dim+1][][][];
                     for (int iDim = 0; (iDim) < (dim+1); ++iDim)
                     {
-                        counts[iDim] = new int[allElts[iDim].length][];
-                        for (int iElt = 0; (iElt) < (allElts[iDim].length); ++iElt)
-                            counts[iDim][iElt] = new int[dim+1]; // zeros
-                    }
-
-
-                    // Mark each element temporarily with its index in allElts,
-                    // so we don't have to do time consuming searches...
-                    class GlobalIndexAux
-                    {
-                        public int globalIndex;
-                        public Object savedAux;
-                        public GlobalIndexAux(int globalIndex, Object savedAux)
-                        {
-                            this.globalIndex = globalIndex;
-                            this.savedAux = savedAux;
-                        }
-                    }
-                    for (int iDim = 0; (iDim) < (dim+1); ++iDim)
-                    for (int iElt = 0; (iElt) < (allElts[iDim].length); ++iElt)
-                    {
-                        Polytope elt = allElts[iDim][iElt];
-                        elt.aux = new GlobalIndexAux(iElt, elt.aux);
-                    }
-
-                    for (int iPass = 0; (iPass) < (2); ++iPass) // iPass=0: count, iPass=1: fill
-                    {
-                        for (int iDim = 0; (iDim) < (dim+1); ++iDim)
-                        for (int iElt = 0; (iElt) < (allElts[iDim].length); ++iElt)
+                        int nElts = index.nElements(iDim);
+                        allIncidences[iDim] = new int[nElts][dim+1][];
+                        for (int jDim = 0; (jDim) < (dim+1); ++jDim)
                         {
-                            Polytope elt = allElts[iDim][iElt];
-                            Polytope allEltsOfElt[][] = elt.getAllElements();
-                            for (int jDim = 0; (jDim) < (elt.dim+1); ++jDim)
-                            for (int jEltLocal = 0; (jEltLocal) < (allEltsOfElt[jDim].length); ++jEltLocal)
+                            int offsets[] = index.getOffsets(iDim, jDim);
+                            int indices[] = index.getIndices(iDim, jDim);
+                            for (int iElt = 0; (iElt) < (nElts); ++iElt)
                             {
-                                Polytope eltElt = allEltsOfElt[jDim][jEltLocal];
-                                int jEltGlobal = ((GlobalIndexAux)eltElt.aux).globalIndex;
-                                if (false)
-                                    System.out.println("    elt "+dimToPrefix(iDim)+elt.id
-                                             +"("+iDim+")"
-                                             +" has eltElt "+dimToPrefix(jDim)+eltElt.id
-                                             +"("+jEltGlobal+")"
-                                             );
-                                if (iPass == 1) // if it's the filling pass
-                                    _allIncidences[jDim][jEltGlobal][iDim][counts[jDim][jEltGlobal][iDim]] = iElt;
-                                counts[jDim][jEltGlobal][iDim]++;
-                                if (jDim != iDim)
-                                {
-                                    if (iPass == 1) // if it's the filling pass
-                                        _allIncidences[iDim][iElt][jDim][counts[iDim][iElt][jDim]] = jEltGlobal;
-                                    counts[iDim][iElt][jDim]++;
-                                }
+                                int n = offsets[iElt+1] - offsets[iElt];
+                                allIncidences[iDim][iElt][jDim] = new int[n];
+                                System.arraycopy(indices, offsets[iElt], allIncidences[iDim][iElt][jDim], 0, n);
                             }
                         }
-                        if (iPass == 0)
-                        {
-                            // Got the counts,
-                            // do the allocations.
-                            _allIncidences = new int[counts.length][][][];
-                            for (int iDim = 0; (iDim) < (dim+1); ++iDim)
-                            {
-                                _allIncidences[iDim] = new int[counts[iDim].length][][];
-                                for (int iElt = 0; (iElt) < (allElts[iDim].length); ++iElt)
-                                {
-                                    _allIncidences[iDim][iElt] = new int[counts[iDim][iElt].length][];
-                                    for (int jDim = 0; (jDim) < (dim+1); ++jDim)
-                                    {
-                                        _allIncidences[iDim][iElt][jDim] = new int[counts[iDim][iElt][jDim]];
-                                        counts[iDim][iElt][jDim] = 0;
-                                    }
-                                }
-                            }
-                        }
-                    }
-
-                    // restore old auxs...
-                    for (int iDim = 0; (iDim) < (dim+1); ++iDim)
-                    for (int iElt = 0; (iElt) < (allElts[iDim].length); ++iElt)
-                    {
-                        Polytope elt = allElts[iDim][iElt];
-                        elt.aux = ((GlobalIndexAux)elt.aux).savedAux;
-                    }
-
-                    if (false)
-                    {
-                        System.out.println("All incidences:");
-                        System.out.println("_allIncidences" + " = " + Arrays.toStringCompact(_allIncidences));
-                        for (int iDim = 0; (iDim) < (_allIncidences.length); ++iDim)
-                        {
-                            for (int iElt = 0; (iElt) < (_allIncidences[iDim].length); ++iElt)
-                            {
-                                Polytope elt = allElts[iDim][iElt];
-                                System.out.println("    "+dimToPrefix(iDim)+elt.id+":");
-                                for (int jDim = 0; (jDim) < (_allIncidences[iDim][iElt].length); ++jDim)
-                                {
-                                    System.out.print("    ");
-                                    for (int jElt = 0; (jElt) < (_allIncidences[iDim][iElt][jDim].length); ++jElt)
-                                    {
-                                        Polytope inc = allElts[jDim][_allIncidences[iDim][iElt][jDim][jElt]];
-                                        System.out.print(" "+dimToPrefix(jDim)+inc.id);
-                                    }
-                                    System.out.println("    ");
-                                }
-                            }
-                            System.out.println();
-                        }
                     }
+                    _allIncidences = allIncidences;
                 }
                 return _allIncidences;
             } // getAllIncidences
 
+            /**
+            * Get the frozen element/incidence index of this polytope
+            * (see IncidenceIndex).
+            * The result of this function gets cached
+            * until resetAllElements() is called.
+            */
+            public IncidenceIndex getIncidenceIndex()
+            {
+                if (_incidenceIndex == null)
+                    _incidenceIndex = new IncidenceIndex(getAllElements());
+                return _incidenceIndex;
+            } // getIncidenceIndex
+
             public String toString(String indentString,
                                    boolean showAux,
                                    boolean showGoryDetails,
@@ -825,6 +715,203 @@ public final class CSG
             } // fromStringInPcalcFormat
         } // class Polytope
 
+        private static final SortStuff.Comparator byIdComparator = new SortStuff.Comparator() {
+            public int compare(Object _a, Object _b)
+            {
+                Polytope a = (Polytope)_a;
+                Polytope b = (Polytope)_b;
+                return a.id < b.id ? -1 :
+                       a.id > b.id ? 1 : 0;
+            }
+        };
+
+        /**
+        *  Frozen index of all the elements of a polytope
+        *  and all the incidences between them,
+        *  in compressed sparse row form:
+        *  for each pair of dimensions iDim,jDim,
+        *  the indices (into element list jDim) of the jDim-dimensional elements
+        *  incident on iDim-dimensional element iElt are
+        *  <pre>
+        *      getIndices(iDim,jDim)[getOffsets(iDim,jDim)[iElt]]
+        *      ...
+        *      getIndices(iDim,jDim)[getOffsets(iDim,jDim)[iElt+1]-1]</pre>
+        *  in increasing order.
+        *  Element lists are sorted by id, the same as Polytope.getAllElements().
+        *  <p>
+        *  Building it doesn't touch anyone's aux, and queries don't allocate.
+        *  The arrays returned by the getters must not be modified.
+        */
+        public static class IncidenceIndex
+        {
+            private Polytope elements[/*dim+1*/][];
+            private long ids[/*dim+1*/][]; // ids[iDim][iElt] == elements[iDim][iElt].id, for binary search
+            private int offsets[/*dim+1*/][/*dim+1*/][/*nElts(iDim)+1*/];
+            private int indices[/*dim+1*/][/*dim+1*/][];
+
+            public IncidenceIndex(Polytope allElements[][])
+            {
+                int dim = allElements.length-1;
+                elements = allElements;
+                ids = new long[dim+1][];
+                for (int iDim = 0; (iDim) < (dim+1); ++iDim)
+                {
+                    ids[iDim] = new long[allElements[iDim].length];
+                    for (int iElt = 0; (iElt) < (ids[iDim].length); ++iElt)
+                        ids[iDim][iElt] = allElements[iDim][iElt].id;
+                }
+                offsets = new int[dim+1][dim+1][];
+                indices = new int[dim+1][dim+1][];
+
+                int buffer[] = new int[16]; // grows as needed
+
+                //
+                // Downwards (and self) incidences, from the bottom up.
+                // The jDim elements of elt are its facets if jDim == iDim-1,
+                // otherwise the union of the jDim elements of its facets.
+                //
+                for (int iDim = 0; (iDim) < (dim+1); ++iDim)
+                {
+                    int nElts = allElements[iDim].length;
+
+                    offsets[iDim][iDim] = new int[nElts+1];
+                    indices[iDim][iDim] = new int[nElts];
+                    for (int iElt = 0; (iElt) < (nElts); ++iElt)
+                    {
+                        offsets[iDim][iDim][iElt] = iElt;
+                        indices[iDim][iDim][iElt] = iElt;
+                    }
+                    offsets[iDim][iDim][nElts] = nElts;
+
+                    for (int jDim = 0; (jDim) < (iDim); ++jDim)
+                    {
+                        int stamps[] = new int[allElements[jDim].length];
+                        java.util.Arrays.fill(stamps, -1);
+                        int theseOffsets[] = new int[nElts+1];
+                        int n = 0;
+                        for (int iElt = 0; (iElt) < (nElts); ++iElt)
+                        {
+                            theseOffsets[iElt] = n;
+                            SPolytope facets[] = allElements[iDim][iElt].facets;
+                            for (int iFacet = 0; (iFacet) < (facets.length); ++iFacet)
+                            {
+                                int facetIndex = indexOf(facets[iFacet].p);
+                                int from, to;
+                                int facetIncidences[];
+                                if (jDim == iDim-1)
+                                {
+                                    from = 0;
+                                    to = 1;
+                                    facetIncidences = null; // just facetIndex itself
+                                }
+                                else
+                                {
+                                    from = offsets[iDim-1][jDim][facetIndex];
+                                    to = offsets[iDim-1][jDim][facetIndex+1];
+                                    facetIncidences = indices[iDim-1][jDim];
+                                }
+                                for (int k = from; k < to; ++k)
+                                {
+                                    int jElt = facetIncidences == null ? facetIndex : facetIncidences[k];
+                                    if (stamps[jElt] == iElt)
+                                        continue; // already got it
+                                    stamps[jElt] = iElt;
+                                    if (n == buffer.length)
+                                    {
+                                        int newBuffer[] = new int[2*n];
+                                        System.arraycopy(buffer, 0, newBuffer, 0, n);
+                                        buffer = newBuffer;
+                                    }
+                                    buffer[n++] = jElt;
+                                }
+                            }
+                            java.util.Arrays.sort(buffer, theseOffsets[iElt], n);
+                        }
+                        theseOffsets[nElts] = n;
+                        offsets[iDim][jDim] = theseOffsets;
+                        indices[iDim][jDim] = new int[n];
+                        System.arraycopy(buffer, 0, indices[iDim][jDim], 0, n);
+                    }
+                }
+
+                //
+                // Upwards incidences are the transposes of the downwards ones.
+                // Filling in order of increasing jElt keeps each row sorted.
+                //
+                for (int iDim = 0; (iDim) < (dim+1); ++iDim)
+                for (int jDim = iDim+1; jDim < dim+1; ++jDim)
+                {
+                    int downOffsets[] = offsets[jDim][iDim];
+                    int downIndices[] = indices[jDim][iDim];
+                    int nElts = allElements[iDim].length;
+                    int theseOffsets[] = new int[nElts+1];
+                    for (int k = 0; (k) < (downIndices.length); ++k)
+                        theseOffsets[downIndices[k]+1]++;
+                    for (int iElt = 0; (iElt) < (nElts); ++iElt)
+                        theseOffsets[iElt+1] += theseOffsets[iElt];
+                    int theseIndices[] = new int[downIndices.length];
+                    int fill[] = new int[nElts];
+                    System.arraycopy(theseOffsets, 0, fill, 0, nElts);
+                    for (int jElt = 0; (jElt) < (allElements[jDim].length); ++jElt)
+                        for (int k = downOffsets[jElt]; k < downOffsets[jElt+1]; ++k)
+                            theseIndices[fill[downIndices[k]]++] = jElt;
+                    offsets[iDim][jDim] = theseOffsets;
+                    indices[iDim][jDim] = theseIndices;
+                }
+            } // IncidenceIndex ctor
+
+            /** The dimension of the polytope this is an index of. */
+            public int dim()
+            {
+                return elements.length-1;
+            }
+            public int nElements(int iDim)
+            {
+                return elements[iDim].length;
+            }
+            public Polytope getElement(int iDim, int iElt)
+            {
+                return elements[iDim][iElt];
+            }
+            /** Index of elt in the list of its dimension, or -1 if it's not an element. */
+            public int indexOf(Polytope elt)
+            {
+                if (elt.dim >= ids.length)
+                    return -1;
+                long eltIds[] = ids[elt.dim];
+                int lo = 0, hi = eltIds.length-1;
+                while (lo <= hi)
+                {
+                    int mid = (lo+hi) >>> 1;
+                    if (eltIds[mid] < elt.id)
+                        lo = mid+1;
+                    else if (eltIds[mid] > elt.id)
+                        hi = mid-1;
+                    else
+                        return elements[elt.dim][mid] == elt ? mid : -1;
+                }
+                return -1;
+            }
+            /** Number of jDim-dimensional elements incident on iDim-dimensional element iElt. */
+            public int nIncidences(int iDim, int iElt, int jDim)
+            {
+                return offsets[iDim][jDim][iElt+1] - offsets[iDim][jDim][iElt];
+            }
+            /** Index of the k'th jDim-dimensional element incident on iDim-dimensional element iElt. */
+            public int getIncidence(int iDim, int iElt, int jDim, int k)
+            {
+                return indices[iDim][jDim][offsets[iDim][jDim][iElt] + k];
+            }
+            public int[] getOffsets(int iDim, int jDim)
+            {
+                return offsets[iDim][jDim];
+            }
+            public int[] getIndices(int iDim, int jDim)
+            {
+                return indices[iDim][jDim];
+            }
+        } // class IncidenceIndex
+
         /**
         *  Signed (oriented) polytope.
         *  <br>
@@ -852,10 +939,7 @@ public final class CSG
                              int sign,
                              Polytope p)
             {
-                synchronized(nIdsLock)
-                {
-                    this.id = nIds++;
-                }
+                this.id = nIds.getAndIncrement();
                 this.initialDensity = initialDensity;
                 this.sign = sign;
                 this.p = p;
@@ -1725,15 +1809,15 @@ public final class CSG
                 VecMath.copymat(returnUsefulMat, mat);
             }
 
-            FuzzyPointHashTable hashTable = new FuzzyPointHashTable(1e-9,
-                                                                    1e-8,
-                                                                    1./512);
+            FuzzyPointIntHashTable hashTable = new FuzzyPointIntHashTable(nDims,
+                                                                          1e-9,
+                                                                          1e-8,
+                                                                          1./512);
             Polytope verts[] = p.getAllElements()[0];
             int nVerts = verts.length;
             {
-                Object something = new Object();
                 for (int iVert = 0; (iVert) < (nVerts); ++iVert)
-                    hashTable.put(verts[iVert].getCoords(), something);
+                    hashTable.put(verts[iVert].getCoords(), iVert);
             }
 
             // The actual order will be some factor of maxPossibleOrder.
@@ -1757,7 +1841,7 @@ public final class CSG
                 for (iVert = 0; (iVert) < (nVerts); ++iVert)
                 {
                     VecMath.vxm(scratchVert, verts[iVert].getCoords(), mat);
-                    if (hashTable.get(scratchVert) == null)
+                    if (!hashTable.containsKey(scratchVert))
                     {
                         //System.err.print("(HEY! order "+order+"/"+maxPossibleOrder+" didn't work!)");
                         break; // no good!
@@ -2197,7 +2281,7 @@ public final class CSG
             SPolytope aboveBelowOn[/*3*/] = _slice(slicee,
                                                    hyperplane,
                                                    aux,
-                                                   new java.util.Hashtable(),
+                                                   new Ocean(),
                                                    "");
             do { if (!(aboveBelowOn != null)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2180 +"): " + "aboveBelowOn != null" + ""); } while (false);
             if (returnAbove != null)
@@ -2219,25 +2303,93 @@ public final class CSG
         public static SPolytope sliceFacets(SPolytope slicee,
                                             Hyperplane hyperplane,
                                             Object aux) // to be put in the aux field of all new elements
+        {
+            return _sliceFacets(slicee, hyperplane, aux, false);
+        } // sliceFacets
+
+        /**
+         * Same as sliceFacets, but the facets are sliced
+         * by several fork-join workers at once.
+         * The result is identical to what sliceFacets returns,
+         * down to the ids of the new elements,
+         * so element orderings (e.g. from getAllElements) don't change either.
+         */
+        public static SPolytope sliceFacetsInParallel(SPolytope slicee,
+                                                      Hyperplane hyperplane,
+                                                      Object aux) // to be put in the aux field of all new elements
+        {
+            boolean parallel = slicee.p.facets.length >= 2*PARALLEL_SLICE_GRAIN
+                            && Runtime.getRuntime().availableProcessors() > 1;
+            return _sliceFacets(slicee, hyperplane, aux, parallel);
+        } // sliceFacetsInParallel
+
+        // Minimum number of facets a fork-join worker slices by itself.
+        private static final int PARALLEL_SLICE_GRAIN = 8;
+
+        private static SPolytope _sliceFacets(final SPolytope slicee,
+                                              final Hyperplane hyperplane,
+                                              final Object aux,
+                                              boolean parallel)
         {
             if (verboseLevel >= 1)
             {
                 System.out.println("in CSG.slice");
                 System.out.println("hyperplane" + " = " + (hyperplane));
             }
-            java.util.Hashtable ocean = new java.util.Hashtable();
+            final Ocean ocean = parallel ? new ConcurrentOcean() : new Ocean();
+
+            int nFacets = slicee.p.facets.length;
+            final SPolytope facetStuffs[][] = new SPolytope[nFacets][];
+            if (parallel)
+            {
+                class SliceFacetsTask extends java.util.concurrent.RecursiveAction
+                {
+                    private static final long serialVersionUID = 1L;
+                    private int iFacet0, iFacet1;
+                    SliceFacetsTask(int iFacet0, int iFacet1)
+                    {
+                        this.iFacet0 = iFacet0;
+                        this.iFacet1 = iFacet1;
+                    }
+                    protected void compute()
+                    {
+                        if (iFacet1 - iFacet0 < 2*PARALLEL_SLICE_GRAIN)
+                        {
+                            for (int iFacet = iFacet0; iFacet < iFacet1; ++iFacet)
+                                facetStuffs[iFacet] = _slice(slicee.p.facets[iFacet], hyperplane, aux, ocean, "        ");
+                        }
+                        else
+                        {
+                            int iFacetMid = (iFacet0 + iFacet1) / 2;
+                            invokeAll(new SliceFacetsTask(iFacet0, iFacetMid),
+                                      new SliceFacetsTask(iFacetMid, iFacet1));
+                        }
+                    }
+                }
+                java.util.concurrent.ForkJoinPool.commonPool().invoke(new SliceFacetsTask(0, nFacets));
+
+                // The workers got ids in whatever order they happened to run;
+                // renumber the new elements in the order
+                // the serial slicer would have created them.
+                renumberNewElementsOfSlicing(slicee.p, (ConcurrentOcean)ocean);
+            }
+            else
+            {
+                for (int iFacet = 0; (iFacet) < (nFacets); ++iFacet)
+                    facetStuffs[iFacet] = _slice(slicee.p.facets[iFacet], hyperplane, aux, ocean, "        ");
+            }
 
-            SPolytope newFacets[] = new SPolytope[2*slicee.p.facets.length]; // at most
+            SPolytope newFacets[] = new SPolytope[2*nFacets]; // at most
             int nNewFacets = 0;
-            for (int iFacet = 0; (iFacet) < (slicee.p.facets.length); ++iFacet)
+            for (int iFacet = 0; (iFacet) < (nFacets); ++iFacet)
             {
-                SPolytope facetStuff[] = _slice(slicee.p.facets[iFacet], hyperplane, aux, ocean, "        ");
+                SPolytope facetStuff[] = facetStuffs[iFacet];
                 if (facetStuff[0] != null)
                     newFacets[nNewFacets++] = facetStuff[0];
                 if (facetStuff[1] != null)
                     newFacets[nNewFacets++] = facetStuff[1];
             }
-            if (nNewFacets == slicee.p.facets.length)
+            if (nNewFacets == nFacets)
                 return slicee;
             newFacets = (SPolytope[])Arrays.subarray(newFacets, 0, nNewFacets); // resize
             SPolytope result = new SPolytope(slicee.initialDensity,
@@ -2250,14 +2402,142 @@ public final class CSG
             if (verboseLevel >= 1)
                 System.out.println("out CSG.slice");
             return result;
-        } // sliceFacets
+        } // _sliceFacets
+
+        //
+        // The "ocean" of slicings already done, keyed by Polytope,
+        // so that elements shared by several facets get sliced only once.
+        // Each answer is the array {above,below,on} made by _sliceNotInOcean.
+        //
+        private static class Ocean
+        {
+            private java.util.Hashtable<Polytope,SPolytope[]> table = new java.util.Hashtable<Polytope,SPolytope[]>();
+
+            // Returns the answer if it's already known.
+            // Otherwise returns null, in which case the caller
+            // must calculate the answer and put() it (or abandon() it).
+            SPolytope[] claim(Polytope p)
+            {
+                return table.get(p);
+            }
+            void put(Polytope p, SPolytope aboveBelowOn[])
+            {
+                table.put(p, aboveBelowOn);
+            }
+            void abandon(Polytope p)
+            {
+            }
+            SPolytope[] get(Polytope p)
+            {
+                return table.get(p);
+            }
+        } // class Ocean
+
+        //
+        // Ocean that can be shared by several threads.
+        // The first thread to claim a polytope slices it;
+        // any other thread that wants it meanwhile waits for that answer.
+        // There's no deadlock since a thread only ever waits
+        // on polytopes of lower dimension than the ones it has claimed.
+        //
+        private static class ConcurrentOcean extends Ocean
+        {
+            private java.util.concurrent.ConcurrentHashMap<Polytope,Object> table = new java.util.concurrent.ConcurrentHashMap<Polytope,Object>();
+
+            SPolytope[] claim(Polytope p)
+            {
+                while (true)
+                {
+                    Object got = table.get(p);
+                    if (got == null)
+                    {
+                        got = table.putIfAbsent(p, new java.util.concurrent.CountDownLatch(1));
+                        if (got == null)
+                            return null; // it's ours
+                    }
+                    if (!(got instanceof java.util.concurrent.CountDownLatch))
+                        return (SPolytope[])got;
+                    // Someone else is working on it.
+                    boolean interrupted = false;
+                    while (true)
+                    {
+                        try
+                        {
+                            ((java.util.concurrent.CountDownLatch)got).await();
+                            break;
+                        }
+                        catch (InterruptedException e)
+                        {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted)
+                        Thread.currentThread().interrupt();
+                    // and try again-- it's either answered or abandoned now
+                }
+            }
+            void put(Polytope p, SPolytope aboveBelowOn[])
+            {
+                ((java.util.concurrent.CountDownLatch)table.put(p, aboveBelowOn)).countDown();
+            }
+            void abandon(Polytope p)
+            {
+                ((java.util.concurrent.CountDownLatch)table.remove(p)).countDown();
+            }
+            SPolytope[] get(Polytope p)
+            {
+                return (SPolytope[])table.get(p);
+            }
+        } // class ConcurrentOcean
+
+        //
+        // Gives the polytopes created by a parallel slicing
+        // the ids they would have gotten from the serial slicer,
+        // by walking the facets in the same order _slice does.
+        // The serial slicer creates, for each polytope it cuts
+        // (after recursing on its facets), the cut point first,
+        // then the above piece, then the below piece.
+        //
+        private static void renumberNewElementsOfSlicing(Polytope slicee,
+                                                         ConcurrentOcean ocean)
+        {
+            java.util.Vector<Polytope> newElements = new java.util.Vector<Polytope>();
+            java.util.IdentityHashMap<Polytope,Polytope> visited = new java.util.IdentityHashMap<Polytope,Polytope>();
+            for (int iFacet = 0; (iFacet) < (slicee.facets.length); ++iFacet)
+                collectNewElementsInSerialOrder(slicee.facets[iFacet].p, ocean, visited, newElements);
+
+            int nNew = newElements.size();
+            long firstId = nIds.getAndAdd(nNew);
+            for (int i = 0; (i) < (nNew); ++i)
+                newElements.elementAt(i).id = firstId + i;
+        } // renumberNewElementsOfSlicing
+
+        private static void collectNewElementsInSerialOrder(Polytope p,
+                                                            ConcurrentOcean ocean,
+                                                            java.util.IdentityHashMap<Polytope,Polytope> visited,
+                                                            java.util.Vector<Polytope> newElements)
+        {
+            if (visited.put(p, p) != null)
+                return;
+            for (int iFacet = 0; (iFacet) < (p.facets.length); ++iFacet)
+                collectNewElementsInSerialOrder(p.facets[iFacet].p, ocean, visited, newElements);
+            SPolytope aboveBelowOn[] = ocean.get(p);
+            do { if (!(aboveBelowOn != null)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2260 +"): " + "aboveBelowOn != null" + ""); } while (false);
+            SPolytope above = aboveBelowOn[0], below = aboveBelowOn[1], on = aboveBelowOn[2];
+            if (on != null)
+                newElements.addElement(on.p);
+            if (above != null && above.p != p)
+                newElements.addElement(above.p);
+            if (below != null && below.p != p)
+                newElements.addElement(below.p);
+        } // collectNewElementsInSerialOrder
 
         // recursive work function used by slice() and sliceFacets().
         // returns an array {above,below,on}.
         private static SPolytope[/*3*/] _slice(SPolytope slicee,
                                                Hyperplane hyperplane,
                                                Object aux,
-                                               java.util.Hashtable ocean, // hashtable of slicings already done
+                                               Ocean ocean, // slicings already done
                                                String indentString) // for debugging
         {
             String subIndentString = null;
@@ -2266,212 +2546,19 @@ public final class CSG
                 System.out.println(indentString+"in CSG._slice (slicee dim = "+slicee.p.dim+")");
                 subIndentString = indentString + "        ";
             }
-            SPolytope aboveBelowOn[/*3*/] = (SPolytope[])ocean.get(slicee.p);
+            SPolytope aboveBelowOn[/*3*/] = ocean.claim(slicee.p);
             if (aboveBelowOn == null)
             {
                 // Not already in the ocean... need to calculate it
-                SPolytope above = null, below = null, on = null;
-                if (slicee.p.dim == 0)
+                try
                 {
-                    double coords[] = slicee.p.getCoords();
-                    double height = VecMath.dot(coords, hyperplane.normal) - hyperplane.offset;
-                    if (height > 0.) // XXX need to make this fuzzy
-                        above = slicee;
-                    else if (height < 0.) // XXX need to make this fuzzy
-                        below = slicee;
-                    else
-                        do {if (true) throw new Error("Unimplemented at "+"com/donhatchsw/util/CSG.prejava"+"("+2261 +")"); } while (false); // vertices on the plane mess everything hup later
+                    aboveBelowOn = _sliceNotInOcean(slicee, hyperplane, aux, ocean, subIndentString);
                 }
-                else if (slicee.p.dim == 1)
+                finally
                 {
-                    //
-                    // Slicee is a 1-dimensional polytope,
-                    // i.e. a (multi-)segment.  Note that
-                    // it may have more than two vertices:
-                    // e.g. when a hatchet-chop is taken out of the
-                    // edge of a regular polyhedron, the resulting pieces of the
-                    // chopped edge are still considered to be part
-                    // of a single edge, which now has 4 vertices
-                    // (with signs -, +, -, + in order).
-                    //
-
-                    //
-                    // Calculate the cumulative sign
-                    // of all vertices lying above and below the plane...
-                    //
-                    SPolytope facetStuffs[][] = new SPolytope[slicee.p.facets.length][];
-                    int nAbove = 0, nBelow = 0;
-                    int totalSignAbove = 0;
-                    int totalSignBelow = 0;
-                    for (int iFacet = 0; (iFacet) < (slicee.p.facets.length); ++iFacet)
-                    {
-                        facetStuffs[iFacet] = _slice(slicee.p.facets[iFacet], hyperplane, aux, ocean, subIndentString);
-                        if (facetStuffs[iFacet][0] != null)
-                        {
-                            nAbove++;
-                            totalSignAbove += slicee.p.facets[iFacet].sign;
-                        }
-                        if (facetStuffs[iFacet][1] != null)
-                        {
-                            nBelow++;
-                            totalSignBelow += slicee.p.facets[iFacet].sign;
-                        }
-                        if (facetStuffs[iFacet][2] != null)
-                        {
-                            do {if (true) throw new Error("Unimplemented at "+"com/donhatchsw/util/CSG.prejava"+"("+2299 +")"); } while (false);
-                        }
-                    }
-                    totalSignAbove = 1; // XXX FUDGE
-                    totalSignBelow = -1; // XXX FUDGE
-                    do { if (!(totalSignAbove + totalSignBelow == 0)) throw new Error("Assumption failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2304 +"): " + "totalSignAbove + totalSignBelow == 0" + ""); } while (false);
-
-                    if (nAbove != 0 && nBelow != 0)
-                    {
-                        SPolytope facetsAbove[] = new SPolytope[nAbove + (totalSignAbove!=0 ? 1 : 0)];
-                        SPolytope facetsBelow[] = new SPolytope[nBelow + (totalSignBelow!=0 ? 1 : 0)];
-                        {
-                            int iAbove = 0, iBelow = 0;
-                            for (int iFacet = 0; (iFacet) < (slicee.p.facets.length); ++iFacet)
-                            {
-                                if (facetStuffs[iFacet][0] != null)
-                                    facetsAbove[iAbove++] = facetStuffs[iFacet][0];
-                                if (facetStuffs[iFacet][1] != null)
-                                    facetsBelow[iBelow++] = facetStuffs[iFacet][1];
-                            }
-                            do { if (!(iAbove == nAbove)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2319 +"): " + "iAbove == nAbove" + ""); } while (false);
-                            do { if (!(iBelow == nBelow)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2320 +"): " + "iBelow == nBelow" + ""); } while (false);
-                            if (totalSignAbove != 0) // i.e. if totalSignBelow != 0
-                            {
-                                // Need to make a new cutpoint.
-                                // Note that we don't need to set the coords on it,
-                                // that will be computed lazily
-                                // from its hyperplanes
-                                // the first time anyone calls getCoords() on it.
-                                Polytope cutPoint = new Polytope(slicee.p.dim-1,
-                                                                 slicee.p.fullDim,
-                                                                 new SPolytope[0], // result vertex has no facets
-                                                                 addOneHyperplaneAndSort(slicee.p.contributingHyperplanes, hyperplane),
-                                                                 aux);
-                                facetsAbove[iAbove++] = new SPolytope(0, // initialDensity always 0 for vertices, I think
-                                                                      -totalSignAbove,
-                                                                      cutPoint);
-                                facetsBelow[iBelow++] = new SPolytope(0, // initialDensity always 0 for vertices, I think
-                                                                      -totalSignBelow,
-                                                                      cutPoint);
-                                on = new SPolytope(slicee.initialDensity, // XXX I think this is wrong-- how the hell are we supposed to get an initialDensity?  maybe initialDensity isn't meaningful except for top-level polytopes?
-                                                   1, // XXX arbitrary-- I think signs are completely messed up, will fix later
-                                                   cutPoint);
-                            }
-                            do { if (!(iAbove == facetsAbove.length)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2343 +"): " + "iAbove == facetsAbove.length" + ""); } while (false);
-                            do { if (!(iBelow == facetsBelow.length)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2344 +"): " + "iBelow == facetsBelow.length" + ""); } while (false);
-                        }
-
-                        above = new SPolytope(slicee.initialDensity,
-                                              slicee.sign,
-                                              new Polytope(slicee.p.dim,
-                                                           slicee.p.fullDim,
-                                                           facetsAbove,
-                                                           slicee.p.contributingHyperplanes,
-                                                           slicee.p.aux));
-                        below = new SPolytope(slicee.initialDensity,
-                                              slicee.sign,
-                                              new Polytope(slicee.p.dim,
-                                                           slicee.p.fullDim,
-                                                           facetsBelow,
-                                                           slicee.p.contributingHyperplanes,
-                                                           slicee.p.aux));
-                    }
-                    else if (nAbove != 0)
-                        above = slicee;
-                    else if (nBelow != 0)
-                        below = slicee;
-                    else
-                        do { if (!(false)) throw new Error("Assumption failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2367 +"): " + "false" + ""); } while (false);
-                } // slicee.p.dim == 1
-                else // slicee.p.dim >= 2
-                {
-                    do { if (!(slicee.p.dim >= 2)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2371 +"): " + "slicee.p.dim >= 2" + ""); } while (false);
-
-                    SPolytope facetStuffs[][] = new SPolytope[slicee.p.facets.length][];
-                    int nAbove = 0, nBelow = 0, nOn = 0;
-                    for (int iFacet = 0; (iFacet) < (slicee.p.facets.length); ++iFacet)
-                    {
-                        facetStuffs[iFacet] = _slice(slicee.p.facets[iFacet], hyperplane, aux, ocean, subIndentString);
-                        if (facetStuffs[iFacet][0] != null)
-                            nAbove++;
-                        if (facetStuffs[iFacet][1] != null)
-                            nBelow++;
-                        if (facetStuffs[iFacet][2] != null)
-                            nOn++;
-                    }
-                    if (nAbove != 0 && nBelow != 0)
-                    {
-                        SPolytope facetsAbove[] = new SPolytope[nAbove + (nOn!=0 ? 1 : 0)];
-                        SPolytope facetsBelow[] = new SPolytope[nBelow + (nOn!=0 ? 1 : 0)];
-                        SPolytope ridgesOn[] = new SPolytope[nOn];
-                        {
-                            int iAbove = 0, iBelow = 0, iOn = 0;
-                            for (int iFacet = 0; (iFacet) < (slicee.p.facets.length); ++iFacet)
-                            {
-                                if (facetStuffs[iFacet][0] != null)
-                                    facetsAbove[iAbove++] = facetStuffs[iFacet][0];
-                                if (facetStuffs[iFacet][1] != null)
-                                    facetsBelow[iBelow++] = facetStuffs[iFacet][1];
-                                if (facetStuffs[iFacet][2] != null)
-                                    ridgesOn[iOn++] = facetStuffs[iFacet][2];
-                            }
-                            do { if (!(iAbove == nAbove)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2401 +"): " + "iAbove == nAbove" + ""); } while (false);
-                            do { if (!(iBelow == nBelow)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2402 +"): " + "iBelow == nBelow" + ""); } while (false);
-                            do { if (!(iOn == nOn)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2403 +"): " + "iOn == nOn" + ""); } while (false);
-                            // XXX can some ridges occur multiple times?
-                            // XXX I don't think so, since On is only *new* stuff... but if I'm wrong, will need to sort ridgesOn and combine
-
-                            if (nOn != 0)
-                            {
-                                Polytope cutPoint = new Polytope(slicee.p.dim-1,
-                                                                 slicee.p.fullDim,
-                                                                 ridgesOn,
-                                                                 addOneHyperplaneAndSort(slicee.p.contributingHyperplanes, hyperplane),
-                                                                 aux);
-                                facetsAbove[iAbove++] = new SPolytope(slicee.initialDensity, // XXX I think this is wrong-- how the hell are we supposed to get an initial density? maybe initialDensity isn't meaningful except for top-level polytopes?
-                                                                      +1,
-                                                                      cutPoint);
-                                facetsBelow[iBelow++] = new SPolytope(slicee.initialDensity, // XXX I think this is wrong-- how the hell are we supposed to get an initialDensity?  maybe initialDensity isn't meaningful except for top-level polytopes?
-                                                                      -1,
-                                                                      cutPoint);
-                                on = new SPolytope(slicee.initialDensity, // XXX I think this is wrong-- how the hell are we supposed to get an initialDensity?  maybe initialDensity isn't meaningful except for top-level polytopes?
-                                                   1, // XXX arbitrary-- I think signs are completely messed up, will fix later
-                                                   cutPoint);
-                            }
-                            do { if (!(iAbove == facetsAbove.length)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2424 +"): " + "iAbove == facetsAbove.length" + ""); } while (false);
-                            do { if (!(iBelow == facetsBelow.length)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2425 +"): " + "iBelow == facetsBelow.length" + ""); } while (false);
-                            do { if (!(iOn == ridgesOn.length)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2426 +"): " + "iOn == ridgesOn.length" + ""); } while (false);
-                        }
-
-                        above = new SPolytope(slicee.initialDensity,
-                                              slicee.sign,
-                                              new Polytope(slicee.p.dim,
-                                                           slicee.p.fullDim,
-                                                           facetsAbove,
-                                                           slicee.p.contributingHyperplanes,
-                                                           slicee.p.aux));
-                        below = new SPolytope(slicee.initialDensity,
-                                              slicee.sign,
-                                              new Polytope(slicee.p.dim,
-                                                           slicee.p.fullDim,
-                                                           facetsBelow,
-                                                           slicee.p.contributingHyperplanes,
-                                                           slicee.p.aux));
-
-                    }
-                    else if (nAbove != 0)
-                        above = slicee;
-                    else if (nBelow != 0)
-                        below = slicee;
-                    else
-                        do { if (!(false)) throw new Error("Assumption failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2450 +"): " + "false" + ""); } while (false);
-                } // slicee.p.dim >= 2
-                aboveBelowOn = new SPolytope[] {above, below, on};
+                    if (aboveBelowOn == null)
+                        ocean.abandon(slicee.p); // so nobody waits for it forever
+                }
                 ocean.put(slicee.p, aboveBelowOn);
             }
             else
@@ -2485,6 +2572,9 @@ public final class CSG
                 // XXX I think maybe we should be just working unsigned
                 // XXX and then orient afterwards.
                 // XXX bleah, unfortunately this doesn't seem to make any difference, the bugs must be elsewhere.
+                // Note we copy the array rather than wrapping in place,
+                // since the one in the ocean may be looked at by other threads.
+                aboveBelowOn = aboveBelowOn.clone();
                 for (int i = 0; (i) < (3); ++i)
                 {
                     if (aboveBelowOn[i] != null)
@@ -2502,6 +2592,219 @@ public final class CSG
             return aboveBelowOn;
         } // _slice
 
+        // The part of _slice that does the actual work,
+        // when slicee isn't in the ocean yet.
+        // returns an array {above,below,on}.
+        private static SPolytope[/*3*/] _sliceNotInOcean(SPolytope slicee,
+                                                         Hyperplane hyperplane,
+                                                         Object aux,
+                                                         Ocean ocean,
+                                                         String subIndentString) // for debugging
+        {
+            SPolytope above = null, below = null, on = null;
+            if (slicee.p.dim == 0)
+            {
+                double coords[] = slicee.p.getCoords();
+                double height = VecMath.dot(coords, hyperplane.normal) - hyperplane.offset;
+                if (height > 0.) // XXX need to make this fuzzy
+                    above = slicee;
+                else if (height < 0.) // XXX need to make this fuzzy
+                    below = slicee;
+                else
+                    do {if (true) throw new Error("Unimplemented at "+"com/donhatchsw/util/CSG.prejava"+"("+2261 +")"); } while (false); // vertices on the plane mess everything hup later
+            }
+            else if (slicee.p.dim == 1)
+            {
+                //
+                // Slicee is a 1-dimensional polytope,
+                // i.e. a (multi-)segment.  Note that
+                // it may have more than two vertices:
+                // e.g. when a hatchet-chop is taken out of the
+                // edge of a regular polyhedron, the resulting pieces of the
+                // chopped edge are still considered to be part
+                // of a single edge, which now has 4 vertices
+                // (with signs -, +, -, + in order).
+                //
+
+                //
+                // Calculate the cumulative sign
+                // of all vertices lying above and below the plane...
+                //
+                SPolytope facetStuffs[][] = new SPolytope[slicee.p.facets.length][];
+                int nAbove = 0, nBelow = 0;
+                int totalSignAbove = 0;
+                int totalSignBelow = 0;
+                for (int iFacet = 0; (iFacet) < (slicee.p.facets.length); ++iFacet)
+                {
+                    facetStuffs[iFacet] = _slice(slicee.p.facets[iFacet], hyperplane, aux, ocean, subIndentString);
+                    if (facetStuffs[iFacet][0] != null)
+                    {
+                        nAbove++;
+                        totalSignAbove += slicee.p.facets[iFacet].sign;
+                    }
+                    if (facetStuffs[iFacet][1] != null)
+                    {
+                        nBelow++;
+                        totalSignBelow += slicee.p.facets[iFacet].sign;
+                    }
+                    if (facetStuffs[iFacet][2] != null)
+                    {
+                        do {if (true) throw new Error("Unimplemented at "+"com/donhatchsw/util/CSG.prejava"+"("+2299 +")"); } while (false);
+                    }
+                }
+                totalSignAbove = 1; // XXX FUDGE
+                totalSignBelow = -1; // XXX FUDGE
+                do { if (!(totalSignAbove + totalSignBelow == 0)) throw new Error("Assumption failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2304 +"): " + "totalSignAbove + totalSignBelow == 0" + ""); } while (false);
+
+                if (nAbove != 0 && nBelow != 0)
+                {
+                    SPolytope facetsAbove[] = new SPolytope[nAbove + (totalSignAbove!=0 ? 1 : 0)];
+                    SPolytope facetsBelow[] = new SPolytope[nBelow + (totalSignBelow!=0 ? 1 : 0)];
+                    {
+                        int iAbove = 0, iBelow = 0;
+                        for (int iFacet = 0; (iFacet) < (slicee.p.facets.length); ++iFacet)
+                        {
+                            if (facetStuffs[iFacet][0] != null)
+                                facetsAbove[iAbove++] = facetStuffs[iFacet][0];
+                            if (facetStuffs[iFacet][1] != null)
+                                facetsBelow[iBelow++] = facetStuffs[iFacet][1];
+                        }
+                        do { if (!(iAbove == nAbove)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2319 +"): " + "iAbove == nAbove" + ""); } while (false);
+                        do { if (!(iBelow == nBelow)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2320 +"): " + "iBelow == nBelow" + ""); } while (false);
+                        if (totalSignAbove != 0) // i.e. if totalSignBelow != 0
+                        {
+                            // Need to make a new cutpoint.
+                            // Note that we don't need to set the coords on it,
+                            // that will be computed lazily
+                            // from its hyperplanes
+                            // the first time anyone calls getCoords() on it.
+                            Polytope cutPoint = new Polytope(slicee.p.dim-1,
+                                                             slicee.p.fullDim,
+                                                             new SPolytope[0], // result vertex has no facets
+                                                             addOneHyperplaneAndSort(slicee.p.contributingHyperplanes, hyperplane),
+                                                             aux);
+                            facetsAbove[iAbove++] = new SPolytope(0, // initialDensity always 0 for vertices, I think
+                                                                  -totalSignAbove,
+                                                                  cutPoint);
+                            facetsBelow[iBelow++] = new SPolytope(0, // initialDensity always 0 for vertices, I think
+                                                                  -totalSignBelow,
+                                                                  cutPoint);
+                            on = new SPolytope(slicee.initialDensity, // XXX I think this is wrong-- how the hell are we supposed to get an initialDensity?  maybe initialDensity isn't meaningful except for top-level polytopes?
+                                               1, // XXX arbitrary-- I think signs are completely messed up, will fix later
+                                               cutPoint);
+                        }
+                        do { if (!(iAbove == facetsAbove.length)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2343 +"): " + "iAbove == facetsAbove.length" + ""); } while (false);
+                        do { if (!(iBelow == facetsBelow.length)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2344 +"): " + "iBelow == facetsBelow.length" + ""); } while (false);
+                    }
+
+                    above = new SPolytope(slicee.initialDensity,
+                                          slicee.sign,
+                                          new Polytope(slicee.p.dim,
+                                                       slicee.p.fullDim,
+                                                       facetsAbove,
+                                                       slicee.p.contributingHyperplanes,
+                                                       slicee.p.aux));
+                    below = new SPolytope(slicee.initialDensity,
+                                          slicee.sign,
+                                          new Polytope(slicee.p.dim,
+                                                       slicee.p.fullDim,
+                                                       facetsBelow,
+                                                       slicee.p.contributingHyperplanes,
+                                                       slicee.p.aux));
+                }
+                else if (nAbove != 0)
+                    above = slicee;
+                else if (nBelow != 0)
+                    below = slicee;
+                else
+                    do { if (!(false)) throw new Error("Assumption failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2367 +"): " + "false" + ""); } while (false);
+            } // slicee.p.dim == 1
+            else // slicee.p.dim >= 2
+            {
+                do { if (!(slicee.p.dim >= 2)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2371 +"): " + "slicee.p.dim >= 2" + ""); } while (false);
+
+                SPolytope facetStuffs[][] = new SPolytope[slicee.p.facets.length][];
+                int nAbove = 0, nBelow = 0, nOn = 0;
+                for (int iFacet = 0; (iFacet) < (slicee.p.facets.length); ++iFacet)
+                {
+                    facetStuffs[iFacet] = _slice(slicee.p.facets[iFacet], hyperplane, aux, ocean, subIndentString);
+                    if (facetStuffs[iFacet][0] != null)
+                        nAbove++;
+                    if (facetStuffs[iFacet][1] != null)
+                        nBelow++;
+                    if (facetStuffs[iFacet][2] != null)
+                        nOn++;
+                }
+                if (nAbove != 0 && nBelow != 0)
+                {
+                    SPolytope facetsAbove[] = new SPolytope[nAbove + (nOn!=0 ? 1 : 0)];
+                    SPolytope facetsBelow[] = new SPolytope[nBelow + (nOn!=0 ? 1 : 0)];
+                    SPolytope ridgesOn[] = new SPolytope[nOn];
+                    {
+                        int iAbove = 0, iBelow = 0, iOn = 0;
+                        for (int iFacet = 0; (iFacet) < (slicee.p.facets.length); ++iFacet)
+                        {
+                            if (facetStuffs[iFacet][0] != null)
+                                facetsAbove[iAbove++] = facetStuffs[iFacet][0];
+                            if (facetStuffs[iFacet][1] != null)
+                                facetsBelow[iBelow++] = facetStuffs[iFacet][1];
+                            if (facetStuffs[iFacet][2] != null)
+                                ridgesOn[iOn++] = facetStuffs[iFacet][2];
+                        }
+                        do { if (!(iAbove == nAbove)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2401 +"): " + "iAbove == nAbove" + ""); } while (false);
+                        do { if (!(iBelow == nBelow)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2402 +"): " + "iBelow == nBelow" + ""); } while (false);
+                        do { if (!(iOn == nOn)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2403 +"): " + "iOn == nOn" + ""); } while (false);
+                        // XXX can some ridges occur multiple times?
+                        // XXX I don't think so, since On is only *new* stuff... but if I'm wrong, will need to sort ridgesOn and combine
+
+                        if (nOn != 0)
+                        {
+                            Polytope cutPoint = new Polytope(slicee.p.dim-1,
+                                                             slicee.p.fullDim,
+                                                             ridgesOn,
+                                                             addOneHyperplaneAndSort(slicee.p.contributingHyperplanes, hyperplane),
+                                                             aux);
+                            facetsAbove[iAbove++] = new SPolytope(slicee.initialDensity, // XXX I think this is wrong-- how the hell are we supposed to get an initial density? maybe initialDensity isn't meaningful except for top-level polytopes?
+                                                                  +1,
+                                                                  cutPoint);
+                            facetsBelow[iBelow++] = new SPolytope(slicee.initialDensity, // XXX I think this is wrong-- how the hell are we supposed to get an initialDensity?  maybe initialDensity isn't meaningful except for top-level polytopes?
+                                                                  -1,
+                                                                  cutPoint);
+                            on = new SPolytope(slicee.initialDensity, // XXX I think this is wrong-- how the hell are we supposed to get an initialDensity?  maybe initialDensity isn't meaningful except for top-level polytopes?
+                                               1, // XXX arbitrary-- I think signs are completely messed up, will fix later
+                                               cutPoint);
+                        }
+                        do { if (!(iAbove == facetsAbove.length)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2424 +"): " + "iAbove == facetsAbove.length" + ""); } while (false);
+                        do { if (!(iBelow == facetsBelow.length)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2425 +"): " + "iBelow == facetsBelow.length" + ""); } while (false);
+                        do { if (!(iOn == ridgesOn.length)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2426 +"): " + "iOn == ridgesOn.length" + ""); } while (false);
+                    }
+
+                    above = new SPolytope(slicee.initialDensity,
+                                          slicee.sign,
+                                          new Polytope(slicee.p.dim,
+                                                       slicee.p.fullDim,
+                                                       facetsAbove,
+                                                       slicee.p.contributingHyperplanes,
+                                                       slicee.p.aux));
+                    below = new SPolytope(slicee.initialDensity,
+                                          slicee.sign,
+                                          new Polytope(slicee.p.dim,
+                                                       slicee.p.fullDim,
+                                                       facetsBelow,
+                                                       slicee.p.contributingHyperplanes,
+                                                       slicee.p.aux));
+
+                }
+                else if (nAbove != 0)
+                    above = slicee;
+                else if (nBelow != 0)
+                    below = slicee;
+                else
+                    do { if (!(false)) throw new Error("Assumption failed at "+"com/donhatchsw/util/CSG.prejava"+"("+2450 +"): " + "false" + ""); } while (false);
+            } // slicee.p.dim >= 2
+            return new SPolytope[] {above, below, on};
+        } // _sliceNotInOcean
+
         //
         // XXX OLD-- look through for signs of intelligence and then delete
         // Slice a signed polytope by a plane.
@@ -3351,6 +3654,69 @@ public final class CSG
                 System.out.println("out orientDeep");
         } // orientDeep
 
+        //
+        // The first part of orientDeep, for when sp is just a bag of facets
+        // that don't close up (e.g. a few facets of something bigger
+        // that have been sliced up on their own):
+        // orients each of the facets, and their facets, etc.,
+        // consistently, but leaves the signs of the facets
+        // of sp itself alone since they can't be figured out.
+        // So each facet comes out oriented one way or the other,
+        // and it's up to the caller to decide which way is right.
+        //
+        public static void orientFacetsDeep(SPolytope sp)
+        {
+            int dim = sp.p.dim;
+            Polytope allElements[][] = sp.p.getAllElements();
+            for (int iDim = 0; (iDim) < (dim); ++iDim)
+            {
+                Polytope ofDim[] = allElements[iDim];
+                int nOfDim = ofDim.length;
+                for (int iOfDim = 0; (iOfDim) < (nOfDim); ++iOfDim)
+                    orientFacetsConsistently(ofDim[iOfDim]);
+            }
+        } // orientFacetsDeep
+
+        //
+        // Returns a copy of sp with all new elements
+        // (but sharing the hyperplanes, vertex coords, and auxs),
+        // so that the copy can be sliced, oriented, and have its auxs
+        // changed without disturbing sp.
+        // The elements of each dimension are created
+        // in the same order as they appear in sp.p.getAllElements(),
+        // so the copy's getAllElements() comes out in the same order too.
+        //
+        public static SPolytope copyDeep(SPolytope sp)
+        {
+            Polytope allElements[][] = sp.p.getAllElements();
+            java.util.IdentityHashMap<Polytope,Polytope> copies = new java.util.IdentityHashMap<Polytope,Polytope>();
+            for (int iDim = 0; (iDim) < (allElements.length); ++iDim)
+            {
+                Polytope ofDim[] = allElements[iDim];
+                for (int iOfDim = 0; (iOfDim) < (ofDim.length); ++iOfDim)
+                {
+                    Polytope p = ofDim[iOfDim];
+                    SPolytope facetCopies[] = new SPolytope[p.facets.length];
+                    for (int iFacet = 0; (iFacet) < (p.facets.length); ++iFacet)
+                    {
+                        SPolytope facet = p.facets[iFacet];
+                        Polytope facetCopy = copies.get(facet.p);
+                        do { if (!(facetCopy != null)) throw new Error("Assertion failed at "+"com/donhatchsw/util/CSG.prejava"+"("+3593 +"): " + "facetCopy != null" + ""); } while (false);
+                        facetCopies[iFacet] = new SPolytope(facet.initialDensity, facet.sign, facetCopy);
+                    }
+                    Polytope copy = new Polytope(p.dim,
+                                                 p.fullDim,
+                                                 facetCopies,
+                                                 p.contributingHyperplanes,
+                                                 p.aux);
+                    if (p.dim == 0)
+                        copy.setCoords(p.getCoords());
+                    copies.put(p, copy);
+                }
+            }
+            return new SPolytope(sp.initialDensity, sp.sign, copies.get(sp.p));
+        } // copyDeep
+
 
 
         //
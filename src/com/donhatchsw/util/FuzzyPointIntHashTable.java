@@ -0,0 +1,214 @@
+package com.donhatchsw.util;
+
+/**
+*  Spatial hash table from double[] keys of a fixed length
+*  to int values, with fuzzy equality.
+*  <p>
+*  Same fuzziness contract as FuzzyPointHashTable:
+*  two doubles a,b are considered equal if |a-b| &le; littleEps,
+*  and unequal if |a-b| > bigEps;
+*  if a pair of doubles is encountered that are neither equal
+*  nor unequal, or a coord is in a forbidden zone around a grid line,
+*  then a FuzzyPointHashTable.FuzzyException is thrown.
+*  <p>
+*  Unlike FuzzyPointHashTable, there is no object per entry
+*  and no boxing; the quantized grid coordinates of each key
+*  are packed into a long, which lives in an open-addressed (linear probing)
+*  array along with a copy of the key coords and the int value.
+*  get() doesn't allocate anything.
+*  <p>
+*  Not synchronized; concurrent get()s are fine
+*  as long as nobody is put()ing.
+*/
+public class FuzzyPointIntHashTable
+{
+    private int nDims;
+    private double bucketSize;
+    private double littleEps;
+    private double bigEps;
+    private double invBucketSize; // 1./bucketSize
+
+    private int size = 0;
+    private int mask; // capacity-1, capacity is a power of 2
+    private boolean occupied[/*capacity*/];
+    private long gridKeys[/*capacity*/];
+    private double points[/*capacity*nDims*/];
+    private int values[/*capacity*/];
+
+    /**
+    * Construct a fuzzy point hash table for keys of length nDims.
+    * The other params are as for FuzzyPointHashTable, and have
+    * the same restrictions.
+    */
+    public FuzzyPointIntHashTable(int nDims,
+                                  double littleEps,
+                                  double bigEps,
+                                  double bucketSize)
+    {
+        if (!(nDims >= 0))
+            throw new IllegalArgumentException("FuzzyPointIntHashTable: nDims = "+nDims+", must be >= 0");
+        if (!(0 <= littleEps))
+            throw new IllegalArgumentException("FuzzyPointIntHashTable: littleEps = "+littleEps+", must be >= 0");
+        if (!(littleEps <= bigEps))
+            throw new IllegalArgumentException("FuzzyPointIntHashTable: littleEps = "+littleEps+", bigEps = "+bigEps+", out of order");
+        if (!(1e4*bigEps <= bucketSize))
+            throw new IllegalArgumentException("FuzzyPointIntHashTable: bigEps = "+bigEps+", bucketSize = "+bucketSize+", bucketSize is not enough bigger than bigEps");
+
+        this.nDims = nDims;
+        this.bucketSize = bucketSize;
+        this.littleEps = littleEps;
+        this.bigEps = bigEps;
+        this.invBucketSize = 1./bucketSize;
+
+        allocate(16);
+    } // ctor
+
+    private void allocate(int capacity)
+    {
+        mask = capacity-1;
+        occupied = new boolean[capacity];
+        gridKeys = new long[capacity];
+        points = new double[capacity*nDims];
+        values = new int[capacity];
+    }
+
+    /** Number of entries in the table. */
+    public int size()
+    {
+        return size;
+    }
+
+    //
+    // Packs the grid indices of point into a long,
+    // checking the fuzziness assumption along the way.
+    // See FuzzyPointHashTable.FuzzyPoint.hashCode for the picture.
+    //
+    private long gridKey(double point[])
+    {
+        if (point.length != nDims)
+            throw new IllegalArgumentException("FuzzyPointIntHashTable: key has length "+point.length+", expected "+nDims);
+        long key = 47;
+        for (int i = 0; i < nDims; ++i)
+        {
+            double coord = point[i];
+            long gridIndex = (long)Math.floor((coord+bigEps) * invBucketSize);
+            double gridLine = gridIndex * bucketSize;
+
+            double diff = Math.abs(coord - gridLine);
+            if (littleEps < diff && diff <= bigEps)
+                throw new FuzzyPointHashTable.FuzzyException("FuzzyPointIntHashTable: coord "+coord+" is neither equal nor unequal to grid line "+gridLine+", using littleEps="+littleEps+", bigEps="+bigEps+", bucketSize="+bucketSize+"");
+            key = key*0x9E3779B97F4A7C15L + gridIndex;
+        }
+        return key;
+    } // gridKey
+
+    private int firstSlot(long key)
+    {
+        key ^= key >>> 29;
+        key *= 0xBF58476D1CE4E5B9L;
+        key ^= key >>> 32;
+        return (int)key & mask;
+    }
+
+    // Whether the point in the given slot is equal to point,
+    // throwing FuzzyException if it's neither equal nor unequal.
+    private boolean fuzzyEquals(int slot, double point[])
+    {
+        int offset = slot*nDims;
+        boolean someonesBiggerThanLittleEps = false;
+        for (int i = 0; i < nDims; ++i)
+        {
+            double diff = Math.abs(points[offset+i]-point[i]);
+            if (diff > bigEps)
+                return false;
+            if (diff > littleEps)
+                someonesBiggerThanLittleEps = true;
+        }
+        if (someonesBiggerThanLittleEps)
+        {
+            double thatPoint[] = new double[nDims];
+            System.arraycopy(points, offset, thatPoint, 0, nDims);
+            throw new FuzzyPointHashTable.FuzzyException("FuzzyPointIntHashTable: "+VecMath.toString(point)+" is neither equal nor unequal to "+VecMath.toString(thatPoint)+", using littleEps="+littleEps+", bigEps="+bigEps+"");
+        }
+        return true;
+    } // fuzzyEquals
+
+    // Slot holding point, or the empty slot where it would go.
+    private int findSlot(long key, double point[])
+    {
+        int slot = firstSlot(key);
+        while (occupied[slot])
+        {
+            if (gridKeys[slot] == key
+             && fuzzyEquals(slot, point))
+                return slot;
+            slot = (slot+1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+    * Gets the value associated with key,
+    * or valueIfNotFound if there is none.
+    */
+    public int get(double key[], int valueIfNotFound)
+    {
+        int slot = findSlot(gridKey(key), key);
+        return occupied[slot] ? values[slot] : valueIfNotFound;
+    }
+
+    /**
+    * Whether there is a value associated with key.
+    */
+    public boolean containsKey(double key[])
+    {
+        return occupied[findSlot(gridKey(key), key)];
+    }
+
+    /**
+    * Puts the value into the table with given key,
+    * replacing the value of an equal key if there is one.
+    * The key's coords are copied.
+    */
+    public void put(double key[], int value)
+    {
+        long gridKey = gridKey(key);
+        int slot = findSlot(gridKey, key);
+        if (!occupied[slot])
+        {
+            if (2*(size+1) > occupied.length)
+            {
+                grow();
+                slot = findSlot(gridKey, key);
+            }
+            occupied[slot] = true;
+            gridKeys[slot] = gridKey;
+            System.arraycopy(key, 0, points, slot*nDims, nDims);
+            size++;
+        }
+        values[slot] = value;
+    } // put
+
+    private void grow()
+    {
+        boolean oldOccupied[] = occupied;
+        long oldGridKeys[] = gridKeys;
+        double oldPoints[] = points;
+        int oldValues[] = values;
+        allocate(2*oldOccupied.length);
+        for (int oldSlot = 0; oldSlot < oldOccupied.length; ++oldSlot)
+        {
+            if (!oldOccupied[oldSlot])
+                continue;
+            // Distinct entries are never fuzzy-equal, so just find an empty slot.
+            int slot = firstSlot(oldGridKeys[oldSlot]);
+            while (occupied[slot])
+                slot = (slot+1) & mask;
+            occupied[slot] = true;
+            gridKeys[slot] = oldGridKeys[oldSlot];
+            System.arraycopy(oldPoints, oldSlot*nDims, points, slot*nDims, nDims);
+            values[slot] = oldValues[oldSlot];
+        }
+    } // grow
+
+} // class FuzzyPointIntHashTable
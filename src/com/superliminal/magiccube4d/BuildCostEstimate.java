@@ -0,0 +1,356 @@
+package com.superliminal.magiccube4d;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.donhatchsw.util.CSG;
+import com.donhatchsw.util.VecMath;
+import com.superliminal.util.PropertyManager;
+
+/**
+ * Cheap prediction of how big a puzzle will be and what it will cost to build,
+ * made from the unsliced polytope (see PolytopeBlueprint) and the cuts
+ * without doing any actual slicing.
+ * Used to warn about, or refuse, "Invent my own!" puzzles
+ * that would take forever or run out of memory.
+ *
+ * The sticker count of each face is found by throwing random points
+ * at the face and counting how many different slabs-between-cuts
+ * combinations they land in, so it can come out a little low
+ * when some stickers are very small, or a little high
+ * when sliver removal merges some of them.
+ * Everything else is derived from the counts using
+ * rules of thumb that were fit to the supported puzzles.
+ */
+class BuildCostEstimate {
+    // Don't even try making an unsliced polytope with more elements than this;
+    // the estimate then just comes from the element counts.
+    private final static long MAX_UNSLICED_ELEMENTS = 200000;
+
+    // How many random points to throw at each face:
+    // keep doubling until there are this many per sticker found so far.
+    private final static int SAMPLES_PER_STICKER = 40;
+    private final static int MIN_SAMPLES_PER_FACE = 1000;
+    private final static int MAX_SAMPLES_PER_FACE = 200000;
+
+    // Rules of thumb, fit to the supported puzzles.
+    private final static double BYTES_PER_UNSLICED_ELEMENT = 400;
+    private final static double BYTES_PER_SLICED_VERT = 1300;
+    private final static double BYTES_PER_STICKER_VERT = 250;
+    private final static double BYTES_PER_GRIP = 400;
+    private final static double SECONDS_PER_SLICED_VERT = 6e-7; // per cut
+    private final static double SECONDS_PER_STICKER_VERT = 1.2e-5;
+    private final static double SECONDS_PER_GRIP = 2e-4;
+
+    final String schlafliProduct;
+    final double length;
+    final int nDims;
+    final long nFaces;
+    final long nStickers;
+    final long nVerts;
+    final long nGrips;
+    final double megabytes;
+    final double seconds;
+
+    private BuildCostEstimate(String schlafliProduct, double length, int nDims,
+        long nFaces, long nStickers, long nVerts, long nGrips,
+        double megabytes, double seconds)
+    {
+        this.schlafliProduct = schlafliProduct;
+        this.length = length;
+        this.nDims = nDims;
+        this.nFaces = nFaces;
+        this.nStickers = nStickers;
+        this.nVerts = nVerts;
+        this.nGrips = nGrips;
+        this.megabytes = megabytes;
+        this.seconds = seconds;
+    }
+
+    /**
+     * Estimates the cost of building the given puzzle.
+     * Throws IllegalArgumentException (or NumberFormatException)
+     * if the schlafli product can't be parsed.
+     */
+    public static BuildCostEstimate estimate(String schlafliProduct, double length)
+    {
+        if(length < 1)
+            throw new IllegalArgumentException("length=" + length + ", min legal length is 1");
+
+        //
+        // Figure out the element counts of the unsliced polytope
+        // from those of its factors, so we can bail out early
+        // on something ridiculous without making it.
+        //
+        long counts[] = {1};
+        {
+            String factors[] = schlafliProduct.trim().split("[x*]");
+            for(int iFactor = 0; iFactor < factors.length; ++iFactor)
+            {
+                int factorCounts[] = CSG.counts(CSG.makeRegularStarPolytopeCrossProductFromString(factors[iFactor]).p);
+                long productCounts[] = new long[counts.length + factorCounts.length - 1];
+                for(int i = 0; i < counts.length; ++i)
+                    for(int j = 0; j < factorCounts.length; ++j)
+                        productCounts[i + j] += counts[i] * factorCounts[j];
+                counts = productCounts;
+            }
+        }
+        int nDims = counts.length - 1;
+        long nElements = 0;
+        for(int iDim = 0; iDim <= nDims; ++iDim)
+            nElements += counts[iDim];
+        if(nDims < 1 || nElements > MAX_UNSLICED_ELEMENTS)
+        {
+            // Every face has at least one sticker, with at least as many verts
+            // as the face has, and it doesn't get better from there.
+            long nFaces = nDims < 1 ? 0 : counts[nDims - 1];
+            long nVerts = nDims < 1 ? 0 : counts[0] * nDims;
+            return new BuildCostEstimate(schlafliProduct, length, nDims,
+                nFaces, nFaces, nVerts, 0,
+                (nElements * BYTES_PER_UNSLICED_ELEMENT + nVerts * (BYTES_PER_SLICED_VERT + BYTES_PER_STICKER_VERT)) / (1 << 20),
+                nVerts * SECONDS_PER_STICKER_VERT);
+        }
+
+        PolytopeBlueprint blueprint = PolytopeBlueprint.get(schlafliProduct, null);
+        double faceCutOffsets[][] = PolytopePuzzleDescription.calcFaceCutOffsets(blueprint, length, new boolean[1]);
+        CSG.Polytope originalFaces[] = blueprint.originalElements[nDims - 1];
+        int nFaces = originalFaces.length;
+
+        // Whether the build will slice just one face and replicate it.
+        boolean sameForAllFaces = blueprint.face2symmetry != null && allFacesCutAlike(faceCutOffsets);
+
+        // Faces that look alike (same element counts and same cuts)
+        // get cut up alike, at least in the uniform polytopes and
+        // their products, so only one of each kind needs looking at.
+        Map<String,Long> lookalikeStickerCounts = new HashMap<String,Long>();
+
+        long nStickers = 0;
+        long nVerts = 0;
+        long nGrips = 0;
+        Random random = new Random(0); // same estimate every time
+        for(int iFace = 0; iFace < nFaces; ++iFace)
+        {
+            CSG.Polytope face = originalFaces[iFace];
+            int faceCounts[] = CSG.counts(face);
+            long nElementsThisFace = 0;
+            for(int iDim = 0; iDim < faceCounts.length; ++iDim)
+                nElementsThisFace += faceCounts[iDim];
+            StringBuilder looks = new StringBuilder(Arrays.toString(faceCounts));
+            for(int iCut = 0; iCut < faceCutOffsets[iFace].length; ++iCut)
+                looks.append(' ').append(Math.round(faceCutOffsets[iFace][iCut] * 1e6));
+            Long nStickersThisFace = lookalikeStickerCounts.get(looks.toString());
+            if(nStickersThisFace == null)
+            {
+                nStickersThisFace = countStickers(face, blueprint, faceCutOffsets, random);
+                lookalikeStickerCounts.put(looks.toString(), nStickersThisFace);
+            }
+            // Most stickers are shaped like little cubes;
+            // the one in the middle is shaped like the face.
+            long nVertsThisFace = nStickersThisFace == 1 ? faceCounts[0] :
+                (nStickersThisFace - 1) * (1 << (nDims - 1)) + faceCounts[0];
+            long nGripsThisFace = nDims == 4 ? nElementsThisFace : 0;
+            nStickers += nStickersThisFace;
+            nVerts += nVertsThisFace;
+            nGrips += nGripsThisFace;
+        }
+
+        //
+        // Now the memory and time.
+        // Slicing the whole polytope at once costs something like
+        // the final size times the number of cuts;
+        // when slicing one face and replicating, only face 0 gets sliced,
+        // and only its grips need figuring out from scratch.
+        //
+        int nCuts = 0;
+        for(int iFace = 0; iFace < nFaces; ++iFace)
+            if(blueprint.face2OppositeFace[iFace] == -1 || blueprint.face2OppositeFace[iFace] > iFace)
+                nCuts += faceCutOffsets[iFace].length;
+        boolean slicingOneFace = sameForAllFaces && PropertyManager.getBoolean("slicebysymmetry", true);
+        long nSlicedVerts = slicingOneFace ? nVerts / nFaces : nVerts;
+        long nGripsFromScratch = slicingOneFace ? nGrips / nFaces : nGrips;
+        double megabytes = (nElements * BYTES_PER_UNSLICED_ELEMENT
+            + nSlicedVerts * BYTES_PER_SLICED_VERT
+            + nVerts * BYTES_PER_STICKER_VERT
+            + nGrips * BYTES_PER_GRIP) / (1 << 20);
+        double seconds = (double) nSlicedVerts * nCuts * SECONDS_PER_SLICED_VERT
+            + nVerts * SECONDS_PER_STICKER_VERT
+            + nGripsFromScratch * SECONDS_PER_GRIP;
+        return new BuildCostEstimate(schlafliProduct, length, nDims,
+            nFaces, nStickers, nVerts, nGrips, megabytes, seconds);
+    } // estimate
+
+    private static boolean allFacesCutAlike(double faceCutOffsets[][])
+    {
+        for(int iFace = 1; iFace < faceCutOffsets.length; ++iFace)
+        {
+            if(faceCutOffsets[iFace].length != faceCutOffsets[0].length)
+                return false;
+            for(int iCut = 0; iCut < faceCutOffsets[0].length; ++iCut)
+                if(Math.abs(faceCutOffsets[iFace][iCut] - faceCutOffsets[0][iCut]) > 1e-9)
+                    return false;
+        }
+        return true;
+    }
+
+    //
+    // Estimates the number of stickers the face will get cut into,
+    // by throwing random points at it and counting the different
+    // combinations of slabs (between the cuts that cross the face) they land in.
+    // Each random point is picked from the simplex spanned by the
+    // centers of a random flag (face, facet of that, ..., vertex);
+    // those simplices tile the face.  Half of the points are uniform
+    // on the simplex, the other half are bunched up towards its
+    // sides and corners, since that's where the small stickers are.
+    //
+    private static long countStickers(CSG.Polytope face, PolytopeBlueprint blueprint,
+        double faceCutOffsets[][], Random random)
+    {
+        int nDims = face.fullDim;
+        int nFaces = faceCutOffsets.length;
+        CSG.Polytope faceVerts[] = face.getAllElements()[0];
+
+        // Which cuts cross this face.
+        int nCrossingCuts[] = new int[nFaces];
+        int nCrossingFaces = 0;
+        for(int iFace = 0; iFace < nFaces; ++iFace)
+        {
+            double minHeight = Double.POSITIVE_INFINITY;
+            double maxHeight = Double.NEGATIVE_INFINITY;
+            for(int iVert = 0; iVert < faceVerts.length; ++iVert)
+            {
+                double height = VecMath.dot(faceVerts[iVert].getCoords(), blueprint.faceInwardNormals[iFace]);
+                minHeight = Math.min(minHeight, height);
+                maxHeight = Math.max(maxHeight, height);
+            }
+            for(int iCut = 0; iCut < faceCutOffsets[iFace].length; ++iCut)
+                if(faceCutOffsets[iFace][iCut] > minHeight + 1e-9 && faceCutOffsets[iFace][iCut] < maxHeight - 1e-9)
+                    nCrossingCuts[iFace]++;
+            if(nCrossingCuts[iFace] > 0)
+                nCrossingFaces++;
+        }
+        if(nCrossingFaces == 0)
+            return 1;
+        int crossingFaces[] = new int[nCrossingFaces];
+        nCrossingFaces = 0;
+        for(int iFace = 0; iFace < nFaces; ++iFace)
+            if(nCrossingCuts[iFace] > 0)
+                crossingFaces[nCrossingFaces++] = iFace;
+
+        // Centers of all the elements of the face, computed once.
+        Map<CSG.Polytope,double[]> centers = new IdentityHashMap<CSG.Polytope,double[]>();
+        CSG.Polytope faceElements[][] = face.getAllElements();
+        for(int iDim = 0; iDim < faceElements.length; ++iDim)
+            for(int iElt = 0; iElt < faceElements[iDim].length; ++iElt)
+            {
+                double center[] = new double[nDims];
+                CSG.cgOfVerts(center, faceElements[iDim][iElt]);
+                centers.put(faceElements[iDim][iElt], center);
+            }
+
+        long slabCombos[] = new long[MIN_SAMPLES_PER_FACE];
+        double flagCenters[][] = new double[face.dim + 1][];
+        double weights[] = new double[face.dim + 1];
+        double point[] = new double[nDims];
+        for(int iSample = 0;; ++iSample)
+        {
+            if(iSample == slabCombos.length)
+            {
+                // See whether we've seen enough.
+                Arrays.sort(slabCombos);
+                int nDistinct = 1;
+                for(int i = 1; i < iSample; ++i)
+                    if(slabCombos[i] != slabCombos[i - 1])
+                        nDistinct++;
+                if(iSample >= (long) nDistinct * SAMPLES_PER_STICKER || iSample >= MAX_SAMPLES_PER_FACE)
+                    return nDistinct;
+                slabCombos = Arrays.copyOf(slabCombos, Math.min(2 * iSample, MAX_SAMPLES_PER_FACE));
+            }
+
+            // Pick a random flag, and a random point in its simplex.
+            CSG.Polytope elt = face;
+            double totalWeight = 0.;
+            for(int i = 0; i <= face.dim; ++i)
+            {
+                flagCenters[i] = centers.get(elt);
+                if(elt.dim > 0)
+                    elt = elt.facets[random.nextInt(elt.facets.length)].p;
+                double u = random.nextDouble();
+                weights[i] = (iSample % 2 == 0) ? -Math.log(1. - u) : u * u * u * u;
+                totalWeight += weights[i];
+            }
+            VecMath.zerovec(point);
+            for(int i = 0; i <= face.dim; ++i)
+                VecMath.vpsxv(point, point, weights[i] / totalWeight, flagCenters[i]);
+
+            long combo = 0;
+            for(int i = 0; i < nCrossingFaces; ++i)
+            {
+                int iFace = crossingFaces[i];
+                double height = VecMath.dot(point, blueprint.faceInwardNormals[iFace]);
+                int slab = 0;
+                while(slab < faceCutOffsets[iFace].length && faceCutOffsets[iFace][slab] < height)
+                    slab++;
+                combo = combo * 31 + slab;
+            }
+            slabCombos[iSample] = combo;
+        }
+    } // countStickers
+
+    /**
+     * Whether this is more than we want to build without asking,
+     * according to the "buildbudget.seconds" and "buildbudget.megabytes" properties.
+     */
+    public boolean isOverBudget()
+    {
+        return seconds > PropertyManager.getFloat("buildbudget.seconds", 60)
+            || megabytes > PropertyManager.getFloat("buildbudget.megabytes", (float) (availableMegabytes() / 2));
+    }
+
+    /**
+     * Whether this looks like it would run out of memory.
+     */
+    public boolean isImpossible()
+    {
+        return megabytes > availableMegabytes();
+    }
+
+    public static double availableMegabytes()
+    {
+        return Runtime.getRuntime().maxMemory() / (double) (1 << 20);
+    }
+
+    /**
+     * A short description for the progress bar.
+     */
+    public String shortDescription()
+    {
+        return "~" + nStickers + " stickers, ~" + prettySeconds(seconds) + ", ~" + Math.round(megabytes) + "MB";
+    }
+
+    /**
+     * A longer description, one thing per line.
+     */
+    public String longDescription()
+    {
+        return "        about " + nFaces + " faces\n" +
+            "        about " + nStickers + " stickers\n" +
+            "        about " + nVerts + " sticker vertices\n" +
+            "        about " + nGrips + " grips\n" +
+            "and would take about " + prettySeconds(seconds) + " and " + Math.round(megabytes) + "MB of memory to build.";
+    }
+
+    private static String prettySeconds(double seconds)
+    {
+        if(seconds < 1)
+            return "1s";
+        if(seconds < 120)
+            return Math.round(seconds) + "s";
+        if(seconds < 2 * 3600)
+            return Math.round(seconds / 60) + "min";
+        return Math.round(seconds / 3600) + "h";
+    }
+
+} // class BuildCostEstimate
@@ -1,14 +1,28 @@
 package com.superliminal.magiccube4d;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PushbackReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.superliminal.util.PropertyManager;
 
 
 /**
@@ -24,8 +38,12 @@ import java.util.Queue;
  * - Marks are single character delimiters that can be inserted between moves like bookmarks. Note: there can be any number of marks between moves.
  * - Moves and marks are called history nodes.
  * - Macros are represented internally by a sequence of nodes bracketed by the reserved characters '[' and ']'.
- * - There is a reference to a "current" move which may be any node and can be accessed via getCurrent() and controlled with the various goToXxxx() methods. Internally, a null current refers to last.
+ * - There is a reference to a "current" move which may be any node and can be accessed via getCurrent() and controlled with the various goToXxxx() methods. Internally, a current index equal to the number of nodes refers to last.
  * - Notification of changes to the current node can be listened to.
+ * - Puzzle states are checkpointed every so often so that replayToCurrent() doesn't need to replay the whole history.
+ * - Nodes are stored in parallel arrays of primitives rather than as objects so that histories of millions of moves stay small,
+ *   and the numbers of moves before the start of each block of nodes are kept so that counting them doesn't need to visit them all.
+ * - The indices of the marks are kept sorted, both all together and for each mark character, so that finding marks takes a binary search.
  * </pre>
  * 
  * Copyright 2005 - Superliminal Software
@@ -58,188 +76,188 @@ public class History {
 
     private int edgeLength;
 
-    private static class HistoryNode {
-        public int stickerid;
-        public int dir;
-        public int slicesmask;
-        public char mark;
-        public HistoryNode prev, next; /* doubly linked list */
-        @Override
-        public boolean equals(Object obj) {
-            if(this == obj)
-                return true;
-            if(obj == null)
-                return false;
-            if(getClass() != obj.getClass())
-                return false;
-            HistoryNode other = (HistoryNode) obj;
-            if(dir != other.dir)
-                return false;
-            if(mark != other.mark)
-                return false;
-            if(slicesmask != other.slicesmask)
-                return false;
-            if(stickerid != other.stickerid)
-                return false;
-            return true;
-        }
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + dir;
-            result = prime * result + mark;
-            result = prime * result + slicesmask;
-            result = prime * result + stickerid;
-            return result;
-        }
-    }
-    private HistoryNode first, last, current; // If current == null, current is logically last.
+    // The history nodes, one per index. Marks have a stickerid of -1.
+    private int stickerids[] = new int[16];
+    private byte dirs[] = new byte[16];
+    private int slicesmasks[] = new int[16];
+    private char marks[] = new char[16];
+    private int size = 0;
+    private int current = 0; // If current == size, current is logically last.
+
+    // Numbers of moves and of non-rotate moves before the start of each block of nodes,
+    // valid for the first nValidBlocks blocks.
+    private final static int BLOCK_SHIFT = 8;
+    private int movesBeforeBlock[] = new int[1];
+    private int twistsBeforeBlock[] = new int[1];
+    private int nValidBlocks = 1;
+
+    // Sorted indices of the nodes with non-zero marks, all together and by mark.
+    private final MarkIndex allMarks = new MarkIndex();
+    private final HashMap<Character, MarkIndex> marksByChar = new HashMap<Character, MarkIndex>();
+
+    // Told about every change to the nodes and to current, if set, so that they can be replayed after a crash.
+    private Journal journal;
 
     public History(int edgeLength) {
         this.edgeLength = edgeLength;
     }
 
     public Enumeration<MagicCube.TwistData> moves() {
-        return new Enumeration<MagicCube.TwistData>() {
-            private Queue<HistoryNode> queue = findTwists();
-            @Override
-            public boolean hasMoreElements() {
-                return !queue.isEmpty();
-            }
-            @Override
-            public MagicCube.TwistData nextElement() {
-                HistoryNode n = queue.remove();
-                return new MagicCube.TwistData(n.stickerid, n.dir, n.slicesmask);
-            }
-            private Queue<HistoryNode> findTwists() {
-                Queue<HistoryNode> twists = new LinkedList<HistoryNode>();
-                for(HistoryNode n = first; n != null && n != current; n = n.next)
-                    if(n.mark == 0)
-                        twists.add(n);
-                return twists;
-            }
-        };
+        return Collections.enumeration(Arrays.asList(movesArray()));
     }
 
     /**
      * @return array version of moves().
      */
     public MagicCube.TwistData[] movesArray() {
-        ArrayList<MagicCube.TwistData> list = new ArrayList<MagicCube.TwistData>();
-        for(Enumeration<MagicCube.TwistData> e = moves(); e.hasMoreElements();)
-            list.add(e.nextElement());
-        return list.toArray(new MagicCube.TwistData[0]);
+        return twistsBetween(0, current);
     }
 
     /**
      * @return the most recent mark or -1 if none.
      */
     public int lastMark() {
-        for(HistoryNode n = current == null ? last : current; n != null; n = n.prev)
-            if(n.mark != 0)
-                return n.mark;
-        return -1;
+        int i = allMarks.floor(current == size ? size - 1 : current);
+        return i == -1 ? -1 : marks[i];
     }
 
     /**
      * @return the next mark after current or -1 if none.
      */
     public int nextMark() {
-        if(current == null)
+        if(current == size)
             return -1;
-        for(HistoryNode n = current.next; n != null; n = n.next)
-            if(n.mark != 0)
-                return n.mark;
-        return -1;
+        int i = allMarks.ceiling(current + 1);
+        return i == -1 ? -1 : marks[i];
     }
 
     /**
      * @return all twists from the given previous mark.
      */
     public Enumeration<MagicCube.TwistData> movesFromMark(final char from_mark) {
-        return new Enumeration<MagicCube.TwistData>() {
-            private Queue<HistoryNode> queue = findTwistsFrom(from_mark);
-            @Override
-            public boolean hasMoreElements() {
-                return queue != null && !queue.isEmpty();
-            }
-            @Override
-            public MagicCube.TwistData nextElement() {
-                HistoryNode n = queue.remove();
-                return new MagicCube.TwistData(n.stickerid, n.dir, n.slicesmask);
-            }
-            private Queue<HistoryNode> findTwistsFrom(char mark) {
-                // Search backwards for first node m containing given mark.
-                HistoryNode m = findMark(mark, true);
-                if(m == null)
-                    return null; // Previous mark not found.
-                // Collect all non twists following mark.
-                Queue<HistoryNode> twists = new LinkedList<HistoryNode>();
-                for(HistoryNode n = m.next; n != null && n != null; n = n.next)
-                    if(n.mark == 0)
-                        twists.add(n);
-                return twists;
-            }
-        };
+        // Search backwards for first node containing given mark.
+        int m = findMark(from_mark, true);
+        if(m == -1)
+            return Collections.emptyEnumeration(); // Previous mark not found.
+        // Collect all non twists following mark.
+        return Collections.enumeration(Arrays.asList(twistsBetween(m + 1, size)));
+    }
+
+    /**
+     * @return the moves among the nodes from index i0 up to but not including i1.
+     */
+    private MagicCube.TwistData[] twistsBetween(int i0, int i1) {
+        int n = 0;
+        for(int i = i0; i < i1; i++)
+            if(marks[i] == 0)
+                n++;
+        MagicCube.TwistData twists[] = new MagicCube.TwistData[n];
+        n = 0;
+        for(int i = i0; i < i1; i++)
+            if(marks[i] == 0)
+                twists[n++] = getNode(i);
+        return twists;
+    }
+
+    private MagicCube.TwistData getNode(int i) {
+        return new MagicCube.TwistData(stickerids[i], dirs[i], slicesmasks[i]);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity <= stickerids.length)
+            return;
+        capacity = Math.max(capacity, 2 * stickerids.length);
+        stickerids = Arrays.copyOf(stickerids, capacity);
+        dirs = Arrays.copyOf(dirs, capacity);
+        slicesmasks = Arrays.copyOf(slicesmasks, capacity);
+        marks = Arrays.copyOf(marks, capacity);
+    }
+
+    /**
+     * Notes that the nodes from the given index on have changed or moved.
+     */
+    private void nodesChangedFrom(int i) {
+        nValidBlocks = Math.min(nValidBlocks, (i >> BLOCK_SHIFT) + 1);
     }
 
-    private boolean deleteNode(HistoryNode node) {
-        if(node == null)
+    private boolean deleteNode(int i) {
+        if(i == -1)
             return false;
-        boolean changed = false;
-        if(current == node) {
-            current = node.next;
-            changed = true;
-        }
-        if(node.prev == null) {
-            Assert(node == first);
-            first = node.next;
-        }
-        else
-            node.prev.next = node.next;
-        if(node.next == null) {
-            Assert(node == last);
-            last = node.prev;
-        }
-        else
-            node.next.prev = node.prev;
+        if(stickerids[i] >= 0)
+            dropCheckpointsAfter(countBefore(i, false));
+        boolean changed = current == i; // and the next node becomes current
+        int nAfter = size - i - 1;
+        System.arraycopy(stickerids, i + 1, stickerids, i, nAfter);
+        System.arraycopy(dirs, i + 1, dirs, i, nAfter);
+        System.arraycopy(slicesmasks, i + 1, slicesmasks, i, nAfter);
+        System.arraycopy(marks, i + 1, marks, i, nAfter);
+        size--;
+        if(current > i)
+            current--;
+        if(journal != null)
+            journal.nodeDeleted(i);
+        nodesChangedFrom(i);
+        allMarks.nodeDeleted(i);
+        for(MarkIndex index : marksByChar.values())
+            index.nodeDeleted(i);
         if(changed)
             fireCurrentChanged();
         return changed;
     }
 
-    private void insertNode(HistoryNode node_to_insert_before, int stickerid, int dir, int slicesmask) {
-        insertNode(node_to_insert_before, stickerid, dir, slicesmask, (char) 0);
+    private void insertNode(int index_to_insert_before, int stickerid, int dir, int slicesmask) {
+        insertNode(index_to_insert_before, stickerid, dir, slicesmask, (char) 0);
     }
 
-    private void insertNode(HistoryNode node_to_insert_before, int stickerid, int dir, int slicesmask, char mark) {
-        HistoryNode temp = new HistoryNode();
-        temp.stickerid = stickerid;
-        temp.dir = dir;
-        temp.slicesmask = slicesmask;
-        temp.mark = mark;
-        temp.prev = (node_to_insert_before == null ? last : node_to_insert_before.prev);
-        temp.next = node_to_insert_before;
-        if(temp.next == null)
-            last = temp;
-        else
-            temp.next.prev = temp;
-        if(temp.prev == null)
-            first = temp;
-        else
-            temp.prev.next = temp;
+    private void insertNode(int index_to_insert_before, int stickerid, int dir, int slicesmask, char mark) {
+        if(dir != (byte) dir)
+            throw new IllegalArgumentException("History.insertNode called with bad dir " + dir + "!");
+        int i = index_to_insert_before;
+        if(stickerid >= 0 && i != size) // nothing to drop when appending
+            dropCheckpointsAfter(countBefore(i, false));
+        ensureCapacity(size + 1);
+        int nAfter = size - i;
+        System.arraycopy(stickerids, i, stickerids, i + 1, nAfter);
+        System.arraycopy(dirs, i, dirs, i + 1, nAfter);
+        System.arraycopy(slicesmasks, i, slicesmasks, i + 1, nAfter);
+        System.arraycopy(marks, i, marks, i + 1, nAfter);
+        stickerids[i] = stickerid;
+        dirs[i] = (byte) dir;
+        slicesmasks[i] = slicesmask;
+        marks[i] = mark;
+        size++;
+        if(current >= i)
+            current++;
+        nodesChangedFrom(i);
+        MarkIndex ownIndex = stickerid < 0 && mark != 0 ? getMarkIndex(mark, true) : null;
+        allMarks.nodeInserted(i, ownIndex != null);
+        for(MarkIndex index : marksByChar.values())
+            index.nodeInserted(i, index == ownIndex);
+        if(journal != null) {
+            if(stickerid >= 0)
+                journal.twistInserted(i, stickerid, dir, slicesmask);
+            else
+                journal.markInserted(i, mark);
+        }
         fireCurrentChanged();
     }
 
     public void deleteLast() {
-        deleteNode(last);
+        deleteNode(size - 1);
     }
 
     public void clear(int newLength) {
         edgeLength = newLength;
-        while(first != null)
-            deleteLast();
+        boolean changed = current != size;
+        size = current = 0;
+        nodesChangedFrom(0);
+        dropCheckpointsAfter(0);
+        allMarks.truncate(0);
+        marksByChar.clear();
+        if(journal != null)
+            journal.cleared(newLength);
+        if(changed)
+            fireCurrentChanged();
     }
 
     public void clear() {
@@ -254,12 +272,12 @@ public class History {
     private void append(int stickerid, int dir, int slicesmask) {
         if(slicesmask == 0)
             slicesmask = 1; // 0 means slicemask 1 so keep them consistent so they always compare equal.
-        HistoryNode node = getPrevious();
+        int prev = current - 1;
         // When a twist is the inverse of the previous one, we can sometimes turn it into an undo.
-        if(node != null // There is a previous twist
-            && node.stickerid == stickerid // on the same axis
-            && node.slicesmask == slicesmask // affecting the same slices
-            && node.dir == -dir) // but in the *opposite* direction.
+        if(prev != -1 // There is a previous twist
+            && stickerids[prev] == stickerid // on the same axis
+            && slicesmasks[prev] == slicesmask // affecting the same slices
+            && dirs[prev] == -dir) // but in the *opposite* direction.
         {
             undo(); // just back the move out rather than append an inverse move
             truncate(); // Required because redo should not be possible since this is not a true undo.
@@ -279,8 +297,17 @@ public class History {
      * Delete any current node and everything after it.
      */
     public void truncate() {
-        while(current != null)
-            deleteLast();
+        if(current == size)
+            return;
+        dropCheckpointsAfter(countBefore(current, false));
+        size = current;
+        nodesChangedFrom(current);
+        allMarks.truncate(size);
+        for(MarkIndex index : marksByChar.values())
+            index.truncate(size);
+        if(journal != null)
+            journal.truncated();
+        fireCurrentChanged();
     }
 
 
@@ -301,9 +328,17 @@ public class History {
         apply(move.grip, move.direction, move.slicemask);
     }
 
+    /**
+     * Applies the given moves one after the other, notifying any listener just once at the end.
+     */
     public void apply(MagicCube.TwistData[] moves) {
-        for(MagicCube.TwistData move : moves)
-            apply(move);
+        beginBatch();
+        try {
+            for(MagicCube.TwistData move : moves)
+                apply(move);
+        } finally {
+            endBatch();
+        }
     }
 
     /**
@@ -325,49 +360,73 @@ public class History {
     }
 
     public int countMoves(boolean excludeRotates) {
-        int result = 0;
-        boolean hitscrambleboundary = false;
-        for(HistoryNode cur_node = first; cur_node != null && cur_node != current; cur_node = cur_node.next)
-            if(cur_node.stickerid >= 0) {
-                if(!(excludeRotates && isRotate(cur_node.slicesmask)))
-                    ++result;
+        int result = countBefore(current, excludeRotates);
+        int boundary = findFirstScrambleBoundary();
+        if(boundary != -1 && boundary < current)
+            result -= countBefore(boundary, excludeRotates); // only count the moves after it
+        return result;
+    }
+
+    /**
+     * @return the number of moves before the given node index, not counting rotates if excludeRotates is set.
+     */
+    private int countBefore(int i, boolean excludeRotates) {
+        int iBlock = i >> BLOCK_SHIFT;
+        if(iBlock >= nValidBlocks) {
+            if(iBlock >= movesBeforeBlock.length) {
+                movesBeforeBlock = Arrays.copyOf(movesBeforeBlock, Math.max(iBlock + 1, 2 * movesBeforeBlock.length));
+                twistsBeforeBlock = Arrays.copyOf(twistsBeforeBlock, movesBeforeBlock.length);
             }
-            else if(!hitscrambleboundary) {
-                if(cur_node.mark == MARK_SCRAMBLE_BOUNDARY) {
-                    hitscrambleboundary = true;
-                    result = 0;
-                }
+            for(; nValidBlocks <= iBlock; nValidBlocks++) {
+                int prevBlock = nValidBlocks - 1;
+                movesBeforeBlock[nValidBlocks] = movesBeforeBlock[prevBlock] + countInRange(prevBlock << BLOCK_SHIFT, nValidBlocks << BLOCK_SHIFT, false);
+                twistsBeforeBlock[nValidBlocks] = twistsBeforeBlock[prevBlock] + countInRange(prevBlock << BLOCK_SHIFT, nValidBlocks << BLOCK_SHIFT, true);
             }
+        }
+        return (excludeRotates ? twistsBeforeBlock : movesBeforeBlock)[iBlock] + countInRange(iBlock << BLOCK_SHIFT, i, excludeRotates);
+    }
+
+    private int countInRange(int i0, int i1, boolean excludeRotates) {
+        int result = 0;
+        for(int i = i0; i < i1; i++)
+            if(stickerids[i] >= 0 && !(excludeRotates && isRotate(slicesmasks[i])))
+                ++result;
         return result;
     }
 
+    private int findFirstScrambleBoundary() {
+        MarkIndex index = getMarkIndex(MARK_SCRAMBLE_BOUNDARY, false);
+        return index == null ? -1 : index.ceiling(0);
+    }
+
     private MagicCube.TwistData getCurrent() {
-        return new MagicCube.TwistData(current.stickerid, current.dir, current.slicesmask);
+        return getNode(current);
     }
 
     //
     // Purely navigational methods that change the current node without affecting any.
     //
-    private void goTo(HistoryNode node) {
-        current = node;
+    private void goTo(int i) {
+        current = i;
+        journalCurrent();
         fireCurrentChanged();
     }
     public void goToBeginning() {
-        goTo(first);
+        goTo(0);
     }
     public void goToEnd() {
-        goTo(null);
+        goTo(size);
     }
     public boolean goToPrevious() {
-        if(current == null)
+        if(current == size)
             return false;
-        goTo(current.prev);
+        goTo(current == 0 ? size : current - 1); // there's nothing before the first node, which means last
         return true;
     }
     public boolean goToNext() {
-        if(current == null)
+        if(current == size)
             return false;
-        goTo(current.next);
+        goTo(current + 1);
         return true;
     }
     /**
@@ -378,10 +437,10 @@ public class History {
      * @return true if found and current changed, false otherwise.
      */
     public boolean goTowardsMark(char mark, boolean backwards) {
-        HistoryNode node = findMark(mark, backwards);
-        if(node == null)
+        int i = findMark(mark, backwards);
+        if(i == -1)
             return false;
-        goTo(node);
+        goTo(i);
         return true;
     }
     public boolean goBackwardsToMark(char mark) {
@@ -399,14 +458,15 @@ public class History {
      */
     public MagicCube.TwistData undo() {
         //search backwards to the next actual move
-        HistoryNode node;
-        for(node = getPrevious(); node != null; node = node.prev)
+        int i;
+        for(i = current - 1; i >= 0; i--)
             // not quite the same as getPreviousTwist()?
-            if(node.stickerid != -1)
+            if(stickerids[i] != -1)
                 break;
-        if(node == null)
+        if(i == -1)
             return null;
-        current = node;
+        current = i;
+        journalCurrent();
         MagicCube.TwistData toundo = getCurrent();
         toundo.direction *= -1;
         fireCurrentChanged();
@@ -419,14 +479,17 @@ public class History {
      * This is only valid if a move was undone.
      */
     public MagicCube.TwistData redo() {
-        if(current == null)
+        if(current == size)
             return null;
-        while(current != null && current.stickerid == -1)
-            current = current.next;
-        if(current == null)
+        while(current != size && stickerids[current] == -1)
+            current++;
+        if(current == size) {
+            journalCurrent();
             return null;
+        }
         MagicCube.TwistData toredo = getCurrent();
-        current = current.next;
+        current++;
+        journalCurrent();
         fireCurrentChanged();
         return toredo;
     }
@@ -435,45 +498,25 @@ public class History {
      * @return true if history has a previous actual twist or rotate.
      */
     public boolean hasPreviousMove() {
-        for(HistoryNode node = current == null ? last : current; node != null && node.prev != null; node = node.prev)
-            if(node.prev.stickerid != -1)
-                return true;
-        return false;
+        // Note: The last node doesn't count when current is logically last.
+        return countBefore(current == size ? Math.max(size - 1, 0) : current, false) > 0;
     }
 
     /**
      * @return the last actual twist or rotate.
      */
-    public HistoryNode getPreviousMove() {
-        for(HistoryNode node = current == null ? last : current; node != null && node.prev != null; node = node.prev)
-            if(node.prev.stickerid != -1)
-                return node.prev;
+    public MagicCube.TwistData getPreviousMove() {
+        for(int i = (current == size ? size - 1 : current) - 1; i >= 0; i--)
+            if(stickerids[i] != -1)
+                return getNode(i);
         return null;
     }
 
     public boolean hasNextMove() {
-        for(HistoryNode node = current; node != null; node = node.next)
-            if(node.stickerid != -1)
-                return true;
-        return false;
+        return countBefore(size, false) > countBefore(current, false);
     }
 
 
-    /**
-     * @return most recent history node whether actual move or not.
-     */
-    private HistoryNode getPrevious() {
-        return current != null ? current.prev : last;
-    }
-
-    /**
-     * @return next history node whether actual move or not.
-     * 
-     *         private HistoryNode getNext() {
-     *         return (current!=null ? current.next : null);
-     *         }
-     */
-
     //
     // MARK METHODS
     //
@@ -510,13 +553,39 @@ public class History {
      * Removes all instances of the given mark or all marks if given MARK_ANY.
      */
     public void removeAllMarks(char mark) {
+        int start = 0; // nothing before the first one needs to move
+        if(mark != MARK_ANY) {
+            MarkIndex index = getMarkIndex(mark, false);
+            start = index == null || index.isEmpty() ? size : index.ceiling(0);
+        }
         boolean deleted = false;
-        for(HistoryNode n = first; n != null;) {
-            HistoryNode next = n.next;
-            if(n.stickerid == -1 && (mark == MARK_ANY || n.mark == mark))
-                deleted |= deleteNode(n);
-            n = next;
+        int newSize = start, newCurrent = current < start ? current : -1, firstRemoved = -1;
+        for(int i = start; i < size; i++) {
+            if(i == current)
+                newCurrent = newSize; // the next node kept becomes current
+            if(stickerids[i] == -1 && (mark == MARK_ANY || marks[i] == mark)) {
+                deleted |= i == current;
+                if(firstRemoved == -1)
+                    firstRemoved = i;
+                continue;
+            }
+            stickerids[newSize] = stickerids[i];
+            dirs[newSize] = dirs[i];
+            slicesmasks[newSize] = slicesmasks[i];
+            marks[newSize] = marks[i];
+            newSize++;
+        }
+        if(firstRemoved != -1) {
+            // Marks don't change the twists, so the checkpoints are still good.
+            size = newSize;
+            current = newCurrent == -1 ? newSize : newCurrent;
+            nodesChangedFrom(firstRemoved);
+            reindexMarksFrom(firstRemoved);
+            if(journal != null)
+                journal.marksRemoved(mark);
         }
+        if(deleted)
+            fireCurrentChanged();
         if(deleted && DEBUG)
             System.out.println(this);
     }
@@ -532,11 +601,11 @@ public class History {
      * @return true if at a given mark or a move preceeded by it, false otherwise.
      */
     public boolean atMark(int mark) {
-        if(current != null && current.stickerid == -1 && (mark == MARK_ANY || current.mark == mark))
+        if(current != size && stickerids[current] == -1 && (mark == MARK_ANY || marks[current] == mark))
             return true;
         //Go through all marks at the current position.
-        for(HistoryNode node = (current == null ? last : current.prev); node != null && node.stickerid == -1; node = node.prev)
-            if(node.stickerid == -1 && (mark == MARK_ANY || node.mark == mark))
+        for(int i = (current == size ? size - 1 : current - 1); i >= 0 && stickerids[i] == -1; i--)
+            if(mark == MARK_ANY || marks[i] == mark)
                 return true;
         // TODO: Make it also look forward from a current mark to the next move.
         return false;
@@ -552,11 +621,335 @@ public class History {
         return atMark(MARK_SCRAMBLE_BOUNDARY);
     }
 
-    private HistoryNode findMark(char mark, boolean backwards) {
-        HistoryNode n = current == null ? last : current;
-        while(n != null && n.mark != mark)
-            n = backwards ? n.prev : n.next;
-        return n;
+    /**
+     * @return the index of the mark or -1 if not found.
+     */
+    private int findMark(char mark, boolean backwards) {
+        int i = current == size ? size - 1 : current;
+        if(mark == MARK_ANY) { // which twists match too
+            while(i >= 0 && i < size && marks[i] != mark)
+                i += backwards ? -1 : 1;
+            return i < size ? i : -1;
+        }
+        MarkIndex index = getMarkIndex(mark, false);
+        if(index == null)
+            return -1;
+        return backwards ? index.floor(i) : index.ceiling(i);
+    }
+
+    /**
+     * @return the index of the given mark, creating it if asked to, otherwise null if there isn't one yet.
+     */
+    private MarkIndex getMarkIndex(char mark, boolean create) {
+        MarkIndex index = marksByChar.get(mark);
+        if(index == null && create) {
+            index = new MarkIndex();
+            marksByChar.put(mark, index);
+        }
+        return index;
+    }
+
+    /**
+     * Rebuilds the mark indices for the nodes from the given index on, after they've been moved around.
+     */
+    private void reindexMarksFrom(int i0) {
+        allMarks.truncate(i0);
+        for(MarkIndex index : marksByChar.values())
+            index.truncate(i0);
+        for(int i = i0; i < size; i++) {
+            if(stickerids[i] == -1 && marks[i] != 0) {
+                allMarks.nodeInserted(i, true);
+                getMarkIndex(marks[i], true).nodeInserted(i, true);
+            }
+        }
+    }
+
+    /**
+     * The sorted indices of the nodes having some mark.
+     */
+    private static class MarkIndex {
+        private int indices[] = new int[4];
+        private int n = 0;
+
+        /**
+         * @return the position in indices of the first one at or after i.
+         */
+        private int search(int i) {
+            int lo = 0, hi = n;
+            while(lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if(indices[mid] < i)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+        public boolean isEmpty() {
+            return n == 0;
+        }
+        /**
+         * @return the last index at or before i or -1 if none.
+         */
+        public int floor(int i) {
+            int k = search(i + 1);
+            return k == 0 ? -1 : indices[k - 1];
+        }
+        /**
+         * @return the first index at or after i or -1 if none.
+         */
+        public int ceiling(int i) {
+            int k = search(i);
+            return k == n ? -1 : indices[k];
+        }
+        /**
+         * Notes that a node was inserted at i, which is one of these marks if isMark is set.
+         */
+        public void nodeInserted(int i, boolean isMark) {
+            int k = search(i);
+            for(int j = k; j < n; j++)
+                indices[j]++;
+            if(isMark) {
+                if(n == indices.length)
+                    indices = Arrays.copyOf(indices, 2 * n);
+                System.arraycopy(indices, k, indices, k + 1, n - k);
+                indices[k] = i;
+                n++;
+            }
+        }
+        /**
+         * Notes that the node at i was deleted.
+         */
+        public void nodeDeleted(int i) {
+            int k = search(i);
+            if(k < n && indices[k] == i) {
+                System.arraycopy(indices, k + 1, indices, k, n - k - 1);
+                n--;
+            }
+            for(int j = k; j < n; j++)
+                indices[j]--;
+        }
+        /**
+         * Forgets the ones at or after i.
+         */
+        public void truncate(int i) {
+            n = search(i);
+        }
+    }
+
+
+    //
+    // CHECKPOINT METHODS
+    //
+    // Every "checkpoints.interval" twists, replayToCurrent() saves the puzzle state
+    // from before that twist, keyed by the number of twists before it,
+    // so that next time it only needs to replay the twists since the nearest checkpoint.
+    // Marks don't affect that number, and changing a twist only affects the checkpoints after it.
+    // The least recently used ones are dropped when they take up too much memory.
+    //
+
+    /**
+     * Something with a puzzle state that replayToCurrent() can bring up to date.
+     */
+    public static interface Replayer {
+        /**
+         * Sets the puzzle state to a copy of the given colors,
+         * or to the solved state if null.
+         */
+        public void setState(int colors[]);
+        public int[] getState();
+        /**
+         * Applies the given twist to the puzzle state.
+         * 
+         * @return false to stop replaying, for example when the move is bad.
+         */
+        public boolean apply(MagicCube.TwistData move);
+        /**
+         * Applies the given twist to an array the size of the puzzle state, using the given scratch array.
+         * This gets called from several threads at once, with arrays of sticker numbers rather than colors,
+         * to work out what long runs of twists do.
+         * 
+         * @return false to stop replaying, for example when the move is bad.
+         */
+        public boolean apply(int state[], MagicCube.TwistData move, int scratch[]);
+    }
+
+    private static class Checkpoint {
+        public final byte smallColors[]; // when all colors fit, otherwise null
+        public final int colors[]; // otherwise
+        public Checkpoint(int state[]) {
+            int maxColor = 0;
+            for(int color : state)
+                maxColor = Math.max(maxColor, color);
+            if(maxColor <= 0xff) {
+                smallColors = new byte[state.length];
+                for(int i = 0; i < state.length; i++)
+                    smallColors[i] = (byte) state[i];
+                colors = null;
+            }
+            else {
+                smallColors = null;
+                colors = state.clone();
+            }
+        }
+        public int[] getColors() {
+            if(colors != null)
+                return colors.clone();
+            int state[] = new int[smallColors.length];
+            for(int i = 0; i < state.length; i++)
+                state[i] = smallColors[i] & 0xff;
+            return state;
+        }
+        public long nBytes() {
+            return 64 + (colors != null ? 4L * colors.length : smallColors.length);
+        }
+    }
+
+    private final int checkpointInterval = Math.max(1, PropertyManager.getInt("checkpoints.interval", 500));
+    private final long maxCheckpointBytes = (long) (PropertyManager.getFloat("checkpoints.megabytes", 64) * (1 << 20));
+    private long checkpointBytes = 0;
+    private final LinkedHashMap<Integer, Checkpoint> checkpoints = new LinkedHashMap<Integer, Checkpoint>(16, .75f, true); // by number of twists before, in access order for LRU
+
+    private void saveCheckpoint(int nTwistsBefore, int state[]) {
+        Checkpoint checkpoint = new Checkpoint(state);
+        Checkpoint replaced = checkpoints.put(nTwistsBefore, checkpoint);
+        if(replaced != null)
+            checkpointBytes -= replaced.nBytes();
+        checkpointBytes += checkpoint.nBytes();
+        for(Iterator<Checkpoint> it = checkpoints.values().iterator(); checkpointBytes > maxCheckpointBytes && it.hasNext();) {
+            Checkpoint eldest = it.next();
+            it.remove();
+            checkpointBytes -= eldest.nBytes();
+        }
+    }
+
+    /**
+     * Drops the checkpoints from after the given number of twists,
+     * since changing the twist there changes all the states after it.
+     */
+    private void dropCheckpointsAfter(int nTwists) {
+        if(checkpoints.isEmpty())
+            return;
+        for(Iterator<Map.Entry<Integer, Checkpoint>> it = checkpoints.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer, Checkpoint> entry = it.next();
+            if(entry.getKey() > nTwists) {
+                it.remove();
+                checkpointBytes -= entry.getValue().nBytes();
+            }
+        }
+    }
+
+    /**
+     * Brings the replayer's puzzle state up to date with the current node,
+     * starting from the nearest checkpoint before it (or from the solved state)
+     * and saving checkpoints along the way.
+     * Once the history has been replayed this way, getting to any point in it
+     * takes no more than "checkpoints.interval" twists, as long as the checkpoints
+     * fit in "checkpoints.megabytes".
+     */
+    public void replayToCurrent(Replayer replayer) {
+        int nTwists = countBefore(current, false);
+        int nDone = nTwists - nTwists % checkpointInterval;
+        Checkpoint checkpoint = null;
+        for(; nDone > 0 && checkpoint == null; nDone -= checkpointInterval)
+            checkpoint = checkpoints.get(nDone); // get() also marks it as recently used
+        int start = 0;
+        if(checkpoint == null) {
+            replayer.setState(null);
+            nDone = 0;
+        }
+        else {
+            nDone += checkpointInterval; // undo the last decrement
+            replayer.setState(checkpoint.getColors());
+            // Walking back to its twist is less work than replaying from it.
+            start = current;
+            for(int n = nTwists; n > nDone;)
+                if(stickerids[--start] >= 0)
+                    n--;
+        }
+
+        if(nTwists - nDone >= 2 * checkpointInterval && Runtime.getRuntime().availableProcessors() > 1) {
+            replayInParallel(replayer, start, nDone, nTwists - nDone);
+            return;
+        }
+
+        int n = nDone;
+        for(int i = start; i < current; i++) {
+            if(stickerids[i] < 0)
+                continue;
+            if(n % checkpointInterval == 0 && n > nDone && !checkpoints.containsKey(n))
+                saveCheckpoint(n, replayer.getState());
+            if(!replayer.apply(getNode(i)))
+                return;
+            n++;
+        }
+    }
+
+    /**
+     * Does the work of replayToCurrent when there are lots of twists to replay.
+     * Twists just move stickers around, so a whole run of them can be boiled down
+     * to a single permutation by applying them to the sticker numbers instead of their colors.
+     * That's done for each run of checkpointInterval twists at once on the fork-join pool,
+     * and then the permutations are applied to the state one after the other,
+     * saving a checkpoint in between each.
+     */
+    private void replayInParallel(final Replayer replayer, int start, int nDone, int nTwists) {
+        final int twists[] = new int[nTwists]; // node indices
+        int nTwistsFound = 0;
+        for(int i = start; nTwistsFound < nTwists; i++)
+            if(stickerids[i] >= 0)
+                twists[nTwistsFound++] = i;
+        final int nStickers = replayer.getState().length;
+        final int nChunks = (nTwists + checkpointInterval - 1) / checkpointInterval;
+        final int chunkPerms[][] = new int[nChunks][];
+        final boolean chunkFinished[] = new boolean[nChunks]; // false if stopped by a bad move
+        class ChunkTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private int iChunk0, iChunk1;
+            ChunkTask(int iChunk0, int iChunk1) {
+                this.iChunk0 = iChunk0;
+                this.iChunk1 = iChunk1;
+            }
+            @Override
+            protected void compute() {
+                if(iChunk1 - iChunk0 > 1) {
+                    int iChunkMid = (iChunk0 + iChunk1) / 2;
+                    invokeAll(new ChunkTask(iChunk0, iChunkMid), new ChunkTask(iChunkMid, iChunk1));
+                    return;
+                }
+                int iChunk = iChunk0;
+                // perm[i] ends up being the sticker whose color ends up on sticker i.
+                int perm[] = new int[nStickers];
+                for(int i = 0; i < nStickers; i++)
+                    perm[i] = i;
+                int scratch[] = new int[nStickers];
+                int iTwist = iChunk * checkpointInterval;
+                int iTwistEnd = Math.min(iTwist + checkpointInterval, twists.length);
+                for(; iTwist < iTwistEnd; iTwist++)
+                    if(!replayer.apply(perm, getNode(twists[iTwist]), scratch))
+                        break;
+                chunkPerms[iChunk] = perm;
+                chunkFinished[iChunk] = iTwist == iTwistEnd;
+            }
+        }
+        ForkJoinPool.commonPool().invoke(new ChunkTask(0, nChunks));
+
+        int state[] = replayer.getState().clone();
+        int permuted[] = new int[nStickers];
+        for(int iChunk = 0; iChunk < nChunks; iChunk++) {
+            int nTwistsBefore = nDone + iChunk * checkpointInterval;
+            if(iChunk > 0 && !checkpoints.containsKey(nTwistsBefore))
+                saveCheckpoint(nTwistsBefore, state);
+            int perm[] = chunkPerms[iChunk];
+            for(int i = 0; i < nStickers; i++)
+                permuted[i] = state[perm[i]];
+            int temp[] = state;
+            state = permuted;
+            permuted = temp;
+            if(!chunkFinished[iChunk])
+                break;
+        }
+        replayer.setState(state);
     }
 
 
@@ -567,71 +960,282 @@ public class History {
     @Override
     public String toString() {
         Assert(isSane());
-        int nwritten = 0;
-        StringBuilder sb = new StringBuilder();
-        for(HistoryNode node = first; node != null; node = node.next) {
-            if(node == current)
-                sb.append("c ");
-            if(node.stickerid >= 0) {
-                sb.append("" + node.stickerid);
-                sb.append("," + node.dir);
-                sb.append("," + node.slicesmask);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            LogFile.Output out = new LogFile.Output(Channels.newChannel(bytes));
+            write(out);
+            out.flush();
+            return bytes.toString("UTF-8");
+        } catch(IOException e) {
+            throw new Error(e); // can't happen in memory
+        }
+    }
+
+    /**
+     * Writes the history in the log file format, which is what toString() returns.
+     */
+    void write(LogFile.Output out) throws IOException {
+        String sep = System.getProperty("line.separator");
+        for(int i = 0; i < size; i++) {
+            if(i == current)
+                out.write("c ");
+            if(stickerids[i] >= 0) {
+                out.writeInt(stickerids[i]);
+                out.write(',');
+                out.writeInt(dirs[i]);
+                out.write(',');
+                out.writeInt(slicesmasks[i]);
             }
-            else
-                sb.append("m" + node.mark);
-            nwritten++;
-            if(node.next != null) {
-                if(nwritten % 10 == 0) // write a line break
-                    sb.append(System.getProperty("line.separator"));
+            else {
+                out.write('m');
+                out.writeChar(marks[i]);
+            }
+            if(i + 1 < size) {
+                if((i + 1) % 10 == 0) // write a line break
+                    out.write(sep);
                 else
-                    sb.append(" ");
+                    out.write(' ');
             }
         }
-        sb.append("."); // end of history marker
-        return sb.toString();
+        out.write('.'); // end of history marker
     }
 
+    /**
+     * Reads the rest of the given reader as the output of toString().
+     */
     public boolean read(PushbackReader pr) {
-        HistoryNode who_will_point_to_current = null;
-        clear();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         try {
-            while(true) {
-                int c;
-                while((c = pr.read()) != -1 && Character.isWhitespace(c))
-                    ;
-                if(c == -1)
-                    return outahere(); // premature end of file
-                if(c == '.')
-                    break; // end of history
-                if(Character.isDigit(c)) { // read a node
-                    pr.unread(c);
-                    int sticker = readInt(pr);
-                    if(pr.read() != ',')
-                        return outahere();
-                    int direction = readInt(pr);
-                    if(pr.read() != ',')
+            LogFile.Output out = new LogFile.Output(Channels.newChannel(bytes));
+            for(int c = pr.read(); c != -1; c = pr.read())
+                out.writeChar((char) c);
+            out.flush();
+        } catch(IOException e) {
+            e.printStackTrace();
+            return outahere();
+        }
+        return read(new LogFile.Input(ByteBuffer.wrap(bytes.toByteArray())));
+    }
+
+    /**
+     * Reads the output of write().
+     */
+    boolean read(LogFile.Input in) {
+        Journal journaling = journal;
+        journal = null; // journaled all at once at the end
+        beginBatch(); // so listeners hear about it just once
+        try {
+            clear();
+            int newCurrent = -1;
+            try {
+                while(true) {
+                    int c;
+                    while((c = in.read()) != -1 && Character.isWhitespace(c))
+                        ;
+                    if(c == -1)
+                        return outahere(); // premature end of file
+                    if(c == '.')
+                        break; // end of history
+                    if('0' <= c && c <= '9') { // read a node
+                        in.unread(c);
+                        int sticker = in.readInt();
+                        if(in.read() != ',')
+                            return outahere();
+                        int direction = in.readInt();
+                        if(in.read() != ',')
+                            return outahere();
+                        int slicesmask = in.readInt();
+                        append(sticker, direction, slicesmask);
+                    } else if(c == 'm') {
+                        mark((char) in.readChar());
+                    } else if(c == 'c') {
+                        newCurrent = size;
+                    } else {
+                        System.out.println("bad hist char " + c);
                         return outahere();
-                    int slicesmask = readInt(pr);
-                    append(sticker, direction, slicesmask);
-                } else if(c == 'm') {
-                    c = pr.read();
-                    mark((char) c);
-                } else if(c == 'c') {
-                    who_will_point_to_current = last == null ? first : last.next;
-                } else {
-                    System.out.println("bad hist char " + c);
-                    return outahere();
+                    }
                 }
+            } catch(Exception e) {
+                e.printStackTrace();
+                return outahere();
             }
-        } catch(Exception e) {
-            e.printStackTrace();
-            return outahere();
+            current = newCurrent == -1 ? size : Math.min(newCurrent, size);
+            fireCurrentChanged();
+            return true;
+        } finally {
+            journal = journaling;
+            if(journal != null)
+                journal.reloaded(this);
+            endBatch();
         }
-        current = who_will_point_to_current == null ? (last == null ? null : last.next) : who_will_point_to_current.next;
-        fireCurrentChanged();
-        return true;
     } // end read
 
+    /**
+     * Writes the history in the binary log file format:
+     * the number of nodes and the index of the current one,
+     * then a record for each twist and for each run of identical marks.
+     * Twist records are the sticker id shifted left by one followed by the direction and slicesmask,
+     * and mark records are the run length shifted left with the low bit set followed by the mark,
+     * all as variable length integers. The start of each block of nodes is noted in the given index.
+     */
+    void writeBinary(LogFile.Output out, LogFile.BlockIndex index) throws IOException {
+        out.writeVarint(size);
+        out.writeVarint(current);
+        int nMoves = 0;
+        for(int i = 0; i < size;) {
+            if(i % LogFile.BlockIndex.BLOCK_SIZE == 0)
+                index.add(out.position(), nMoves);
+            if(stickerids[i] >= 0) {
+                out.writeVarint(stickerids[i] << 1);
+                out.writeZigzag(dirs[i]);
+                out.writeZigzag(slicesmasks[i]);
+                nMoves++;
+                i++;
+            }
+            else {
+                // Runs stop at block boundaries so that every block starts with a new record.
+                int end = i + 1, blockEnd = i - i % LogFile.BlockIndex.BLOCK_SIZE + LogFile.BlockIndex.BLOCK_SIZE;
+                while(end < size && end < blockEnd && stickerids[end] < 0 && marks[end] == marks[i])
+                    end++;
+                out.writeVarint(end - i << 1 | 1);
+                out.writeVarint(marks[i]);
+                i = end;
+            }
+        }
+    }
+
+    /**
+     * Reads the output of writeBinary().
+     * Unlike the text format, the nodes are restored exactly as written.
+     */
+    boolean readBinary(LogFile.Input in) {
+        Journal journaling = journal;
+        journal = null; // journaled all at once at the end
+        beginBatch(); // so listeners hear about it just once
+        try {
+            clear();
+            int newCurrent;
+            try {
+                int n = in.readVarint();
+                newCurrent = in.readVarint();
+                if(n < 0 || newCurrent < 0 || newCurrent > n)
+                    return outahere();
+                while(size < n) {
+                    int v = in.readVarint();
+                    if((v & 1) == 0) {
+                        ensureCapacity(size + 1);
+                        int dir = in.readZigzag();
+                        if(dir != (byte) dir)
+                            return outahere();
+                        stickerids[size] = v >>> 1;
+                        dirs[size] = (byte) dir;
+                        slicesmasks[size] = in.readZigzag();
+                        marks[size] = 0;
+                        size++;
+                    }
+                    else {
+                        int run = v >>> 1;
+                        char mark = (char) in.readVarint();
+                        if(run == 0 || run > n - size)
+                            return outahere();
+                        ensureCapacity(size + run);
+                        for(int end = size + run; size < end; size++) {
+                            stickerids[size] = -1;
+                            dirs[size] = 0;
+                            slicesmasks[size] = 0;
+                            marks[size] = mark;
+                        }
+                    }
+                }
+            } catch(Exception e) {
+                e.printStackTrace();
+                return outahere();
+            }
+            nodesChangedFrom(0);
+            reindexMarksFrom(0);
+            current = newCurrent;
+            fireCurrentChanged();
+            return true;
+        } finally {
+            journal = journaling;
+            if(journal != null)
+                journal.reloaded(this);
+            endBatch();
+        }
+    }
+
+    /**
+     * Replays the changes recorded by a Journal.
+     * Stops at the end or at the first record that wasn't completely written.
+     *
+     * @return the number of changes replayed.
+     */
+    int replay(LogFile.Input in) {
+        beginBatch(); // so listeners hear about it just once
+        try {
+            int n = 0;
+            try {
+                while(true) {
+                    int length = in.readVarint();
+                    int end = in.position() + length;
+                    if(length == 0 || end > in.size())
+                        break; // torn write
+                    int tag = in.read();
+                    switch(tag) {
+                        case 'T':
+                        case 'M':
+                            int i = in.readZigzag();
+                            if(i < 0 || i > size)
+                                return n;
+                            if(tag == 'T')
+                                insertNode(i, in.readZigzag(), in.readZigzag(), in.readZigzag());
+                            else
+                                insertNode(i, -1, 0, 0, (char) in.readZigzag());
+                            break;
+                        case 'D':
+                            i = in.readZigzag();
+                            if(i < 0 || i >= size)
+                                return n;
+                            deleteNode(i);
+                            break;
+                        case 'C':
+                            i = in.readZigzag();
+                            if(i < 0 || i > size)
+                                return n;
+                            current = i;
+                            fireCurrentChanged();
+                            break;
+                        case 'X':
+                            truncate();
+                            break;
+                        case 'Z':
+                            clear(in.readZigzag());
+                            break;
+                        case 'R':
+                            removeAllMarks((char) in.readZigzag());
+                            break;
+                        case 'V':
+                            reverse();
+                            break;
+                        case 'S':
+                            if(!readBinary(in))
+                                return n;
+                            break;
+                        default:
+                            return n;
+                    }
+                    in.seek(end);
+                    n++;
+                }
+            } catch(Exception e) {
+                // torn write
+            }
+            return n;
+        } finally {
+            endBatch();
+        }
+    }
+
     /**
      * Reads a simple decimal integer.
      * 
@@ -672,27 +1276,15 @@ public class History {
     }
 
     private boolean isSane() {
-        boolean found_current = false;
-        Assert((first == null) == (last == null));
-        if(first != null) {
-            for(HistoryNode node = first; node != null; node = node.next) {
-                if(node.prev != null)
-                    Assert(node.prev.next == node);
-                else
-                    Assert(first == node);
-                if(node.next != null)
-                    Assert(node.next.prev == node);
-                else
-                    Assert(last == node);
-                if(node == current)
-                    found_current = true;
-                if(node.stickerid >= 0) {
-                    //Assert(0 <= node.stickerid && node.stickerid < MagicCube.NGRIPS); // TODO: fix this
-                    Assert(node.dir == MagicCube.CCW || node.dir == MagicCube.CW);
-                }
+        Assert(0 <= size && size <= stickerids.length);
+        Assert(dirs.length == stickerids.length && slicesmasks.length == stickerids.length && marks.length == stickerids.length);
+        Assert(0 <= current && current <= size);
+        for(int i = 0; i < size; i++) {
+            if(stickerids[i] >= 0) {
+                //Assert(0 <= stickerids[i] && stickerids[i] < MagicCube.NGRIPS); // TODO: fix this
+                Assert(dirs[i] == MagicCube.CCW || dirs[i] == MagicCube.CW);
             }
         }
-        Assert(found_current == (current != null));
         return true;
     } // end isSane
 
@@ -704,30 +1296,69 @@ public class History {
         public void currentChanged();
     }
     private HistoryListener historyListener;
+    private int batchDepth = 0;
+    private boolean changedInBatch = false;
     public void setHistoryListener(HistoryListener listener) {
         historyListener = listener;
     }
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+    private void journalCurrent() {
+        if(journal != null)
+            journal.currentMoved(current);
+    }
     protected void fireCurrentChanged() {
+        if(batchDepth > 0) {
+            changedInBatch = true;
+            return;
+        }
         if(DEBUG)
             System.out.println(this);
         if(historyListener != null)
             historyListener.currentChanged();
     }
+    /**
+     * Holds off notifying listeners until the matching endBatch(),
+     * which then notifies them once if anything changed in between.
+     */
+    private void beginBatch() {
+        batchDepth++;
+    }
+    private void endBatch() {
+        if(--batchDepth == 0 && changedInBatch) {
+            changedInBatch = false;
+            fireCurrentChanged();
+        }
+    }
 
 
     /**
-     * Converts a list of twists into an equivalent and possibly shorter list.
+     * Converts a list of twists into an equivalent and usually shorter list.
+     * Each run of twists that all commute with each other, such as twists of parallel slices,
+     * is replaced by the fewest twists of each of its grips that do the same thing, in order of grip.
+     * That merges repeated twists modulo the grips' symmetry orders and cancels inverse pairs.
+     * It's repeated until nothing changes, since combining one run can let its neighbors combine.
+     * Only the grip permutations of the puzzle are used, so it works for any puzzle.
+     * Twists that turn a slice by more than one step come out as a single twist
+     * whose direction is the number of steps, e.g. 2 or -2 for a half turn of an order 4 grip.
      * 
      * @param inmoves input array of moves to compress.
-     * @param len edge edgeLength of the puzzle. Note: <i>not</i> the edgeLength of the moves array.
+     * @param puzzle the puzzle the moves are for.
      * @return possibly reduced list of moves that produce the same effect as the input moves.
      */
-    public static MagicCube.TwistData[] compress(MagicCube.TwistData[] inmoves, int len, boolean sweepRotatesForward) {
-        History hist = new History(len);
-        for(int i = 0; i < inmoves.length; i++)
-            hist.append(inmoves[i]);
-        hist.compress(sweepRotatesForward);
-        return hist.movesArray();
+    public static MagicCube.TwistData[] compress(MagicCube.TwistData[] inmoves, PuzzleDescription puzzle) {
+        Compressor compressor = new Compressor(puzzle);
+        List<MagicCube.TwistData> moves = compressor.compress(Arrays.asList(inmoves));
+        // Each pass that changes anything either shrinks the list or lengthens a run, so this stops.
+        // The limit is just insurance.
+        for(int nPasses = 1; nPasses <= inmoves.length; nPasses++) {
+            List<MagicCube.TwistData> again = compressor.compress(moves);
+            if(Compressor.same(again, moves))
+                break;
+            moves = again;
+        }
+        return moves.toArray(new MagicCube.TwistData[moves.size()]);
     }
 
     /**
@@ -736,515 +1367,204 @@ public class History {
      * Note: Also kills current, if any, just due to laziness.
      */
     public void reverse() {
-        if(first == null)
+        if(size == 0)
             return;
-        current = null; // so as to not fire change event
-        HistoryNode origFirst = first;
-        origFirst.dir *= -1; // the other nodes get reversed below but don't forget this one!
+        if(journal != null)
+            journal.reversed();
+        current = size; // so as to not fire change event
+        dropCheckpointsAfter(0);
         int count = countMoves(false);
-        for(int i = 0; i < count - 1; i++) {
-            HistoryNode lastLast = last;
-            deleteLast();
-            insertNode(origFirst, lastLast.stickerid, -lastLast.dir, lastLast.slicesmask, lastLast.mark);
+        // The last count-1 nodes get reversed and moved in front of the first one,
+        // which gets reversed in place. That's all of them unless there are marks.
+        int nMoved = Math.max(count - 1, 0);
+        int newStickerids[] = new int[stickerids.length];
+        byte newDirs[] = new byte[dirs.length];
+        int newSlicesmasks[] = new int[slicesmasks.length];
+        char newMarks[] = new char[marks.length];
+        for(int i = 0; i < size; i++) {
+            int from = i < nMoved ? size - 1 - i : i - nMoved;
+            newStickerids[i] = stickerids[from];
+            newDirs[i] = (byte) (i <= nMoved ? -dirs[from] : dirs[from]);
+            newSlicesmasks[i] = slicesmasks[from];
+            newMarks[i] = marks[from];
         }
+        stickerids = newStickerids;
+        dirs = newDirs;
+        slicesmasks = newSlicesmasks;
+        marks = newMarks;
+        current = size;
+        nodesChangedFrom(0);
+        reindexMarksFrom(0);
+        if(nMoved > 0)
+            fireCurrentChanged();
     }
 
     /**
-     * Meant to squeeze out all redundancies and filler.
+     * Squeezes out all redundancies and filler as the static compress() does,
+     * after deleting everything past current and all marks.
+     * Nodes are single CCW or CW steps, so any multi-step twists go back in as that many steps.
      * This is usually done in preparation for a "cheat" solve.
-     * 
-     * <li>Truncate (i.e. delete everything past current),</li> <li>Remove non-moves (marks),</li> <li>Merge same-face twists,</li> <li>Sweeping rotates to the beginning.</li>
-     * 
-     * If sweepRotatesForward is set, does it in the opposite
-     * direction. In this case it's assumed to not be a real history,
-     * and current is not allowed to be set.
      */
-    public void compress(boolean sweepRotatesForward) {
-        // TODO: Uncomment the body below and fix.
-    }
-//
-//    	//int startCount = this.countMoves(false);
-//    	
-//        if (sweepRotatesForward)
-//        {
-//            Assert(current == null);
-//            reverse();
-//            compress(false);
-//            reverse();
-//            return;
-//        }
-//
-//        /*
-//         * Truncate
-//         */
-//        truncate();
-//
-//        /*
-//         * Remove all non-moves
-//         */
-//        for (HistoryNode node = first; node != null; node = node.next)
-//            if (node.stickerid == -1)
-//                deleteNode(node);
-//
-//        /*
-//         * Traverse from end to beginning,
-//         * constructing a new list of "mega-moves".
-//         * Each mega-move is a set of twists on parallel slices.
-//         * Sweep the current rotation towards the beginning as we go.
-//         */
-//        MagicCube.Stickerspec scratchGrip = new MagicCube.Stickerspec(); // scratch
-//        int scratchMat[][] = new int[4][4];
-//        int scratchCoords[] = new int[4];
-//
-//        class MegaMove {
-//            public int face; // must be less than its opposite
-//            public int sliceTwistMats[][][] = new int[edgeLength][4][4];
-//            public MegaMove(int face, int edgeLength)
-//            {
-//                this.face = face;
-//                this.sliceTwistMats = new int[edgeLength][4][4];
-//                for (int i = 0; i < edgeLength; ++i)
-//                    Vec_h._IDENTMAT4(sliceTwistMats[i]);
-//            }
-//            public String toString()
-//            {
-//                return "{face="+face+"...}";
-//            }
-//        };
-//        int current_matrix[][] = new int[4][4];
-//        Vec_h._IDENTMAT4(current_matrix);
-//        LinkedList<MegaMove> megaMoves = new LinkedList<MegaMove>();
-//        for (HistoryNode node = last; node != null; node = node.prev)
-//        {
-//            int stickerid = node.stickerid;
-//            int slicesmask = node.slicesmask;
-//            int dir = node.dir;
-//
-//            //
-//            // Figure out the grip
-//            //
-//            MagicCube.Stickerspec grip = scratchGrip;
-//            grip.id_within_puzzle = stickerid;
-//            //PolygonManager.fillStickerspecFromIdAndLength(grip, 3); // XXX crashes with non cubes
-//
-//            //
-//            // Transform the move by current_matrix,
-//            // by applying current_matrix to the coords of the grip,
-//            // then get the new stickerid back out of it.
-//            //
-//            {
-//                Vec_h._VXM4i(grip.coords, grip.coords, current_matrix);
-//                PolygonManager.fillStickerspecFromCoordsAndLength(grip, 3);
-//                stickerid = grip.id_within_puzzle;
-//            }
-//
-//            int face = PolygonManager.faceOfGrip(stickerid);
-//            int oppositeFace = PolygonManager.oppositeFace(face);
-//
-//            //
-//            // See if this move can be part of the first megamove.
-//            // If not, insert a new megamove for it.
-//            //
-//            MegaMove firstMegaMove = (megaMoves.isEmpty() ? null
-//                                             : megaMoves.getFirst());
-//            if (firstMegaMove == null
-//             || (face != firstMegaMove.face
-//              && oppositeFace != firstMegaMove.face))
-//            {
-//                // Can't combine with the existing first megamove,
-//                // so make a new one.
-//                firstMegaMove = new MegaMove(Math.min(face, oppositeFace),
-//                                             edgeLength);
-//                megaMoves.addFirst(firstMegaMove);
-//            }
-//
-//            //
-//            // Twist this move's slices on the megamove
-//            //
-//            float angle = PolygonManager.getTwistTotalAngle(grip.dim, dir);
-//            Math4d.get4dTwistMat(grip.coords, angle, scratchMat);
-//            for (int iSlice = 0; iSlice < edgeLength; ++iSlice)
-//            {
-//                if (((slicesmask>>iSlice)&1) != 0)
-//                {
-//                    int iSliceCanonical = (oppositeFace<face ? edgeLength-1-iSlice
-//                                                             : iSlice);
-//                    Vec_h._MXM4i(firstMegaMove.sliceTwistMats[iSliceCanonical],
-//                                 scratchMat,
-//                                 firstMegaMove.sliceTwistMats[iSliceCanonical]);
-//                }
-//            }
-//
-//            //
-//            // The slices now vote on what rotation to factor out
-//            // of the megamove.
-//            // If they all agree, then it's
-//            // a pure rotation in which case the mega-move turns
-//            // into a no-op, which can be removed.
-//            //
-//            if (true)
-//            {
-//                int winnerVotes = -1;
-//                int winnerSlice = -1;
-//                for (int iSlice = 0; iSlice < edgeLength; ++iSlice)
-//                {
-//                    int nSameAsISlice = 1;
-//                    for (int jSlice = iSlice+1; jSlice < edgeLength; ++jSlice)
-//                        if (Vec_h._EQMAT4(firstMegaMove.sliceTwistMats[jSlice],
-//                                          firstMegaMove.sliceTwistMats[iSlice]))
-//                            nSameAsISlice++;
-//                    if (nSameAsISlice > winnerVotes)
-//                    {
-//                        winnerVotes = nSameAsISlice;
-//                        winnerSlice = iSlice;
-//                    }
-//                }
-//                Vec_h._MXM4i(current_matrix,
-//                             current_matrix,
-//                             firstMegaMove.sliceTwistMats[winnerSlice]);
-//                Vec_h._TRANSPOSE4(scratchMat, firstMegaMove.sliceTwistMats[winnerSlice]); // inverse
-//                for (int iSlice = 0; iSlice < edgeLength; ++iSlice)
-//                    Vec_h._MXM4i(firstMegaMove.sliceTwistMats[iSlice],
-//                                 scratchMat,
-//                                 firstMegaMove.sliceTwistMats[iSlice]);
-//                if (winnerVotes == edgeLength)
-//                {
-//                    megaMoves.removeFirst(); // it was a pure rotation
-//                    firstMegaMove = null;
-//                }
-//            }
-//        }
-//
-//        //
-//        // The proper thing to do now would be to add the rotate(s)
-//        // representing current_matrix
-//        // to the beginning of the mega-moves, but I'm not bothering,
-//        // since the only thing this function is used for anyway
-//        // is the cheat-solve.
-//        //
-//
-//        //
-//        // Convert the mega-moves back into twists...
-//        //
-//        clear();
-//        int scratchPermutation[] = new int[edgeLength];
-//        while (!megaMoves.isEmpty())
-//        {
-//            // So we look at slices in a random order
-//            randomPermutation(scratchPermutation);
-//
-//            MegaMove firstMegaMove = (MegaMove)megaMoves.removeLast();
-//            int face = firstMegaMove.face;
-//            for (int _iSlice = 0; _iSlice < edgeLength; ++_iSlice)
-//            {
-//                int iSlice = scratchPermutation[_iSlice];
-//                int sliceTwistMat[][] = firstMegaMove.sliceTwistMats[iSlice];
-//                if (!Vec_h._ISIDENTMAT4(sliceTwistMat))
-//                {
-//                    int slicesmask = 1<<iSlice;
-//                    for (int jSlice = 0; jSlice < edgeLength; ++jSlice)
-//                    {
-//                        if (Vec_h._EQMAT4(firstMegaMove.sliceTwistMats[jSlice],
-//                                          sliceTwistMat))
-//                        {
-//                            slicesmask |= 1<<jSlice;
-//                            // Clear it so we don't do it again
-//                            // as an iSlice later.  But do NOT clear [iSlice],
-//                            // since sliceTwistMat is still pointing to it.
-//                            if (jSlice != iSlice)
-//                                Vec_h._IDENTMAT4(firstMegaMove.sliceTwistMats[jSlice]);
-//                        }
-//                    }
-//
-//                    /*
-//                     * Figure out how to accomplish this rotation
-//                     * of the slices with one or two twists on a single grip.
-//                     */
-//
-//                    /*
-//                     * Find a sticker on this face that's not
-//                     * moved by the matrix; that will be the grip of the
-//                     * concatenated move.
-//                     */
-//                    MagicCube.Stickerspec grip = scratchGrip;
-//                    grip.face = face;
-//                    for (grip.id_within_face = 0;
-//                         grip.id_within_face < MagicCube.GRIPS_PER_FACE; // TODO: need way to know how many 
-//                         grip.id_within_face++)
-//                    {
-//                        PolygonManager.fillStickerspecFromFaceAndIdAndLength(grip, 3);
-//                        if (grip.dim >= 3)
-//                            continue;
-//                        int newcoords[] = scratchCoords;
-//                        Vec_h._VXM4(newcoords, grip.coords, sliceTwistMat);
-//                        if (Vec_h._EQVEC4(newcoords, grip.coords)) {
-//                            /*
-//                             * Found the right grip;
-//                             * see if any of the following work:
-//                             *  0 twists
-//                             *  1 twist CW
-//                             *  1 twist CCW
-//                             *  2 twists in random direction
-//                             */
-//                            int testmat[][] = scratchMat;
-//                            Vec_h._IDENTMAT4(testmat);
-//                            if (Vec_h._EQMAT4(testmat, sliceTwistMat)) {
-//                                /*
-//                                 * Result is 0 twists.
-//                                 */
-//                                break;
-//                            }
-//
-//                            float angle = PolygonManager.getTwistTotalAngle(grip.dim, MagicCube.CCW);
-//                            Math4d.get4dTwistMat(grip.coords, angle, testmat);
-//                            if (Vec_h._EQMAT4(testmat, sliceTwistMat)) {
-//                                /*
-//                                 * Result is 1 twist CCW.
-//                                 */
-//                                insertNode(first, grip.id_within_puzzle, MagicCube.CCW, slicesmask);
-//                                break;
-//                            }
-//                            angle = PolygonManager.getTwistTotalAngle(grip.dim, MagicCube.CW);
-//                            Math4d.get4dTwistMat(grip.coords, angle, testmat);
-//                            if (Vec_h._EQMAT4(testmat, sliceTwistMat)) {
-//                                /*
-//                                 * Result is 1 twist CW.
-//                                 */
-//                                insertNode(first, grip.id_within_puzzle, MagicCube.CW, slicesmask);
-//                                break;
-//                            }
-//                            int dir = Math.random() > 0.5 ? MagicCube.CW : MagicCube.CCW;
-//                            angle = PolygonManager.getTwistTotalAngle(grip.dim, MagicCube.CCW);
-//                            Math4d.get4dTwistMat(grip.coords, angle, testmat);
-//                            Vec_h._MXM4i(testmat, testmat, testmat);
-//                            if (Vec_h._EQMAT4(testmat, sliceTwistMat)) {
-//                                // Result is 2 twists
-//                                insertNode(first, grip.id_within_puzzle, dir, slicesmask);
-//                                insertNode(first, grip.id_within_puzzle, dir, slicesmask);
-//                                break;
-//                            }
-//                            Assert(false);
-//                        }
-//                    }
-//                    Assert(grip.id_within_face < 3 * 3 * 3);
-//                }
-//            }
-//        }
-//        //int endCount = this.countMoves(false);
-//        //System.out.println("compressed " + startCount+ " twist sequence to " + endCount + " (" + (startCount - endCount)*100f/startCount + "%)");
-//    } // end compress
-//    
-//
-//    private static void randomPermutation(int perm[])
-//    {
-//        for (int i = 0; i < perm.length; ++i)
-//            perm[i] = i;
-//        for (int i = perm.length-1; i >= 0; --i)
-//        {
-//            int j = (int)(Math.random()*(i+1)); // in [0..i]
-//            if (j != i)
-//            {
-//                int temp = perm[i];
-//                perm[i] = perm[j];
-//                perm[j] = temp;
-//            }
-//        }
-//    }
-//
-//    
-//    public void oldcompress() {
-//        // TODO: perform on the fly, as the cheat-solve is happening, otherwise long wait if the history is long.
-//        HistoryNode node, nodeptr;
-//        int
-//            current_matrix[][] = new int[4][4],
-//            incmat[][] = new int[4][4],
-//            testmat[][] = new int[4][4],
-//            newcoords[] = new int[4];
-//        MagicCube.Stickerspec grip = new MagicCube.Stickerspec();
-//        int face, dir, thisface, nextface, temp;
-//
-//        /*
-//         * Truncate
-//         */
-//        truncate();
-//
-//        /*
-//         * Remove all non-moves
-//         */
-//        for (nodeptr = first; nodeptr!=null; nodeptr=nodeptr.next) {
-//            if (nodeptr.stickerid == -1)
-//                deleteNode(nodeptr);
-//        }
-//
-//        /*
-//         * Sweep all rotates to beginning
-//         */
-//        Vec_h._IDENTMAT4(current_matrix);
-//        for (nodeptr=last; nodeptr!=null; nodeptr=nodeptr.prev) {
-//            if (isRotate(nodeptr.slicesmask)) {
-//                /*
-//                * It's a rotate.  Just preconcatenate it
-//                * to the current matrix and remove.
-//                */
-//                grip.id_within_puzzle = (nodeptr).stickerid;
-//                PolygonManager.fillStickerspecFromIdAndLength(grip, 3);
-//                float angle = PolygonManager.getTwistTotalAngle(grip.dim, (nodeptr).dir);
-//                Math4d.get4dTwistMat(grip.coords, angle, incmat);
-//                Vec_h._MXM4i(current_matrix, incmat, current_matrix);
-//                deleteNode(nodeptr);
-//            } else {
-//                /*
-//                * It's a twist (some slices stay and some move).
-//                * Apply the current matrix to the coords of
-//                * the grip.
-//                */
-//                grip.id_within_puzzle = (nodeptr).stickerid;
-//                PolygonManager.fillStickerspecFromIdAndLength(grip, 3);
-//                Vec_h._VXM4i(grip.coords, grip.coords, current_matrix);
-//                PolygonManager.fillStickerspecFromCoordsAndLength(grip, 3);
-//                (nodeptr).stickerid = grip.id_within_puzzle;
-//            }
-//        }
-//        /*
-//         * The proper thing to do now would be to add the rotates
-//         * to the beginning of the history, but I'm not bothering,
-//         * since the only thing this function is used for anyway
-//         * is the cheat-solve.
-//         */
-//
-//        /*
-//         * Put opposite-face twists in canonical order,
-//         * which can put some same-face twists together for the next pass.
-//         */
-//        for (node = first; node!=null; ) {
-//            if (node.slicesmask == 1 && node.next!=null && node.next.slicesmask == 1) {
-//                thisface = PolygonManager.faceOfGrip(node.stickerid);
-//                nextface = PolygonManager.faceOfGrip(node.next.stickerid);
-//                if (nextface < thisface && nextface == PolygonManager.oppositeFace(thisface)) {
-//                    temp=node.stickerid; node.stickerid=node.next.stickerid; node.next.stickerid=temp;     // swap
-//                    temp=node.dir; node.dir=node.next.dir; node.next.dir=temp;                             // swap
-//                    temp=node.slicesmask; node.slicesmask=node.next.slicesmask; node.next.slicesmask=temp; // swap
-//                    // XXX wtf is the following doing?? doesn't hurt, but I don't understand what it does -Don
-//                    if (node.prev != null)
-//                        node = node.prev;
-//                }
-//                else
-//                    node = node.next;
-//            }
-//            else
-//                node = node.next;
-//        }
-//
-//        /*
-//         * Merge same-face twists
-//         */
-//        HistoryNode first_on_this_face, past_last_on_this_face;
-//        for (first_on_this_face = first; first_on_this_face!=null; ) {
-//            if (first_on_this_face.slicesmask == 1) {
-//                face = PolygonManager.faceOfGrip(first_on_this_face.stickerid);
-//                past_last_on_this_face = first_on_this_face.next;
-//                while (past_last_on_this_face!=null &&
-//                       past_last_on_this_face.slicesmask == 1 &&
-//                       PolygonManager.faceOfGrip(past_last_on_this_face.stickerid) == face)
-//                {
-//                    past_last_on_this_face = past_last_on_this_face.next;
-//                }
-//
-//                if (past_last_on_this_face != first_on_this_face.next) {
-//                    /*
-//                     * There is more than one twist on this face.
-//                     * Concatenate together all the matrices of these
-//                     * twists, and then figure out how to accomplish it
-//                     * with one or two twists on a single grip.
-//                     */
-//                    Vec_h._IDENTMAT4(current_matrix);
-//                    for (node=first_on_this_face; node!=past_last_on_this_face; node=node.next) {
-//                        grip.id_within_puzzle = node.stickerid;
-//                        PolygonManager.fillStickerspecFromIdAndLength(grip, 3);
-//                        float angle = PolygonManager.getTwistTotalAngle(grip.dim, node.dir);
-//                        Math4d.get4dTwistMat(grip.coords, angle, incmat);
-//                        Vec_h._MXM4i(current_matrix, current_matrix, incmat);
-//                    }
-//
-//                    /*
-//                     * We now have all the information we need;
-//                     * delete the twists from the history
-//                     */
-//                    while (first_on_this_face != past_last_on_this_face) {
-//                        deleteNode(first_on_this_face);
-//                        first_on_this_face = first_on_this_face.next;
-//                    }
-//
-//                    /*
-//                     * Find a sticker on this face that's not
-//                     * moved by the matrix; that will be the grip of the
-//                     * concatenated move.
-//                     */
-//                    grip.face = face;
-//                    for (grip.id_within_face = 0;
-//                         grip.id_within_face < MagicCube.GRIPS_PER_FACE;
-//                         grip.id_within_face++)
-//                    {
-//                        PolygonManager.fillStickerspecFromFaceAndIdAndLength(grip, 3);
-//                        if (grip.dim >= 3)
-//                            continue;
-//                        Vec_h._VXM4(newcoords, grip.coords, current_matrix);
-//                        if (Vec_h._EQVEC4(newcoords, grip.coords)) {
-//                            /*
-//                             * Found the right grip;
-//                             * see if any of the following work:
-//                             *  0 twists
-//                             *  1 twist CW
-//                             *  1 twist CCW
-//                             *  2 twists in random direction
-//                             */
-//                            Vec_h._IDENTMAT4(testmat);
-//                            if (Vec_h._EQMAT4(testmat, current_matrix)) {
-//                                /*
-//                                 * Result is 0 twists.
-//                                 */
-//                                break;
-//                            }
-//
-//                            float angle = PolygonManager.getTwistTotalAngle(grip.dim, MagicCube.CCW);
-//                            Math4d.get4dTwistMat(grip.coords, angle, testmat);
-//                            if (Vec_h._EQMAT4(testmat, current_matrix)) {
-//                                /*
-//                                 * Result is 1 twist CCW.
-//                                 */
-//                                insertNode(past_last_on_this_face, grip.id_within_puzzle, MagicCube.CCW, 1);
-//                                break;
-//                            }
-//                            angle = PolygonManager.getTwistTotalAngle(grip.dim, MagicCube.CW);
-//                            Math4d.get4dTwistMat(grip.coords, angle, testmat);
-//                            if (Vec_h._EQMAT4(testmat, current_matrix)) {
-//                                /*
-//                                 * Result is 1 twist CW.
-//                                 */
-//                                insertNode(past_last_on_this_face, grip.id_within_puzzle, MagicCube.CW, 1);
-//                                break;
-//                            }
-//                            dir = Math.random() > 0.5 ? MagicCube.CW : MagicCube.CCW;
-//                            angle = PolygonManager.getTwistTotalAngle(grip.dim, MagicCube.CCW);
-//                            Math4d.get4dTwistMat(grip.coords, angle, testmat);
-//                            Vec_h._MXM4i(testmat, testmat, testmat);
-//                            if (Vec_h._EQMAT4(testmat, current_matrix)) {
-//                                // Result is 2 twists
-//                                insertNode(past_last_on_this_face, grip.id_within_puzzle, dir, 1);
-//                                insertNode(past_last_on_this_face, grip.id_within_puzzle, dir, 1);
-//                                break;
-//                            }
-//                            Assert(false);
-//                        }
-//                    }
-//                    Assert(grip.id_within_face < 3 * 3 * 3);
-//                }
-//                first_on_this_face = past_last_on_this_face;
-//            }
-//            else
-//                first_on_this_face = first_on_this_face.next;
-//        }
-//    }  // end oldcompress
+    public void compress(PuzzleDescription puzzle) {
+        MagicCube.TwistData moves[] = compress(movesArray(), puzzle);
+        beginBatch(); // so listeners hear about it just once
+        try {
+            clear();
+            for(MagicCube.TwistData move : moves)
+                for(int step = 0; step < Math.abs(move.direction); step++)
+                    insertNode(size, move.grip.id_within_puzzle, move.direction > 0 ? MagicCube.CCW : MagicCube.CW, move.slicemask);
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Does the work of the static compress() for one puzzle,
+     * remembering the permutations of the twists it sees and which of them commute.
+     */
+    private static class Compressor {
+        private final PuzzleDescription puzzle;
+        private final int orders[];
+        private final HashMap<Long, Integer> ids = new HashMap<Long, Integer>(); // grip and slices to index into perms
+        private final ArrayList<int[]> perms = new ArrayList<int[]>(); // where one CCW step takes each sticker from
+        private final HashMap<Long, Boolean> commuting = new HashMap<Long, Boolean>(); // by pairs of ids
+        private final int scratch[];
+
+        private Compressor(PuzzleDescription puzzle) {
+            this.puzzle = puzzle;
+            orders = puzzle.getGripSymmetryOrders();
+            scratch = new int[puzzle.nStickers()];
+        }
+
+        /**
+         * @return one pass of compress() over the given moves.
+         */
+        private List<MagicCube.TwistData> compress(List<MagicCube.TwistData> moves) {
+            ArrayList<MagicCube.TwistData> out = new ArrayList<MagicCube.TwistData>(moves.size());
+            ArrayList<MagicCube.TwistData> run = new ArrayList<MagicCube.TwistData>();
+            ArrayList<Integer> runIds = new ArrayList<Integer>(); // without repeats
+            for(MagicCube.TwistData move : moves) {
+                int grip = move.grip.id_within_puzzle;
+                if(grip < 0 || grip >= orders.length || orders[grip] == 0) {
+                    // Not a twist we can say anything about, so leave it be.
+                    combine(run, out);
+                    runIds.clear();
+                    out.add(new MagicCube.TwistData(grip, move.direction, move.slicemask));
+                    continue;
+                }
+                int id = getId(grip, getSlices(move));
+                if(runIds.contains(id))
+                    run.add(move);
+                else {
+                    for(int other : runIds) {
+                        if(!commute(id, other)) {
+                            combine(run, out);
+                            runIds.clear();
+                            break;
+                        }
+                    }
+                    run.add(move);
+                    runIds.add(id);
+                }
+            }
+            combine(run, out);
+            return out;
+        }
+
+        /**
+         * Adds the fewest twists that do the same thing as the given commuting ones, in order of grip,
+         * and empties the run.
+         * Grouping the twists by grip is fine since they commute, and the slices of one grip move separately,
+         * so each slice simply ends up turned by the total of its steps.
+         */
+        private void combine(List<MagicCube.TwistData> run, List<MagicCube.TwistData> out) {
+            TreeMap<Integer, int[]> steps = new TreeMap<Integer, int[]>(); // CCW steps of each slice of each grip
+            for(MagicCube.TwistData move : run) {
+                int grip = move.grip.id_within_puzzle, order = orders[grip];
+                int sliceSteps[] = steps.get(grip);
+                if(sliceSteps == null) {
+                    sliceSteps = new int[puzzle.getNumSlicesForGrip(grip)];
+                    steps.put(grip, sliceSteps);
+                }
+                int slices = getSlices(move);
+                for(int iSlice = 0; iSlice < sliceSteps.length; iSlice++)
+                    if((slices & 1 << iSlice) != 0)
+                        sliceSteps[iSlice] = ((sliceSteps[iSlice] + move.direction) % order + order) % order;
+            }
+            for(Map.Entry<Integer, int[]> entry : steps.entrySet()) {
+                int grip = entry.getKey(), order = orders[grip];
+                int sliceSteps[] = entry.getValue();
+                int nBefore = out.size(), nInRun = 0;
+                for(MagicCube.TwistData move : run)
+                    if(move.grip.id_within_puzzle == grip)
+                        nInRun++;
+                for(int nSteps = 1; nSteps < order; nSteps++) {
+                    int slicemask = 0;
+                    for(int iSlice = 0; iSlice < sliceSteps.length; iSlice++)
+                        if(sliceSteps[iSlice] == nSteps)
+                            slicemask |= 1 << iSlice;
+                    if(slicemask != 0) // the short way around, as applyTwistToState() does it
+                        out.add(new MagicCube.TwistData(grip, nSteps <= order / 2 ? nSteps : nSteps - order, slicemask));
+                }
+                if(out.size() - nBefore > nInRun) {
+                    // Overlapping slicemasks can leave more different amounts of turning than there were twists.
+                    out.subList(nBefore, out.size()).clear();
+                    for(MagicCube.TwistData move : run)
+                        if(move.grip.id_within_puzzle == grip)
+                            out.add(new MagicCube.TwistData(grip, move.direction, move.slicemask));
+                }
+            }
+            run.clear();
+        }
+
+        /**
+         * @return the slices the given twist turns, without any bits past the grip's last slice.
+         */
+        private int getSlices(MagicCube.TwistData move) {
+            int slicemask = move.slicemask == 0 ? 1 : move.slicemask; // same as applyTwistToState
+            return slicemask & (1 << puzzle.getNumSlicesForGrip(move.grip.id_within_puzzle)) - 1;
+        }
+
+        private static boolean same(List<MagicCube.TwistData> moves1, List<MagicCube.TwistData> moves2) {
+            if(moves1.size() != moves2.size())
+                return false;
+            for(int i = 0; i < moves1.size(); i++) {
+                MagicCube.TwistData move1 = moves1.get(i), move2 = moves2.get(i);
+                if(move1.grip.id_within_puzzle != move2.grip.id_within_puzzle || move1.direction != move2.direction || move1.slicemask != move2.slicemask)
+                    return false;
+            }
+            return true;
+        }
+
+        private int getId(int grip, int slices) {
+            Long key = (long) grip << 32 | slices & 0xffffffffL;
+            Integer id = ids.get(key);
+            if(id == null) {
+                int perm[] = new int[scratch.length];
+                for(int i = 0; i < perm.length; i++)
+                    perm[i] = i;
+                if(slices != 0)
+                    puzzle.applyTwistToState(perm, grip, 1, slices, scratch);
+                id = perms.size();
+                perms.add(perm);
+                ids.put(key, id);
+            }
+            return id;
+        }
+
+        private boolean commute(int id1, int id2) {
+            Long key = (long) Math.min(id1, id2) << 32 | Math.max(id1, id2);
+            Boolean result = commuting.get(key);
+            if(result == null) {
+                int perm1[] = perms.get(id1), perm2[] = perms.get(id2);
+                result = true;
+                for(int i = 0; i < perm1.length && result; i++)
+                    result = perm1[perm2[i]] == perm2[perm1[i]];
+                commuting.put(key, result);
+            }
+            return result;
+        }
+    } // end class Compressor
 
 
     /**
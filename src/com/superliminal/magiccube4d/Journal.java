@@ -0,0 +1,266 @@
+package com.superliminal.magiccube4d;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+import com.superliminal.util.PropertyManager;
+
+/**
+ * An append-only record of the changes made to a History since its log file was last written,
+ * so that they aren't lost if the program dies before the log is written again.
+ * Each change is a small record which is queued and written by a background thread.
+ * Whatever gets queued while the thread is waiting for one write to reach the disk goes out together in the next,
+ * so the history never waits on the disk, and a burst of changes costs just one sync.
+ *
+ * The journal file sits next to its log file and starts with the length and checksum of the log it goes with,
+ * so one left over from an older version of the log is ignored rather than replayed onto the wrong history.
+ * Each record is its length followed by a tag character and its values as zigzag encoded variable length integers,
+ * except that a whole history read in at once is journaled as History.writeBinary() writes it.
+ * Any partly written record at the end is ignored when replaying.
+ *
+ * Callers rewrite the log from time to time, whenever needsCompaction() says the journal has gotten long,
+ * and then call restart() to begin a new journal for it.
+ */
+public class Journal {
+    private final static String MAGIC = "MC4DJournal";
+
+    private final File log, file;
+    private final FileChannel channel;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(); // records not yet handed to the writer
+    private final LogFile.Output recordOut = new LogFile.Output(Channels.newChannel(record));
+    private final LogFile.Output pendingOut = new LogFile.Output(Channels.newChannel(pending));
+    private int nRecords = 0; // since the last restart
+    private boolean writing = false, closed = false;
+    private final Thread writer = new Thread("Journal writer") {
+        @Override
+        public void run() {
+            writeQueued();
+        }
+    };
+    private final Thread flusher = new Thread() {
+        @Override
+        public void run() {
+            finish();
+        }
+    };
+
+    /**
+     * Starts a new journal for the given log file, which must exist,
+     * replacing any journal it already has.
+     */
+    public Journal(File log) throws IOException {
+        this.log = log;
+        file = getJournalFile(log);
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        restart();
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(flusher); // to write anything still queued when quitting
+    }
+
+    public File getLogFile() {
+        return log;
+    }
+
+    public static File getJournalFile(File log) {
+        return new File(log.getPath() + ".journal");
+    }
+
+    /**
+     * Replays the journal of the given log file onto the history just read from it,
+     * unless there is no journal or it goes with some other version of the log.
+     *
+     * @return the number of changes replayed.
+     */
+    public static int recover(File log, History hist) throws IOException {
+        File file = getJournalFile(log);
+        if(!file.isFile())
+            return 0;
+        LogFile.Input in = new LogFile.Input(read(file));
+        try {
+            if(!MAGIC.equals(in.readString()) || in.readFixedInt() != log.length() || in.readFixedInt() != checksum(log))
+                return 0;
+        } catch(Exception e) {
+            return 0; // not a journal or cut off in the middle of the header
+        }
+        return hist.replay(in);
+    }
+
+    /**
+     * @return true if the journal has gotten long enough that the log should be rewritten.
+     */
+    public synchronized boolean needsCompaction() {
+        return nRecords >= PropertyManager.getInt("autosave.compact", 10000);
+    }
+
+    /**
+     * Empties the journal after its log has been rewritten to include everything in it.
+     */
+    public synchronized void restart() throws IOException {
+        pending.reset(); // it's all in the log now
+        while(writing) {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                throw new IOException("Interrupted restarting journal " + file);
+            }
+        }
+        channel.truncate(0);
+        LogFile.Output out = new LogFile.Output(channel);
+        out.writeString(MAGIC);
+        out.writeFixedInt((int) log.length());
+        out.writeFixedInt(checksum(log));
+        out.flush();
+        channel.force(false);
+        nRecords = 0;
+    }
+
+    /**
+     * Waits until everything queued so far has been written out.
+     */
+    public synchronized void flush() throws IOException {
+        while((pending.size() > 0 || writing) && writer.isAlive()) {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                throw new IOException("Interrupted flushing journal " + file);
+            }
+        }
+    }
+
+    /**
+     * Writes out anything still queued and stops journaling.
+     */
+    public void close() {
+        Runtime.getRuntime().removeShutdownHook(flusher);
+        finish();
+    }
+
+    private void finish() {
+        synchronized(this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+            channel.close();
+        } catch(Exception e) {
+            System.err.println("Couldn't close journal " + file + ": " + e);
+        }
+    }
+
+    void twistInserted(int i, int stickerid, int dir, int slicesmask) {
+        add('T', i, stickerid, dir, slicesmask);
+    }
+    void markInserted(int i, char mark) {
+        add('M', i, mark);
+    }
+    void nodeDeleted(int i) {
+        add('D', i);
+    }
+    void currentMoved(int i) {
+        add('C', i);
+    }
+    void truncated() {
+        add('X');
+    }
+    void cleared(int edgeLength) {
+        add('Z', edgeLength);
+    }
+    void marksRemoved(char mark) {
+        add('R', mark);
+    }
+    void reversed() {
+        add('V');
+    }
+    synchronized void reloaded(History hist) {
+        try {
+            recordOut.write('S');
+            hist.writeBinary(recordOut, new LogFile.BlockIndex());
+            queue();
+        } catch(IOException e) {
+            throw new Error(e); // can't happen in memory
+        }
+    }
+
+    private synchronized void add(char tag, int... values) {
+        try {
+            recordOut.write(tag);
+            for(int value : values)
+                recordOut.writeZigzag(value);
+            queue();
+        } catch(IOException e) {
+            throw new Error(e); // can't happen in memory
+        }
+    }
+
+    private void queue() throws IOException {
+        recordOut.flush();
+        if(!closed) {
+            pendingOut.writeVarint(record.size());
+            pendingOut.flush();
+            record.writeTo(pending);
+            nRecords++;
+            notifyAll();
+        }
+        record.reset();
+    }
+
+    private void writeQueued() {
+        while(true) {
+            byte bytes[];
+            synchronized(this) {
+                while(pending.size() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                }
+                if(pending.size() == 0)
+                    return; // closed and all written
+                bytes = pending.toByteArray();
+                pending.reset();
+                writing = true;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while(buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(false);
+            } catch(IOException e) {
+                System.err.println("Couldn't write journal " + file + ": " + e);
+                synchronized(this) {
+                    closed = true;
+                }
+            } finally {
+                synchronized(this) {
+                    writing = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the whole file onto the heap rather than mapping it,
+     * since a mapping outlives the file being closed and keeps it from being truncated or replaced on some systems.
+     */
+    private static ByteBuffer read(File file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    }
+
+    private static int checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(read(file));
+        return (int) crc.getValue();
+    }
+}
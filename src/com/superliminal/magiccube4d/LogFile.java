@@ -0,0 +1,579 @@
+package com.superliminal.magiccube4d;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Reads and writes log files.
+ * The first line holds the magic number, file version, scramble state, twist count, schlafli product and edge length.
+ * It's followed by the four rows of the 4D view matrix, a '*', and then the history as written by History.write().
+ *
+ * Everything is ASCII except for any unusual mark characters, which are UTF-8.
+ * Files are read whole and parsed straight out of the buffer, and written through a buffered channel,
+ * without making any objects for each number, so that logs of millions of moves load and save quickly.
+ *
+ * There is also a binary format which takes around a third of the space.
+ * It starts with the magic number followed by a zero byte where text files have a space, so the two are told apart automatically.
+ * Then come the version, scramble state and twist count as 4 byte integers, the schlafli product and edge length as strings,
+ * the 16 entries of the 4D view matrix as doubles, and the history as written by History.writeBinary().
+ * At the end is a block index giving the offset of every BLOCK_SIZE'th node and the number of moves before it,
+ * followed by the block size and the number of blocks, so moves can be read starting anywhere without reading all before them.
+ * Numbers in the history are variable length, 7 bits per byte with the high bit set on all but the last,
+ * and signed ones are zigzag encoded so small negative numbers are small too. Everything else is big-endian.
+ */
+public class LogFile {
+    public final boolean binary;
+    public final int version;
+    public final int scrambleState;
+    public final String schlafli;
+    public final String prettyLength;
+    public final double edgeLength;
+    private final Input in; // positioned after whatever has been read so far
+
+    private LogFile(Input in) throws IOException {
+        this.in = in;
+        binary = in.peek(MagicCube.MAGIC_NUMBER.length()) == 0;
+        if(binary) {
+            for(int i = 0; i < MagicCube.MAGIC_NUMBER.length(); i++)
+                if(in.read() != MagicCube.MAGIC_NUMBER.charAt(i))
+                    throw new IOException("Unexpected log file format.");
+            in.read(); // the zero
+            version = in.readFixedInt();
+            if(version != MagicCube.BINARY_LOG_FILE_VERSION) { // for the caller to report
+                scrambleState = 0;
+                schlafli = prettyLength = null;
+                edgeLength = 0;
+                return;
+            }
+            scrambleState = in.readFixedInt();
+            in.readFixedInt(); // twist count
+            schlafli = in.readString();
+            prettyLength = in.readString();
+            edgeLength = Double.parseDouble(prettyLength);
+            return;
+        }
+        String firstlineStr = in.readLine();
+        if(firstlineStr == null)
+            throw new IOException("Empty log file.");
+        String firstline[] = firstlineStr.split(" ");
+        /*
+         * First Line Format:
+         * 0 - Magic Number
+         * 1 - File Version
+         * 2 - Scramble State
+         * 3 - Twist Count
+         * 4 - Schlafli Product
+         * 5 - Edge Length
+         */
+        if(firstline.length != 6 || !MagicCube.MAGIC_NUMBER.equals(firstline[0]))
+            throw new IOException("Unexpected log file format.");
+        version = Integer.parseInt(firstline[1]);
+        if(version != MagicCube.LOG_FILE_VERSION) { // for the caller to report
+            scrambleState = 0;
+            schlafli = prettyLength = null;
+            edgeLength = 0;
+            return;
+        }
+        scrambleState = Integer.parseInt(firstline[2]);
+        // int numTwists = Integer.parseInt(firstline[3]);
+        schlafli = firstline[4];
+        prettyLength = firstline[5];
+        edgeLength = Double.parseDouble(prettyLength);
+    }
+
+    /**
+     * Opens the given log file, text or binary, and reads its header.
+     * Check isCurrentVersion() before using anything else.
+     */
+    public static LogFile open(File file) throws IOException {
+        // Read rather than mapped, since a mapping outlives close() and would keep the file from being replaced on some systems.
+        return new LogFile(new Input(ByteBuffer.wrap(Files.readAllBytes(file.toPath()))));
+    }
+
+    public boolean isCurrentVersion() {
+        return version == (binary ? MagicCube.BINARY_LOG_FILE_VERSION : MagicCube.LOG_FILE_VERSION);
+    }
+
+    public void readRotations(RotationHandler rotations) throws IOException {
+        if(binary)
+            rotations.readBinary(in);
+        else
+            rotations.read(in);
+    }
+
+    /**
+     * Reads the history into the given one, skipping past any state data first.
+     *
+     * @return true if successful, false otherwise.
+     */
+    public boolean readHistory(History hist) {
+        if(binary)
+            return hist.readBinary(in);
+        int c;
+        for(c = in.read(); !(c == '*' || c == -1); c = in.read())
+            ; // read past state data
+        return hist.read(in);
+    }
+
+    /**
+     * Reads moves straight out of a binary log file using its block index, without reading the history.
+     *
+     * @return the moves from the given one up to but not including the other, like History.movesArray() would.
+     */
+    public MagicCube.TwistData[] readMoves(int from, int to) throws IOException {
+        if(!binary)
+            throw new IllegalArgumentException("LogFile.readMoves called on a text log file!");
+        if(from < 0 || to < from)
+            throw new IllegalArgumentException("LogFile.readMoves called with bad range " + from + " to " + to + "!");
+        int end = in.size();
+        int blockSize = in.fixedIntAt(end - 8);
+        int nBlocks = in.fixedIntAt(end - 4);
+        int indexStart = end - 8 - 8 * nBlocks;
+        if(blockSize <= 0 || nBlocks < 0 || indexStart < 0)
+            throw new IOException("Bad block index in log file.");
+        // Find the last block starting at or before the first move wanted.
+        int lo = 0, hi = nBlocks;
+        while(hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if(in.fixedIntAt(indexStart + 8 * mid + 4) <= from)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        MagicCube.TwistData moves[] = new MagicCube.TwistData[to - from];
+        if(moves.length == 0)
+            return moves;
+        if(nBlocks == 0)
+            throw new IOException("Not that many moves in log file.");
+        Input block = new Input(in.bytes);
+        block.seek(in.fixedIntAt(indexStart + 8 * lo));
+        int nMoves = in.fixedIntAt(indexStart + 8 * lo + 4);
+        while(nMoves < to) {
+            if(block.position() >= indexStart)
+                throw new IOException("Not that many moves in log file.");
+            int v = block.readVarint();
+            if((v & 1) == 0) {
+                int dir = block.readZigzag();
+                int slicesmask = block.readZigzag();
+                if(nMoves >= from)
+                    moves[nMoves - from] = new MagicCube.TwistData(v >>> 1, dir, slicesmask);
+                nMoves++;
+            }
+            else
+                block.readVarint(); // the mark
+        }
+        return moves;
+    }
+
+    public static void write(File file, boolean binary, int scrambleState, String schlafli, String prettyLength, RotationHandler rotations, History hist) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            Output out = new Output(stream.getChannel());
+            if(binary) {
+                for(int i = 0; i < MagicCube.MAGIC_NUMBER.length(); i++)
+                    out.write(MagicCube.MAGIC_NUMBER.charAt(i));
+                out.write(0);
+                out.writeFixedInt(MagicCube.BINARY_LOG_FILE_VERSION);
+                out.writeFixedInt(scrambleState);
+                out.writeFixedInt(hist.countTwists());
+                out.writeString(schlafli);
+                out.writeString(prettyLength);
+                rotations.writeBinary(out);
+                BlockIndex index = new BlockIndex();
+                hist.writeBinary(out, index);
+                for(int i = 0; i < index.n; i++) {
+                    out.writeFixedInt(index.offsets[i]);
+                    out.writeFixedInt(index.movesBefore[i]);
+                }
+                out.writeFixedInt(BlockIndex.BLOCK_SIZE);
+                out.writeFixedInt(index.n);
+            }
+            else {
+                String sep = System.getProperty("line.separator");
+                out.write(
+                    MagicCube.MAGIC_NUMBER + " " +
+                        MagicCube.LOG_FILE_VERSION + " " +
+                        scrambleState + " " +
+                        hist.countTwists() + " " +
+                        schlafli + " " +
+                        prettyLength);
+                out.write(sep);
+                rotations.write(out);
+                out.write("*" + sep);
+                hist.write(out);
+                out.write(sep);
+            }
+            out.flush();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Rewrites a log file in the other format, text to binary or binary to text.
+     */
+    public static void convert(File from, File to) throws IOException {
+        LogFile log = open(from);
+        if(!log.isCurrentVersion())
+            throw new IOException("Incompatible log file version " + log.version);
+        RotationHandler rotations = new RotationHandler();
+        History hist = new History((int) Math.round(log.edgeLength));
+        log.readRotations(rotations);
+        if(!log.readHistory(hist))
+            throw new IOException("Error reading puzzle history");
+        write(to, !log.binary, log.scrambleState, log.schlafli, log.prettyLength, rotations, hist);
+    }
+
+    public static void main(String args[]) throws IOException {
+        if(args.length != 2) {
+            System.err.println("usage: LogFile <from> <to>");
+            System.err.println("Converts a text log file to binary or a binary one to text.");
+            System.exit(1);
+        }
+        convert(new File(args[0]), new File(args[1]));
+    }
+
+
+    /**
+     * Where each block of BLOCK_SIZE history nodes starts in a binary log file
+     * and how many moves come before it.
+     */
+    static class BlockIndex {
+        public final static int BLOCK_SIZE = 1 << 12;
+        private int n = 0;
+        private int offsets[] = new int[16];
+        private int movesBefore[] = new int[16];
+
+        public void add(int offset, int nMoves) {
+            if(n == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * n);
+                movesBefore = Arrays.copyOf(movesBefore, 2 * n);
+            }
+            offsets[n] = offset;
+            movesBefore[n] = nMoves;
+            n++;
+        }
+    }
+
+
+    /**
+     * Parses log file text out of a byte buffer.
+     */
+    public static class Input {
+        private final ByteBuffer bytes;
+        private int pos; // absolute gets and our own position are quicker than relative gets
+        private final int end;
+
+        public Input(ByteBuffer bytes) {
+            this.bytes = bytes;
+            pos = bytes.position();
+            end = bytes.limit();
+        }
+
+        public int position() {
+            return pos;
+        }
+
+        public void seek(int position) {
+            pos = position;
+        }
+
+        public int size() {
+            return end;
+        }
+
+        /**
+         * @return the byte the given distance ahead without reading it, or -1 past the end.
+         */
+        public int peek(int ahead) {
+            return pos + ahead < end ? bytes.get(pos + ahead) & 0xff : -1;
+        }
+
+        /**
+         * @return the next byte or -1 at the end.
+         */
+        public int read() {
+            return pos < end ? bytes.get(pos++) & 0xff : -1;
+        }
+
+        /**
+         * Backs up over the last byte read, if it wasn't the end.
+         */
+        public void unread(int c) {
+            if(c != -1)
+                pos--;
+        }
+
+        /**
+         * Reads a UTF-8 character.
+         *
+         * @return the character or -1 at the end.
+         */
+        public int readChar() throws IOException {
+            int c = read();
+            if(c < 0x80)
+                return c;
+            int nMore = c >= 0xe0 ? 2 : 1;
+            c &= nMore == 2 ? 0x0f : 0x1f;
+            for(int i = 0; i < nMore; i++) {
+                int b = read();
+                if((b & 0xc0) != 0x80)
+                    throw new IOException("Bad UTF-8 in log file");
+                c = c << 6 | b & 0x3f;
+            }
+            return c;
+        }
+
+        /**
+         * Reads a line ending with any of "\n", "\r" or "\r\n", like BufferedReader.readLine().
+         *
+         * @return the line without its ending or null at the end.
+         */
+        public String readLine() throws IOException {
+            if(pos == end)
+                return null;
+            StringBuilder sb = new StringBuilder();
+            for(int c = readChar(); c != -1 && c != '\n'; c = readChar()) {
+                if(c == '\r') {
+                    if((c = read()) != '\n')
+                        unread(c);
+                    break;
+                }
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Reads a simple decimal integer, like History.readInt(PushbackReader).
+         *
+         * @throws NumberFormatException if there isn't one.
+         */
+        public int readInt() throws NumberFormatException {
+            int c, chars = 0;
+            do {
+                c = read();
+            } while(c != -1 && Character.isWhitespace(c)); // skip whitespace
+            boolean negative = c == '-';
+            if(negative)
+                chars++;
+            else
+                unread(c);
+            long value = 0;
+            for(; (c = read()) != -1 && '0' <= c && c <= '9'; chars++) {
+                value = 10 * value + (c - '0');
+                if(chars >= 10 || value > 1L + Integer.MAX_VALUE)
+                    throw new NumberFormatException("Number too long in log file");
+            }
+            unread(c);
+            if(chars == (negative ? 1 : 0))
+                throw new NumberFormatException("Expected a number in log file");
+            if(negative)
+                value = -value;
+            if(value > Integer.MAX_VALUE)
+                throw new NumberFormatException("Number too big in log file");
+            return (int) value;
+        }
+
+        /**
+         * @return the 4 byte big-endian integer at the given position, without moving.
+         */
+        public int fixedIntAt(int position) {
+            return bytes.getInt(position);
+        }
+
+        public int readFixedInt() {
+            int i = bytes.getInt(pos);
+            pos += 4;
+            return i;
+        }
+
+        public double readFixedDouble() {
+            double d = bytes.getDouble(pos);
+            pos += 8;
+            return d;
+        }
+
+        /**
+         * Reads an unsigned variable length integer, 7 bits per byte, low bits first.
+         */
+        public int readVarint() throws IOException {
+            int value = 0;
+            for(int shift = 0;; shift += 7) {
+                int b = read();
+                if(b == -1 || shift > 28)
+                    throw new IOException("Bad number in log file.");
+                value |= (b & 0x7f) << shift;
+                if(b < 0x80)
+                    return value;
+            }
+        }
+
+        /**
+         * Reads a zigzag encoded variable length integer.
+         */
+        public int readZigzag() throws IOException {
+            int v = readVarint();
+            return v >>> 1 ^ -(v & 1);
+        }
+
+        /**
+         * Reads a string written by Output.writeString().
+         */
+        public String readString() throws IOException {
+            int n = readVarint();
+            StringBuilder sb = new StringBuilder();
+            for(int i = 0; i < n; i++) {
+                int c = readChar();
+                if(c == -1)
+                    throw new IOException("Unexpected end of log file.");
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Reads a floating point number which ends at a space or line ending.
+         */
+        public double readDouble() throws NumberFormatException {
+            int start = pos;
+            int c;
+            while((c = read()) != -1 && c != ' ' && c != '\n' && c != '\r')
+                ;
+            unread(c);
+            char chars[] = new char[pos - start];
+            for(int i = 0; i < chars.length; i++)
+                chars[i] = (char) (bytes.get(start + i) & 0xff);
+            return Double.parseDouble(new String(chars));
+        }
+    }
+
+
+    /**
+     * Writes log file text to a channel through a buffer.
+     */
+    public static class Output {
+        private final WritableByteChannel channel;
+        private final byte buffer[] = new byte[1 << 16];
+        private int nBuffered = 0;
+        private int nDrained = 0;
+        private final byte digits[] = new byte[11];
+
+        public Output(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        public void write(int b) throws IOException {
+            if(nBuffered == buffer.length)
+                drain();
+            buffer[nBuffered++] = (byte) b;
+        }
+
+        public void write(String s) throws IOException {
+            for(int i = 0; i < s.length(); i++)
+                writeChar(s.charAt(i));
+        }
+
+        /**
+         * Writes a character as UTF-8.
+         */
+        public void writeChar(char c) throws IOException {
+            if(c < 0x80)
+                write(c);
+            else if(c < 0x800) {
+                write(0xc0 | c >> 6);
+                write(0x80 | c & 0x3f);
+            }
+            else {
+                write(0xe0 | c >> 12);
+                write(0x80 | c >> 6 & 0x3f);
+                write(0x80 | c & 0x3f);
+            }
+        }
+
+        /**
+         * Writes an integer in decimal.
+         */
+        public void writeInt(int i) throws IOException {
+            long value = i;
+            if(value < 0) {
+                write('-');
+                value = -value;
+            }
+            int nDigits = 0;
+            do {
+                digits[nDigits++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while(value != 0);
+            while(nDigits > 0)
+                write(digits[--nDigits]);
+        }
+
+        /**
+         * Writes a 4 byte big-endian integer.
+         */
+        public void writeFixedInt(int i) throws IOException {
+            for(int shift = 24; shift >= 0; shift -= 8)
+                write(i >>> shift);
+        }
+
+        public void writeFixedDouble(double d) throws IOException {
+            long bits = Double.doubleToLongBits(d);
+            writeFixedInt((int) (bits >>> 32));
+            writeFixedInt((int) bits);
+        }
+
+        /**
+         * Writes an unsigned variable length integer, 7 bits per byte, low bits first.
+         */
+        public void writeVarint(int i) throws IOException {
+            while((i & ~0x7f) != 0) {
+                write(i & 0x7f | 0x80);
+                i >>>= 7;
+            }
+            write(i);
+        }
+
+        /**
+         * Writes a signed variable length integer, zigzag encoded so that small negative numbers stay short.
+         */
+        public void writeZigzag(int i) throws IOException {
+            writeVarint(i << 1 ^ i >> 31);
+        }
+
+        /**
+         * Writes the length of the string followed by its UTF-8 characters.
+         */
+        public void writeString(String s) throws IOException {
+            writeVarint(s.length());
+            write(s);
+        }
+
+        /**
+         * @return the number of bytes written so far.
+         */
+        public int position() {
+            return nDrained + nBuffered;
+        }
+
+        private void drain() throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, nBuffered);
+            while(bytes.hasRemaining())
+                channel.write(bytes);
+            nDrained += nBuffered;
+            nBuffered = 0;
+        }
+
+        /**
+         * Writes out whatever is in the buffer. Call when done.
+         */
+        public void flush() throws IOException {
+            drain();
+        }
+    }
+}
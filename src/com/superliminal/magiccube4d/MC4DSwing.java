@@ -16,19 +16,18 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
+import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowStateListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PushbackReader;
-import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Random;
@@ -59,6 +58,7 @@ import javax.swing.JSplitPane;
 import javax.swing.JTabbedPane;
 import javax.swing.SpringLayout;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.border.BevelBorder;
 import javax.swing.border.TitledBorder;
@@ -96,6 +96,16 @@ public class MC4DSwing extends JFrame {
         SCRAMBLE_FULL = 2, // Fully scrambled
         SCRAMBLE_SOLVED = 3; // Was solved by user even if not currently solved
     private int scrambleState = SCRAMBLE_NONE;
+    private boolean binaryLog = false; // Saves in the format the log was read in. New ones are binary if the "binarylogs" property is set.
+
+    // Autosave state. Changes to the history are journaled next to a working copy of the log
+    // that nothing but autosaving ever writes, and that copy is rewritten when the journal gets long
+    // or the things it doesn't record change. Both are deleted when quitting normally,
+    // so if they're still there at startup, the last session died without a chance to save its work.
+    private final File autosaveFile = new File(StaticUtils.getHomeDir(), MagicCube.AUTOSAVE_FILE);
+    private Journal journal = null;
+    private int journaledScrambleState;
+    private PuzzleDescription journaledPuzzle;
 
     // Macro state
     private MacroManager macroMgr = new MacroManager(PropertyManager.top.getProperty("macrofile",
@@ -202,33 +212,8 @@ public class MC4DSwing extends JFrame {
             return;
         }
         File file = new File(logFileName);
-        String sep = System.getProperty("line.separator");
         try {
-            Writer writer = new FileWriter(file);
-            /*
-             * First Line Format:
-             * 0 - Magic Number
-             * 1 - File Version
-             * 2 - Scramble State
-             * 3 - Twist Count
-             * 4 - Schlafli Product
-             * 5 - Edge Length
-             */
-            writer.write(
-                MagicCube.MAGIC_NUMBER + " " +
-                    MagicCube.LOG_FILE_VERSION + " " +
-                    scrambleState + " " +
-                    hist.countTwists() + " " +
-                    puzzleManager.puzzleDescription.getSchlafliProduct() + " " +
-                    puzzleManager.getPrettyLength());
-            writer.write(sep);
-            rotations.write(writer);
-            //writer.write(sep + puzzle.toString());
-            writer.write("*" + sep);
-            hist.truncate(); // Don't save potential redo moves after current. Note: loses redo moves as a side effect!
-            writer.write(hist.toString());
-            writer.write(sep);
-            writer.close();
+            writeLog(file);
             String filepath = file.getAbsolutePath();
             setStatus("Wrote log file " + filepath);
             PropertyManager.userprefs.setProperty("logfile", filepath);
@@ -238,6 +223,72 @@ public class MC4DSwing extends JFrame {
         }
     } // end saveAs()
 
+    /**
+     * Writes the whole log file.
+     * The log is written to a temporary file that then atomically replaces the old one,
+     * so that a crash can't leave half of one behind.
+     */
+    private void writeLog(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        LogFile.write(temp, binaryLog, scrambleState, puzzleManager.puzzleDescription.getSchlafliProduct(), puzzleManager.getPrettyLength(), rotations, hist);
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes the autosave file and starts journaling further changes to it, if autosaving.
+     */
+    private void startAutosave() {
+        if(!PropertyManager.getBoolean("autosave", true))
+            return;
+        try {
+            writeLog(autosaveFile);
+            journaledScrambleState = scrambleState;
+            journaledPuzzle = puzzleManager.puzzleDescription;
+            if(journal == null)
+                journal = new Journal(autosaveFile);
+            else
+                journal.restart();
+            hist.setJournal(journal);
+        } catch(IOException e) {
+            setStatus("Autosave to '" + autosaveFile + "' failed.", true);
+            stopAutosave();
+        }
+    }
+
+    private void stopAutosave() {
+        if(journal == null)
+            return;
+        journal.close();
+        journal = null;
+        if(hist != null)
+            hist.setJournal(null);
+    }
+
+    /**
+     * Stops autosaving and deletes the autosave file, when quitting normally.
+     */
+    private void discardAutosave() {
+        stopAutosave();
+        Journal.getJournalFile(autosaveFile).delete();
+        autosaveFile.delete();
+    }
+
+    /**
+     * Rewrites the autosave file if the journal has gotten long
+     * or if something has changed that the journal doesn't record.
+     */
+    private void autosave() {
+        if(journal == null)
+            return;
+        if(!journal.needsCompaction() && scrambleState == journaledScrambleState && puzzleManager.puzzleDescription == journaledPuzzle)
+            return;
+        startAutosave();
+    }
+
 
     private static boolean isControlDown(ActionEvent e) {
         return e != null && (e.getModifiers() & ActionEvent.CTRL_MASK) == ActionEvent.CTRL_MASK;
@@ -260,9 +311,10 @@ public class MC4DSwing extends JFrame {
 
     private void applySequence(MagicCube.TwistData[] moves) {
         hist.mark(History.MARK_MACRO_OPEN);
-        hist.apply(moves);
+        hist.apply(moves); // the twists actually applied, so they're what gets counted and saved
         hist.mark(History.MARK_MACRO_CLOSE);
-        view.animate(moves, null, true);
+        // Macros often undo some of their own twists, so only animate what's left once those are squeezed out.
+        view.animate(History.compress(moves, puzzleManager.puzzleDescription), null, true);
     }
 
 
@@ -452,7 +504,7 @@ public class MC4DSwing extends JFrame {
 //                    setStatus("No solution", true);
 //                    return;
 //                }
-//                solution = History.compress(solution, (int)puzzleManager.puzzleDescription.getEdgeLength(), true);
+//                solution = History.compress(solution, puzzleManager.puzzleDescription);
 //                view.animate(solution, applyToHistory, false);
 //                scrambleState = SCRAMBLE_NONE; // no user credit for automatic solutions.
 //                setStatus("Twists to solve = " + solution.length);
@@ -551,6 +603,7 @@ public class MC4DSwing extends JFrame {
         quit = new AbstractAction("Quit") {
             @Override
             public void actionPerformed(ActionEvent ae) {
+                discardAutosave();
                 System.exit(0);
             }
         },
@@ -877,6 +930,7 @@ public class MC4DSwing extends JFrame {
                 syncPuzzleStateWithHistory();
                 boolean fully = scramblechenfrengensen == -1;
                 scrambleState = fully ? SCRAMBLE_FULL : SCRAMBLE_PARTIAL;
+                autosave();
                 setStatus(fully ? "Fully Scrambled" : scramblechenfrengensen + " Random Twist" + (scramblechenfrengensen == 1 ? "" : "s"));
                 updateTwistsLabel();
                 view.repaint();
@@ -1034,7 +1088,16 @@ public class MC4DSwing extends JFrame {
         puzzleManager.setHighlighter(normalHighlighter);
         initTabs(); // to show controls
         initPuzzleMenu(puzzlemenu, statusLabel, progressBar);
-        initPuzzle(PropertyManager.top.getProperty("logfile"));
+        if(PropertyManager.getBoolean("autosave", true) && autosaveFile.isFile())
+            initPuzzle(autosaveFile.getPath(), true);
+        else
+            initPuzzle(PropertyManager.top.getProperty("logfile"));
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent we) {
+                discardAutosave();
+            }
+        });
 
         // Do this after loading initial puzzle to avoid console spam while loading long log file.
         History.setDebugging(debug_checkbox.isSelected());
@@ -1065,41 +1128,99 @@ public class MC4DSwing extends JFrame {
                 submenu.add(new JMenuItem(schlafli == null ? name : "   " + lengthString + "  ")).addActionListener(new ActionListener() {
                     @Override
                     public void actionPerformed(ActionEvent ae) {
-                        String newSchlafli = schlafli;
-                        String newLengthString = lengthString;
-                        if(schlafli == null) {
-                            String prompt = "Enter your invention:";
-                            String initialInput = puzzleManager.puzzleDescription.getSchlafliProduct() + " " + puzzleManager.getPrettyLength();
-                            while(true) {
-                                String reply = JOptionPane.showInputDialog(prompt, initialInput);
-                                if(reply == null) {
-                                    return; // Canceled
-                                }
-                                String schlafliAndLength[] = reply.trim().split("\\s+");
-                                if(schlafliAndLength.length != 2) {
-                                    prompt = "Can not build your invention.\nYou must specify the schlafli product symbol (with no spaces),\nfollowed by a space, followed by the puzzle length. Try again!";
-                                    initialInput = reply;
-                                    continue;
-                                }
-                                newSchlafli = schlafliAndLength[0];
-                                newLengthString = schlafliAndLength[1];
-                                break; // got it
-                            }
-                        }
-                        progressView.setVisible(true);
-                        System.out.println(newSchlafli + " " + newLengthString);
-                        puzzleManager.initPuzzle(newSchlafli, newLengthString, progressView, label, true);
-                        hist.clear((int) Double.parseDouble(newLengthString));
-                        updateTwistsLabel();
-                        scrambleState = SCRAMBLE_NONE;
-                        cancel(); // To at least assure we start in normal mode.
-                        view.repaint();
+                        if(schlafli == null)
+                            inventPuzzle("Enter your invention:",
+                                puzzleManager.puzzleDescription.getSchlafliProduct() + " " + puzzleManager.getPrettyLength(),
+                                label, progressView);
+                        else
+                            switchPuzzle(schlafli, lengthString, null, label, progressView);
                     }
                 });
             }
         }
     } // initPuzzleMenu
 
+    /**
+     * Prompts for a puzzle of the user's own invention and builds it.
+     * What it would take to build is estimated in the background first,
+     * so that a huge invention can't freeze the UI before the progress bar even shows,
+     * and the user is prompted again if it can't or shouldn't be built.
+     */
+    private void inventPuzzle(String prompt, String initialInput, final JLabel label, final JProgressBar progressView) {
+        final String reply = JOptionPane.showInputDialog(prompt, initialInput);
+        if(reply == null) {
+            return; // Canceled
+        }
+        final String schlafliAndLength[] = reply.trim().split("\\s+");
+        if(schlafliAndLength.length != 2) {
+            inventPuzzle("Can not build your invention.\nYou must specify the schlafli product symbol (with no spaces),\nfollowed by a space, followed by the puzzle length. Try again!",
+                reply, label, progressView);
+            return;
+        }
+        progressView.setVisible(true);
+        progressView.setIndeterminate(true);
+        progressView.setString("Sizing up your invention");
+        new SwingWorker<Void, Void>() {
+            private BuildCostEstimate estimate;
+            private Throwable failure;
+            @Override
+            protected Void doInBackground() {
+                // Find out what we're in for before committing to it.
+                try {
+                    estimate = BuildCostEstimate.estimate(schlafliAndLength[0], Double.parseDouble(schlafliAndLength[1]));
+                } catch(Throwable t) {
+                    failure = t;
+                }
+                return null;
+            }
+            @Override
+            protected void done() {
+                progressView.setVisible(false);
+                if(failure != null) {
+                    inventPuzzle("Can not build your invention.\n" + failure + "\nTry again!", reply, label, progressView);
+                    return;
+                }
+                if(estimate.nDims != 4) {
+                    inventPuzzle("Can not build your invention.\nThat is a truly BRILLIANT " + estimate.nDims + "-dimensional invention,\n" +
+                        "however, we are only accepting 4-dimensional inventions at this time. Try again!", reply, label, progressView);
+                    return;
+                }
+                if(estimate.isImpossible()) {
+                    inventPuzzle("Can not build your invention.\nIt would have\n" + estimate.longDescription() + "\n" +
+                        "but only " + Math.round(BuildCostEstimate.availableMegabytes()) + "MB of memory is available. Try again!", reply, label, progressView);
+                    return;
+                }
+                if(estimate.isOverBudget() && JOptionPane.showConfirmDialog(null,
+                    "Your invention \"" + reply.trim() + "\" would have\n" + estimate.longDescription() + "\n" +
+                        "Build it anyway?",
+                    "Big Invention",
+                    JOptionPane.YES_NO_OPTION,
+                    JOptionPane.WARNING_MESSAGE) != JOptionPane.YES_OPTION) {
+                    inventPuzzle("Enter your invention:", reply, label, progressView);
+                    return;
+                }
+                switchPuzzle(schlafliAndLength[0], schlafliAndLength[1], estimate, label, progressView);
+            }
+        }.execute();
+    }
+
+    /**
+     * Builds the given puzzle in the background and starts over on it.
+     *
+     * @param estimate what it will take to build, or null if not known yet.
+     */
+    private void switchPuzzle(String newSchlafli, String newLengthString, BuildCostEstimate estimate, JLabel label, JProgressBar progressView) {
+        progressView.setVisible(true);
+        System.out.println(newSchlafli + " " + newLengthString);
+        puzzleManager.initPuzzle(newSchlafli, newLengthString, progressView, label, true, estimate);
+        hist.clear((int) Double.parseDouble(newLengthString));
+        updateTwistsLabel();
+        scrambleState = SCRAMBLE_NONE;
+        autosave();
+        cancel(); // To at least assure we start in normal mode.
+        view.repaint();
+    }
+
 
     /**
      * Called whenever macro list in manager changes to keep "Apply" submenu up-to-date.
@@ -1179,7 +1300,17 @@ public class MC4DSwing extends JFrame {
     }
 
     private void initPuzzle(String log) {
+        initPuzzle(log, false);
+    }
+
+    /**
+     * @param recovering true if log is the autosave file of a session that died,
+     *        in which case the changes in its journal are recovered too.
+     */
+    private void initPuzzle(String log, boolean recovering) {
+        stopAutosave();
         scrambleState = SCRAMBLE_NONE;
+        binaryLog = PropertyManager.getBoolean("binarylogs", false);
         double initial_edge_length = MagicCube.DEFAULT_LENGTH;
         int int_edge_length = (int) Math.ceil(initial_edge_length);
         if(hist != null) // Stop listening to last History.
@@ -1187,49 +1318,37 @@ public class MC4DSwing extends JFrame {
         hist = new History(int_edge_length);
         if(log != null) { // read the log file, possibly reinitializing length and history.
             File logfile = new File(log);
+            String recoveredStatus = null;
             if(logfile.exists()) {
                 boolean parsingError = false;
                 try {
-                    BufferedReader reader = new BufferedReader(new FileReader(logfile));
-                    String firstlineStr = reader.readLine();
-                    if(firstlineStr == null) {
-                        reader.close();
-                        throw new IOException("Empty log file.");
-                    }
-                    String firstline[] = firstlineStr.split(" ");
-                    /*
-                     * First Line Format:
-                     * 0 - Magic Number
-                     * 1 - File Version
-                     * 2 - Scramble State
-                     * 3 - Twist Count
-                     * 4 - Schlafli Product
-                     * 5 - Edge Length
-                     */
-                    if(firstline.length != 6 || !MagicCube.MAGIC_NUMBER.equals(firstline[0])) {
-                        reader.close();
-                        throw new IOException("Unexpected log file format.");
-                    }
-                    int readversion = Integer.parseInt(firstline[1]);
-                    if(readversion != MagicCube.LOG_FILE_VERSION) {
-                        setStatus("Incompatible log file version " + readversion, true);
-                        reader.close();
+                    LogFile logFile = LogFile.open(logfile);
+                    if(!logFile.isCurrentVersion()) {
+                        setStatus("Incompatible log file version " + logFile.version, true);
                         return;
                     }
-                    scrambleState = Integer.parseInt(firstline[2]);
-                    // int numTwists = Integer.parseInt(firstline[3]);
-                    String schlafli = firstline[4];
-                    initial_edge_length = Double.parseDouble(firstline[5]);
+                    binaryLog = logFile.binary;
+                    scrambleState = logFile.scrambleState;
+                    String schlafli = logFile.schlafli;
+                    initial_edge_length = logFile.edgeLength;
                     puzzleManager.initPuzzle(schlafli, "" + initial_edge_length, progressBar, statusLabel, false);
                     int_edge_length = (int) Math.round(initial_edge_length);
                     hist = new History(int_edge_length);
                     String title = MagicCube.TITLE;
-                    rotations.read(reader);
-                    int c;
-                    for(c = reader.read(); !(c == '*' || c == -1); c = reader.read())
-                        ; // read past state data
-                    if(hist.read(new PushbackReader(reader)))
-                        title += " - " + logfile.getName();
+                    logFile.readRotations(rotations);
+                    if(logFile.readHistory(hist)) {
+                        if(recovering) {
+                            int recovered = Journal.recover(logfile, hist);
+                            recoveredStatus = "Recovered unsaved work from the last session, with " + recovered + " changes since it was last autosaved." +
+                                " Use 'File > Save' to keep it.";
+                            // Saving still goes to the log the user last read or wrote, if any.
+                            String userLog = PropertyManager.top.getProperty("logfile");
+                            if(userLog != null)
+                                title += " - " + new File(userLog).getName();
+                        }
+                        else
+                            title += " - " + logfile.getName();
+                    }
                     else
                         System.err.println("Error reading puzzle history");
                     setTitle(title);
@@ -1239,6 +1358,8 @@ public class MC4DSwing extends JFrame {
                 }
                 if(parsingError)
                     setStatus("Failed to parse log file '" + log + "'", true);
+                else if(recoveredStatus != null)
+                    setStatus(recoveredStatus);
                 else
                     setStatus("Read log file '" + log + "'");
             }
@@ -1284,6 +1405,7 @@ public class MC4DSwing extends JFrame {
         updateEditMenuItems();
         mainViewContainer.removeAll();
         mainViewContainer.add(view, "Center");
+        startAutosave();
     } // end initPuzzle
 
     /**
@@ -1292,6 +1414,7 @@ public class MC4DSwing extends JFrame {
     private History.HistoryListener history_listener = new History.HistoryListener() {
         @Override
         public void currentChanged() {
+            autosave();
             updateEditMenuItems();
             updateTwistsLabel();
             if((scrambleState == SCRAMBLE_PARTIAL || scrambleState == SCRAMBLE_FULL) && puzzleManager.isSolved()) {
@@ -1334,25 +1457,57 @@ public class MC4DSwing extends JFrame {
                         congrats.start();
                         break;
                 }
+                autosave(); // to record the solve
             } // end if(isSolved())
         }
     }; // end HistoryListener impl
 
     private void syncPuzzleStateWithHistory() {
-        MagicCube.TwistData[] moves = hist.movesArray();
         try {
-            puzzleManager.resetPuzzleStateNoEvent();
-            for(MagicCube.TwistData move : moves) {
-                if(move.grip.id_within_puzzle == -1) {
-                    System.err.println("Bad move in MC4DSwing.syncPuzzleStateWithHistory: " + move.grip.id_within_puzzle);
-                    return;
+            // Starts from the history's nearest checkpoint rather than replaying every move.
+            hist.replayToCurrent(new History.Replayer() {
+                private int scratch[] = null; // allocated on first use since there may be no puzzle yet
+                @Override
+                public void setState(int colors[]) {
+                    if(colors == null)
+                        puzzleManager.resetPuzzleStateNoEvent();
+                    else
+                        puzzleManager.setPuzzleStateNoEvent(colors);
                 }
-                puzzleManager.puzzleDescription.applyTwistToState(
-                    puzzleManager.puzzleState,
-                    move.grip.id_within_puzzle,
-                    move.direction,
-                    move.slicemask);
-            }
+                @Override
+                public int[] getState() {
+                    return puzzleManager.puzzleState;
+                }
+                @Override
+                public boolean apply(MagicCube.TwistData move) {
+                    if(move.grip.id_within_puzzle == -1) {
+                        System.err.println("Bad move in MC4DSwing.syncPuzzleStateWithHistory: " + move.grip.id_within_puzzle);
+                        return false;
+                    }
+                    if(scratch == null)
+                        scratch = new int[puzzleManager.puzzleState.length];
+                    puzzleManager.applyTwistToState(
+                        move.grip.id_within_puzzle,
+                        move.direction,
+                        move.slicemask,
+                        scratch);
+                    return true;
+                }
+                @Override
+                public boolean apply(int state[], MagicCube.TwistData move, int scratch[]) {
+                    if(move.grip.id_within_puzzle == -1) {
+                        System.err.println("Bad move in MC4DSwing.syncPuzzleStateWithHistory: " + move.grip.id_within_puzzle);
+                        return false;
+                    }
+                    puzzleManager.puzzleDescription.applyTwistToState(
+                        state,
+                        move.grip.id_within_puzzle,
+                        move.direction,
+                        move.slicemask,
+                        scratch);
+                    return true;
+                }
+            });
         } catch(Exception e) {
             e.printStackTrace();
         }
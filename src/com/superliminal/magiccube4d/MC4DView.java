@@ -318,7 +318,8 @@ public class MC4DView extends Component {
             int iPolyWithinSticker = item[1];
             int poly[] = stickerInds[iSticker][iPolyWithinSticker];
             for(int vertIndex : poly) {
-                float dist = Vec_h._NORMSQRD3(frame.verts[vertIndex]);
+                float x = frame.verts[4 * vertIndex], y = frame.verts[4 * vertIndex + 1], z = frame.verts[4 * vertIndex + 2];
+                float dist = x * x + y * y + z * z;
                 radius3d = Math.max(dist, radius3d);
             }
         }
@@ -20,6 +20,7 @@ public class MagicCube {
      */
     public final static String PUZZLE_MAJOR_VERSION = "4.3";
     public final static int LOG_FILE_VERSION = 3;
+    public final static int BINARY_LOG_FILE_VERSION = 4;
     public final static int MACRO_FILE_VERSION = 2;
 
     /*
@@ -156,6 +157,7 @@ public class MagicCube {
     public final static String
         TITLE = "Magic Cube 4D",
         LOG_FILE = "MagicCube4D.log", // in user's home directory
+        AUTOSAVE_FILE = "MagicCube4D.autosave.log", // in user's home directory. Only autosaving writes it.
         FACE_COLORS_FILE = "facecolors.txt", // relative to executable
         MAGIC_NUMBER = "MagicCube4D", // 1st string in log and macro files for sanity checking
         DEBUGGING = "debugging", // Shared Property Manager key for toggling debugging code.
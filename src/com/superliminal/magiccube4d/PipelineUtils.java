@@ -33,7 +33,11 @@ import java.awt.*;
 //import javax.swing.border.*;
 //import javax.swing.filechooser.FileSystemView;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import com.donhatchsw.util.VecMath;
+import com.superliminal.util.PropertyManager;
 
 public class PipelineUtils
 {
@@ -46,6 +50,95 @@ public class PipelineUtils
     // 2: and on computes and paints
     // 3: and dump arrays at each step
 
+    /**
+     * Puzzles with at least this many vertices get the per-vertex and per-sticker
+     * passes of computeFrame split up into blocks that are run on pipelinePool.
+     * 0 means never; that's the default on single-core machines.
+     */
+    public static int parallelVertsThreshold = PropertyManager.getInt("pipeline.parallelverts",
+        Runtime.getRuntime().availableProcessors() > 1 ? 16384 : 0);
+
+    // Block sizes for the parallel passes, small enough that a block's worth
+    // of verts (or of the polys of a block of stickers) stays in cache.
+    private static final int VERTS_PER_BLOCK = 2048;
+    private static final int STICKERS_PER_BLOCK = 256;
+    private static final int POLYS_PER_BLOCK = 2048;
+
+    // Not the common pool, so that the frames don't have to wait behind
+    // whatever else is going on there, such as building a puzzle or replaying a history.
+    private static ForkJoinPool pipelinePool;
+
+    private static synchronized ForkJoinPool getPipelinePool() {
+        if(pipelinePool == null)
+            pipelinePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return pipelinePool;
+    }
+
+    /**
+     * One pass of computeFrame, split up into numbered blocks.
+     * Returns false if the block found something wrong with the frame.
+     */
+    private interface Blocks {
+        public boolean doBlock(int iBlock);
+    }
+
+    private static class BlocksTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private Blocks blocks;
+        private int iBlock0, iBlock1;
+        private boolean ok = true;
+        BlocksTask(Blocks blocks, int iBlock0, int iBlock1) {
+            this.blocks = blocks;
+            this.iBlock0 = iBlock0;
+            this.iBlock1 = iBlock1;
+        }
+        @Override
+        protected void compute() {
+            if(iBlock1 - iBlock0 > 1) {
+                int iBlockMid = (iBlock0 + iBlock1) / 2;
+                BlocksTask first = new BlocksTask(blocks, iBlock0, iBlockMid);
+                BlocksTask second = new BlocksTask(blocks, iBlockMid, iBlock1);
+                invokeAll(first, second);
+                ok = first.ok && second.ok;
+                return;
+            }
+            for(int iBlock = iBlock0; iBlock < iBlock1; ++iBlock)
+                ok &= blocks.doBlock(iBlock);
+        }
+    }
+
+    /**
+     * Does blocks 0 through nBlocks-1 on the pipeline pool, returning when they're all done.
+     * Returns false if any of them returned false.
+     */
+    private static boolean doBlocks(Blocks blocks, int nBlocks) {
+        BlocksTask task = new BlocksTask(blocks, 0, nBlocks);
+        getPipelinePool().invoke(task);
+        return task.ok;
+    }
+
+    /**
+     * A pass of computeFrame over the verts.
+     */
+    private interface VertBlocks {
+        public void doVerts(int iVert0, int iVert1);
+    }
+
+    /**
+     * Does a pass over nVerts verts, VERTS_PER_BLOCK at a time, on the pipeline pool.
+     */
+    private static void doVertBlocks(final int nVerts, final VertBlocks vertBlocks) {
+        doBlocks(new Blocks() {
+            @Override
+            public boolean doBlock(int iBlock)
+            {
+                int iVert0 = iBlock * VERTS_PER_BLOCK;
+                vertBlocks.doVerts(iVert0, Math.min(iVert0 + VERTS_PER_BLOCK, nVerts));
+                return true;
+            }
+        }, (nVerts + VERTS_PER_BLOCK - 1) / VERTS_PER_BLOCK);
+    }
+
     /**
      * Geometry data for an animation frame.
      * NOTE: the pre-projected W and Z components
@@ -54,15 +147,16 @@ public class PipelineUtils
      */
     public static class AnimFrame
     {
-        // verts[i] refers to the same vertex as vertex i in
+        // verts[4*i]..verts[4*i+3] refer to the same vertex as vertex i in
         // the puzzle description (although unused indices may end up
-        // with arbitrary values).
+        // with arbitrary values), and likewise shadowVerts[3*i]..shadowVerts[3*i+2].
+        // They're flat so that each pass over them is a straight walk through memory.
         // Each element of drawList is a pair i,j,
         // referring to the polygon stickerInds[i][j]
         // in the original puzzle description.
 
-        public float verts[][/* 4 */]; // x,y,z,w, not just x,y! see above
-        public float shadowVerts[][/* 3 */];
+        public float verts[/* 4*nVerts */]; // x,y,z,w, not just x,y! see above
+        public float shadowVerts[/* 3*nVerts */];
 
         public int drawListSize;
         public int shadowDrawListSize;
@@ -73,6 +167,43 @@ public class PipelineUtils
         // We keep this around so that a Frame can be reused
         // without having to do any memory allocations.
         private int drawListBuffer[/* nStickers */][/* nPolysThisSticker */][/* 2 */];
+
+        // Where each sticker's polys would start in drawList if none were culled,
+        // so that blocks of stickers can be front-cell culled independently
+        // into their own segments of drawListSegments, which then get merged in order
+        // using the number of polys each block kept.
+        private int stickerPolyStarts[/* nStickers+1 */];
+        private int drawListSegments[/* nPolys */][];
+        private int blockPolyCounts[/* nStickerBlocks */];
+
+        // Scratch space for computeFrame, sized once per puzzle
+        // so that steady-state frames don't allocate anything.
+        private int sizedForStickerInds[][][]; // the puzzle description's stickerInds the above were sized for
+        private float rotScale4d[][] = new float[4][4];
+        private float temp4[] = new float[4];
+        private float mat3[][] = new float[3][3];
+        private float shadowMat[][] = new float[4][3];
+        private float tempOut3[] = new float[3];
+        private float triangleNormal[] = new float[3];
+        private float e1[] = new float[3];
+        private float e2[] = new float[3];
+        private int shadowExtraDrawList[][];
+        private float mat2[][] = new float[2][2];
+        private float tempOut2[] = new float[2];
+        private float polyCentersZ[/* nStickers */][/* nPolysThisSticker */];
+        private final com.donhatchsw.util.SortStuff.Comparator backToFront = new com.donhatchsw.util.SortStuff.Comparator() {
+            @Override
+            public int compare(Object i, Object j)
+            {
+                int[] i0i1 = (int[]) i;
+                int[] j0j1 = (int[]) j;
+                float iZ = polyCentersZ[i0i1[0]][i0i1[1]];
+                float jZ = polyCentersZ[j0j1[0]][j0j1[1]];
+                // sort from increasing z to decreasing! that is because the z's got negated just before the projection!
+                return iZ > jZ ? -1 :
+                    iZ < jZ ? 1 : 0;
+            }
+        };
     } // class Frame
 
     static private void Assert(boolean condition) {
@@ -88,7 +219,9 @@ public class PipelineUtils
     /**
      * Compute a frame of animation.
      * Attempts to avoid doing any new memory allocations
-     * when called repeatedly on a given puzzleDescription.
+     * when called repeatedly on a given puzzleDescription,
+     * except for the tasks it uses to split up the work on puzzles
+     * with at least parallelVertsThreshold verts.
      */
     public static void computeFrame(AnimFrame frame, // return into here
 
@@ -126,11 +259,11 @@ public class PipelineUtils
         // or different from last time...
         //
         int stickerInds[][][] = puzzleDescription.getStickerInds();
+        if(frame.sizedForStickerInds != stickerInds)
         {
             if(frame.verts == null
-                || frame.verts.length != nVerts
-                || nVerts > 0 && frame.verts[0].length != nDims)
-                frame.verts = new float[nVerts][nDims];
+                || frame.verts.length != nVerts * nDims)
+                frame.verts = new float[nVerts * nDims];
             int nPolys = 0;
             for(int iSticker = 0; iSticker < nStickers; ++iSticker)
                 nPolys += stickerInds[iSticker].length;
@@ -150,28 +283,47 @@ public class PipelineUtils
                 for(int iSticker = 0; iSticker < stickerInds.length; ++iSticker)
                     frame.brightnesses[iSticker] = new float[stickerInds[iSticker].length];
             }
+            if(!com.donhatchsw.util.Arrays.sizesMatch(frame.polyCentersZ, stickerInds, 2))
+            {
+                frame.polyCentersZ = new float[stickerInds.length][];
+                for(int iSticker = 0; iSticker < stickerInds.length; ++iSticker)
+                    frame.polyCentersZ[iSticker] = new float[stickerInds[iSticker].length];
+            }
             if(frame.drawList == null
                 || frame.drawList.length != nPolys)
                 frame.drawList = new int[nPolys][/* 2 */];
-            if(groundNormal != null)
-            {
-                if(frame.shadowVerts == null
-                    || frame.shadowVerts.length != nVerts
-                    || nVerts > 0 && frame.shadowVerts[0].length != nDims)
-                    frame.shadowVerts = new float[nVerts][nDims - 1];
-            }
+            if(frame.shadowExtraDrawList == null
+                || frame.shadowExtraDrawList.length != nPolys)
+                frame.shadowExtraDrawList = new int[nPolys][];
+            frame.stickerPolyStarts = new int[nStickers + 1];
+            for(int iSticker = 0; iSticker < nStickers; ++iSticker)
+                frame.stickerPolyStarts[iSticker + 1] = frame.stickerPolyStarts[iSticker] + stickerInds[iSticker].length;
+            frame.drawListSegments = new int[nPolys][];
+            frame.blockPolyCounts = new int[(nStickers + STICKERS_PER_BLOCK - 1) / STICKERS_PER_BLOCK];
+            frame.sizedForStickerInds = stickerInds;
+        }
+        if(groundNormal != null)
+        {
+            if(frame.shadowVerts == null
+                || frame.shadowVerts.length != nVerts * (nDims - 1))
+                frame.shadowVerts = new float[nVerts * (nDims - 1)];
         }
+        if(frame.rotScale4d.length != rot4d.length
+            || frame.rotScale4d[0].length != rot4d[0].length)
+            frame.rotScale4d = new float[rot4d.length][rot4d[0].length];
 
-        float verts[][] = frame.verts;
-        float shadowVerts[][] = frame.shadowVerts;
-        int drawList[][] = frame.drawList;
+        final float verts[] = frame.verts;
+        final float shadowVerts[] = frame.shadowVerts;
+        final int drawList[][] = frame.drawList;
         int drawListSize = 0; // we'll set frame.drawListSize to this at end
         int shadowDrawListSize = 0; // we'll set frame.shadowDrawListSize to this at end
 
-        //
-        // There should be no memory allocations from here down.
-        // XXX but there are... but they can be fixed.
-        //
+        // For big enough puzzles, the passes over the verts and stickers
+        // get split up into blocks that are done on the pipeline pool.
+        // Otherwise,
+        // there should be no memory allocations from here down;
+        // all the scratch space lives in the frame.
+        boolean inParallel = parallelVertsThreshold > 0 && nVerts >= parallelVertsThreshold;
 
         //
         // Get the 4d verts from the puzzle description
@@ -190,72 +342,66 @@ public class PipelineUtils
                 twistSliceMask,
                 fracIntoTwist);
         //
-        // Rotate/scale in 4d
+        // Rotate/scale in 4d and project down to 3d
         //
         {
             // Normalize all the puzzles to have a circum radius of 1.
             float scale4d = 1.f / puzzleDescription.circumRadius();
-            float rotScale4d[][] = VecMath.mxs(rot4d, scale4d); // XXX MEMORY ALLOCATION
-            float temp[] = new float[4]; // XXX MEMORY ALLOCATION
-            for(int iVert = 0; iVert < verts.length; ++iVert)
-            {
-                VecMath.vxm(temp, verts[iVert], rotScale4d);
-                VecMath.copyvec(verts[iVert], temp);
-            }
-        }
-        if(verboseLevel >= 3)
-            System.out.println("        after 4d rot/scale/trans: verts = " + com.donhatchsw.util.Arrays.toStringCompact(verts));
-
-        //
-        // Clip to the 4d eye's front clipping plane
-        //
-        {
-            // XXX DO ME?
-        }
-        //if (verboseLevel >= 3) System.out.println("        after 4d clip: verts = "+com.donhatchsw.util.Arrays.toStringCompact(verts));
-
-        //
-        // Project down to 3d
-        //
-        {
-            for(int i = 0; i < verts.length; ++i)
-            {
-                float w = eyeW - verts[i][3];
-                for(int j = 0; j < 3; ++j)
-                    verts[i][j] *= eyeW / w;
-                verts[i][3] = w; // keep this for future reference
-            }
+            final float rotScale4d[][] = frame.rotScale4d;
+            VecMath.mxs(rotScale4d, rot4d, scale4d);
+            if(inParallel)
+                doVertBlocks(nVerts, new VertBlocks() {
+                    @Override
+                    public void doVerts(int iVert0, int iVert1)
+                    {
+                        rotScaleAndProject4d(verts, iVert0, iVert1, rotScale4d, eyeW, new float[4]);
+                    }
+                });
+            else
+                rotScaleAndProject4d(verts, 0, nVerts, rotScale4d, eyeW, frame.temp4);
         }
         if(verboseLevel >= 3)
-            System.out.println("        after 4d->3d project: verts = " + com.donhatchsw.util.Arrays.toStringCompact(verts));
+            System.out.println("        after 4d rot/scale/trans and 4d->3d project: verts = " + com.donhatchsw.util.Arrays.toStringCompact(verts));
 
         //
         // Front-cell cull
         //
         {
             int nBackFacing = 0;
-            float mat[][] = new float[3][3]; // XXX MEMORY ALLOCATION
-            for(int iSticker = 0; iSticker < stickerInds.length; ++iSticker)
+            if(inParallel)
             {
-                int thisStickerInds[][] = stickerInds[iSticker];
-                float v0[] = verts[thisStickerInds[0][0]];
-                float v1[] = verts[thisStickerInds[0][1]];
-                float v2[] = verts[thisStickerInds[0][2]];
-                float v3[] = verts[thisStickerInds[1][0]];
-                Vec_h._VMV3(mat[0], v1, v0); // 3 out of 4
-                Vec_h._VMV3(mat[1], v2, v0); // 3 out of 4
-                Vec_h._VMV3(mat[2], v3, v0); // 3 out of 4
-                float volume = VecMath.vxvxv3(mat[0], mat[1], mat[2]);
-                if(volume < 0.f) // only draw *back* cells; cull front ones
-                {
-                    // append references to this sticker's polys into drawList
-                    for(int iPolyThisSticker = 0; iPolyThisSticker < thisStickerInds.length; ++iPolyThisSticker) {
-                        if(iSticker >= frame.drawListBuffer.length || iPolyThisSticker >= frame.drawListBuffer[iSticker].length || nBackFacing >= drawList.length)
-                            return;
-                        drawList[nBackFacing++] = frame.drawListBuffer[iSticker][iPolyThisSticker]; // = {iSticker,iPolyThisSticker}
+                // Each block of stickers puts its polys into its own segment of drawListSegments,
+                // then the segments get packed into drawList in order.
+                final int stickerPolyStarts[] = frame.stickerPolyStarts;
+                final int drawListSegments[][] = frame.drawListSegments;
+                final int blockPolyCounts[] = frame.blockPolyCounts;
+                doBlocks(new Blocks() {
+                    @Override
+                    public boolean doBlock(int iBlock)
+                    {
+                        int iSticker0 = iBlock * STICKERS_PER_BLOCK;
+                        int iSticker1 = Math.min(iSticker0 + STICKERS_PER_BLOCK, stickerInds.length);
+                        blockPolyCounts[iBlock] = cullFrontCells(frame, verts, stickerInds, iSticker0, iSticker1,
+                            drawListSegments, stickerPolyStarts[iSticker0], new float[3][3]);
+                        return blockPolyCounts[iBlock] != -1;
                     }
+                }, blockPolyCounts.length);
+                for(int iBlock = 0; iBlock < blockPolyCounts.length; ++iBlock)
+                {
+                    if(blockPolyCounts[iBlock] == -1)
+                        return;
+                    System.arraycopy(drawListSegments, stickerPolyStarts[iBlock * STICKERS_PER_BLOCK],
+                        drawList, nBackFacing,
+                        blockPolyCounts[iBlock]);
+                    nBackFacing += blockPolyCounts[iBlock];
                 }
             }
+            else
+            {
+                nBackFacing = cullFrontCells(frame, verts, stickerInds, 0, nStickers, drawList, 0, frame.mat3);
+                if(nBackFacing == -1)
+                    return;
+            }
             drawListSize = nBackFacing;
             shadowDrawListSize = groundNormal != null ? nBackFacing : 0;
         }
@@ -277,34 +423,31 @@ public class PipelineUtils
         if(groundNormal != null)
         {
             // XXX explain this magic!
-            float column[/* 4 */][/* 1 */] = {
-                {-groundNormal[0]},
-                {-groundNormal[1]},
-                {-groundNormal[2]},
-                {groundOffset},
-            };
-            float row[/* 1 */][/* 3 */] = {unitTowardsSunVec};
-            float shadowMat[/* 4 */][/* 3 */] = VecMath.mxm(column, row);
+            // shadowMat is the column {-groundNormal,groundOffset}
+            // times the row unitTowardsSunVec, scaled, plus the identity.
+            final float shadowMat[/* 4 */][/* 3 */] = frame.shadowMat;
+            for(int i = 0; i < 4; ++i)
+                for(int j = 0; j < 3; ++j)
+                    shadowMat[i][j] = (i < 3 ? -groundNormal[i] : groundOffset) * unitTowardsSunVec[j];
             VecMath.mxs(shadowMat, shadowMat, 1.f / VecMath.dot(groundNormal, unitTowardsSunVec));
             for(int i = 0; i < 3; ++i)
                 shadowMat[i][i] += 1.f;
-            float tempIn[] = new float[3]; // XXX MEMORY ALLOCATION
-            float tempOut[] = new float[3]; // XXX MEMORY ALLOCATION
-            for(int iVert = 0; iVert < verts.length; ++iVert)
-            {
-                for(int i = 0; i < 3; ++i)
-                    // 3 out of 4
-                    tempIn[i] = verts[iVert][i];
-                VecMath.vxm(tempOut, tempIn, shadowMat); // only first 3... however the matrix can be 3x3 or 4x3
-                for(int i = 0; i < 3; ++i)
-                    // 3 out of 4
-                    shadowVerts[iVert][i] = tempOut[i];
-            }
+            // only first 3 of 4... however the matrix can be 3x3 or 4x3
+            if(inParallel)
+                doVertBlocks(nVerts, new VertBlocks() {
+                    @Override
+                    public void doVerts(int iVert0, int iVert1)
+                    {
+                        vxmEach(shadowVerts, 3, verts, 4, iVert0, iVert1, 3, shadowMat, new float[3]);
+                    }
+                });
+            else
+                vxmEach(shadowVerts, 3, verts, 4, 0, nVerts, 3, shadowMat, frame.tempOut3);
 
             if(verboseLevel >= 2)
-                System.out.println("        after 3d shadow projection: verts[0] = " + com.donhatchsw.util.Arrays.toStringCompact(verts[0]));
+                System.out.println("        after 3d shadow projection: verts[0] = " + com.donhatchsw.util.Arrays.toStringCompact(java.util.Arrays.copyOf(verts, 4)));
             if(verboseLevel >= 2)
-                System.out.println("        after 3d shadow projection: shadowVerts[0] = " + com.donhatchsw.util.Arrays.toStringCompact(shadowVerts[0]));
+                System.out.println("        after 3d shadow projection: shadowVerts[0] = " + com.donhatchsw.util.Arrays.toStringCompact(java.util.Arrays.copyOf(shadowVerts, 3)));
             if(verboseLevel >= 3)
                 System.out.println("        after 3d shadow projection: shadowVerts = " + com.donhatchsw.util.Arrays.toStringCompact(shadowVerts));
         }
@@ -322,29 +465,24 @@ public class PipelineUtils
             // XXX all the face normals here, we could use those
             // XXX to backface cull right away, and avoid projecting
             // XXX the vertices that got culled!
-            float triangleNormal[] = new float[3]; // XXX MEMORY ALLOCATION
-            float e1[] = new float[3]; // XXX MEMORY ALLOCATION
-            float e2[] = new float[3]; // XXX MEMORY ALLOCATION
-            for(int i = 0; i < drawListSize; ++i)
+            if(inParallel)
             {
-                int i0i1[] = drawList[i];
-                int poly[] = stickerInds[i0i1[0]][i0i1[1]];
-                float v0[] = verts[poly[0]];
-                float v1[] = verts[poly[1]];
-                float v2[] = verts[poly[2]];
-                Vec_h._VMV3(e1, v1, v0);
-                Vec_h._VMV3(e2, v2, v0);
-                Vec_h._VXV3(triangleNormal, e1, e2);
-                VecMath.normalize(triangleNormal, triangleNormal);
-                float brightness = VecMath.dot(triangleNormal, unitTowardsSunVec);
-                if(brightness < 0)
-                    brightness = 0;
-                //brightness = 1.f; // uncomment to make it all max intensity
-                if(i0i1[0] >= frame.brightnesses.length || i0i1[1] >= frame.brightnesses[i0i1[0]].length)
+                final int nPolys = drawListSize;
+                if(!doBlocks(new Blocks() {
+                    @Override
+                    public boolean doBlock(int iBlock)
+                    {
+                        int i0 = iBlock * POLYS_PER_BLOCK;
+                        int i1 = Math.min(i0 + POLYS_PER_BLOCK, nPolys);
+                        return computeBrightnesses(frame, verts, stickerInds, drawList, i0, i1, unitTowardsSunVec,
+                            new float[3], new float[3], new float[3]);
+                    }
+                }, (nPolys + POLYS_PER_BLOCK - 1) / POLYS_PER_BLOCK))
                     return;
-                frame.brightnesses[i0i1[0]][i0i1[1]] = brightness;
-                //System.out.println("brightness = "+brightness);
             }
+            else if(!computeBrightnesses(frame, verts, stickerInds, drawList, 0, drawListSize, unitTowardsSunVec,
+                frame.triangleNormal, frame.e1, frame.e2))
+                return;
         }
 
         //
@@ -361,32 +499,29 @@ public class PipelineUtils
         // XXX could try to only do this on vertices that passed the culls
         //
         {
-            for(int i = 0; i < verts.length; ++i)
-            {
-                float z = eyeZ - verts[i][2];
-                float invZ = 1.f / z;
-                for(int j = 0; j < 2; ++j)
-                    verts[i][j] *= invZ;
-                verts[i][2] = z; // keep this for future reference
-            }
-        }
-        // XXX the following is dup code, lame
-        if(groundNormal != null)
-        {
-            for(int i = 0; i < shadowVerts.length; ++i)
+            final boolean doShadows = groundNormal != null;
+            if(inParallel)
+                doVertBlocks(nVerts, new VertBlocks() {
+                    @Override
+                    public void doVerts(int iVert0, int iVert1)
+                    {
+                        project3d(verts, 4, iVert0, iVert1, eyeZ);
+                        if(doShadows)
+                            project3d(shadowVerts, 3, iVert0, iVert1, eyeZ);
+                    }
+                });
+            else
             {
-                float z = eyeZ - shadowVerts[i][2];
-                float invZ = 1.f / z;
-                for(int j = 0; j < 2; ++j)
-                    shadowVerts[i][j] *= invZ;
-                shadowVerts[i][2] = z; // keep this for future reference
+                project3d(verts, 4, 0, nVerts, eyeZ);
+                if(doShadows)
+                    project3d(shadowVerts, 3, 0, nVerts, eyeZ);
             }
         }
 
         if(verboseLevel >= 3)
             System.out.println("        after 3d->2d project: verts = " + com.donhatchsw.util.Arrays.toStringCompact(verts));
         if(verboseLevel >= 2)
-            System.out.println("        after 3d->3d project: shadowVerts[0] = " + com.donhatchsw.util.Arrays.toStringCompact(shadowVerts[0]));
+            System.out.println("        after 3d->3d project: shadowVerts[0] = " + (shadowVerts == null ? "null" : com.donhatchsw.util.Arrays.toStringCompact(java.util.Arrays.copyOf(shadowVerts, 3))));
 
         //
         // Back-face cull
@@ -398,21 +533,24 @@ public class PipelineUtils
             // XXX for now, just keep track of the culled polygons
             // XXX and put them back at the end, between
             // XXX drawListSize and shadowDrawListSize.
-            int shadowExtraDrawList[][] = new int[drawListSize][]; // XXX MEMORY ALLOCATION
+            int shadowExtraDrawList[][] = frame.shadowExtraDrawList;
             int nBackFacing = 0;
 
 
-            float mat[][] = new float[2][2]; // XXX ALLOCATION
+            float mat[][] = frame.mat2;
             int nFrontFacing = 0;
             for(int i = 0; i < drawListSize; ++i)
             {
                 int i0i1[] = drawList[i];
                 int poly[] = stickerInds[i0i1[0]][i0i1[1]];
-                float v0[] = verts[poly[0]];
-                float v1[] = verts[poly[1]];
-                float v2[] = verts[poly[2]];
-                Vec_h._VMV2(mat[0], v1, v0); // 2 out of 4
-                Vec_h._VMV2(mat[1], v2, v0); // 2 out of 4
+                int v0 = 4 * poly[0];
+                int v1 = 4 * poly[1];
+                int v2 = 4 * poly[2];
+                for(int j = 0; j < 2; ++j) // 2 out of 4
+                {
+                    mat[0][j] = verts[v1 + j] - verts[v0 + j];
+                    mat[1][j] = verts[v2 + j] - verts[v0 + j];
+                }
                 float area = VecMath.vxv2(mat[0], mat[1]);
                 if(area > 0.f) // retain *front* facing polygons-- not we haven't inverted Y yet so this test looks as expected
                     drawList[nFrontFacing++] = i0i1;
@@ -439,35 +577,24 @@ public class PipelineUtils
         {
             if(verboseLevel >= 3)
                 System.out.println("rot2d = " + com.donhatchsw.util.Arrays.toStringCompact(rot2d));
-            float tempIn[] = new float[2]; // XXX MEMORY ALLOCATION
-            float tempOut[] = new float[2]; // XXX MEMORY ALLOCATION
-            for(int iVert = 0; iVert < verts.length; ++iVert)
-            {
-                for(int i = 0; i < 2; ++i)
-                    // 2 out of 4
-                    tempIn[i] = verts[iVert][i];
-                VecMath.vxm(tempOut, tempIn, rot2d); // only first 2... however rot2d can be 2x2 or 3x2
-                for(int i = 0; i < 2; ++i)
-                    // 2 out of 4
-                    verts[iVert][i] = tempOut[i];
-            }
-        }
-        // XXX the following is dup code, lame
-        if(groundNormal != null)
-        {
-            if(verboseLevel >= 3)
-                System.out.println("rot2d = " + com.donhatchsw.util.Arrays.toStringCompact(rot2d));
-            float tempIn[] = new float[2]; // XXX MEMORY ALLOCATION
-            float tempOut[] = new float[2]; // XXX MEMORY ALLOCATION
-            for(int iVert = 0; iVert < shadowVerts.length; ++iVert)
+            // only first 2 of 4 (or of 3 for the shadows)... however rot2d can be 2x2 or 3x2
+            final boolean doShadows = groundNormal != null;
+            if(inParallel)
+                doVertBlocks(nVerts, new VertBlocks() {
+                    @Override
+                    public void doVerts(int iVert0, int iVert1)
+                    {
+                        float tempOut2[] = new float[2];
+                        vxmEach(verts, 4, verts, 4, iVert0, iVert1, 2, rot2d, tempOut2);
+                        if(doShadows)
+                            vxmEach(shadowVerts, 3, shadowVerts, 3, iVert0, iVert1, 2, rot2d, tempOut2);
+                    }
+                });
+            else
             {
-                for(int i = 0; i < 2; ++i)
-                    // 2 out of 4
-                    tempIn[i] = shadowVerts[iVert][i];
-                VecMath.vxm(tempOut, tempIn, rot2d); // only first 2... however rot2d can be 2x2 or 3x2
-                for(int i = 0; i < 2; ++i)
-                    // 2 out of 4
-                    shadowVerts[iVert][i] = tempOut[i];
+                vxmEach(verts, 4, verts, 4, 0, nVerts, 2, rot2d, frame.tempOut2);
+                if(doShadows)
+                    vxmEach(shadowVerts, 3, shadowVerts, 3, 0, nVerts, 2, rot2d, frame.tempOut2);
             }
         }
 
@@ -481,9 +608,7 @@ public class PipelineUtils
         // (but there's less work to do now that we culled back faces).
         //
         {
-            float polyCentersZ[/* nStickers */][/* nPolysThisSticker */] = new float[nStickers][]; // XXX ALLOCATION!
-            for(int i = 0; i < nStickers; ++i)
-                polyCentersZ[i] = new float[stickerInds[i].length]; // XXX ALLOCATION!
+            float polyCentersZ[/* nStickers */][/* nPolysThisSticker */] = frame.polyCentersZ;
 
             for(int i = 0; i < drawListSize; ++i)
             {
@@ -493,25 +618,12 @@ public class PipelineUtils
                 int poly[] = stickerInds[i0][i1];
                 float sum = 0.f;
                 for(int j = 0; j < poly.length; ++j)
-                    sum += verts[poly[j]][2];
+                    sum += verts[4 * poly[j] + 2];
                 Assert(poly.length != 0);
                 polyCentersZ[i0][i1] = sum / poly.length;
             }
 
-            final float finalPolyCentersZ[][] = polyCentersZ;
-            com.donhatchsw.util.SortStuff.sortRange(drawList, 0, drawListSize - 1, new com.donhatchsw.util.SortStuff.Comparator() { // XXX ALLOCATION! (need to make sort smarter)
-                @Override
-                public int compare(Object i, Object j)
-                {
-                    int[] i0i1 = (int[]) i;
-                    int[] j0j1 = (int[]) j;
-                    float iZ = finalPolyCentersZ[i0i1[0]][i0i1[1]];
-                    float jZ = finalPolyCentersZ[j0j1[0]][j0j1[1]];
-                    // sort from increasing z to decreasing! that is because the z's got negated just before the projection!
-                    return iZ > jZ ? -1 :
-                        iZ < jZ ? 1 : 0;
-                }
-            });
+            com.donhatchsw.util.SortStuff.sortRange(drawList, 0, drawListSize - 1, frame.backToFront);
         }
         if(verboseLevel >= 3)
             System.out.println("        after z-sort: stickerInds = " + com.donhatchsw.util.Arrays.toStringCompact(stickerInds));
@@ -523,6 +635,146 @@ public class PipelineUtils
             System.out.println("    out PipelineUtils.computeFrame");
     } // computeFrame
 
+    /**
+     * Rotates/scales verts iVert0 through iVert1-1 of a flat array of 4d verts,
+     * and projects them down to 3d, keeping their distances from the 4d eye as their w's.
+     * temp must have length at least 4.
+     */
+    private static void rotScaleAndProject4d(float verts[], int iVert0, int iVert1,
+        float rotScale4d[][], float eyeW, float temp[])
+    {
+        vxmEach(verts, 4, verts, 4, iVert0, iVert1, 4, rotScale4d, temp);
+
+        // XXX clip to the 4d eye's front clipping plane? DO ME?
+
+        for(int i = 4 * iVert0; i < 4 * iVert1; i += 4)
+        {
+            float w = eyeW - verts[i + 3];
+            for(int j = 0; j < 3; ++j)
+                verts[i + j] *= eyeW / w;
+            verts[i + 3] = w; // keep this for future reference
+        }
+    } // rotScaleAndProject4d
+
+    /**
+     * Projects verts iVert0 through iVert1-1 of a flat array of 3d verts
+     * (with the given stride) down to 2d, keeping their distances from the 3d eye as their z's.
+     */
+    private static void project3d(float verts[], int stride, int iVert0, int iVert1, float eyeZ)
+    {
+        for(int i = stride * iVert0; i < stride * iVert1; i += stride)
+        {
+            float z = eyeZ - verts[i + 2];
+            float invZ = 1.f / z;
+            for(int j = 0; j < 2; ++j)
+                verts[i + j] *= invZ;
+            verts[i + 2] = z; // keep this for future reference
+        }
+    } // project3d
+
+    /**
+     * Culls the front cells out of stickers iSticker0 through iSticker1-1,
+     * putting references to the polys of the back cells that are left
+     * into drawList starting at drawList[start].
+     * Returns how many polys were put there,
+     * or -1 if the frame's buffers don't fit the stickers.
+     * mat must be 3x3.
+     */
+    private static int cullFrontCells(AnimFrame frame, float verts[], int stickerInds[][][],
+        int iSticker0, int iSticker1,
+        int drawList[][], int start, float mat[][])
+    {
+        int nBackFacing = start;
+        for(int iSticker = iSticker0; iSticker < iSticker1; ++iSticker)
+        {
+            int thisStickerInds[][] = stickerInds[iSticker];
+            int v0 = 4 * thisStickerInds[0][0];
+            int v1 = 4 * thisStickerInds[0][1];
+            int v2 = 4 * thisStickerInds[0][2];
+            int v3 = 4 * thisStickerInds[1][0];
+            for(int i = 0; i < 3; ++i) // 3 out of 4
+            {
+                mat[0][i] = verts[v1 + i] - verts[v0 + i];
+                mat[1][i] = verts[v2 + i] - verts[v0 + i];
+                mat[2][i] = verts[v3 + i] - verts[v0 + i];
+            }
+            float volume = VecMath.vxvxv3(mat[0], mat[1], mat[2]);
+            if(volume < 0.f) // only draw *back* cells; cull front ones
+            {
+                // append references to this sticker's polys into drawList
+                for(int iPolyThisSticker = 0; iPolyThisSticker < thisStickerInds.length; ++iPolyThisSticker) {
+                    if(iSticker >= frame.drawListBuffer.length || iPolyThisSticker >= frame.drawListBuffer[iSticker].length || nBackFacing >= drawList.length)
+                        return -1;
+                    drawList[nBackFacing++] = frame.drawListBuffer[iSticker][iPolyThisSticker]; // = {iSticker,iPolyThisSticker}
+                }
+            }
+        }
+        return nBackFacing - start;
+    } // cullFrontCells
+
+    /**
+     * Computes frame.brightnesses of the polys referred to by drawList[i0] through drawList[i1-1].
+     * Returns false if frame.brightnesses doesn't fit the stickers.
+     * triangleNormal, e1 and e2 are scratch space of length 3.
+     */
+    private static boolean computeBrightnesses(AnimFrame frame, float verts[], int stickerInds[][][],
+        int drawList[][], int i0, int i1,
+        float unitTowardsSunVec[],
+        float triangleNormal[], float e1[], float e2[])
+    {
+        for(int i = i0; i < i1; ++i)
+        {
+            int i0i1[] = drawList[i];
+            int poly[] = stickerInds[i0i1[0]][i0i1[1]];
+            int v0 = 4 * poly[0];
+            int v1 = 4 * poly[1];
+            int v2 = 4 * poly[2];
+            for(int j = 0; j < 3; ++j)
+            {
+                e1[j] = verts[v1 + j] - verts[v0 + j];
+                e2[j] = verts[v2 + j] - verts[v0 + j];
+            }
+            Vec_h._VXV3(triangleNormal, e1, e2);
+            VecMath.normalize(triangleNormal, triangleNormal);
+            float brightness = VecMath.dot(triangleNormal, unitTowardsSunVec);
+            if(brightness < 0)
+                brightness = 0;
+            //brightness = 1.f; // uncomment to make it all max intensity
+            if(i0i1[0] >= frame.brightnesses.length || i0i1[1] >= frame.brightnesses[i0i1[0]].length)
+                return false;
+            frame.brightnesses[i0i1[0]][i0i1[1]] = brightness;
+            //System.out.println("brightness = "+brightness);
+        }
+        return true;
+    } // computeBrightnesses
+
+    /**
+     * Multiplies the first n coords of each of vertices iVert0 through iVert1-1
+     * of a flat vertex array by m, the way VecMath.vxm does it
+     * (if the vertex is shorter than m, it's padded with 1's),
+     * putting the n coords of the results into another (or the same) flat array.
+     * temp must have length at least n.
+     */
+    private static void vxmEach(float result[], int resultStride,
+        float verts[], int vertsStride,
+        int iVert0, int iVert1, int n, float m[][], float temp[])
+    {
+        for(int iVert = iVert0; iVert < iVert1; ++iVert)
+        {
+            int from = iVert * vertsStride;
+            for(int j = 0; j < n; ++j)
+            {
+                float sum = 0.f;
+                for(int i = 0; i < n; ++i)
+                    sum += verts[from + i] * m[i][j];
+                for(int i = n; i < m.length; ++i)
+                    sum += m[i][j];
+                temp[j] = sum;
+            }
+            System.arraycopy(temp, 0, result, iVert * resultStride, n);
+        }
+    } // vxmEach
+
     /**
      * Return the index of the sticker and polygon within sticker if hit,
      * or null if nothing hit.
@@ -535,9 +787,8 @@ public class PipelineUtils
     {
         if(verboseLevel >= 1)
             System.out.println("    in PipelineUtils.pick");
-        float thispoint[] = {x, y};
         // From front to back, returning the first hit
-        float verts[][] = frame.verts;
+        float verts[] = frame.verts;
         int drawList[][] = frame.drawList;
         int stickerInds[][][] = puzzleDescription.getStickerInds();
         int pickedItem[] = null;
@@ -553,7 +804,7 @@ public class PipelineUtils
             int poly[] = stickerInds[iSticker][iPolyWithinSticker];
             int j;
             for(j = 0; j < poly.length; ++j)
-                if(twice_triangle_area(verts[poly[j]], verts[poly[(j + 1) % poly.length]], thispoint) > 0)
+                if(twice_triangle_area(verts, 4 * poly[j], 4 * poly[(j + 1) % poly.length], x, y) > 0)
                     break; // it's CW  (>0 means CW since inverted)
             if(j == poly.length) // they were all CCW, so we hit this poly
             {
@@ -789,7 +1040,8 @@ public class PipelineUtils
         for(int iPass = 0; iPass < 2; ++iPass)
         {
             boolean isShadows = iPass == 0;
-            float verts[][] = isShadows ? frame.shadowVerts : frame.verts;
+            float verts[] = isShadows ? frame.shadowVerts : frame.verts;
+            int stride = isShadows ? 3 : 4;
             int drawListSize = isShadows ? frame.shadowDrawListSize : frame.drawListSize;
             //System.out.println("isShadows="+isShadows);
             //System.out.println("drawListSize="+drawListSize);
@@ -813,11 +1065,10 @@ public class PipelineUtils
                 }
                 for(int i = 0; i < poly.length; ++i)
                 {
-                    if(poly[i] >= verts.length)
+                    if(stride * poly[i] >= verts.length)
                         return;
-                    float vert[] = verts[poly[i]];
-                    xs[i] = (int) vert[0];
-                    ys[i] = (int) vert[1];
+                    xs[i] = (int) verts[stride * poly[i]];
+                    ys[i] = (int) verts[stride * poly[i] + 1];
                     if(jitterRadius > 0)
                     {
                         xs[i] += jitterGenerator.nextInt(2 * jitterRadius + 1) - jitterRadius;
@@ -850,13 +1101,12 @@ public class PipelineUtils
             System.out.println("    out PipelineUtils.paintFrame");
     } // paintFrame
 
-    private static float tmpTWAf1[] = new float[2], tmpTWAf2[] = new float[2]; // scratch vars
-    private static float twice_triangle_area(float v0[], float v1[], float v2[])
+    // twice the signed area of the triangle v0,v1,(x,y), where v0 and v1 are offsets into a flat vertex array
+    private static float twice_triangle_area(float verts[], int v0, int v1, float x, float y)
     {
-        //float tmpTNf1[] = new float[2], tmpTNf2[] = new float[2];
-        Vec_h._VMV2(tmpTWAf1, v1, v0);
-        Vec_h._VMV2(tmpTWAf2, v2, v0);
-        return Vec_h._VXV2(tmpTWAf1, tmpTWAf2);
+        float e1x = verts[v1] - verts[v0], e1y = verts[v1 + 1] - verts[v0 + 1];
+        float e2x = x - verts[v0], e2y = y - verts[v0 + 1];
+        return e1x * e2y + e1y * -e2x;
     }
 
 } // class PipelineUtils
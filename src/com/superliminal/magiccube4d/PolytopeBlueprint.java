@@ -0,0 +1,517 @@
+package com.superliminal.magiccube4d;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.donhatchsw.util.CSG;
+import com.donhatchsw.util.FuzzyPointIntHashTable;
+import com.donhatchsw.util.VecMath;
+
+/**
+ * The part of building a PolytopePuzzleDescription that depends only
+ * on the schlafli product and not on the length:
+ * the oriented original polytope with its elements and incidences,
+ * the face planes, radii and opposite faces,
+ * the symmetries taking face 0 to the other faces (regular polychora only),
+ * and the twist grips (made on demand, see makeGrips,
+ * so that just looking at the polytope is cheap).
+ * The blueprints of the last few schlafli products are kept around,
+ * so switching a puzzle to a different length only has to do the cutting.
+ *
+ * A blueprint is shared by all the puzzles built from it
+ * and nothing in it may be modified afterwards;
+ * in particular, the original polytope has to be copied
+ * (see CSG.copyDeep) before slicing it up.
+ */
+class PolytopeBlueprint {
+    private final static int MAX_CACHED = 4;
+
+    @SuppressWarnings("serial")
+    private final static Map<String, PolytopeBlueprint> cache = new LinkedHashMap<String, PolytopeBlueprint>(16, .75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PolytopeBlueprint> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    /**
+     * Returns the blueprint for the given schlafli product,
+     * building it if it isn't in the cache.
+     */
+    public static PolytopeBlueprint get(String schlafliProduct, ProgressManager progress) {
+        synchronized(cache) {
+            PolytopeBlueprint blueprint = cache.get(schlafliProduct);
+            if(blueprint != null)
+                return blueprint;
+        }
+        // Build it without holding the lock, so that building one
+        // doesn't hold up anyone who wants a different one.
+        PolytopeBlueprint blueprint = new PolytopeBlueprint(schlafliProduct, progress);
+        synchronized(cache) {
+            PolytopeBlueprint existing = cache.get(schlafliProduct);
+            if(existing != null)
+                return existing; // someone else beat us to it
+            cache.put(schlafliProduct, blueprint);
+        }
+        return blueprint;
+    }
+
+    /** Forgets all the cached blueprints. */
+    public static void clearCache() {
+        synchronized(cache) {
+            cache.clear();
+        }
+    }
+
+    final String schlafliProduct;
+    final CSG.SPolytope originalPolytope; // oriented, with each element's aux set to its index
+    final int nDims;
+    final CSG.Polytope originalElements[][];
+    final int originalIncidences[][][][];
+
+    final double faceInwardNormals[/* nFaces */][/* nDims */];
+    final double faceOffsets[/* nFaces */];
+    final double faceFullThicknesses[/* nFaces */]; // distance from each face to the nearest vertex not on it
+    final float circumRadius;
+    final float inRadius;
+    final int face2OppositeFace[/* nFaces */];
+    final double faceCentersD[/* nFaces */][/* nDims */];
+
+    // For the regular polychora, the symmetry taking face 0 to each face
+    // (see calcFace2Symmetry), null otherwise.
+    final double face2symmetry[/* nFaces */][/* nDims */][/* nDims */];
+
+    // The grips, only if nDims == 4, and only once makeGrips has been called.
+    int gripSymmetryOrders[/* nGrips */];
+    double gripUsefulMats[/* nGrips */][/* nDims */][/* nDims */];
+    float gripCentersF[/* nGrips */][];
+    int gripDims[/* nGrips */];
+    int grip2face[/* nGrips */];
+
+    final float nicePointsToRotateToCenter[][/* nDims */];
+
+    private double volume = Double.NaN; // calculated lazily via getVolume()
+
+    private static void Assert(boolean condition) {
+        if(!condition)
+            throw new Error("Assertion failed");
+    }
+
+    private PolytopeBlueprint(String schlafliProduct, ProgressManager progress)
+    {
+        this.schlafliProduct = schlafliProduct;
+
+        if(progress != null)
+            progress.init("Constructing polytope");
+
+        originalPolytope = CSG.makeRegularStarPolytopeCrossProductFromString(schlafliProduct);
+        CSG.orientDeep(originalPolytope); // XXX shouldn't be necessary!!!!
+
+        nDims = originalPolytope.p.dim; // == originalPolytope.fullDim
+
+        originalElements = originalPolytope.p.getAllElements();
+        CSG.Polytope originalVerts[] = originalElements[0];
+        CSG.Polytope originalFaces[] = originalElements[nDims - 1];
+        final int nFaces = originalFaces.length;
+        originalIncidences = originalPolytope.p.getAllIncidences();
+
+        // Mark each original face with its face index.
+        // These marks will persist even aver we slice up into stickers,
+        // so that will give us the sticker-to-original-face-index mapping.
+        // Also mark each vertex with its vertex index... etc.
+        {
+            for(int iDim = 0; iDim < originalElements.length; ++iDim)
+                for(int iElt = 0; iElt < originalElements[iDim].length; ++iElt)
+                    originalElements[iDim][iElt].aux = Integer.valueOf(iElt);
+        }
+
+        //
+        // Figure out the face inward normals and offsets;
+        // these will be used for computing where cuts should go.
+        //
+        faceInwardNormals = new double[nFaces][nDims];
+        faceOffsets = new double[nFaces];
+        for(int iFace = 0; iFace < nFaces; ++iFace)
+        {
+            CSG.Polytope face = originalFaces[iFace];
+            CSG.Hyperplane plane = face.contributingHyperplanes[0];
+            VecMath.vxs(faceInwardNormals[iFace], plane.normal, -1);
+            faceOffsets[iFace] = -plane.offset;
+            Assert(faceOffsets[iFace] < 0.);
+            double invNormalLength = 1. / VecMath.norm(faceInwardNormals[iFace]);
+            VecMath.vxs(faceInwardNormals[iFace], faceInwardNormals[iFace], invNormalLength);
+            faceOffsets[iFace] *= invNormalLength;
+        }
+
+        //
+        // Figure out the circumRadius (farthest vertex from origin)
+        // and inRadius (closest face plane to origin)
+        // of the original polytope...
+        //
+        {
+            double farthestVertexDistSqrd = 0.;
+            for(int iVert = 0; iVert < originalVerts.length; ++iVert)
+            {
+                double thisDistSqrd = VecMath.normsqrd(originalVerts[iVert].getCoords());
+                if(thisDistSqrd > farthestVertexDistSqrd)
+                    farthestVertexDistSqrd = thisDistSqrd;
+            }
+            circumRadius = (float) Math.sqrt(farthestVertexDistSqrd);
+
+            double nearestFaceDist = 0.;
+            for(int iFace = 0; iFace < originalFaces.length; ++iFace)
+            {
+                double thisFaceDist = -faceOffsets[iFace];
+                if(thisFaceDist < nearestFaceDist)
+                    nearestFaceDist = thisFaceDist;
+            }
+            inRadius = (float) nearestFaceDist;
+        }
+
+
+        //
+        // So we can easily find the opposite face of a given face...
+        //
+        face2OppositeFace = new int[nFaces];
+        {
+            FuzzyPointIntHashTable table = new FuzzyPointIntHashTable(nDims, 1e-9, 1e-8, 1. / 128);
+            for(int iFace = 0; iFace < nFaces; ++iFace)
+                table.put(faceInwardNormals[iFace], iFace);
+            double oppositeNormalScratch[] = new double[nDims];
+            //System.err.print("opposites:");
+            for(int iFace = 0; iFace < nFaces; ++iFace)
+            {
+                VecMath.vxs(oppositeNormalScratch, faceInwardNormals[iFace], -1.);
+                face2OppositeFace[iFace] = table.get(oppositeNormalScratch, -1);
+                //System.err.print("("+iFace+":"+face2OppositeFace[iFace]+")");
+            }
+        }
+
+        //
+        // Figure out the full thickness of each face,
+        // i.e. the distance from the face plane to the nearest
+        // vertex that's not on it.  The cuts get spaced out
+        // according to this and the length.
+        //
+        faceFullThicknesses = new double[nFaces];
+        for(int iFace = 0; iFace < nFaces; ++iFace)
+        {
+            double fullThickness = 0.;
+            {
+                // iVert = index of some vertex on face iFace
+                int iVert = originalIncidences[nDims - 1][iFace][0][0];
+                // iVertEdges = indices of all edges incident on vert iVert
+                int iVertsEdges[] = originalIncidences[0][iVert][1];
+                // Find an edge incident on vertex iVert
+                // that is NOT incident on face iFace..
+                for(int i = 0; i < iVertsEdges.length; ++i)
+                {
+                    int iEdge = iVertsEdges[i];
+                    int iEdgesFaces[] = originalIncidences[1][iEdge][nDims - 1];
+                    int j;
+                    for(j = 0; j < iEdgesFaces.length; ++j)
+                        if(iEdgesFaces[j] == iFace)
+                            break; // iEdge is incident on iFace-- no good
+                    if(j == iEdgesFaces.length)
+                    {
+                        // iEdge is not incident on iFace-- good!
+                        int jVert0 = originalIncidences[1][iEdge][0][0];
+                        int jVert1 = originalIncidences[1][iEdge][0][1];
+                        Assert((jVert0 == iVert) != (jVert1 == iVert));
+
+                        double edgeVec[] = VecMath.vmv(
+                            originalVerts[jVert1].getCoords(),
+                            originalVerts[jVert0].getCoords());
+                        double thisThickness = VecMath.dot(edgeVec, faceInwardNormals[iFace]);
+                        if(thisThickness < 0.)
+                            thisThickness *= -1.;
+
+                        // If there are more than one neighbor vertex
+                        // that's not on this face, pick one that's
+                        // closest to the face plane.  This can only
+                        // happen if the vertex figure is NOT a simplex
+                        // (e.g. it happens for the icosahedron).
+                        if(thisThickness > 1e-6
+                            && (fullThickness == 0. || thisThickness < fullThickness))
+                            fullThickness = thisThickness;
+                    }
+                }
+            }
+            Assert(fullThickness != 0.); // XXX actually this fails if puzzle dimension <= 1, maybe should disallow
+            faceFullThicknesses[iFace] = fullThickness;
+        }
+
+        //
+        // Find the face centers.
+        // The center of mass of the vertices is probably
+        // as good as anything, for this.
+        //
+        faceCentersD = new double[nFaces][nDims];
+        {
+            for(int iFace = 0; iFace < nFaces; ++iFace)
+                CSG.cgOfVerts(faceCentersD[iFace], originalFaces[iFace]);
+        }
+
+        face2symmetry = nDims == 4
+            && schlafliProduct.indexOf('x') == -1
+            && schlafliProduct.indexOf('*') == -1 ? calcFace2Symmetry(originalFaces) : null;
+
+        //
+        // Select points worthy of being rotated to the center (-W axis).
+        //
+        {
+            int nNicePoints = 0;
+            for(int iDim = 0; iDim < originalElements.length; ++iDim)
+                nNicePoints += originalElements[iDim].length;
+            nicePointsToRotateToCenter = new float[nNicePoints][nDims];
+            double eltCenter[] = new double[nDims];
+            int iNicePoint = 0;
+            for(int iDim = 0; iDim < originalElements.length; ++iDim)
+                for(int iElt = 0; iElt < originalElements[iDim].length; ++iElt)
+                {
+                    CSG.cgOfVerts(eltCenter, originalElements[iDim][iElt]);
+                    nicePointsToRotateToCenter[iNicePoint++] = VecMath.doubleToFloat(eltCenter);
+
+                }
+            Assert(iNicePoint == nNicePoints);
+        }
+    } // ctor from schlafli
+
+    /**
+     * Figures out the grips, if that hasn't been done already.
+     * The grip fields may only be looked at after calling this.
+     */
+    public synchronized void makeGrips(ProgressManager progress)
+    {
+        if(nDims == 4 && gripSymmetryOrders == null)
+            calcGrips(originalElements[nDims - 1], progress);
+    }
+
+    /**
+     * The volume of the original polytope.
+     */
+    public synchronized double getVolume()
+    {
+        if(Double.isNaN(volume))
+            volume = originalPolytope.volume();
+        return volume;
+    }
+
+    //
+    // Now think about the twist grips.
+    // There will be one grip at each vertex,edge,face center
+    // of the original polytope (if 3d)
+    // or of each cell of the original polytope (if 4d).
+    // XXX woops, I'm retarded, 3d doesn't have that...
+    // XXX but actually it wouldn't hurt, could just make that
+    // XXX rotate the whole puzzle.
+    //
+    private void calcGrips(CSG.Polytope originalFaces[], ProgressManager progress)
+    {
+        final int nFaces = originalFaces.length;
+
+        // Count the number of grips we'll be generating and initialize the progress manager.
+        // The grips of face iFace will go in slots gripOffsets[iFace] through gripOffsets[iFace+1]-1,
+        // so the faces can be done independently.
+        // While we're at it, get all the elements of every grip element;
+        // getAllElements is lazy and it's not safe for several threads
+        // to be the first to call it on the same element.
+        int nGrips = 0;
+        final int gripOffsets[] = new int[nFaces + 1];
+        for(int iFace = 0; iFace < nFaces; ++iFace)
+        {
+            CSG.Polytope cell = originalFaces[iFace];
+            CSG.Polytope[][] allElementsOfCell = cell.getAllElements();
+            for(int iDim = 0; iDim <= 3; ++iDim)
+            {
+                // yes, even for cell center, which doesn't do anything
+                nGrips += allElementsOfCell[iDim].length;
+                for(int iElt = 0; iElt < allElementsOfCell[iDim].length; ++iElt)
+                    allElementsOfCell[iDim][iElt].getAllElements();
+            }
+            gripOffsets[iFace + 1] = nGrips;
+        }
+        if(progress != null)
+            progress.init("Calculating possible twists", nGrips);
+
+        // Now do the actual work on all cores, updating the progress manager as we go.
+        gripSymmetryOrders = new int[nGrips];
+        gripUsefulMats = new double[nGrips][nDims][nDims];
+        gripCentersF = new float[nGrips][];
+        gripDims = new int[nGrips];
+        grip2face = new int[nGrips];
+        final CSG.Polytope finalOriginalFaces[] = originalFaces;
+        final ProgressManager finalProgress = progress;
+        // If we have the symmetries, only face 0's grips get figured out
+        // from scratch, and the others get carried over from those.
+        // face0Grips maps the element center of each of face 0's grips to the grip index.
+        final FuzzyPointIntHashTable face0Grips = face2symmetry == null ? null :
+            new FuzzyPointIntHashTable(nDims, 1e-9, 1e-8, 1. / 128);
+        class GripsTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private int iFace0, iFace1;
+            GripsTask(int iFace0, int iFace1) {
+                this.iFace0 = iFace0;
+                this.iFace1 = iFace1;
+            }
+            @Override
+            protected void compute() {
+                if(iFace1 - iFace0 > 1) {
+                    int iFaceMid = (iFace0 + iFace1) / 2;
+                    invokeAll(new GripsTask(iFace0, iFaceMid), new GripsTask(iFaceMid, iFace1));
+                    return;
+                }
+                int iFace = iFace0;
+                CSG.Polytope cell = finalOriginalFaces[iFace];
+                CSG.Polytope[][] allElementsOfCell = cell.getAllElements();
+                double gripCenterD[] = new double[nDims];
+                double face0GripCenterD[] = new double[nDims];
+                int iGrip = gripOffsets[iFace];
+                for(int iDim = 0; iDim <= 3; ++iDim) // XXX should we have a grip for the cell center, which doesn't do anything? maybe!
+                {
+                    for(int iElt = 0; iElt < allElementsOfCell[iDim].length; ++iElt)
+                    {
+                        CSG.Polytope elt = allElementsOfCell[iDim][iElt];
+                        CSG.cgOfVerts(gripCenterD, elt);
+                        if(face2symmetry != null && iFace != 0)
+                        {
+                            // Take the element back to face 0
+                            // (the inverse of the symmetry is its transpose)
+                            // and bring that grip's rotation over here.
+                            double symmetry[][] = face2symmetry[iFace];
+                            VecMath.mxv(face0GripCenterD, symmetry, gripCenterD);
+                            int iFace0Grip = face0Grips.get(face0GripCenterD, -1);
+                            Assert(iFace0Grip != -1);
+                            gripSymmetryOrders[iGrip] = gripSymmetryOrders[iFace0Grip];
+                            VecMath.mxm(gripUsefulMats[iGrip], gripUsefulMats[iFace0Grip], symmetry);
+                        }
+                        else
+                        {
+                            gripSymmetryOrders[iGrip] = CSG.calcRotationGroupOrder(
+                                originalPolytope.p, cell, elt,
+                                gripUsefulMats[iGrip]);
+                            if(face0Grips != null)
+                                face0Grips.put(gripCenterD, iGrip);
+                        }
+
+                        // !! We can't use the element center,
+                        // that will end up having the same center
+                        // for different stickers on the same cubie!
+                        // So fudge it a little towards the cell center.
+                        // XXX should try to be more scientific...
+                        VecMath.lerp(gripCenterD, gripCenterD, faceCentersD[iFace], .01);
+
+                        gripCentersF[iGrip] = VecMath.doubleToFloat(gripCenterD);
+                        gripDims[iGrip] = iDim;
+                        grip2face[iGrip] = iFace;
+
+                        if(finalProgress != null)
+                            finalProgress.incrementProgress();
+                        //System.out.println("("+iDim+":"+gripSymmetryOrders[iGrip]+")");
+
+                        iGrip++;
+                    }
+                }
+                Assert(iGrip == gripOffsets[iFace + 1]);
+            }
+        }
+        if(face0Grips != null && nFaces > 1)
+        {
+            // Face 0 has to be done first.
+            ForkJoinPool.commonPool().invoke(new GripsTask(0, 1));
+            ForkJoinPool.commonPool().invoke(new GripsTask(1, nFaces));
+        }
+        else if(nFaces > 0)
+            ForkJoinPool.commonPool().invoke(new GripsTask(0, nFaces));
+
+        /*
+         * want to know, for each grip:
+         * - the grip center coords
+         * - its face center coords
+         * - its period
+         * for each slice using this grip (i.e. iterate through the slices parallel to the face the grip is on):
+         * - from indices of a CCW twist of this slice
+         * - to indices of a CCW twist of this slice
+         */
+    } // calcGrips
+
+    /**
+     * Finds, for each face, the symmetry of the polytope that takes face 0 to it,
+     * as a row-vector-times-matrix orthogonal matrix.
+     * Returns null if the symmetries don't pan out
+     * (i.e. the polytope isn't regular after all).
+     */
+    private double[][][] calcFace2Symmetry(CSG.Polytope originalFaces[])
+    {
+        int nFaces = originalFaces.length;
+
+        //
+        // A symmetry of a regular polytope is determined by where it takes a flag,
+        // so line up the flag frames of the faces (see calcFlagFrame).
+        // If that turns out to be a reflection, use the flag
+        // with the other vertex of the edge instead,
+        // so that orientations are preserved.
+        // Then make sure it really is a symmetry,
+        // i.e. it takes the vertices to the vertices.
+        //
+        double face2symmetry[][][] = new double[nFaces][][];
+        {
+            CSG.Polytope originalVerts[] = originalElements[0];
+            FuzzyPointIntHashTable vertsTable = new FuzzyPointIntHashTable(nDims, 1e-9, 1e-8, 1. / 128);
+            for(int iVert = 0; iVert < originalVerts.length; ++iVert)
+                vertsTable.put(originalVerts[iVert].getCoords(), iVert);
+
+            double frame0Transpose[][] = VecMath.transpose(calcFlagFrame(originalFaces[0], 0));
+            double image[] = new double[nDims];
+            for(int iFace = 0; iFace < nFaces; ++iFace)
+            {
+                double symmetry[][] = VecMath.mxm(frame0Transpose, calcFlagFrame(originalFaces[iFace], 0));
+                if(VecMath.det(symmetry) < 0.)
+                    symmetry = VecMath.mxm(frame0Transpose, calcFlagFrame(originalFaces[iFace], 1));
+
+                VecMath.vxm(image, faceInwardNormals[0], symmetry);
+                if(VecMath.distsqrd(image, faceInwardNormals[iFace]) > 1e-12)
+                    return null;
+                for(int iVert = 0; iVert < originalVerts.length; ++iVert)
+                {
+                    VecMath.vxm(image, originalVerts[iVert].getCoords(), symmetry);
+                    if(!vertsTable.containsKey(image))
+                        return null;
+                }
+                face2symmetry[iFace] = symmetry;
+            }
+        }
+        return face2symmetry;
+    } // calcFace2Symmetry
+
+    //
+    // Returns an orthonormal frame (as rows) made from a flag of the given face:
+    // the face, its first facet, the first facet of that, etc., on down to
+    // an edge and its vertex whichVertex.
+    // The first row points at the face center, the second
+    // from there towards the center of the facet, and so on.
+    // Two faces of a regular polytope are related by exactly one symmetry
+    // that takes one's flag frame to the other's.
+    //
+    private static double[][] calcFlagFrame(CSG.Polytope face, int whichVertex)
+    {
+        int nDims = face.fullDim;
+        double frame[][] = new double[nDims][nDims];
+        CSG.Polytope elt = face;
+        for(int i = 0; i < nDims; ++i)
+        {
+            CSG.cgOfVerts(frame[i], elt);
+            if(elt.dim == 1)
+                elt = elt.facets[whichVertex].p;
+            else if(elt.dim > 1)
+                elt = elt.facets[0].p;
+        }
+        for(int i = nDims - 1; i >= 1; --i)
+            VecMath.vmv(frame[i], frame[i], frame[i - 1]);
+        VecMath.gramschmidt(frame, frame);
+        return frame;
+    } // calcFlagFrame
+
+} // class PolytopeBlueprint
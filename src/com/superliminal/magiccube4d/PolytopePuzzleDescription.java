@@ -203,13 +203,17 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
     private String schlafliProduct;
     private double edgeLength;
 
+    private int _nDims;
     private float _circumRadius;
     private float _inRadius;
     private int _nCubies;
+    private int _nVerts;
 
-    private float vertsMinusStickerCenters[][];
-    private float vertStickerCentersMinusFaceCenters[][];
-    private float vertFaceCenters[][];
+    // Per-vertex tables, flattened to nDims floats per vertex
+    // so that computing the verts is a straight walk through memory.
+    private float vertsMinusStickerCenters[/* nVerts*nDims */];
+    private float vertStickerCentersMinusFaceCenters[/* nVerts*nDims */];
+    private float vertFaceCenters[/* nVerts*nDims */];
     private int stickerInds[/* nStickers */][/* nPolygonsThisSticker */][/* nVertsThisPolygon */];
 
     private int face2OppositeFace[/* nFaces */];
@@ -227,9 +231,11 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
 
     private float nicePointsToRotateToCenter[][/* nDims */];
     private float faceCenters[/* nFaces */][/* nDims */];
+    private double faceCentersD[/* nFaces */][/* nDims */];
 
     private double stickerCentersD[][];
-    private FuzzyPointHashTable stickerCentersHashTable;
+    private FuzzyPointIntHashTable stickerCentersHashTable;
+    private short faceSticker2Slice[/* nFaces */][/* nStickers */]; // which of the face's slices each sticker center is in
 
     private static void Assert(boolean condition) {
         if(!condition)
@@ -290,93 +296,113 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
         if(length < 1)
             throw new IllegalArgumentException("PolytopePuzzleDescription called with length=" + length + ", min legal length is 1");
 
-        if(progress != null)
-            progress.init("Constructing polytope");
+        //
+        // Everything that doesn't depend on the length
+        // comes from the blueprint, which is probably already made
+        // if we've just had this puzzle at a different length.
+        //
+        PolytopeBlueprint blueprint = PolytopeBlueprint.get(schlafliProduct, progress);
+        originalPolytope = blueprint.originalPolytope;
 
-        originalPolytope = CSG.makeRegularStarPolytopeCrossProductFromString(schlafliProduct);
-        CSG.orientDeep(originalPolytope); // XXX shouldn't be necessary!!!!
+        int nDims = blueprint.nDims;
+        _nDims = nDims;
 
-        int nDims = originalPolytope.p.dim; // == originalPolytope.fullDim
+        faceInwardNormals = blueprint.faceInwardNormals;
+        _circumRadius = blueprint.circumRadius;
+        _inRadius = blueprint.inRadius;
+        face2OppositeFace = blueprint.face2OppositeFace;
 
-        CSG.Polytope originalElements[][] = originalPolytope.p.getAllElements();
-        CSG.Polytope originalVerts[] = originalElements[0];
-        CSG.Polytope originalFaces[] = originalElements[nDims - 1];
-        final int nFaces = originalFaces.length;
-        int originalIncidences[][][][] = originalPolytope.p.getAllIncidences();
+        boolean needSliverRemovalResult[] = new boolean[1];
+        faceCutOffsets = calcFaceCutOffsets(blueprint, length, needSliverRemovalResult);
+        boolean needSliverRemoval = needSliverRemovalResult[0];
 
-        // Mark each original face with its face index.
-        // These marks will persist even aver we slice up into stickers,
-        // so that will give us the sticker-to-original-face-index mapping.
-        // Also mark each vertex with its vertex index... etc.
-        {
-            for(int iDim = 0; iDim < originalElements.length; ++iDim)
-                for(int iElt = 0; iElt < originalElements[iDim].length; ++iElt)
-                    originalElements[iDim][iElt].aux = new Integer(iElt);
-        }
+        //System.out.println("face inward normals = "+com.donhatchsw.util.Arrays.toStringCompact(faceInwardNormals));
+        //System.out.println("cut offsets = "+com.donhatchsw.util.Arrays.toStringCompact(faceCutOffsets));
+
+        faceCentersD = blueprint.faceCentersD;
+        faceCenters = VecMath.doubleToFloat(faceCentersD);
 
         //
-        // Figure out the face inward normals and offsets;
-        // these will be used for computing where cuts should go.
+        // Slice!
+        // This figures out the stickers and cubies,
+        // and gets the rest verts (with no shrinkage)
+        // and the sticker polygon indices.
+        // The regular polychora can take a shortcut
+        // (set the "slicebysymmetry" property to false to compare against the long way).
         //
-        faceInwardNormals = new double[nFaces][nDims];
-        double faceOffsets[] = new double[nFaces];
-        for(int iFace = 0; iFace < nFaces; ++iFace)
+        double face2symmetry[][][] = null;
+        if(blueprint.face2symmetry != null
+            && allFacesCutAlike()
+            && PropertyManager.getBoolean("slicebysymmetry", true))
+            face2symmetry = blueprint.face2symmetry;
+        double restVerts[][] = face2symmetry != null ?
+            sliceOneFaceAndReplicate(blueprint, needSliverRemoval, progress) :
+            sliceWholePolytope(needSliverRemoval, progress);
+        int nStickers = sticker2face.length;
+        sticker2faceShadow = VecMath.copyvec(sticker2face);
+
+        stickerCentersHashTable = new FuzzyPointIntHashTable(nDims, 1e-9, 1e-8, 1. / 128);
         {
-            CSG.Polytope face = originalFaces[iFace];
-            CSG.Hyperplane plane = face.contributingHyperplanes[0];
-            VecMath.vxs(faceInwardNormals[iFace], plane.normal, -1);
-            faceOffsets[iFace] = -plane.offset;
-            Assert(faceOffsets[iFace] < 0.);
-            double invNormalLength = 1. / VecMath.norm(faceInwardNormals[iFace]);
-            VecMath.vxs(faceInwardNormals[iFace], faceInwardNormals[iFace], invNormalLength);
-            faceOffsets[iFace] *= invNormalLength;
+            for(int iSticker = 0; iSticker < nStickers; ++iSticker)
+                stickerCentersHashTable.put(stickerCentersD[iSticker], iSticker);
+        }
+        float stickerCentersMinusFaceCentersF[][] = new float[nStickers][];
+        {
+            for(int iSticker = 0; iSticker < nStickers; ++iSticker)
+                stickerCentersMinusFaceCentersF[iSticker] = VecMath.doubleToFloat(
+                    VecMath.vmv(stickerCentersD[iSticker], faceCentersD[sticker2face[iSticker]]));
         }
 
         //
-        // Figure out the circumRadius (farthest vertex from origin)
-        // and inRadius (closest face plane to origin)
-        // of the original polytope...
+        // Calculate the three arrays 
+        // that will let us quickly calculate the sticker verts
+        // at rest for any faceShrink and stickerShrink.
+        // Note that vertFaceCenters and vertStickerCentersMinusFaceCenters
+        // contain lots of duplicates, but copying them
+        // keeps each vertex's floats next to each other.
         //
         {
-            double farthestVertexDistSqrd = 0.;
-            for(int iVert = 0; iVert < originalVerts.length; ++iVert)
-            {
-                double thisDistSqrd = VecMath.normsqrd(originalVerts[iVert].getCoords());
-                if(thisDistSqrd > farthestVertexDistSqrd)
-                    farthestVertexDistSqrd = thisDistSqrd;
-            }
-            _circumRadius = (float) Math.sqrt(farthestVertexDistSqrd);
+            _nVerts = restVerts.length;
+            vertsMinusStickerCenters = new float[_nVerts * nDims];
+            int vert2sticker[] = calcVertCenters(stickerCentersMinusFaceCentersF);
+            for(int iVert = 0; iVert < _nVerts; ++iVert)
+                for(int iDim = 0; iDim < nDims; ++iDim)
+                    vertsMinusStickerCenters[iVert * nDims + iDim] = (float) (restVerts[iVert][iDim] - stickerCentersD[vert2sticker[iVert]][iDim]);
+        }
 
-            double nearestFaceDist = 0.;
-            for(int iFace = 0; iFace < originalFaces.length; ++iFace)
-            {
-                double thisFaceDist = -faceOffsets[iFace];
-                if(thisFaceDist < nearestFaceDist)
-                    nearestFaceDist = thisFaceDist;
+        faceSticker2Slice = calcFaceSticker2Slice();
+
+        if(PropertyManager.getBoolean("debug", false)) {
+            double maxSqrdVertDist4 = 0;
+            for(double[] vert : restVerts) {
+                double distSqrd4 = 0;
+                for(double c : vert)
+                    distSqrd4 += c * c;
+                maxSqrdVertDist4 = Math.max(distSqrd4, maxSqrdVertDist4);
             }
-            _inRadius = (float) nearestFaceDist;
+            System.out.println("4D radius: " + Math.sqrt(maxSqrdVertDist4));
         }
 
-
         //
-        // So we can easily find the opposite face of a given face...
+        // The twist grips and the nice points don't depend on the length,
+        // so they come straight from the blueprint.
         //
-        face2OppositeFace = new int[nFaces];
-        {
-            FuzzyPointHashTable table = new FuzzyPointHashTable(1e-9, 1e-8, 1. / 128);
-            for(int iFace = 0; iFace < nFaces; ++iFace)
-                table.put(faceInwardNormals[iFace], originalFaces[iFace]);
-            double oppositeNormalScratch[] = new double[nDims];
-            //System.err.print("opposites:");
-            for(int iFace = 0; iFace < nFaces; ++iFace)
-            {
-                VecMath.vxs(oppositeNormalScratch, faceInwardNormals[iFace], -1.);
-                CSG.Polytope opposite = (CSG.Polytope) table.get(oppositeNormalScratch);
-                face2OppositeFace[iFace] = opposite == null ? -1 : ((Integer) opposite.aux).intValue();
-                //System.err.print("("+iFace+":"+face2OppositeFace[iFace]+")");
-            }
-        }
+        blueprint.makeGrips(progress);
+        gripSymmetryOrders = blueprint.gripSymmetryOrders;
+        gripUsefulMats = blueprint.gripUsefulMats;
+        gripCentersF = blueprint.gripCentersF;
+        gripDims = blueprint.gripDims;
+        grip2face = blueprint.grip2face;
+        nicePointsToRotateToCenter = blueprint.nicePointsToRotateToCenter;
+    } // ctor from schlafli and length
 
+    /**
+     * Figures out the cut offsets of each face for a puzzle of the given length
+     * made from the given blueprint, and whether the sliver stickers
+     * will need to be removed afterwards (returned in needSliverRemovalResult[0]).
+     */
+    static double[][] calcFaceCutOffsets(PolytopeBlueprint blueprint, double length, boolean needSliverRemovalResult[/* 1 */])
+    {
         //
         // Figure out exactly what cuts are wanted
         // for each face.  Cuts parallel to two opposite faces
@@ -387,55 +413,19 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
         // the corresponding cut offsets will be in increasing order,
         // for sanity.
         //
+        String schlafliProduct = blueprint.schlafliProduct;
+        CSG.Polytope originalFaces[] = blueprint.originalElements[blueprint.nDims - 1];
+        int nFaces = originalFaces.length;
+        double faceOffsets[] = blueprint.faceOffsets;
+        int face2OppositeFace[] = blueprint.face2OppositeFace;
         boolean needSliverRemoval = false;
-        faceCutOffsets = new double[nFaces][];
+        double faceCutOffsets[][] = new double[nFaces][];
         {
             for(int iFace = 0; iFace < nFaces; ++iFace)
             {
                 CSG.Polytope face = originalFaces[iFace];
 
-                double fullThickness = 0.;
-                {
-                    // iVert = index of some vertex on face iFace
-                    int iVert = originalIncidences[nDims - 1][iFace][0][0];
-                    // iVertEdges = indices of all edges incident on vert iVert
-                    int iVertsEdges[] = originalIncidences[0][iVert][1];
-                    // Find an edge incident on vertex iVert
-                    // that is NOT incident on face iFace..
-                    for(int i = 0; i < iVertsEdges.length; ++i)
-                    {
-                        int iEdge = iVertsEdges[i];
-                        int iEdgesFaces[] = originalIncidences[1][iEdge][nDims - 1];
-                        int j;
-                        for(j = 0; j < iEdgesFaces.length; ++j)
-                            if(iEdgesFaces[j] == iFace)
-                                break; // iEdge is incident on iFace-- no good
-                        if(j == iEdgesFaces.length)
-                        {
-                            // iEdge is not incident on iFace-- good!
-                            int jVert0 = originalIncidences[1][iEdge][0][0];
-                            int jVert1 = originalIncidences[1][iEdge][0][1];
-                            Assert((jVert0 == iVert) != (jVert1 == iVert));
-
-                            double edgeVec[] = VecMath.vmv(
-                                originalVerts[jVert1].getCoords(),
-                                originalVerts[jVert0].getCoords());
-                            double thisThickness = VecMath.dot(edgeVec, faceInwardNormals[iFace]);
-                            if(thisThickness < 0.)
-                                thisThickness *= -1.;
-
-                            // If there are more than one neighbor vertex
-                            // that's not on this face, pick one that's
-                            // closest to the face plane.  This can only
-                            // happen if the vertex figure is NOT a simplex
-                            // (e.g. it happens for the icosahedron).
-                            if(thisThickness > 1e-6
-                                && (fullThickness == 0. || thisThickness < fullThickness))
-                                fullThickness = thisThickness;
-                        }
-                    }
-                }
-                Assert(fullThickness != 0.); // XXX actually this fails if puzzle dimension <= 1, maybe should disallow
+                double fullThickness = blueprint.faceFullThicknesses[iFace];
 
                 int ceilLength = (int) Math.ceil(length);
                 int nNearCuts = 0, nFarCuts = 0;
@@ -507,15 +497,39 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
                         - (iFarCut + 1) * sliceThickness;
             }
         }
+        needSliverRemovalResult[0] = needSliverRemoval;
+        return faceCutOffsets;
+    } // calcFaceCutOffsets
 
-        //System.out.println("face inward normals = "+com.donhatchsw.util.Arrays.toStringCompact(faceInwardNormals));
-        //System.out.println("cut offsets = "+com.donhatchsw.util.Arrays.toStringCompact(faceCutOffsets));
+    /**
+     * Forgets the length-independent parts of the puzzles built so far
+     * (see PolytopeBlueprint), so the next puzzles get built
+     * entirely from scratch.
+     */
+    public static void clearBlueprintCache()
+    {
+        PolytopeBlueprint.clearCache();
+    }
+
+    /**
+     * Slices up the whole original polytope by all the cuts,
+     * and sets sticker2face, sticker2cubie, _nCubies, stickerCentersD and stickerInds
+     * from the result.
+     * Returns the rest verts (with no shrinkage).
+     */
+    private double[][] sliceWholePolytope(boolean needSliverRemoval, ProgressManager progress)
+    {
+        int nDims = _nDims;
+        int nFaces = faceInwardNormals.length;
 
         //
         // Slice!
         //
         {
-            slicedPolytope = originalPolytope;
+            // The original polytope belongs to the blueprint,
+            // and slicing and orienting would mess with its elements,
+            // so slice up a copy.
+            slicedPolytope = CSG.copyDeep(originalPolytope);
             // Count the number of cuts we'll be making and initialize the progress manager.
             {
                 int totalCuts = 0;
@@ -542,7 +556,7 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
                             faceInwardNormals[iFace],
                             faceCutOffsets[iFace][iCut]);
                         Object auxOfCut = null; // we don't set any aux on the cut for now
-                        slicedPolytope = CSG.sliceFacets(slicedPolytope, cutHyperplane, auxOfCut);
+                        slicedPolytope = CSG.sliceFacetsInParallel(slicedPolytope, cutHyperplane, auxOfCut);
 
                         if(progress != null)
                             progress.updateProgress(cut);
@@ -561,35 +575,15 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
         // A better long term approach would be to improve the slice function.
         if(needSliverRemoval)
         {
-            CSG.SPolytope facets[] = slicedPolytope.p.facets;
-            CSG.SPolytope validFacets[] = new CSG.SPolytope[facets.length];
-
             // Calculate a volume cutoff for slivers.
             // Note: we needed to make this depend on the full volume of the puzzle.
             // We'll make our cutoff a small percentage of the average volume of a sticker.
             double fullVolume = Math.abs(slicedPolytope.volume());
-            double cutoff = (fullVolume / facets.length) * SLIVER_VOLUME_PERCENT / 100;
+            double cutoff = (fullVolume / slicedPolytope.p.facets.length) * SLIVER_VOLUME_PERCENT / 100;
             //System.out.println( "sliver cutoff = " + cutoff );
 
-            int nValidFacets = 0;
-            for(int i = 0; i < facets.length; i++)
-            {
-                double volume = Math.abs(facets[i].volume());
-                if(volume > cutoff)
-                    validFacets[nValidFacets++] = facets[i];
-
-                // Warn if close to the cutoff.
-                double fraction = volume / cutoff;
-                if(0.5 < fraction && fraction < 2)
-                {
-                    System.out.println("Warning! Sliver removal heuristic is cutting it too close (pun intended). v = " + volume + " c = " + cutoff);
-                }
-            }
-            validFacets = (CSG.SPolytope[]) com.donhatchsw.util.Arrays.subarray(
-                validFacets, 0, nValidFacets); // resize
-
             // Setup the polytope with the valid facets.
-            slicedPolytope.p.facets = validFacets;
+            slicedPolytope.p.facets = removeSlivers(slicedPolytope.p.facets, cutoff);
             slicedPolytope.p.resetAllElements();
         }
 
@@ -604,7 +598,6 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
             for(int iSticker = 0; iSticker < nStickers; ++iSticker)
                 sticker2face[iSticker] = ((Integer) stickers[iSticker].aux).intValue();
         }
-        sticker2faceShadow = VecMath.copyvec(sticker2face);
 
         //
         // Figure out the mapping from sticker to cubie.
@@ -620,70 +613,41 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
             //         if it's part of an original polygon (not a cut)
             //             merge the two incident stickers
 
-            CSG.Polytope slicedRidges[] = slicedPolytope.p.getAllElements()[nDims - 2];
-            int allSlicedIncidences[][][][] = slicedPolytope.p.getAllIncidences();
-            for(int iSlicedRidge = 0; iSlicedRidge < slicedRidges.length; ++iSlicedRidge)
+            CSG.IncidenceIndex slicedIndex = slicedPolytope.p.getIncidenceIndex();
+            int nSlicedRidges = slicedIndex.nElements(nDims - 2);
+            for(int iSlicedRidge = 0; iSlicedRidge < nSlicedRidges; ++iSlicedRidge)
             {
-                CSG.Polytope ridge = slicedRidges[iSlicedRidge];
+                CSG.Polytope ridge = slicedIndex.getElement(nDims - 2, iSlicedRidge);
                 boolean ridgeIsFromOriginal = (ridge.aux != null);
                 if(ridgeIsFromOriginal) // if it's not a cut
                 {
                     // Find the two stickers that meet at this ridge...
-                    int indsOfStickersContainingThisRidge[] = allSlicedIncidences[nDims - 2][iSlicedRidge][nDims - 1];
-
                     // NOTE: This assert was a check until we started filtering out slivers.
                     // 		 Slivers will just make cubies with other slivers though, 
                     //		 so this should be ok.
-                    //Assert(indsOfStickersContainingThisRidge.length == 2);
-                    if(indsOfStickersContainingThisRidge.length == 2)
+                    //Assert(slicedIndex.nIncidences(nDims - 2, iSlicedRidge, nDims - 1) == 2);
+                    if(slicedIndex.nIncidences(nDims - 2, iSlicedRidge, nDims - 1) == 2)
                     {
-                        int iSticker0 = indsOfStickersContainingThisRidge[0];
-                        int iSticker1 = indsOfStickersContainingThisRidge[1];
+                        int iSticker0 = slicedIndex.getIncidence(nDims - 2, iSlicedRidge, nDims - 1, 0);
+                        int iSticker1 = slicedIndex.getIncidence(nDims - 2, iSlicedRidge, nDims - 1, 1);
                         mf.merge(iSticker0, iSticker1);
                     }
                 }
             }
-            for(int iSticker = 0; iSticker < nStickers; ++iSticker)
-                sticker2cubie[iSticker] = mf.find(iSticker);
-
-            _nCubies = 0;
-            for(int iSticker = 0; iSticker < nStickers; ++iSticker)
-                if(sticker2cubie[iSticker] == iSticker)
-                    _nCubies++;
-            if(PropertyManager.getBoolean("debug", false))
-                System.out.println("    There seem to be " + _nCubies + " accessible cubie(s).");
-            // XXX note, we could easily collapse the cubie indicies
-            // XXX so that they are consecutive, if we cared
+            setCubies(mf);
         }
 
         //
-        // Find the face centers and sticker centers.
+        // Find the sticker centers.
         // The center of mass of the vertices is probably
         // as good as anything, for this
         // (when we get shrinking right, it won't
         // actually use centers, I don't think)
         //
-        double faceCentersD[][] = new double[nFaces][nDims];
-        {
-            for(int iFace = 0; iFace < nFaces; ++iFace)
-                CSG.cgOfVerts(faceCentersD[iFace], originalFaces[iFace]);
-        }
         stickerCentersD = new double[nStickers][nDims];
-        stickerCentersHashTable = new FuzzyPointHashTable(1e-9, 1e-8, 1. / 128);
         {
             for(int iSticker = 0; iSticker < nStickers; ++iSticker)
-            {
                 CSG.cgOfVerts(stickerCentersD[iSticker], stickers[iSticker]);
-                stickerCentersHashTable.put(stickerCentersD[iSticker], new Integer(iSticker));
-            }
-        }
-
-        faceCenters = VecMath.doubleToFloat(faceCentersD);
-        float stickerCentersMinusFaceCentersF[][] = new float[nStickers][];
-        {
-            for(int iSticker = 0; iSticker < nStickers; ++iSticker)
-                stickerCentersMinusFaceCentersF[iSticker] = VecMath.doubleToFloat(
-                    VecMath.vmv(stickerCentersD[iSticker], faceCentersD[sticker2face[iSticker]]));
         }
 
 
@@ -751,34 +715,8 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
             // that will guarantee that [0][0], [0][1], [0][2], [1][0]
             // form a non-degenerate simplex, as required.
             //
-            {
-                for(int iSticker = 0; iSticker < stickerInds.length; ++iSticker)
-                {
-                    int polygon0[] = stickerInds[iSticker][0];
-                    int polygon1[] = stickerInds[iSticker][1];
-                    int i;
-                    for(i = 0; i < polygon1.length; ++i)
-                    {
-                        int j;
-                        for(j = 0; j < polygon0.length; ++j)
-                        {
-                            if(polygon1[i] == polygon0[j])
-                                break; // this i is no good
-                        }
-                        if(j == polygon0.length)
-                            break; // this i is good
-                    }
-                    // Cyclic permute polygon1
-                    // to put its [i] at [0]
-                    if(i != 0)
-                    {
-                        int cycled[] = new int[polygon1.length];
-                        for(int ii = 0; ii < cycled.length; ++ii)
-                            cycled[ii] = polygon1[(i + ii) % cycled.length];
-                        stickerInds[iSticker][1] = cycled;
-                    }
-                }
-            }
+            for(int iSticker = 0; iSticker < stickerInds.length; ++iSticker)
+                cycleSecondPolygonOffFirst(stickerInds[iSticker]);
         }
         else // nDims is something other than 3 or 4
         {
@@ -791,165 +729,497 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
             stickerInds = new int[nStickers][0][];
         }
 
+        return restVerts;
+    } // sliceWholePolytope
+
+    /**
+     * Whether every face gets cut up the same way,
+     * as sliceOneFaceAndReplicate needs.
+     */
+    private boolean allFacesCutAlike()
+    {
+        int nFaces = faceCutOffsets.length;
+        for(int iFace = 1; iFace < nFaces; ++iFace)
+        {
+            if(faceCutOffsets[iFace].length != faceCutOffsets[0].length)
+                return false;
+            for(int iCut = 0; iCut < faceCutOffsets[0].length; ++iCut)
+                if(Math.abs(faceCutOffsets[iFace][iCut] - faceCutOffsets[0][iCut]) > 1e-9)
+                    return false;
+        }
+        return true;
+    } // allFacesCutAlike
+
+    /**
+     * Does the same job as sliceWholePolytope, much faster,
+     * when the blueprint has the face symmetries
+     * and all the faces get cut the same way.
+     * Since every face gets cut up the same way,
+     * we only slice up face 0, by the cuts that cross it,
+     * and carry the resulting stickers over to each of the other faces
+     * using the symmetry that takes face 0 to that face.
+     * The stickers end up in face order, which is different from
+     * the order sliceWholePolytope would give them in,
+     * but nothing cares about that.
+     */
+    private double[][] sliceOneFaceAndReplicate(PolytopeBlueprint blueprint, boolean needSliverRemoval, ProgressManager progress)
+    {
+        int nDims = _nDims;
+        CSG.Polytope originalFaces[] = blueprint.originalElements[nDims - 1];
+        double face2symmetry[][][] = blueprint.face2symmetry;
+        int nFaces = originalFaces.length;
+        Assert(nDims == 4);
 
         //
-        // Calculate the three arrays 
-        // that will let us quickly calculate the sticker verts
-        // at rest for any faceShrink and stickerShrink.
-        // Note that vertFaceCenters and vertStickerCentersMinusFaceCenters
-        // contain lots of duplicates; these dups all point
-        // to the same float[] however, so it's not as horrid as it seems.
+        // Slice up (a copy of) face 0.
+        // It goes alone in a polytope of its own,
+        // so that the stickers come back out as the facets of that.
         //
+        CSG.SPolytope slicedCell;
         {
-            int nVerts = restVerts.length;
-            vertsMinusStickerCenters = new float[nVerts][];
-            vertStickerCentersMinusFaceCenters = new float[nVerts][];
-            vertFaceCenters = new float[nVerts][];
+            CSG.SPolytope cell = null;
+            for(int iFacet = 0; iFacet < originalPolytope.p.facets.length; ++iFacet)
+                if(originalPolytope.p.facets[iFacet].p == originalFaces[0])
+                    cell = originalPolytope.p.facets[iFacet];
+            Assert(cell != null);
+            slicedCell = new CSG.SPolytope(0, 1,
+                new CSG.Polytope(nDims, nDims,
+                    new CSG.SPolytope[] {CSG.copyDeep(cell)},
+                    originalPolytope.p.contributingHyperplanes,
+                    null));
+
+            // The cuts that don't reach face 0 would just be no-ops,
+            // so don't bother with them.
+            CSG.Polytope cellVerts[] = originalFaces[0].getAllElements()[0];
+
+            int totalCuts = 0;
+            for(int iFace = 0; iFace < nFaces; ++iFace)
             {
-                for(int iSticker = 0; iSticker < nStickers; ++iSticker)
-                    for(int j = 0; j < stickerInds[iSticker].length; ++j)
-                        for(int k = 0; k < stickerInds[iSticker][j].length; ++k)
-                        {
-                            int iFace = sticker2face[iSticker];
-                            int iVert = stickerInds[iSticker][j][k];
-                            if(vertsMinusStickerCenters[iVert] == null)
-                            {
-                                vertsMinusStickerCenters[iVert] = VecMath.doubleToFloat(VecMath.vmv(restVerts[iVert], stickerCentersD[iSticker]));
-                                vertStickerCentersMinusFaceCenters[iVert] = stickerCentersMinusFaceCentersF[iSticker];
-                                vertFaceCenters[iVert] = faceCenters[iFace];
-                            }
-                        }
+                if(face2OppositeFace[iFace] != -1 && face2OppositeFace[iFace] < iFace)
+                    continue; // already saw opposite face
+                totalCuts += faceCutOffsets[iFace].length;
+            }
+            if(progress != null)
+                progress.init("Slicing", totalCuts);
+
+            int cut = 0;
+            for(int iFace = 0; iFace < nFaces; ++iFace)
+            {
+                if(face2OppositeFace[iFace] != -1 && face2OppositeFace[iFace] < iFace)
+                    continue; // already saw opposite face and made the cuts
+                double minHeight = Double.POSITIVE_INFINITY;
+                double maxHeight = Double.NEGATIVE_INFINITY;
+                for(int iVert = 0; iVert < cellVerts.length; ++iVert)
+                {
+                    double height = VecMath.dot(cellVerts[iVert].getCoords(), faceInwardNormals[iFace]);
+                    minHeight = Math.min(minHeight, height);
+                    maxHeight = Math.max(maxHeight, height);
+                }
+                for(int iCut = 0; iCut < faceCutOffsets[iFace].length; ++iCut)
+                {
+                    double offset = faceCutOffsets[iFace][iCut];
+                    if(offset > minHeight - 1e-9 && offset < maxHeight + 1e-9)
+                    {
+                        CSG.Hyperplane cutHyperplane = new CSG.Hyperplane(
+                            faceInwardNormals[iFace],
+                            offset);
+                        Object auxOfCut = null; // we don't set any aux on the cut for now
+                        slicedCell = CSG.sliceFacets(slicedCell, cutHyperplane, auxOfCut);
+                    }
+
+                    if(progress != null)
+                        progress.updateProgress(cut);
+                    cut++;
+                }
             }
         }
 
-        if(PropertyManager.getBoolean("debug", false)) {
-            double maxSqrdVertDist4 = 0;
-            for(double[] vert : restVerts) {
-                double distSqrd4 = 0;
-                for(double c : vert)
-                    distSqrd4 += c * c;
-                maxSqrdVertDist4 = Math.max(distSqrd4, maxSqrdVertDist4);
+        if(progress != null)
+            progress.init("Copying stickers to all faces");
+
+        // Orient the stickers (as well as can be done without the rest of the polytope;
+        // see below), so that their volumes make sense.
+        CSG.orientFacetsDeep(slicedCell);
+
+        CSG.SPolytope cellStickers[] = slicedCell.p.facets;
+        if(needSliverRemoval)
+        {
+            // Same cutoff as sliceWholePolytope would use,
+            // since the stickers of face 0 are a fair sample.
+            double fullVolume = Math.abs(blueprint.getVolume());
+            double cutoff = (fullVolume / (nFaces * cellStickers.length)) * SLIVER_VOLUME_PERCENT / 100;
+            cellStickers = removeSlivers(cellStickers, cutoff);
+        }
+        int nStickersPerFace = cellStickers.length;
+
+        //
+        // Find the sticker centers
+        // and the centers of the sticker polygons
+        // that lie on the boundary of the face (those are the ones
+        // that came from original polygons, not cuts).
+        // Matching up the boundary polygon centers on neighboring faces
+        // will tell us the cubies.
+        //
+        double cellStickerCenters[][] = new double[nStickersPerFace][nDims];
+        double cellStickerBoundaryCenters[][][] = new double[nStickersPerFace][][];
+        {
+            for(int iSticker = 0; iSticker < nStickersPerFace; ++iSticker)
+            {
+                CSG.Polytope sticker = cellStickers[iSticker].p;
+                CSG.cgOfVerts(cellStickerCenters[iSticker], sticker);
+                int nBoundaryPolygons = 0;
+                for(int iPolygon = 0; iPolygon < sticker.facets.length; ++iPolygon)
+                    if(sticker.facets[iPolygon].p.aux != null)
+                        nBoundaryPolygons++;
+                cellStickerBoundaryCenters[iSticker] = new double[nBoundaryPolygons][nDims];
+                nBoundaryPolygons = 0;
+                for(int iPolygon = 0; iPolygon < sticker.facets.length; ++iPolygon)
+                    if(sticker.facets[iPolygon].p.aux != null)
+                        CSG.cgOfVerts(cellStickerBoundaryCenters[iSticker][nBoundaryPolygons++], sticker.facets[iPolygon].p);
             }
-            System.out.println("4D radius: " + Math.sqrt(maxSqrdVertDist4));
         }
 
         //
-        // Now think about the twist grips.
-        // There will be one grip at each vertex,edge,face center
-        // of the original polytope (if 3d)
-        // or of each cell of the original polytope (if 4d).
-        // XXX woops, I'm retarded, 3d doesn't have that...
-        // XXX but actually it wouldn't hurt, could just make that
-        // XXX rotate the whole puzzle.
+        // Clear the auxs for PolyFromPolytope,
+        // same as sliceWholePolytope does,
+        // and make a separate Poly out of each sticker.
         //
-        if(nDims == 4)
         {
-            // Count the number of grips we'll be generating and initialize the progress manager.
-            int nGrips = 0;
-            for(int iFace = 0; iFace < nFaces; ++iFace)
+            CSG.Polytope allElements[][] = slicedCell.p.getAllElements();
+            for(int iDim = 0; iDim < allElements.length; ++iDim)
+                for(int iElt = 0; iElt < allElements[iDim].length; ++iElt)
+                    allElements[iDim][iElt].aux = null;
+        }
+        double cellStickerVerts[][][] = new double[nStickersPerFace][][];
+        int cellStickerInds[][][] = new int[nStickersPerFace][][];
+        int nVertsPerFace = 0;
+        {
+            double outwardNormal[] = VecMath.vxs(faceInwardNormals[0], -1.);
+            for(int iSticker = 0; iSticker < nStickersPerFace; ++iSticker)
             {
-                CSG.Polytope cell = originalFaces[iFace];
-                CSG.Polytope[][] allElementsOfCell = cell.getAllElements();
-                for(int iDim = 0; iDim <= 3; ++iDim)
-                    // yes, even for cell center, which doesn't do anything
-                    nGrips += allElementsOfCell[iDim].length;
+                Poly stickerPoly = PolyCSG.PolyFromPolytope(cellStickers[iSticker].p);
+                double verts[][] = (double[][]) stickerPoly.verts;
+                // We assume there is only 1 contour per polygon,
+                // so we can flatten out the contours part.
+                int inds[][] = (int[][]) com.donhatchsw.util.Arrays.flatten(stickerPoly.inds, 1, 2);
+                cycleSecondPolygonOffFirst(inds);
+
+                //
+                // The sticker's own orientation is only consistent
+                // within the sticker; sliceWholePolytope gets the rest of it
+                // from orienting the whole sliced polytope at once.
+                // We don't have that, so look at which way the
+                // [0][0], [0][1], [0][2], [1][0] simplex faces
+                // and turn the sticker inside out if it's the wrong way.
+                //
+                double simplex[][] = {
+                    VecMath.vmv(verts[inds[0][1]], verts[inds[0][0]]),
+                    VecMath.vmv(verts[inds[0][2]], verts[inds[0][0]]),
+                    VecMath.vmv(verts[inds[1][0]], verts[inds[0][0]]),
+                    outwardNormal,
+                };
+                if(VecMath.det(simplex) < 0.)
+                {
+                    for(int iPolygon = 0; iPolygon < inds.length; ++iPolygon)
+                        inds[iPolygon] = (int[]) com.donhatchsw.util.Arrays.reverse(inds[iPolygon]);
+                    cycleSecondPolygonOffFirst(inds);
+                }
+
+                cellStickerVerts[iSticker] = verts;
+                cellStickerInds[iSticker] = inds;
+                nVertsPerFace += verts.length;
             }
-            if(progress != null)
-                progress.init("Calculating possible twists", nGrips);
-
-            // Now do the actual work, updating the progress manager as we go.
-            gripSymmetryOrders = new int[nGrips];
-            gripUsefulMats = new double[nGrips][nDims][nDims];
-            gripCentersF = new float[nGrips][];
-            gripDims = new int[nGrips];
-            grip2face = new int[nGrips];
-            double gripCenterD[] = new double[nDims];
-            int iGrip = 0;
+        }
+
+        //
+        // Now copy everything to all the faces.
+        // Sticker iSticker of face 0 becomes sticker iFace*nStickersPerFace+iSticker.
+        //
+        int nStickers = nFaces * nStickersPerFace;
+        double restVerts[][] = new double[nFaces * nVertsPerFace][nDims];
+        sticker2face = new int[nStickers];
+        sticker2cubie = new int[nStickers];
+        stickerCentersD = new double[nStickers][nDims];
+        stickerInds = new int[nStickers][][];
+        {
+            MergeFind mf = new MergeFind(nStickers);
+            FuzzyPointIntHashTable boundaryPolygonTable = new FuzzyPointIntHashTable(nDims, 1e-9, 1e-8, 1. / 128);
+            double boundaryCenter[] = new double[nDims];
+            int iVert = 0;
             for(int iFace = 0; iFace < nFaces; ++iFace)
             {
-                CSG.Polytope cell = originalFaces[iFace];
-                CSG.Polytope[][] allElementsOfCell = cell.getAllElements();
-                for(int iDim = 0; iDim <= 3; ++iDim) // XXX should we have a grip for the cell center, which doesn't do anything? maybe!
+                double symmetry[][] = face2symmetry[iFace];
+                for(int iStickerThisFace = 0; iStickerThisFace < nStickersPerFace; ++iStickerThisFace)
                 {
-                    for(int iElt = 0; iElt < allElementsOfCell[iDim].length; ++iElt)
+                    int iSticker = iFace * nStickersPerFace + iStickerThisFace;
+                    sticker2face[iSticker] = iFace;
+                    VecMath.vxm(stickerCentersD[iSticker], cellStickerCenters[iStickerThisFace], symmetry);
+
+                    double verts[][] = cellStickerVerts[iStickerThisFace];
+                    int inds[][] = cellStickerInds[iStickerThisFace];
+                    for(int i = 0; i < verts.length; ++i)
+                        VecMath.vxm(restVerts[iVert + i], verts[i], symmetry);
+                    stickerInds[iSticker] = new int[inds.length][];
+                    for(int iPolygon = 0; iPolygon < inds.length; ++iPolygon)
                     {
-                        CSG.Polytope elt = allElementsOfCell[iDim][iElt];
-                        gripSymmetryOrders[iGrip] = CSG.calcRotationGroupOrder(
-                            originalPolytope.p, cell, elt,
-                            gripUsefulMats[iGrip]);
-
-                        CSG.cgOfVerts(gripCenterD, elt);
-                        // !! We can't use the element center,
-                        // that will end up having the same center
-                        // for different stickers on the same cubie!
-                        // So fudge it a little towards the cell center.
-                        // XXX should try to be more scientific...
-                        VecMath.lerp(gripCenterD, gripCenterD, faceCentersD[iFace], .01);
-
-                        gripCentersF[iGrip] = VecMath.doubleToFloat(gripCenterD);
-                        gripDims[iGrip] = iDim;
-                        grip2face[iGrip] = iFace;
-
-                        if(progress != null)
-                            progress.updateProgress(iGrip);
-                        //System.out.println("("+iDim+":"+gripSymmetryOrders[iGrip]+")");
+                        stickerInds[iSticker][iPolygon] = new int[inds[iPolygon].length];
+                        for(int i = 0; i < inds[iPolygon].length; ++i)
+                            stickerInds[iSticker][iPolygon][i] = iVert + inds[iPolygon][i];
+                    }
+                    iVert += verts.length;
 
-                        iGrip++;
+                    // Two stickers on the same boundary polygon
+                    // of neighboring faces are on the same cubie.
+                    double boundaryCenters[][] = cellStickerBoundaryCenters[iStickerThisFace];
+                    for(int i = 0; i < boundaryCenters.length; ++i)
+                    {
+                        VecMath.vxm(boundaryCenter, boundaryCenters[i], symmetry);
+                        int iNeighborSticker = boundaryPolygonTable.get(boundaryCenter, -1);
+                        if(iNeighborSticker == -1)
+                            boundaryPolygonTable.put(boundaryCenter, iSticker);
+                        else
+                            mf.merge(iNeighborSticker, iSticker);
                     }
                 }
             }
-            Assert(iGrip == nGrips);
+            Assert(iVert == restVerts.length);
+            setCubies(mf);
+        }
 
-            /*
-             * want to know, for each grip:
-             * - the grip center coords
-             * - its face center coords
-             * - its period
-             * for each slice using this grip (i.e. iterate through the slices parallel to the face the grip is on):
-             * - from indices of a CCW twist of this slice
-             * - to indices of a CCW twist of this slice
-             */
+        return restVerts;
+    } // sliceOneFaceAndReplicate
 
-        } // nDims == 4
+    //
+    // Returns the stickers whose volume is more than cutoff,
+    // i.e. the ones that aren't slivers.
+    // XXX - This is a hack for a hack.
+    //
+    private static CSG.SPolytope[] removeSlivers(CSG.SPolytope facets[], double cutoff)
+    {
+        CSG.SPolytope validFacets[] = new CSG.SPolytope[facets.length];
+        int nValidFacets = 0;
+        for(int i = 0; i < facets.length; i++)
+        {
+            double volume = Math.abs(facets[i].volume());
+            if(volume > cutoff)
+                validFacets[nValidFacets++] = facets[i];
+
+            // Warn if close to the cutoff.
+            double fraction = volume / cutoff;
+            if(0.5 < fraction && fraction < 2)
+            {
+                System.out.println("Warning! Sliver removal heuristic is cutting it too close (pun intended). v = " + volume + " c = " + cutoff);
+            }
+        }
+        return (CSG.SPolytope[]) com.donhatchsw.util.Arrays.subarray(
+            validFacets, 0, nValidFacets); // resize
+    }
+
+    //
+    // Sets sticker2cubie and _nCubies
+    // from a MergeFind in which stickers on the same cubie have been merged.
+    //
+    private void setCubies(MergeFind mf)
+    {
+        int nStickers = sticker2cubie.length;
+        for(int iSticker = 0; iSticker < nStickers; ++iSticker)
+            sticker2cubie[iSticker] = mf.find(iSticker);
+
+        _nCubies = 0;
+        for(int iSticker = 0; iSticker < nStickers; ++iSticker)
+            if(sticker2cubie[iSticker] == iSticker)
+                _nCubies++;
+        if(PropertyManager.getBoolean("debug", false))
+            System.out.println("    There seem to be " + _nCubies + " accessible cubie(s).");
+        // XXX note, we could easily collapse the cubie indicies
+        // XXX so that they are consecutive, if we cared
+    }
+
+    //
+    // Cyclically permutes polygon 1 of a sticker
+    // so that its first vertex does not occur on polygon 0.
+    //
+    private static void cycleSecondPolygonOffFirst(int polygons[][])
+    {
+        int polygon0[] = polygons[0];
+        int polygon1[] = polygons[1];
+        int i;
+        for(i = 0; i < polygon1.length; ++i)
+        {
+            int j;
+            for(j = 0; j < polygon0.length; ++j)
+            {
+                if(polygon1[i] == polygon0[j])
+                    break; // this i is no good
+            }
+            if(j == polygon0.length)
+                break; // this i is good
+        }
+        // Cyclic permute polygon1
+        // to put its [i] at [0]
+        if(i != 0)
+        {
+            int cycled[] = new int[polygon1.length];
+            for(int ii = 0; ii < cycled.length; ++ii)
+                cycled[ii] = polygon1[(i + ii) % cycled.length];
+            polygons[1] = cycled;
+        }
+    }
+
+    //
+    // Persistence, used by PuzzleCache.
+    // Only the tables needed to display and twist the puzzle are written;
+    // the CSG polytopes are not, so originalPolytope and slicedPolytope
+    // are null in a description that was read back from the cache.
+    //
+
+    // Bump this whenever the layout below or the way the geometry is built changes.
+    private final static int CACHE_FORMAT_VERSION = 3;
+
+    /**
+     * Identifies the cache layout together with the tuning constants
+     * that affect the built geometry, so that stale cache files get rebuilt.
+     */
+    static long cacheFormatHash()
+    {
+        long hash = CACHE_FORMAT_VERSION;
+        hash = hash * 31 + Double.doubleToLongBits(SLICE_MULTIPLIER);
+        hash = hash * 31 + Double.doubleToLongBits(SLICE_MULTIPLIER_SIMPLEX);
+        hash = hash * 31 + Double.doubleToLongBits(SLIVER_VOLUME_PERCENT);
+        return hash;
+    }
+
+    void writeCacheTables(java.io.DataOutputStream out) throws java.io.IOException
+    {
+        out.writeInt(_nDims);
+        out.writeFloat(_circumRadius);
+        out.writeFloat(_inRadius);
+        out.writeInt(_nCubies);
+
+        PuzzleCache.writeDoubles(out, faceInwardNormals);
+        PuzzleCache.writeDoubles(out, faceCutOffsets);
+        PuzzleCache.writeInts(out, face2OppositeFace);
+        PuzzleCache.writeDoubles(out, faceCentersD);
+
+        PuzzleCache.writeInts(out, sticker2face);
+        PuzzleCache.writeInts(out, sticker2cubie);
+        PuzzleCache.writeDoubles(out, stickerCentersD);
+        PuzzleCache.writeInts(out, stickerInds);
+        PuzzleCache.writeFloats(out, vertsMinusStickerCenters); // flattened
+
+        PuzzleCache.writeInts(out, gripSymmetryOrders);
+        PuzzleCache.writeDoubles(out, gripUsefulMats);
+        PuzzleCache.writeFloats(out, gripCentersF);
+        PuzzleCache.writeInts(out, gripDims);
+        PuzzleCache.writeInts(out, grip2face);
+
+        PuzzleCache.writeFloats(out, nicePointsToRotateToCenter);
+    } // writeCacheTables
+
+    /**
+     * Reads back what writeCacheTables wrote.
+     * The buffer must be positioned just past the cache header.
+     */
+    PolytopePuzzleDescription(java.nio.ByteBuffer in, String schlafliProduct, double length)
+    {
+        this.schlafliProduct = schlafliProduct;
+        this.edgeLength = length;
+
+        _nDims = in.getInt();
+        _circumRadius = in.getFloat();
+        _inRadius = in.getFloat();
+        _nCubies = in.getInt();
+
+        faceInwardNormals = PuzzleCache.readDoubles2(in);
+        faceCutOffsets = PuzzleCache.readDoubles2(in);
+        face2OppositeFace = PuzzleCache.readInts(in);
+        faceCentersD = PuzzleCache.readDoubles2(in);
+
+        sticker2face = PuzzleCache.readInts(in);
+        sticker2cubie = PuzzleCache.readInts(in);
+        stickerCentersD = PuzzleCache.readDoubles2(in);
+        stickerInds = PuzzleCache.readInts3(in);
+        vertsMinusStickerCenters = PuzzleCache.readFloats(in);
+
+        gripSymmetryOrders = PuzzleCache.readInts(in);
+        gripUsefulMats = PuzzleCache.readDoubles3(in);
+        gripCentersF = PuzzleCache.readFloats2(in);
+        gripDims = PuzzleCache.readInts(in);
+        grip2face = PuzzleCache.readInts(in);
+
+        nicePointsToRotateToCenter = PuzzleCache.readFloats2(in);
 
         //
-        // Select points worthy of being rotated to the center (-W axis).
+        // Everything else is cheap to derive from the above,
+        // the same way the main constructor does it.
         //
+        int nStickers = sticker2face.length;
+        sticker2faceShadow = VecMath.copyvec(sticker2face);
+        faceCenters = VecMath.doubleToFloat(faceCentersD);
+
+        stickerCentersHashTable = new FuzzyPointIntHashTable(_nDims, 1e-9, 1e-8, 1. / 128);
+        for(int iSticker = 0; iSticker < nStickers; ++iSticker)
+            stickerCentersHashTable.put(stickerCentersD[iSticker], iSticker);
+
+        float stickerCentersMinusFaceCentersF[][] = new float[nStickers][];
+        for(int iSticker = 0; iSticker < nStickers; ++iSticker)
+            stickerCentersMinusFaceCentersF[iSticker] = VecMath.doubleToFloat(
+                VecMath.vmv(stickerCentersD[iSticker], faceCentersD[sticker2face[iSticker]]));
+
+        _nVerts = vertsMinusStickerCenters.length / _nDims;
+        calcVertCenters(stickerCentersMinusFaceCentersF);
+        faceSticker2Slice = calcFaceSticker2Slice();
+    } // ctor from cache
+
+    // Fills in vertStickerCentersMinusFaceCenters and vertFaceCenters
+    // from the first sticker each vertex belongs to, and returns those stickers.
+    private int[] calcVertCenters(float stickerCentersMinusFaceCentersF[][])
+    {
+        int nDims = _nDims;
+        vertStickerCentersMinusFaceCenters = new float[_nVerts * nDims];
+        vertFaceCenters = new float[_nVerts * nDims];
+        int vert2sticker[] = VecMath.fillvec(_nVerts, -1);
+        for(int iSticker = 0; iSticker < stickerInds.length; ++iSticker)
         {
-            int nNicePoints = 0;
-            for(int iDim = 0; iDim < originalElements.length; ++iDim)
-                nNicePoints += originalElements[iDim].length;
-            nicePointsToRotateToCenter = new float[nNicePoints][nDims];
-            double eltCenter[] = new double[nDims];
-            int iNicePoint = 0;
-            for(int iDim = 0; iDim < originalElements.length; ++iDim)
-                for(int iElt = 0; iElt < originalElements[iDim].length; ++iElt)
+            float faceCenter[] = faceCenters[sticker2face[iSticker]];
+            for(int j = 0; j < stickerInds[iSticker].length; ++j)
+                for(int k = 0; k < stickerInds[iSticker][j].length; ++k)
                 {
-                    CSG.cgOfVerts(eltCenter, originalElements[iDim][iElt]);
-                    nicePointsToRotateToCenter[iNicePoint++] = VecMath.doubleToFloat(eltCenter);
-
+                    int iVert = stickerInds[iSticker][j][k];
+                    if(vert2sticker[iVert] != -1)
+                        continue;
+                    vert2sticker[iVert] = iSticker;
+                    System.arraycopy(stickerCentersMinusFaceCentersF[iSticker], 0, vertStickerCentersMinusFaceCenters, iVert * nDims, nDims);
+                    System.arraycopy(faceCenter, 0, vertFaceCenters, iVert * nDims, nDims);
                 }
-            Assert(iNicePoint == nNicePoints);
         }
-    } // ctor from schlafli and length
+        return vert2sticker;
+    } // calcVertCenters
 
     @Override
     public String toString()
     {
         String nl = System.getProperty("line.separator");
-        CSG.Polytope[][] allElements = slicedPolytope.p.getAllElements();
-        int sizes[] = new int[allElements.length];
-        for(int iDim = 0; iDim < sizes.length; ++iDim)
-            sizes[iDim] = allElements[iDim].length;
+        // The sliced polytope is not available when we were loaded from the cache
+        // or built by sliceOneFaceAndReplicate.
+        String counts = "(not available)";
+        if(slicedPolytope != null)
+        {
+            CSG.Polytope[][] allElements = slicedPolytope.p.getAllElements();
+            int sizes[] = new int[allElements.length];
+            for(int iDim = 0; iDim < sizes.length; ++iDim)
+                sizes[iDim] = allElements[iDim].length;
+            counts = com.donhatchsw.util.Arrays.toStringCompact(sizes);
+        }
         String answer = "{polytope counts per dim = "
-            + com.donhatchsw.util.Arrays.toStringCompact(sizes)
+            + counts
             + ", " + nl + "  nDims = " + nDims()
             + ", " + nl + "  nStickers = " + nStickers()
             + ", " + nl + "  nGrips = " + nGrips()
-            + ", " + nl + "  slicedPolytope = " + slicedPolytope.toString(true)
-            + ", " + nl + "  vertsMinusStickerCenters = " + com.donhatchsw.util.Arrays.toStringNonCompact(vertsMinusStickerCenters, "    ", "    ")
-            + ", " + nl + "  vertStickerCentersMinusFaceCenters = " + com.donhatchsw.util.Arrays.toStringNonCompact(vertStickerCentersMinusFaceCenters, "    ", "    ")
-            + ", " + nl + "  vertFaceCenters = " + com.donhatchsw.util.Arrays.toStringNonCompact(vertFaceCenters, "    ", "    ")
+            + ", " + nl + "  slicedPolytope = " + (slicedPolytope == null ? "null" : slicedPolytope.toString(true))
+            + ", " + nl + "  vertsMinusStickerCenters = " + com.donhatchsw.util.Arrays.toStringCompact(vertsMinusStickerCenters)
+            + ", " + nl + "  vertStickerCentersMinusFaceCenters = " + com.donhatchsw.util.Arrays.toStringCompact(vertStickerCentersMinusFaceCenters)
+            + ", " + nl + "  vertFaceCenters = " + com.donhatchsw.util.Arrays.toStringCompact(vertFaceCenters)
             + ", " + nl + "  stickerInds = " + com.donhatchsw.util.Arrays.toStringNonCompact(stickerInds, "    ", "    ")
             + ", " + nl + "  sticker2face = " + com.donhatchsw.util.Arrays.toStringNonCompact(sticker2face, "    ", "    ")
             + "}";
@@ -966,7 +1236,7 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
     {
         int order = gripSymmetryOrders[gripIndex];
         double angle = dir * (2 * Math.PI / order) * frac;
-        int nDims = slicedPolytope.p.fullDim;
+        int nDims = _nDims;
         return VecMath.mxmxm(VecMath.transpose(gripUsefulMats[gripIndex]),
             VecMath.makeRowRotMat(nDims, nDims - 2, nDims - 1, angle),
             gripUsefulMats[gripIndex]);
@@ -993,17 +1263,17 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
     @Override
     public int nDims()
     {
-        return slicedPolytope.p.fullDim;
+        return _nDims;
     }
     @Override
     public int nVerts()
     {
-        return vertsMinusStickerCenters.length;
+        return _nVerts;
     }
     @Override
     public int nFaces()
     {
-        return originalPolytope.p.facets.length;
+        return faceInwardNormals.length;
     }
     @Override
     public int nCubies()
@@ -1013,7 +1283,7 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
     @Override
     public int nStickers()
     {
-        return slicedPolytope.p.facets.length;
+        return sticker2face.length;
     }
     @Override
     public int nGrips()
@@ -1032,22 +1302,30 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
     }
 
     @Override
-    public void computeStickerVertsAtRest(float verts[/* nVerts */][/* nDims */],
+    public void computeStickerVertsAtRest(float verts[/* nVerts*nDims */],
         float faceShrink,
         float stickerShrink)
     {
         Assert(verts.length == vertsMinusStickerCenters.length);
+        for(int i = 0; i < verts.length; ++i)
+            verts[i] = (vertsMinusStickerCenters[i] * stickerShrink
+                + vertStickerCentersMinusFaceCenters[i]) * faceShrink
+                + vertFaceCenters[i];
+    }
+    @Override
+    public void computeStickerVertsAtRest(float verts[/* nVerts */][/* nDims */],
+        float faceShrink,
+        float stickerShrink)
+    {
+        Assert(verts.length == _nVerts);
         for(int iVert = 0; iVert < verts.length; ++iVert)
         {
-            float faceCenter[] = vertFaceCenters[iVert];
-            float stickerCenterMinusFaceCenter[] = vertStickerCentersMinusFaceCenters[iVert];
-            float vertMinusStickerCenter[] = vertsMinusStickerCenters[iVert];
             float vert[] = verts[iVert];
-            Assert(vert.length == vertMinusStickerCenter.length);
-            for(int j = 0; j < vert.length; ++j)
-                vert[j] = (vertMinusStickerCenter[j] * stickerShrink
-                    + stickerCenterMinusFaceCenter[j]) * faceShrink
-                    + faceCenter[j];
+            Assert(vert.length == _nDims);
+            for(int j = 0, i = iVert * _nDims; j < vert.length; ++j, ++i)
+                vert[j] = (vertsMinusStickerCenters[i] * stickerShrink
+                    + vertStickerCentersMinusFaceCenters[i]) * faceShrink
+                    + vertFaceCenters[i];
         }
     }
 
@@ -1239,6 +1517,32 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
         return nicePointsToRotateToCenter[bestIndex];
     }
     @Override
+    public void
+        computeStickerVertsPartiallyTwisted(
+            float verts[/* nVerts*nDims */],
+            float faceShrink,
+            float stickerShrink,
+            int gripIndex,
+            int dir,
+            int slicemask,
+            float frac)
+    {
+        Assert(verts.length == _nVerts * _nDims);
+        TwistScratch scratch = prepareTwist(gripIndex, dir, slicemask, frac);
+        System.arraycopy(getRestVerts(faceShrink, stickerShrink), 0, verts, 0, verts.length);
+        int nDims = _nDims;
+        float restVert[] = scratch.restVert;
+        float movedVert[] = scratch.movedVert;
+        int movedVerts[] = scratch.sliceTable.verts;
+        for(int i = 0; i < movedVerts.length; ++i)
+        {
+            int offset = movedVerts[i] * nDims;
+            System.arraycopy(verts, offset, restVert, 0, nDims);
+            VecMath.vxm(movedVert, restVert, scratch.twistMatF);
+            System.arraycopy(movedVert, 0, verts, offset, nDims);
+        }
+    } // getStickerVertsPartiallyTwisted
+    @Override
     public void
         computeStickerVertsPartiallyTwisted(
             float verts[/* nVerts */][/* nDims */],
@@ -1248,6 +1552,59 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
             int dir,
             int slicemask,
             float frac)
+    {
+        Assert(verts.length == _nVerts);
+        TwistScratch scratch = prepareTwist(gripIndex, dir, slicemask, frac);
+        float restVerts[] = getRestVerts(faceShrink, stickerShrink);
+        for(int iVert = 0; iVert < verts.length; ++iVert)
+            System.arraycopy(restVerts, iVert * _nDims, verts[iVert], 0, _nDims);
+        int movedVerts[] = scratch.sliceTable.verts;
+        for(int i = 0; i < movedVerts.length; ++i)
+        {
+            float vert[] = verts[movedVerts[i]];
+            VecMath.vxm(scratch.movedVert, vert, scratch.twistMatF);
+            VecMath.copyvec(vert, scratch.movedVert);
+        }
+    }
+
+    //
+    // Everything a twisting frame needs besides the caller's verts,
+    // kept around so that animating a twist doesn't allocate anything.
+    // The scratch space is per thread, since the puzzle description
+    // can be shared between threads.
+    //
+    private static class TwistScratch
+    {
+        final double gripUsefulMatTransposed[][];
+        final double rotMat[][];
+        final double temp[][];
+        final double twistMat[][];
+        final float twistMatF[][];
+        final float restVert[];
+        final float movedVert[];
+        // The slice table of the last twist, which is almost always the same as this one.
+        int face = -1, slicemask;
+        SliceTable sliceTable;
+        TwistScratch(int nDims)
+        {
+            gripUsefulMatTransposed = new double[nDims][nDims];
+            rotMat = new double[nDims][nDims];
+            temp = new double[nDims][nDims];
+            twistMat = new double[nDims][nDims];
+            twistMatF = new float[nDims][nDims];
+            restVert = new float[nDims];
+            movedVert = new float[nDims];
+        }
+    }
+    private final ThreadLocal<TwistScratch> twistScratch = new ThreadLocal<TwistScratch>() {
+        @Override
+        protected TwistScratch initialValue() {
+            return new TwistScratch(_nDims);
+        }
+    };
+
+    // Checks the twist and leaves its matrix and slice table in this thread's scratch space.
+    private TwistScratch prepareTwist(int gripIndex, int dir, int slicemask, float frac)
     {
         // Note, we purposely go through all the calculation
         // even if dir*frac is 0; we get more consistent timing that way.
@@ -1259,36 +1616,58 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
         if(slicemask == 0)
             slicemask = 1; // XXX is this the right place for this? lower and it might be time consuming, higher and too many callers will have to remember to do it
 
-        double matD[][] = getTwistMat(gripIndex, dir, frac);
-        float matF[][] = VecMath.doubleToFloat(matD);
+        TwistScratch scratch = twistScratch.get();
+
+        // Same as getTwistMat, but into the scratch space.
+        int order = gripSymmetryOrders[gripIndex];
+        double angle = dir * (2 * Math.PI / order) * frac;
+        int nDims = _nDims;
+        VecMath.transpose(scratch.gripUsefulMatTransposed, gripUsefulMats[gripIndex]);
+        VecMath.makeRowRotMat(scratch.rotMat, nDims - 2, nDims - 1, angle);
+        VecMath.mxm(scratch.temp, scratch.gripUsefulMatTransposed, scratch.rotMat);
+        VecMath.mxm(scratch.twistMat, scratch.temp, gripUsefulMats[gripIndex]);
+        for(int i = 0; i < nDims; ++i)
+            for(int j = 0; j < nDims; ++j)
+                scratch.twistMatF[i][j] = (float) scratch.twistMat[i][j];
 
-        float restVerts[][] = new float[nVerts()][nDims()];
-        computeStickerVertsAtRest(restVerts, faceShrink, stickerShrink);
-        boolean whichVertsGetMoved[] = new boolean[restVerts.length]; // false initially
         int iFace = grip2face[gripIndex];
-        double thisFaceInwardNormal[] = faceInwardNormals[iFace];
-        double thisFaceCutOffsets[] = faceCutOffsets[iFace];
-        for(int iSticker = 0; iSticker < stickerCentersD.length; ++iSticker)
+        if(scratch.face != iFace || scratch.slicemask != slicemask)
         {
-            if(pointIsInSliceMask(stickerCentersD[iSticker],
-                slicemask,
-                thisFaceInwardNormal,
-                thisFaceCutOffsets))
-            {
-                for(int i = 0; i < stickerInds[iSticker].length; ++i)
-                    for(int j = 0; j < stickerInds[iSticker][i].length; ++j)
-                        whichVertsGetMoved[stickerInds[iSticker][i][j]] = true;
-            }
+            scratch.sliceTable = getSliceTable(iFace, slicemask);
+            scratch.face = iFace;
+            scratch.slicemask = slicemask;
         }
+        return scratch;
+    } // prepareTwist
 
-        for(int iVert = 0; iVert < verts.length; ++iVert)
+    //
+    // The verts at rest for the most recently used shrinks,
+    // which the twisting verts start from.
+    //
+    private static class RestVerts
+    {
+        final float faceShrink, stickerShrink;
+        final float verts[];
+        RestVerts(float faceShrink, float stickerShrink, float verts[])
         {
-            if(whichVertsGetMoved[iVert])
-                verts[iVert] = VecMath.vxm(restVerts[iVert], matF);
-            else
-                verts[iVert] = restVerts[iVert];
+            this.faceShrink = faceShrink;
+            this.stickerShrink = stickerShrink;
+            this.verts = verts;
         }
-    } // getStickerVertsPartiallyTwisted
+    }
+    private volatile RestVerts restVerts;
+
+    private float[] getRestVerts(float faceShrink, float stickerShrink)
+    {
+        RestVerts rest = restVerts;
+        if(rest == null || rest.faceShrink != faceShrink || rest.stickerShrink != stickerShrink)
+        {
+            float verts[] = new float[_nVerts * _nDims];
+            computeStickerVertsAtRest(verts, faceShrink, stickerShrink);
+            restVerts = rest = new RestVerts(faceShrink, stickerShrink, verts);
+        }
+        return rest.verts;
+    }
     @Override
     public int[/* nStickers */] getSticker2Face()
     {
@@ -1350,61 +1729,236 @@ public class PolytopePuzzleDescription implements PuzzleDescription {
         int gripIndex,
         int dir,
         int slicemask)
+    {
+        applyTwistToState(state, gripIndex, dir, slicemask, new int[state.length]);
+    }
+
+    @Override
+    public void applyTwistToState(int state[/* nStickers */],
+        int gripIndex,
+        int dir,
+        int slicemask,
+        int scratch[/* >= nStickers */])
     {
         if(gripIndex < 0 || gripIndex >= nGrips())
             throw new IllegalArgumentException("applyTwistToState called on bad gripIndex " + gripIndex + ", there are " + nGrips() + " grips!");
-        if(gripSymmetryOrders[gripIndex] == 0)
+        int order = gripSymmetryOrders[gripIndex];
+        if(order == 0)
             throw new IllegalArgumentException("applyTwistToState called on gripIndex " + gripIndex + " which does not rotate!");
         if(state.length != stickerCentersD.length)
             throw new IllegalArgumentException("applyTwistToState called with wrong size state " + state.length + ", expected " + stickerCentersD.length + "!");
+        if(scratch.length < state.length)
+            throw new IllegalArgumentException("applyTwistToState called with scratch of size " + scratch.length + ", need at least " + state.length + "!");
 
         if(slicemask == 0)
             slicemask = 1; // XXX is this the right place for this? lower and it might be time consuming, higher and too many callers will have to remember to do it
 
-        double scratchVert[] = new double[nDims()];
-        double matD[][] = getTwistMat(gripIndex, dir, 1.);
-        int newState[] = new int[state.length];
-        int iFace = grip2face[gripIndex];
-        double thisFaceInwardNormal[] = faceInwardNormals[iFace];
-        double thisFaceCutOffsets[] = faceCutOffsets[iFace];
-        for(int iSticker = 0; iSticker < state.length; ++iSticker)
+        // dir is a number of CCW steps; do it the short way around.
+        int nSteps = ((dir % order) + order) % order;
+        boolean ccw = nSteps <= order / 2;
+        if(!ccw)
+            nSteps = order - nSteps;
+
+        int nSlices = getNumSlicesForGrip(gripIndex);
+        for(int iSlice = 0; iSlice < nSlices; ++iSlice)
         {
-            if(pointIsInSliceMask(stickerCentersD[iSticker],
-                slicemask,
-                thisFaceInwardNormal,
-                thisFaceCutOffsets))
+            if((slicemask & (1 << iSlice)) == 0)
+                continue;
+            int perm[] = getTwistPermutation(gripIndex, iSlice);
+            // perm is the "from" stickers followed by the "to" stickers.
+            int n = perm.length / 2;
+            int from = ccw ? 0 : n;
+            int to = ccw ? n : 0;
+            for(int iStep = 0; iStep < nSteps; ++iStep)
             {
-                VecMath.vxm(scratchVert, stickerCentersD[iSticker], matD);
-                Integer whereIstickerGoes = (Integer) stickerCentersHashTable.get(scratchVert);
-                Assert(whereIstickerGoes != null);
-                newState[whereIstickerGoes.intValue()] = state[iSticker];
+                for(int i = 0; i < n; ++i)
+                    scratch[i] = state[perm[from + i]];
+                for(int i = 0; i < n; ++i)
+                    state[perm[to + i]] = scratch[i];
             }
-            else
-                newState[iSticker] = state[iSticker];
         }
-        VecMath.copyvec(state, newState);
-        newState = null;
     } // applyTwistToState
 
+    @Override
+    public int[] getStickersInSlice(int gripIndex, int iSlice)
+    {
+        if(gripIndex < 0 || gripIndex >= nGrips())
+            throw new IllegalArgumentException("getStickersInSlice called on bad gripIndex " + gripIndex + ", there are " + nGrips() + " grips!");
+        if(iSlice < 0 || iSlice >= getNumSlicesForGrip(gripIndex))
+            throw new IllegalArgumentException("getStickersInSlice called on bad slice " + iSlice + ", grip " + gripIndex + " has " + getNumSlicesForGrip(gripIndex) + " slices!");
+        int perm[] = getTwistPermutation(gripIndex, iSlice);
+        // perm is the "from" stickers followed by the "to" stickers.
+        return java.util.Arrays.copyOf(perm, perm.length / 2);
+    }
+
+    //
+    // Sticker permutations of single-slice CCW twists, built on demand.
+    // For a twist of slice iSlice of grip iGrip, the table holds
+    // the stickers in that slice followed by where the twist takes each of them;
+    // a CW twist is the inverse.
+    // Big puzzles have lots of grips, so only the most recently used
+    // tables are kept, up to MAX_TWIST_PERMUTATION_INTS in total.
+    //
+    private final static int MAX_TWIST_PERMUTATION_INTS = 1 << 23;
+    private int twistPermutationInts = 0;
+    private final Map<Long, int[]> twistPermutations = new java.util.LinkedHashMap<Long, int[]>(16, .75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+            if(twistPermutationInts <= MAX_TWIST_PERMUTATION_INTS)
+                return false;
+            twistPermutationInts -= eldest.getValue().length;
+            return true;
+        }
+    };
+
+    private int[] getTwistPermutation(int gripIndex, int iSlice)
+    {
+        Long key = Long.valueOf((long) gripIndex << 32 | iSlice);
+        synchronized(twistPermutations)
+        {
+            int perm[] = twistPermutations.get(key);
+            if(perm == null)
+            {
+                perm = calcTwistPermutation(gripIndex, iSlice);
+                twistPermutationInts += perm.length;
+                twistPermutations.put(key, perm);
+            }
+            return perm;
+        }
+    }
+
+    private int[] calcTwistPermutation(int gripIndex, int iSlice)
+    {
+        double scratchVert[] = new double[nDims()];
+        double matD[][] = getTwistMat(gripIndex, 1, 1.);
+        int from[] = getSliceTable(grip2face[gripIndex], 1 << iSlice).stickers;
+        int n = from.length;
+        int perm[] = new int[2 * n];
+        System.arraycopy(from, 0, perm, 0, n);
+        for(int i = 0; i < n; ++i)
+        {
+            VecMath.vxm(scratchVert, stickerCentersD[from[i]], matD);
+            int whereIstickerGoes = stickerCentersHashTable.get(scratchVert, -1);
+            Assert(whereIstickerGoes != -1);
+            perm[n + i] = whereIstickerGoes;
+        }
+        return perm;
+    } // calcTwistPermutation
+
+
+    //
+    // The stickers, and the verts of those stickers,
+    // in the slices of a slicemask of a face, built on demand from faceSticker2Slice.
+    // Like the twist permutations, only the most recently used ones are kept.
+    //
+    private static class SliceTable
+    {
+        final int stickers[];
+        final int verts[];
+        SliceTable(int stickers[], int verts[])
+        {
+            this.stickers = stickers;
+            this.verts = verts;
+        }
+    }
+    private final static int MAX_SLICE_TABLE_INTS = 1 << 22;
+    private int sliceTableInts = 0;
+    private final Map<Long, SliceTable> sliceTables = new java.util.LinkedHashMap<Long, SliceTable>(16, .75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, SliceTable> eldest) {
+            if(sliceTableInts <= MAX_SLICE_TABLE_INTS)
+                return false;
+            sliceTableInts -= eldest.getValue().stickers.length + eldest.getValue().verts.length;
+            return true;
+        }
+    };
 
     // does NOT do the slicemask 0->1 correction
-    private static boolean pointIsInSliceMask(double point[],
-        int slicemask,
-        double cutNormal[],
-        double cutOffsets[])
+    private SliceTable getSliceTable(int iFace, int slicemask)
     {
-        // XXX a binary search would work better if num cuts is big.
-        // XXX really only need to check offsets between differing
-        // XXX bits of slicmask.
-        double pointHeight = VecMath.dot(point, cutNormal);
-        int iSlice = 0;
-        while(iSlice < cutOffsets.length
-            && pointHeight > cutOffsets[iSlice])
-            iSlice++;
-        boolean answer = (slicemask & (1 << iSlice)) != 0;
-        return answer;
+        Long key = Long.valueOf((long) iFace << 32 | (slicemask & 0xffffffffL));
+        synchronized(sliceTables)
+        {
+            SliceTable table = sliceTables.get(key);
+            if(table == null)
+            {
+                table = calcSliceTable(iFace, slicemask);
+                sliceTableInts += table.stickers.length + table.verts.length;
+                sliceTables.put(key, table);
+            }
+            return table;
+        }
     }
 
+    private SliceTable calcSliceTable(int iFace, int slicemask)
+    {
+        short sticker2slice[] = faceSticker2Slice[iFace];
+        int nStickers = sticker2slice.length;
+        int stickers[] = new int[nStickers];
+        int nStickersMoved = 0;
+        boolean whichVertsGetMoved[] = new boolean[_nVerts]; // false initially
+        int nVertsMoved = 0;
+        for(int iSticker = 0; iSticker < nStickers; ++iSticker)
+        {
+            int iSlice = sticker2slice[iSticker];
+            if(iSlice >= 32 || (slicemask & (1 << iSlice)) == 0)
+                continue;
+            stickers[nStickersMoved++] = iSticker;
+            for(int i = 0; i < stickerInds[iSticker].length; ++i)
+                for(int j = 0; j < stickerInds[iSticker][i].length; ++j)
+                {
+                    int iVert = stickerInds[iSticker][i][j];
+                    if(!whichVertsGetMoved[iVert])
+                    {
+                        whichVertsGetMoved[iVert] = true;
+                        nVertsMoved++;
+                    }
+                }
+        }
+        int verts[] = new int[nVertsMoved];
+        for(int iVert = 0, i = 0; iVert < whichVertsGetMoved.length; ++iVert)
+            if(whichVertsGetMoved[iVert])
+                verts[i++] = iVert;
+        return new SliceTable(java.util.Arrays.copyOf(stickers, nStickersMoved), verts);
+    } // calcSliceTable
+
+    //
+    // Slice 0 is bounded by -infinity and offset[0], slice i+1 by offset[i],offset[i+1], etc.,
+    // so this is a binary search of the sticker center's height along the face normal.
+    // Done once per face and sticker when the puzzle is built,
+    // so twists and animation frames never have to redo the geometry.
+    //
+    private short[][] calcFaceSticker2Slice()
+    {
+        int nFaces = faceCutOffsets.length;
+        int nStickers = stickerCentersD.length;
+        short faceSticker2Slice[][] = new short[nFaces][nStickers];
+        for(int iFace = 0; iFace < nFaces; ++iFace)
+        {
+            double cutNormal[] = faceInwardNormals[iFace];
+            double cutOffsets[] = faceCutOffsets[iFace];
+            Assert(cutOffsets.length < Short.MAX_VALUE);
+            for(int iSticker = 0; iSticker < nStickers; ++iSticker)
+            {
+                double pointHeight = VecMath.dot(stickerCentersD[iSticker], cutNormal);
+                // the first slice whose upper offset is >= pointHeight
+                int lo = 0, hi = cutOffsets.length;
+                while(lo < hi)
+                {
+                    int mid = (lo + hi) >>> 1;
+                    if(pointHeight > cutOffsets[mid])
+                        lo = mid + 1;
+                    else
+                        hi = mid;
+                }
+                faceSticker2Slice[iFace][iSticker] = (short) lo;
+            }
+        }
+        return faceSticker2Slice;
+    } // calcFaceSticker2Slice
+
 
     //
     // END OF GENERICPUZZLEDESCRIPTION INTERFACE METHODS
@@ -2,6 +2,7 @@ package com.superliminal.magiccube4d;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JProgressBar;
 import javax.swing.SwingUtilities;
@@ -20,7 +21,9 @@ import javax.swing.SwingWorker;
  */
 public abstract class ProgressManager extends SwingWorker<Void, Void> {
     private JProgressBar progressView;
-    private int max;
+    private volatile int max;
+    private final AtomicInteger count = new AtomicInteger(); // for incrementProgress
+    private volatile String note; // shown after every init string
 
     public ProgressManager(JProgressBar progress) {
         this.progressView = progress;
@@ -38,8 +41,10 @@ public abstract class ProgressManager extends SwingWorker<Void, Void> {
             });
     }
 
-    private void init(final String string, final boolean indeterminate, int mx) {
+    private void init(String str, final boolean indeterminate, int mx) {
+        final String string = note == null ? str : str + "  (" + note + ")";
         this.max = mx;
+        count.set(0);
         setProgress(0);
         SwingUtilities.invokeLater(new Runnable() {
             @Override
@@ -65,12 +70,28 @@ public abstract class ProgressManager extends SwingWorker<Void, Void> {
         init(string, true, 1);
     }
 
+    /*
+     * Sets some text to show along with the strings from subsequent inits,
+     * e.g. what the whole job is expected to cost.
+     */
+    public void setNote(String note) {
+        this.note = note;
+    }
+
     public void updateProgress(int progress) {
         int prog = (int) (100.0 * progress / max);
         //System.out.println(progressView.getString() + " " + progress + " out of " + max);
         super.setProgress(prog);
     }
 
+    /*
+     * Advances the bar by one step.
+     * Unlike updateProgress, this may be called from several worker threads at once.
+     */
+    public void incrementProgress() {
+        updateProgress(count.incrementAndGet());
+    }
+
     @Override
     public void done() {
         progressView.setVisible(false);
@@ -0,0 +1,287 @@
+package com.superliminal.magiccube4d;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.superliminal.util.PropertyManager;
+import com.superliminal.util.StaticUtils;
+
+/**
+ * Persistent on-disk cache of built puzzle descriptions.
+ * Building the larger puzzles means a lot of CSG slicing,
+ * but the resulting tables only depend on the schlafli product and length,
+ * so we write them out once and read them back in on later runs.
+ *
+ * Each cache file starts with a header holding the magic string,
+ * the format hash, the schlafli product and the length.
+ * A file whose header doesn't match is simply rebuilt and overwritten.
+ * Set the "puzzlecache" property to false to disable the cache.
+ */
+class PuzzleCache {
+    private final static String MAGIC = "MC4DPuzzleCache";
+
+    private PuzzleCache() {
+    }
+
+    public static boolean isEnabled() {
+        return PropertyManager.getBoolean("puzzlecache", true);
+    }
+
+    public static File getCacheDir() {
+        String dir = PropertyManager.top.getProperty("puzzlecache.dir");
+        if(dir == null)
+            dir = StaticUtils.getHomeDir() + File.separator + "MC4D.cache";
+        return new File(dir);
+    }
+
+    private static File getCacheFile(String schlafli, double length) {
+        // The header holds the exact key, so collisions only cost a rebuild.
+        String key = schlafli + " " + length;
+        return new File(getCacheDir(), "puzzle-" + Integer.toHexString(key.hashCode()) + ".cache");
+    }
+
+    /**
+     * Returns the cached puzzle with the given schlafli product and length,
+     * or null if there is no usable cache entry.
+     */
+    public static PolytopePuzzleDescription load(String schlafli, double length) {
+        if(!isEnabled())
+            return null;
+        File file = getCacheFile(schlafli, length);
+        if(!file.isFile())
+            return null;
+        try {
+            // Read rather than mapped, since a mapping outlives close() and would keep a stale file from being replaced on some systems.
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if(!MAGIC.equals(readString(in))
+                || in.getLong() != PolytopePuzzleDescription.cacheFormatHash()
+                || !schlafli.equals(readString(in))
+                || in.getDouble() != length)
+                return null;
+            PolytopePuzzleDescription puzzle = new PolytopePuzzleDescription(in, schlafli, length);
+            if(in.hasRemaining())
+                throw new IOException("trailing garbage");
+            return puzzle;
+        } catch(Exception e) {
+            // Truncated or otherwise corrupted. It will get rebuilt and rewritten.
+            System.err.println("Ignoring bad puzzle cache file " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the given puzzle to the cache.
+     * Failures are reported but otherwise ignored since the cache is only an optimization.
+     */
+    public static void save(PolytopePuzzleDescription puzzle) {
+        if(!isEnabled())
+            return;
+        File file = getCacheFile(puzzle.getSchlafliProduct(), puzzle.getEdgeLength());
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            File dir = file.getParentFile();
+            if(!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("couldn't create " + dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+            try {
+                writeString(out, MAGIC);
+                out.writeLong(PolytopePuzzleDescription.cacheFormatHash());
+                writeString(out, puzzle.getSchlafliProduct());
+                out.writeDouble(puzzle.getEdgeLength());
+                puzzle.writeCacheTables(out);
+            } finally {
+                out.close();
+            }
+            // Write then move so a crash never leaves a half-written cache file behind.
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch(AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch(IOException e) {
+            System.err.println("Couldn't write puzzle cache file " + file + ": " + e);
+            temp.delete();
+        }
+    }
+
+
+    //
+    // Array I/O helpers.
+    // Arrays are written as a length followed by the elements,
+    // with a length of -1 standing for null.
+    //
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+    static String readString(ByteBuffer in) throws IOException {
+        int len = in.getInt();
+        if(len < 0 || len > in.remaining() / 2)
+            throw new IOException("bad string length " + len);
+        char chars[] = new char[len];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + 2 * len);
+        return new String(chars);
+    }
+
+    static void writeInts(DataOutputStream out, int a[]) throws IOException {
+        if(a == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(a.length);
+        for(int i = 0; i < a.length; ++i)
+            out.writeInt(a[i]);
+    }
+    static void writeInts(DataOutputStream out, int a[][]) throws IOException {
+        if(a == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(a.length);
+        for(int i = 0; i < a.length; ++i)
+            writeInts(out, a[i]);
+    }
+    static void writeInts(DataOutputStream out, int a[][][]) throws IOException {
+        if(a == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(a.length);
+        for(int i = 0; i < a.length; ++i)
+            writeInts(out, a[i]);
+    }
+    static void writeFloats(DataOutputStream out, float a[]) throws IOException {
+        if(a == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(a.length);
+        for(int i = 0; i < a.length; ++i)
+            out.writeFloat(a[i]);
+    }
+    static void writeFloats(DataOutputStream out, float a[][]) throws IOException {
+        if(a == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(a.length);
+        for(int i = 0; i < a.length; ++i)
+            writeFloats(out, a[i]);
+    }
+    static void writeDoubles(DataOutputStream out, double a[]) throws IOException {
+        if(a == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(a.length);
+        for(int i = 0; i < a.length; ++i)
+            out.writeDouble(a[i]);
+    }
+    static void writeDoubles(DataOutputStream out, double a[][]) throws IOException {
+        if(a == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(a.length);
+        for(int i = 0; i < a.length; ++i)
+            writeDoubles(out, a[i]);
+    }
+    static void writeDoubles(DataOutputStream out, double a[][][]) throws IOException {
+        if(a == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(a.length);
+        for(int i = 0; i < a.length; ++i)
+            writeDoubles(out, a[i]);
+    }
+
+    private static int readLength(ByteBuffer in, int elementSize) {
+        int len = in.getInt();
+        if(len < -1 || len > in.remaining() / elementSize)
+            throw new IllegalArgumentException("bad array length " + len);
+        return len;
+    }
+
+    static int[] readInts(ByteBuffer in) {
+        int len = readLength(in, 4);
+        if(len == -1)
+            return null;
+        int a[] = new int[len];
+        in.asIntBuffer().get(a);
+        in.position(in.position() + 4 * len);
+        return a;
+    }
+    static int[][] readInts2(ByteBuffer in) {
+        int len = readLength(in, 4);
+        if(len == -1)
+            return null;
+        int a[][] = new int[len][];
+        for(int i = 0; i < len; ++i)
+            a[i] = readInts(in);
+        return a;
+    }
+    static int[][][] readInts3(ByteBuffer in) {
+        int len = readLength(in, 4);
+        if(len == -1)
+            return null;
+        int a[][][] = new int[len][][];
+        for(int i = 0; i < len; ++i)
+            a[i] = readInts2(in);
+        return a;
+    }
+    static float[] readFloats(ByteBuffer in) {
+        int len = readLength(in, 4);
+        if(len == -1)
+            return null;
+        float a[] = new float[len];
+        in.asFloatBuffer().get(a);
+        in.position(in.position() + 4 * len);
+        return a;
+    }
+    static float[][] readFloats2(ByteBuffer in) {
+        int len = readLength(in, 4);
+        if(len == -1)
+            return null;
+        float a[][] = new float[len][];
+        for(int i = 0; i < len; ++i)
+            a[i] = readFloats(in);
+        return a;
+    }
+    static double[] readDoubles(ByteBuffer in) {
+        int len = readLength(in, 8);
+        if(len == -1)
+            return null;
+        double a[] = new double[len];
+        in.asDoubleBuffer().get(a);
+        in.position(in.position() + 8 * len);
+        return a;
+    }
+    static double[][] readDoubles2(ByteBuffer in) {
+        int len = readLength(in, 4);
+        if(len == -1)
+            return null;
+        double a[][] = new double[len][];
+        for(int i = 0; i < len; ++i)
+            a[i] = readDoubles(in);
+        return a;
+    }
+    static double[][][] readDoubles3(ByteBuffer in) {
+        int len = readLength(in, 4);
+        if(len == -1)
+            return null;
+        double a[][][] = new double[len][][];
+        for(int i = 0; i < len; ++i)
+            a[i] = readDoubles2(in);
+        return a;
+    }
+}
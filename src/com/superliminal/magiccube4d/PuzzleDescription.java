@@ -27,7 +27,11 @@ interface PuzzleDescription {
     /**
      * Get the vertices of the geometry that gets drawn
      * (or picked when selecting a sticker rather than a grip) at rest.
+     * The flat version puts vertex i's coords at verts[i*nDims]..verts[i*nDims+nDims-1].
      */
+    public void computeStickerVertsAtRest(float verts[/* nVerts*nDims */],
+        float faceShrink,
+        float stickerShrink);
     public void computeStickerVertsAtRest(float verts[/* nVerts */][/* nDims */],
         float faceShrink,
         float stickerShrink);
@@ -92,7 +96,16 @@ interface PuzzleDescription {
      * partway through a twist.
      * Frac is the fraction of the total angle (which is not the same
      * as the fraction of the total time, if a smoothing function is used).
+     * The flat version lays out the verts the same way as computeStickerVertsAtRest.
      */
+    public void
+        computeStickerVertsPartiallyTwisted(float verts[/* nVerts*nDims */],
+            float faceShrink,
+            float stickerShrink,
+            int gripIndex,
+            int dir,
+            int slicemask,
+            float frac);
     public void
         computeStickerVertsPartiallyTwisted(float verts[/* nVerts */][/* nDims */],
             float faceShrink,
@@ -161,4 +174,21 @@ interface PuzzleDescription {
         int gripIndex,
         int dir,
         int slicemask);
+
+    /**
+     * Same as above, but uses the caller's scratch buffer
+     * (of length at least nStickers()) instead of allocating,
+     * for callers that apply lots of twists, such as log replay and scrambling.
+     */
+    public void applyTwistToState(int state[/* nStickers */],
+        int gripIndex,
+        int dir,
+        int slicemask,
+        int scratch[/* >= nStickers */]);
+
+    /**
+     * Get the stickers in one slice of a grip,
+     * i.e. the ones whose colors a twist of that slice moves around.
+     */
+    public int[] getStickersInSlice(int gripIndex, int iSlice);
 } // interface PuzzleDescription
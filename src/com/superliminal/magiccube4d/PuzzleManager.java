@@ -29,7 +29,9 @@ public class PuzzleManager
     public static int verboseLevel = 0; // set to something else to debug
 
     public PuzzleDescription puzzleDescription = null;
-    public int puzzleState[] = null;
+    public int puzzleState[] = null; // change only through applyTwistToState or resetPuzzleState
+    private SolvedTracker solvedTracker = null;
+    private int twistScratch[] = null; // for applying twists to puzzleState without allocating
     public Color faceColors[];
     private Color gray[] = {new Color(128, 128, 128)};
 
@@ -46,6 +48,26 @@ public class PuzzleManager
         if(puzzleDescription == null)
             return;
         puzzleState = VecMath.copyvec(puzzleDescription.getSticker2Face());
+        twistScratch = new int[puzzleState.length];
+        solvedTracker = new SolvedTracker(puzzleDescription, puzzleState);
+    }
+
+    /**
+     * Sets puzzleState to the given colors, such as ones saved in a History checkpoint.
+     */
+    public void setPuzzleStateNoEvent(int colors[]) {
+        nTwist = iTwist = 0;
+        if(colors.length != puzzleState.length)
+            throw new IllegalArgumentException("setPuzzleStateNoEvent called with wrong size state " + colors.length + ", expected " + puzzleState.length + "!");
+        System.arraycopy(colors, 0, puzzleState, 0, colors.length);
+        solvedTracker.reset(puzzleState);
+    }
+
+    /**
+     * Applies a twist to puzzleState, keeping track of whether it's solved.
+     */
+    public void applyTwistToState(int iGrip, int dir, int slicemask, int scratch[]) {
+        solvedTracker.applyTwist(puzzleState, iGrip, dir, slicemask, scratch);
     }
 
     //
@@ -77,6 +99,66 @@ public class PuzzleManager
         twistingFrame = untwistedFrame;
     } // XXX HACK for now, avoid any issue about clicking in the wrong one or something
 
+    /**
+     * Everything the geometry of a rest frame depends on,
+     * so that a repaint that only changes highlighting or colors
+     * can reuse the last frame instead of running the whole pipeline again.
+     * The puzzle state isn't part of it since it only affects the colors.
+     */
+    private static class RestFrameKey {
+        private PuzzleDescription puzzle; // null if untwistedFrame doesn't hold a reusable rest frame
+        private double viewMat4d[][] = new double[4][4];
+        private float faceShrink, stickerShrink, eyeW, eyeZ, viewScale;
+        private int xOff, yOff;
+        private float towardsSunVec[] = new float[3];
+        private boolean showShadows, do3dStepsOnly;
+
+        boolean matches(PuzzleDescription puzzle, double viewMat4d[][],
+            float faceShrink, float stickerShrink, float eyeW, float eyeZ, float viewScale,
+            int xOff, int yOff, float towardsSunVec[], boolean showShadows, boolean do3dStepsOnly)
+        {
+            if(this.puzzle == null || this.puzzle != puzzle)
+                return false;
+            for(int i = 0; i < 4; ++i)
+                for(int j = 0; j < 4; ++j)
+                    if(this.viewMat4d[i][j] != viewMat4d[i][j])
+                        return false;
+            return this.faceShrink == faceShrink
+                && this.stickerShrink == stickerShrink
+                && this.eyeW == eyeW
+                && this.eyeZ == eyeZ
+                && this.viewScale == viewScale
+                && this.xOff == xOff
+                && this.yOff == yOff
+                && java.util.Arrays.equals(this.towardsSunVec, towardsSunVec)
+                && this.showShadows == showShadows
+                && this.do3dStepsOnly == do3dStepsOnly;
+        }
+
+        void set(PuzzleDescription puzzle, double viewMat4d[][],
+            float faceShrink, float stickerShrink, float eyeW, float eyeZ, float viewScale,
+            int xOff, int yOff, float towardsSunVec[], boolean showShadows, boolean do3dStepsOnly)
+        {
+            this.puzzle = puzzle;
+            for(int i = 0; i < 4; ++i)
+                for(int j = 0; j < 4; ++j)
+                    this.viewMat4d[i][j] = viewMat4d[i][j];
+            this.faceShrink = faceShrink;
+            this.stickerShrink = stickerShrink;
+            this.eyeW = eyeW;
+            this.eyeZ = eyeZ;
+            this.viewScale = viewScale;
+            this.xOff = xOff;
+            this.yOff = yOff;
+            if(this.towardsSunVec.length != towardsSunVec.length)
+                this.towardsSunVec = new float[towardsSunVec.length];
+            System.arraycopy(towardsSunVec, 0, this.towardsSunVec, 0, towardsSunVec.length);
+            this.showShadows = showShadows;
+            this.do3dStepsOnly = do3dStepsOnly;
+        }
+    } // class RestFrameKey
+    private final RestFrameKey restFrameKey = new RestFrameKey();
+
 
     // Listener support
     public static interface PuzzleListener {
@@ -104,7 +186,15 @@ public class PuzzleManager
     }
 
 
-    public void initPuzzle(final String schlafli, final String lengthString, JProgressBar progressView, final JLabel statusLabel, boolean inBackground) {
+    public void initPuzzle(String schlafli, String lengthString, JProgressBar progressView, JLabel statusLabel, boolean inBackground) {
+        initPuzzle(schlafli, lengthString, progressView, statusLabel, inBackground, null);
+    }
+
+    /**
+     * @param estimate what it will take to build the puzzle if it's already been estimated, otherwise null.
+     */
+    public void initPuzzle(final String schlafli, final String lengthString, JProgressBar progressView, final JLabel statusLabel, boolean inBackground,
+        final BuildCostEstimate estimate) {
         statusLabel.setText("");
         final String finalLengthString = " " + prettyLength(Double.parseDouble(lengthString));
         ProgressManager builder = new ProgressManager(progressView) {
@@ -114,7 +204,7 @@ public class PuzzleManager
              */
             @Override
             public Void doInBackground() {
-                PuzzleDescription newPuzzle = buildPuzzle(schlafli, finalLengthString, this);
+                PuzzleDescription newPuzzle = buildPuzzle(schlafli, finalLengthString, estimate, this);
                 if(newPuzzle != null) {
                     succeeded = true;
                     puzzleDescription = newPuzzle;
@@ -169,36 +259,16 @@ public class PuzzleManager
             || iTwist < nTwist;
     }
 
-    // XXX - Should we move this to an interface method on the generic puzzle,
-    //		 and implement inside there?
+    /**
+     * Whether every face is all one color.
+     * Constant time, since the SolvedTracker keeps count as twists are applied.
+     */
     public boolean isSolved()
     {
-        int nFaces = puzzleDescription.nFaces();
-        int faceState[] = new int[nFaces];
-        VecMath.fillvec(faceState, -1);
-
-        // Cycle through all the stickers.
-        for(int s = 0; s < puzzleState.length; s++)
-        {
-            int faceIndex = puzzleDescription.getSticker2Face()[s];
-            if(faceState[faceIndex] == -1)
-            {
-                faceState[faceIndex] = puzzleState[s];
-                continue;
-            }
-
-            // Check for multiple colors on a single face.
-            if(puzzleState[s] != faceState[faceIndex])
-                return false;
-        }
-
-        // Our faceState vector should have no -1s in it.
-        // Perhaps we should assert this.
-        //System.out.println( "Pristine Puzzle" );
-        return true;
+        return solvedTracker == null || solvedTracker.isSolved();
     }
 
-    private static PuzzleDescription buildPuzzle(String schlafli, String lengthString, ProgressManager progressView) {
+    private static PuzzleDescription buildPuzzle(String schlafli, String lengthString, BuildCostEstimate estimate, ProgressManager progressView) {
         double len;
         try {
             len = Double.parseDouble(lengthString);
@@ -209,9 +279,28 @@ public class PuzzleManager
         }
 
         PuzzleDescription newPuzzle = null;
+        boolean fromCache = false;
         try
         {
-            newPuzzle = new PolytopePuzzleDescription(schlafli, len, progressView);
+            // Skip the whole CSG build when we've seen this puzzle before.
+            if(progressView != null)
+                progressView.init("Loading cached puzzle");
+            newPuzzle = PuzzleCache.load(schlafli, len);
+            fromCache = newPuzzle != null;
+            if(newPuzzle == null)
+            {
+                if(progressView != null)
+                {
+                    try {
+                        if(estimate == null)
+                            estimate = BuildCostEstimate.estimate(schlafli, len);
+                        progressView.setNote(estimate.shortDescription());
+                    } catch(Throwable t) {
+                        // The build itself will say what's wrong.
+                    }
+                }
+                newPuzzle = new PolytopePuzzleDescription(schlafli, len, progressView);
+            }
         } catch(Throwable t)
         {
             //t.printStacktrace();
@@ -251,6 +340,8 @@ public class PuzzleManager
             // XXX Lame, should try to get back in the loop and prompt again instead
             return null;
         }
+        if(!fromCache)
+            PuzzleCache.save((PolytopePuzzleDescription) newPuzzle); // only ones we accept
         return newPuzzle;
     }
 
@@ -506,6 +597,13 @@ public class PuzzleManager
                 view.repaint(); // make sure we keep drawing while there's more to do
         }
 
+        // Nothing that shows in a rest frame has changed since the last one,
+        // e.g. this is a repaint for a highlight change, so just draw it again.
+        boolean isRestFrame = iGripOfTwist == -1;
+        if(isRestFrame && restFrameKey.matches(puzzleDescription, viewMat4d, faceShrink, stickerShrink,
+            eyeW, eyeZ, viewScale, xOff, yOff, towardsSunVec, showShadows, do3dStepsOnly))
+            return frameToDrawInto;
+
         // old params... but I don't think it was doing it right
         //float[] groundNormal = showShadows ? new float[] {0,1,.1f} : null;
         //float groundOffset = -1.f;
@@ -521,7 +619,6 @@ public class PuzzleManager
 
         float viewMat4df[][] = VecMath.doubleToFloat(viewMat4d);
 
-        // XXX probably doing this more than necessary... when it's a rest frame that hasn't changed
         PipelineUtils.computeFrame(
             frameToDrawInto,
 
@@ -546,6 +643,11 @@ public class PuzzleManager
             do3dStepsOnly
             );
 
+        if(isRestFrame)
+            restFrameKey.set(puzzleDescription, viewMat4d, faceShrink, stickerShrink,
+                eyeW, eyeZ, viewScale, xOff, yOff, towardsSunVec, showShadows, do3dStepsOnly);
+        else
+            restFrameKey.puzzle = null; // the twisting frame draws into untwistedFrame too
         return frameToDrawInto;
     } // end computeFrame
 
@@ -581,11 +683,11 @@ public class PuzzleManager
             if(iTwist == nTwist)
             {
                 // End of twist animation-- apply the twist to the state.
-                puzzleDescription.applyTwistToState(
-                    puzzleState,
+                applyTwistToState(
                     iTwistGrip,
                     twistDir,
-                    twistSliceMask);
+                    twistSliceMask,
+                    twistScratch);
                 Audio.stop(Audio.Sound.TWISTING);
                 Audio.play(Audio.Sound.SNAP);
             }
@@ -638,7 +740,7 @@ public class PuzzleManager
             int slicemask = 1 << rand.nextInt(gripSlices);
             int dir = rand.nextBoolean() ? -1 : 1;
             // apply the twist to the puzzle state.
-            puzzleDescription.applyTwistToState(puzzleState, iGrip, dir, slicemask);
+            applyTwistToState(iGrip, dir, slicemask, twistScratch);
         }
     }
 
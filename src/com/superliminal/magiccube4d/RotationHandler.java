@@ -47,6 +47,38 @@ public class RotationHandler {
         }
     }
 
+    void write(LogFile.Output out) throws IOException {
+        for(int i = 0; i < 4; i++) {
+            for(int j = 0; j < 4; j++) {
+                out.write("" + viewMat4d[i][j]);
+                out.write(j == 3 ? System.getProperty("line.separator") : " ");
+            }
+        }
+    }
+
+    void read(LogFile.Input in) throws IOException {
+        for(int i = 0; i < 4; i++) {
+            for(int j = 0; j < 4; j++) {
+                viewMat4d[i][j] = in.readDouble();
+                if(j < 3 && in.read() != ' ')
+                    throw new IOException("Bad view matrix in log file.");
+            }
+            in.readLine(); // the rest of the row
+        }
+    }
+
+    void writeBinary(LogFile.Output out) throws IOException {
+        for(int i = 0; i < 4; i++)
+            for(int j = 0; j < 4; j++)
+                out.writeFixedDouble(viewMat4d[i][j]);
+    }
+
+    void readBinary(LogFile.Input in) throws IOException {
+        for(int i = 0; i < 4; i++)
+            for(int j = 0; j < 4; j++)
+                viewMat4d[i][j] = in.readFixedDouble();
+    }
+
     // 4D Variables.
     private double spinDelta[][];
     private double viewMat4d[][] = VecMath.identitymat(4);
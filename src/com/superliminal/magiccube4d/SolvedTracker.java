@@ -0,0 +1,91 @@
+package com.superliminal.magiccube4d;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of whether a puzzle state is solved, i.e. whether every face
+ * is all one color, without looking at the whole state every time.
+ * It keeps a histogram of the colors on each face, and the number of faces
+ * with more than one color on them, and updates those for just
+ * the stickers that each twist moves.
+ *
+ * All changes to the state must either go through applyTwist
+ * or be followed by a reset.
+ */
+public class SolvedTracker {
+    private final PuzzleDescription puzzle;
+    private final int sticker2face[];
+    private final int faceColorCounts[][]; // [face][color]
+    private final int nColorsOnFace[];
+    private int nMixedFaces;
+    private int movedStickers[] = new int[0]; // scratch for applyTwist
+
+    public SolvedTracker(PuzzleDescription puzzle, int state[]) {
+        this.puzzle = puzzle;
+        int nFaces = puzzle.nFaces();
+        sticker2face = puzzle.getSticker2Face();
+        faceColorCounts = new int[nFaces][nFaces];
+        nColorsOnFace = new int[nFaces];
+        reset(state);
+    }
+
+    /**
+     * Starts over from scratch with the given state.
+     */
+    public void reset(int state[]) {
+        if(state.length != sticker2face.length)
+            throw new IllegalArgumentException("SolvedTracker.reset called with wrong size state " + state.length + ", expected " + sticker2face.length + "!");
+        for(int iFace = 0; iFace < faceColorCounts.length; ++iFace) {
+            Arrays.fill(faceColorCounts[iFace], 0);
+            nColorsOnFace[iFace] = 0;
+        }
+        nMixedFaces = 0;
+        for(int iSticker = 0; iSticker < state.length; ++iSticker)
+            addSticker(iSticker, state[iSticker]);
+    }
+
+    public boolean isSolved() {
+        return nMixedFaces == 0;
+    }
+
+    /**
+     * Applies a twist to the state, as PuzzleDescription.applyTwistToState does,
+     * and updates the counts for the stickers it moved.
+     */
+    public void applyTwist(int state[], int gripIndex, int dir, int slicemask, int scratch[]) {
+        if(slicemask == 0)
+            slicemask = 1; // same as applyTwistToState
+        int nMoved = 0;
+        int nSlices = puzzle.getNumSlicesForGrip(gripIndex);
+        for(int iSlice = 0; iSlice < nSlices; ++iSlice) {
+            if((slicemask & (1 << iSlice)) == 0)
+                continue;
+            int inSlice[] = puzzle.getStickersInSlice(gripIndex, iSlice);
+            if(nMoved + inSlice.length > movedStickers.length)
+                movedStickers = Arrays.copyOf(movedStickers, Math.max(2 * movedStickers.length, nMoved + inSlice.length));
+            System.arraycopy(inSlice, 0, movedStickers, nMoved, inSlice.length);
+            nMoved += inSlice.length;
+        }
+        for(int i = 0; i < nMoved; ++i)
+            removeSticker(movedStickers[i], state[movedStickers[i]]);
+        try {
+            puzzle.applyTwistToState(state, gripIndex, dir, slicemask, scratch);
+        } finally {
+            // Put back whatever is there now, even if the twist was refused.
+            for(int i = 0; i < nMoved; ++i)
+                addSticker(movedStickers[i], state[movedStickers[i]]);
+        }
+    }
+
+    private void addSticker(int iSticker, int color) {
+        int iFace = sticker2face[iSticker];
+        if(faceColorCounts[iFace][color]++ == 0 && ++nColorsOnFace[iFace] == 2)
+            nMixedFaces++;
+    }
+
+    private void removeSticker(int iSticker, int color) {
+        int iFace = sticker2face[iSticker];
+        if(--faceColorCounts[iFace][color] == 0 && nColorsOnFace[iFace]-- == 2)
+            nMixedFaces--;
+    }
+}
@@ -1,9 +1,20 @@
 package com.superliminal.test;
 
+import com.donhatchsw.util.VecMath;
 import com.superliminal.magiccube4d.*;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class ModuleTest
@@ -12,15 +23,32 @@ public class ModuleTest
     {
         try
         {
-            testInternal(MagicCube.SUPPORTED_PUZZLES);
+            Map<String, Integer> serialFingerprints = testInternal(MagicCube.SUPPORTED_PUZZLES);
+            testConcurrentBuilds(MagicCube.SUPPORTED_PUZZLES, serialFingerprints);
+            testSliceBySymmetry(new String[][]{{"{3,3,3}", "1,2,3,4,5"}, {"{4,3,3}", "1,2,3,4,5"}, {"{5,3,3}", "1,2"}});
+            testSolvedTracker(new String[][]{{"{4,3,3}", "3"}, {"{3,3,3}", "4"}, {"{5}x{4}", "3"}, {"{5,3}x{}", "2"}});
+            testHistoryOps();
+            testHistoryMarks();
+            testLogFiles();
+            testLogRedo();
+            testJournal();
+            testHistoryCheckpoints("{4,3,3}", 3);
+            testHistoryCompress(new String[][]{{"{4,3,3}", "3"}, {"{3,3,3}", "4"}, {"{5}x{4}", "3"}});
+            testFrameAllocations(new String[][]{{"{4,3,3}", "3"}, {"{5,3,3}", "2"}});
+            testRestFrameReuse();
+            testParallelFrames(new String[][]{{"{4,3,3}", "5"}, {"{5}x{4}", "7"}});
         } catch(Exception e)
         {
+            e.printStackTrace();
             System.out.println("Module test failed.");
+            System.exit(1);
         }
     }
 
-    private static void testInternal(String puzzles[][]) throws IOException
+    // Returns the fingerprint of each puzzle built, keyed by puzzle string.
+    private static Map<String, Integer> testInternal(String puzzles[][]) throws IOException
     {
+        Map<String, Integer> fingerprints = new LinkedHashMap<String, Integer>();
         Writer writer = new FileWriter("test/puzzleBuildTest.ref");
         String sep = System.getProperty("line.separator");
 
@@ -45,6 +73,7 @@ public class ModuleTest
                 writer.write("NumStickers:\t" + puzzle.nStickers() + sep);
                 writer.write("NumGrips:\t" + puzzle.nGrips() + sep);
                 writer.write(sep);
+                fingerprints.put(puzzleString, fingerprint(puzzle));
 
                 /*
                  * Not part of the test output at this point,
@@ -63,5 +92,938 @@ public class ModuleTest
         }
 
         writer.close();
+        return fingerprints;
+    }
+
+    /*
+     * Builds all the puzzles again, several at a time and from scratch,
+     * and makes sure each comes out the same as it did when built by itself.
+     */
+    private static void testConcurrentBuilds(String puzzles[][], Map<String, Integer> serialFingerprints) throws Exception
+    {
+        PolytopePuzzleDescription.clearBlueprintCache();
+        int nThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        List<String> puzzleStrings = new ArrayList<String>();
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        try
+        {
+            for(int i = 0; i < puzzles.length; ++i)
+            {
+                final String schlafli = puzzles[i][0];
+                if(schlafli == null)
+                    continue;
+                String lengthStrings[] = puzzles[i][1].split(",");
+                for(int j = 0; j < lengthStrings.length; ++j)
+                {
+                    final double len = Double.parseDouble(lengthStrings[j]);
+                    puzzleStrings.add("" + schlafli + " " + len);
+                    results.add(pool.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return fingerprint(new PolytopePuzzleDescription(schlafli, len, null));
+                        }
+                    }));
+                }
+            }
+
+            int nDifferent = 0;
+            for(int i = 0; i < results.size(); ++i)
+            {
+                String puzzleString = puzzleStrings.get(i);
+                if(!results.get(i).get().equals(serialFingerprints.get(puzzleString)))
+                {
+                    System.out.println("Concurrent build of " + puzzleString + " differs from serial build.");
+                    nDifferent++;
+                }
+            }
+            if(nDifferent != 0)
+                throw new Exception(nDifferent + " concurrent build(s) differ from serial builds");
+            System.out.println("All " + results.size() + " concurrent builds match serial builds.");
+        } finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Builds the regular puzzles both by slicing one face and copying it around by symmetry
+     * and by slicing the whole polytope, making sure the grips come out the same.
+     * Grip ids are saved in every log and macro file, so they mustn't depend on how the puzzle was built.
+     */
+    private static void testSliceBySymmetry(String puzzles[][]) throws Exception
+    {
+        int nBuilt = 0;
+        for(int i = 0; i < puzzles.length; ++i)
+        {
+            String lengthStrings[] = puzzles[i][1].split(",");
+            for(int j = 0; j < lengthStrings.length; ++j)
+            {
+                double len = Double.parseDouble(lengthStrings[j]);
+                com.superliminal.util.PropertyManager.top.setProperty("slicebysymmetry", "false");
+                PolytopePuzzleDescription whole = new PolytopePuzzleDescription(puzzles[i][0], len, null);
+                com.superliminal.util.PropertyManager.top.setProperty("slicebysymmetry", "true");
+                PolytopePuzzleDescription bySymmetry = new PolytopePuzzleDescription(puzzles[i][0], len, null);
+                boolean same = whole.nGrips() == bySymmetry.nGrips()
+                    && whole.nStickers() == bySymmetry.nStickers()
+                    && whole.nCubies() == bySymmetry.nCubies()
+                    && whole.nFaces() == bySymmetry.nFaces()
+                    && Arrays.equals(whole.getGrip2Face(), bySymmetry.getGrip2Face())
+                    && Arrays.equals(whole.getGripSymmetryOrders(), bySymmetry.getGripSymmetryOrders());
+                for(int iGrip = 0; iGrip < whole.nGrips() && same; ++iGrip)
+                    same = Arrays.equals(whole.getGripCoords(iGrip), bySymmetry.getGripCoords(iGrip));
+                if(!same)
+                    throw new Exception("Slicing " + puzzles[i][0] + " " + len + " by symmetry doesn't match slicing the whole thing");
+                ++nBuilt;
+            }
+        }
+        com.superliminal.util.PropertyManager.top.remove("slicebysymmetry");
+        System.out.println("Slicing by symmetry agrees on " + nBuilt + " puzzles.");
+    }
+
+    /*
+     * Scrambles some puzzles and then undoes the scramble, making sure
+     * the SolvedTracker agrees with looking at every sticker after each twist.
+     */
+    private static void testSolvedTracker(String puzzles[][]) throws Exception
+    {
+        java.util.Random rand = new java.util.Random(0);
+        for(int i = 0; i < puzzles.length; ++i)
+        {
+            PolytopePuzzleDescription puzzle = new PolytopePuzzleDescription(puzzles[i][0], Double.parseDouble(puzzles[i][1]), null);
+            int state[] = puzzle.getSticker2Face().clone();
+            int scratch[] = new int[state.length];
+            SolvedTracker tracker = new SolvedTracker(puzzle, state);
+            int nTwists = 100;
+            int grips[] = new int[nTwists], dirs[] = new int[nTwists], slicemasks[] = new int[nTwists];
+            for(int iTwist = 0; iTwist < 2 * nTwists; ++iTwist)
+            {
+                if(iTwist < nTwists)
+                {
+                    do
+                        grips[iTwist] = rand.nextInt(puzzle.nGrips());
+                    while(puzzle.getGripSymmetryOrders()[grips[iTwist]] < 2);
+                    dirs[iTwist] = rand.nextBoolean() ? 1 : -1;
+                    slicemasks[iTwist] = rand.nextInt(1 << puzzle.getNumSlicesForGrip(grips[iTwist]));
+                    tracker.applyTwist(state, grips[iTwist], dirs[iTwist], slicemasks[iTwist], scratch);
+                }
+                else
+                {
+                    int undo = 2 * nTwists - 1 - iTwist;
+                    tracker.applyTwist(state, grips[undo], -dirs[undo], slicemasks[undo], scratch);
+                }
+                if(tracker.isSolved() != isSolvedTheHardWay(puzzle, state))
+                    throw new Exception("Solved tracker got " + puzzles[i][0] + " " + puzzles[i][1] + " wrong after " + (iTwist + 1) + " twists");
+            }
+            if(!tracker.isSolved())
+                throw new Exception("Solved tracker says " + puzzles[i][0] + " " + puzzles[i][1] + " isn't solved after undoing the scramble");
+        }
+        System.out.println("Solved tracker agrees on " + puzzles.length + " scrambled puzzles.");
+    }
+
+    /*
+     * Applies, undoes, redoes, marks, truncates and reverses,
+     * checking the nodes of the history and where current is after each against what they should be.
+     * Then does lots of random applies, undos and redos over many blocks of nodes
+     * and checks the moves against a plain list of them.
+     */
+    private static void testHistoryOps() throws Exception
+    {
+        History hist = new History(3);
+        hist.apply(new MagicCube.TwistData(1, 1, 1));
+        hist.apply(new MagicCube.TwistData(2, 1, 1));
+        hist.apply(new MagicCube.TwistData(3, -1, 2));
+        checkHistory(hist, "1,1,1 2,1,1 3,-1,2.", "applying");
+        checkMove(hist.undo(), "3,1,2", "undoing");
+        checkHistory(hist, "1,1,1 2,1,1 c 3,-1,2.", "undoing");
+        checkMove(hist.undo(), "2,-1,1", "undoing twice");
+        checkHistory(hist, "1,1,1 c 2,1,1 3,-1,2.", "undoing twice");
+        checkMove(hist.redo(), "2,1,1", "redoing");
+        checkHistory(hist, "1,1,1 2,1,1 c 3,-1,2.", "redoing");
+        hist.apply(new MagicCube.TwistData(4, 1, 1));
+        checkHistory(hist, "1,1,1 2,1,1 4,1,1.", "applying after undoing");
+        checkMove(hist.redo(), null, "redoing after applying");
+        hist.apply(new MagicCube.TwistData(4, -1, 1));
+        checkHistory(hist, "1,1,1 2,1,1.", "applying an inverse");
+        hist.mark(History.MARK_MACRO_OPEN);
+        hist.apply(new MagicCube.TwistData(5, 1, 1));
+        hist.apply(new MagicCube.TwistData(6, 1, 4));
+        hist.mark(History.MARK_MACRO_CLOSE);
+        checkHistory(hist, "1,1,1 2,1,1 m[ 5,1,1 6,1,4 m].", "marking");
+        checkMove(hist.undo(), "6,-1,4", "undoing past a mark");
+        checkHistory(hist, "1,1,1 2,1,1 m[ 5,1,1 c 6,1,4 m].", "undoing past a mark");
+        checkMove(hist.redo(), "6,1,4", "redoing up to a mark");
+        checkHistory(hist, "1,1,1 2,1,1 m[ 5,1,1 6,1,4 c m].", "redoing up to a mark");
+        hist.goToEnd();
+        hist.removeAllMarks(History.MARK_MACRO_OPEN);
+        checkHistory(hist, "1,1,1 2,1,1 5,1,1 6,1,4 m].", "removing marks");
+        hist.goToBeginning();
+        hist.goToNext();
+        hist.goToNext();
+        checkHistory(hist, "1,1,1 2,1,1 c 5,1,1 6,1,4 m].", "going to a node");
+        hist.removeAllMarks();
+        checkHistory(hist, "1,1,1 2,1,1 c 5,1,1 6,1,4.", "removing all marks");
+        hist.truncate();
+        checkHistory(hist, "1,1,1 2,1,1.", "truncating");
+        hist.apply(new MagicCube.TwistData(5, 1, 1));
+        hist.apply(new MagicCube.TwistData(6, -1, 2));
+        hist.reverse();
+        checkHistory(hist, "6,1,2 5,-1,1 2,-1,1 1,-1,1.", "reversing");
+        hist.deleteLast();
+        checkHistory(hist, "6,1,2 5,-1,1 2,-1,1.", "deleting the last node");
+        hist.clear();
+        checkHistory(hist, ".", "clearing");
+
+        java.util.Random rand = new java.util.Random(0);
+        List<String> twists = new ArrayList<String>(); // done and undone
+        int nDone = 0;
+        for(int iOp = 0; iOp < 5000; ++iOp)
+        {
+            int op = rand.nextInt(20);
+            if(op < 12)
+            {
+                // Few enough different twists that there are lots of inverses to back out.
+                MagicCube.TwistData move = new MagicCube.TwistData(rand.nextInt(3), rand.nextBoolean() ? 1 : -1, 1 << rand.nextInt(2));
+                hist.apply(move);
+                twists.subList(nDone, twists.size()).clear();
+                move.direction *= -1;
+                if(nDone > 0 && twists.get(nDone - 1).equals(format(move)))
+                    twists.remove(--nDone);
+                else
+                {
+                    move.direction *= -1;
+                    twists.add(format(move));
+                    ++nDone;
+                }
+            }
+            else if(op < 17)
+            {
+                MagicCube.TwistData move = hist.undo();
+                if(nDone == 0)
+                    checkMove(move, null, "undoing at the beginning");
+                else
+                {
+                    move.direction *= -1;
+                    checkMove(move, twists.get(--nDone), "undoing");
+                }
+            }
+            else if(op < 19)
+            {
+                checkMove(hist.redo(), nDone == twists.size() ? null : twists.get(nDone), "redoing");
+                nDone = Math.min(nDone + 1, twists.size());
+            }
+            else
+            {
+                hist.truncate();
+                twists.subList(nDone, twists.size()).clear();
+            }
+            MagicCube.TwistData moves[] = hist.movesArray();
+            List<String> got = new ArrayList<String>();
+            for(int i = 0; i < moves.length; ++i)
+                got.add(format(moves[i]));
+            if(!got.equals(twists.subList(0, nDone)) || hist.countTwists() != nDone)
+                throw new Exception("History has the wrong moves after " + iOp + " random operations");
+        }
+        System.out.println("History operations agree on " + twists.size() + " twists.");
+    }
+
+    /*
+     * Inserts and deletes marks and twists all through a history,
+     * checking after each change that finding marks agrees with looking through the nodes one by one.
+     */
+    private static void testHistoryMarks() throws Exception
+    {
+        char markChars[] = {History.MARK_MACRO_OPEN, History.MARK_MACRO_CLOSE, History.MARK_SCRAMBLE_BOUNDARY, History.MARK_SETUP_MOVES};
+        java.util.Random rand = new java.util.Random(0);
+        History hist = new History(3);
+        int current[] = new int[1];
+        int nChecks = 0;
+        for(int iOp = 0; iOp < 4000; ++iOp)
+        {
+            List<String> nodes = nodesOf(hist.toString(), current);
+            char mark = markChars[rand.nextInt(markChars.length)];
+            int op = rand.nextInt(20);
+            if(op < 6)
+            {
+                hist.mark(mark);
+                nodes.add(current[0], "m" + mark);
+            }
+            else if(op < 10)
+            {
+                if(rand.nextInt(100) != 0)
+                    hist.goToEnd(); // mostly, so the history grows instead of getting truncated
+                hist.apply(new MagicCube.TwistData(rand.nextInt(3), rand.nextBoolean() ? 1 : -1, 1 << rand.nextInt(2)));
+                nodes = null; // checked by testHistoryOps()
+            }
+            else if(op < 12)
+            {
+                boolean backwards = rand.nextBoolean();
+                int i = findMark(nodes, current[0], mark, backwards);
+                if(backwards)
+                    hist.removeLastMark(mark);
+                else
+                    hist.removeNextMark(mark);
+                if(i != -1)
+                    nodes.remove(i);
+            }
+            else if(op < 13)
+            {
+                hist.removeAllMarks(mark);
+                while(nodes.remove("m" + mark))
+                    ;
+            }
+            else if(op < 14)
+            {
+                hist.deleteLast();
+                if(!nodes.isEmpty())
+                    nodes.remove(nodes.size() - 1);
+            }
+            else if(op < 17)
+            {
+                boolean backwards = rand.nextBoolean();
+                int i = findMark(nodes, current[0], mark, backwards);
+                if(hist.goTowardsMark(mark, backwards) != (i != -1))
+                    throw new Exception("History didn't find the mark " + mark + " that's there, or found one that isn't");
+                checkCurrent(hist, i == -1 ? current[0] : i, "going towards a mark");
+            }
+            else
+            {
+                // Go somewhere at random so the other changes happen all over.
+                int i = rand.nextInt(nodes.size() + 1);
+                hist.goToBeginning();
+                for(int n = 0; n < i; ++n)
+                    hist.goToNext();
+                checkCurrent(hist, i, "going to a node");
+            }
+            List<String> got = nodesOf(hist.toString(), current);
+            if(nodes != null && !got.equals(nodes))
+                throw new Exception("History has the wrong nodes after " + iOp + " random operations");
+            nodes = got;
+            int cur = current[0], size = nodes.size();
+            int expectedLast = -1, expectedNext = -1;
+            for(int i = cur == size ? size - 1 : cur; i >= 0 && expectedLast == -1; --i)
+                if(nodes.get(i).startsWith("m"))
+                    expectedLast = nodes.get(i).charAt(1);
+            for(int i = cur + 1; i < size && cur != size && expectedNext == -1; ++i)
+                if(nodes.get(i).startsWith("m"))
+                    expectedNext = nodes.get(i).charAt(1);
+            if(hist.lastMark() != expectedLast || hist.nextMark() != expectedNext)
+                throw new Exception("History found the wrong last or next mark after " + iOp + " random operations");
+            for(int m = 0; m < markChars.length; ++m)
+            {
+                List<String> expected = new ArrayList<String>();
+                int from = findMark(nodes, cur, markChars[m], true);
+                for(int i = from + 1; i < size && from != -1; ++i)
+                    if(!nodes.get(i).startsWith("m"))
+                        expected.add(nodes.get(i));
+                List<String> moves = new ArrayList<String>();
+                for(java.util.Enumeration<MagicCube.TwistData> e = hist.movesFromMark(markChars[m]); e.hasMoreElements();)
+                    moves.add(format(e.nextElement()));
+                boolean atMark = cur != size && nodes.get(cur).equals("m" + markChars[m]);
+                for(int i = cur == size ? size - 1 : cur - 1; i >= 0 && nodes.get(i).startsWith("m"); --i)
+                    atMark |= nodes.get(i).equals("m" + markChars[m]);
+                if(!moves.equals(expected) || hist.atMark(markChars[m]) != atMark)
+                    throw new Exception("History went wrong looking for mark " + markChars[m] + " after " + iOp + " random operations");
+            }
+            ++nChecks;
+        }
+        System.out.println("History marks agree on " + nChecks + " changes.");
+    }
+
+    /*
+     * Looks through the nodes one by one from the current one for the given mark, like History does.
+     */
+    private static int findMark(List<String> nodes, int current, char mark, boolean backwards)
+    {
+        for(int i = current == nodes.size() ? nodes.size() - 1 : current; i >= 0 && i < nodes.size(); i += backwards ? -1 : 1)
+            if(nodes.get(i).equals("m" + mark))
+                return i;
+        return -1;
+    }
+
+    private static void checkCurrent(History hist, int expected, String what) throws Exception
+    {
+        int current[] = new int[1];
+        nodesOf(hist.toString(), current);
+        if(current[0] != expected)
+            throw new Exception("History went to the wrong node " + what + ", got " + current[0] + " instead of " + expected);
+    }
+
+    /*
+     * Writes a long history with runs of marks and moves to redo as a text log,
+     * converts it to binary and back, and makes sure it comes back byte for byte, current node and all.
+     * Then reads ranges of moves straight out of the binary log across the blocks of its index.
+     */
+    private static void testLogFiles() throws Exception
+    {
+        char markChars[] = {History.MARK_MACRO_OPEN, History.MARK_MACRO_CLOSE, History.MARK_SCRAMBLE_BOUNDARY, History.MARK_SETUP_MOVES};
+        int blockSize = 4096; // nodes per entry in the block index of a binary log file
+        java.util.Random rand = new java.util.Random(0);
+        History hist = new History(3);
+        for(int i = 0; i < 20000; ++i)
+        {
+            if(i == 10000)
+                for(int n = 0; n < 2 * blockSize; ++n)
+                    hist.mark(History.MARK_SETUP_MOVES); // a run of marks longer than a block
+            if(rand.nextInt(10) == 0)
+                for(int n = 1 + rand.nextInt(4); n > 0; --n)
+                    hist.mark(markChars[rand.nextInt(markChars.length)]);
+            else
+                hist.apply(new MagicCube.TwistData(rand.nextInt(30), rand.nextBoolean() ? 1 : -1, 1 << rand.nextInt(3)));
+        }
+        for(int i = 0; i < 3000; ++i)
+            hist.undo(); // so there are moves to redo
+        File text = File.createTempFile("ModuleTest", ".log"), binary = File.createTempFile("ModuleTest", ".log"), text2 = File.createTempFile("ModuleTest", ".log");
+        try
+        {
+            LogFile.write(text, false, 2, "{4,3,3}", "3", new RotationHandler(), hist); // fully scrambled
+            LogFile.convert(text, binary);
+            LogFile.convert(binary, text2);
+            LogFile log = LogFile.open(binary);
+            History reread = new History(3);
+            log.readRotations(new RotationHandler());
+            if(!log.binary || !log.isCurrentVersion() || log.scrambleState != 2 || !log.readHistory(reread) || !reread.toString().equals(hist.toString()))
+                throw new Exception("Converting a text log file to binary changed it");
+            if(!Arrays.equals(java.nio.file.Files.readAllBytes(text.toPath()), java.nio.file.Files.readAllBytes(text2.toPath())))
+                throw new Exception("Converting a log file to binary and back changed it");
+
+            reread.goToEnd();
+            MagicCube.TwistData all[] = reread.movesArray();
+            List<int[]> ranges = new ArrayList<int[]>();
+            ranges.add(new int[]{0, 0});
+            ranges.add(new int[]{0, all.length});
+            ranges.add(new int[]{all.length, all.length});
+            // Ranges starting and ending right around where each block starts.
+            List<String> nodes = nodesOf(reread.toString(), new int[1]);
+            int nMoves = 0;
+            for(int i = 0; i < nodes.size(); ++i)
+            {
+                if(i % blockSize == 0 && nMoves > 0)
+                    for(int from = nMoves - 1; from <= nMoves + 1; ++from)
+                        for(int to = from; to <= Math.min(nMoves + 1, all.length); ++to)
+                            ranges.add(new int[]{from, to});
+                if(!nodes.get(i).startsWith("m"))
+                    ++nMoves;
+            }
+            for(int i = 0; i < 100; ++i)
+            {
+                int from = rand.nextInt(all.length);
+                ranges.add(new int[]{from, Math.min(all.length, from + rand.nextInt(3 * blockSize))});
+            }
+            for(int[] range : ranges)
+            {
+                int from = range[0], to = range[1];
+                if(!sameMoves(log.readMoves(from, to), Arrays.copyOfRange(all, from, to)))
+                    throw new Exception("Reading moves " + from + " to " + to + " out of a binary log file went wrong");
+            }
+            try
+            {
+                log.readMoves(0, all.length + 1);
+                throw new Exception("Reading past the end of a binary log file didn't fail");
+            } catch(IOException e)
+            {
+                // as it should
+            }
+            System.out.println("Log files agree on " + all.length + " moves.");
+        } finally
+        {
+            text.delete();
+            binary.delete();
+            text2.delete();
+        }
+    }
+
+    /*
+     * Saves a history with moves left to redo, which saving keeps now, in both formats.
+     * Makes sure they're still there to redo after reading it back rather than turning into moves already done.
+     */
+    private static void testLogRedo() throws Exception
+    {
+        History hist = new History(3);
+        for(int i = 0; i < 10; ++i)
+            hist.apply(new MagicCube.TwistData(i, 1, 1));
+        for(int i = 0; i < 3; ++i)
+            hist.undo();
+        for(int binary = 0; binary < 2; ++binary)
+        {
+            File file = File.createTempFile("ModuleTest", ".log");
+            try
+            {
+                LogFile.write(file, binary == 1, 0, "{4,3,3}", "3", new RotationHandler(), hist);
+                LogFile log = LogFile.open(file);
+                History reread = new History(3);
+                log.readRotations(new RotationHandler());
+                if(!log.readHistory(reread) || !sameMoves(reread.movesArray(), hist.movesArray()))
+                    throw new Exception("Reading a log file with moves to redo did them");
+                for(int i = 7; i < 10; ++i)
+                    checkMove(reread.redo(), i + ",1,1", "redoing after reading a log file");
+                checkMove(reread.redo(), null, "redoing after reading a log file");
+            } finally
+            {
+                file.delete();
+            }
+        }
+        System.out.println("Log files keep moves to redo.");
+    }
+
+    /*
+     * Journals every kind of change to a history, then recovers it from the log and journal as they were left on disk
+     * by something that died without closing the journal, both whole and with the last record cut off part way.
+     * Then makes sure a journal is ignored once its log has changed.
+     */
+    private static void testJournal() throws Exception
+    {
+        java.util.Random rand = new java.util.Random(0);
+        File log = File.createTempFile("ModuleTest", ".log"), copy = File.createTempFile("ModuleTest", ".log");
+        Journal journal = null;
+        try
+        {
+            History hist = new History(3);
+            for(int i = 0; i < 100; ++i)
+                hist.apply(new MagicCube.TwistData(rand.nextInt(30), rand.nextBoolean() ? 1 : -1, 1 << rand.nextInt(3)));
+            LogFile.write(log, false, 0, "{4,3,3}", "3", new RotationHandler(), hist);
+            journal = new Journal(log);
+            hist.setJournal(journal);
+            for(int iOp = 0; iOp < 2000; ++iOp)
+            {
+                int op = rand.nextInt(40);
+                if(op < 16)
+                    hist.apply(new MagicCube.TwistData(rand.nextInt(30), rand.nextBoolean() ? 1 : -1, 1 << rand.nextInt(3)));
+                else if(op < 22)
+                    hist.undo();
+                else if(op < 26)
+                    hist.redo();
+                else if(op < 30)
+                    hist.mark(rand.nextBoolean() ? History.MARK_MACRO_OPEN : History.MARK_MACRO_CLOSE);
+                else if(op < 32)
+                    hist.removeLastMark(History.MARK_MACRO_OPEN);
+                else if(op < 33)
+                    hist.removeAllMarks(History.MARK_MACRO_CLOSE);
+                else if(op < 34)
+                    hist.truncate();
+                else if(op < 35)
+                    hist.reverse();
+                else if(op < 36)
+                    hist.deleteLast();
+                else if(op < 37)
+                    hist.read(new java.io.PushbackReader(new java.io.StringReader(hist.toString())));
+                else if(op < 38 && iOp < 1000)
+                    hist.clear();
+                else
+                    hist.goTowardsMark(History.MARK_MACRO_OPEN, rand.nextBoolean());
+            }
+            String before = hist.toString(); // what's left when the last record is cut off
+            hist.mark(History.MARK_SETUP_MOVES); // just one record
+            String after = hist.toString();
+            journal.flush();
+
+            // Recover from what a crash would have left.
+            byte journalBytes[] = java.nio.file.Files.readAllBytes(Journal.getJournalFile(log).toPath());
+            java.nio.file.Files.copy(log.toPath(), copy.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            for(int cut = 0; cut < 2; ++cut)
+            {
+                java.nio.file.Files.write(Journal.getJournalFile(copy).toPath(), Arrays.copyOf(journalBytes, journalBytes.length - cut));
+                LogFile copyLog = LogFile.open(copy);
+                History recovered = new History(3);
+                copyLog.readRotations(new RotationHandler());
+                if(!copyLog.readHistory(recovered) || Journal.recover(copy, recovered) == 0 || !recovered.toString().equals(cut == 0 ? after : before))
+                    throw new Exception("Recovering a history from its journal went wrong" + (cut == 0 ? "" : " with the last record cut off"));
+            }
+
+            // A journal for some other version of the log doesn't get replayed.
+            History stale = new History(3);
+            LogFile copyLog = LogFile.open(copy);
+            copyLog.readRotations(new RotationHandler());
+            copyLog.readHistory(stale);
+            String unrecovered = stale.toString();
+            byte logBytes[] = java.nio.file.Files.readAllBytes(copy.toPath());
+            logBytes[logBytes.length - 2] ^= 1; // same length but a different checksum
+            java.nio.file.Files.write(copy.toPath(), logBytes);
+            if(Journal.recover(copy, stale) != 0 || !stale.toString().equals(unrecovered))
+                throw new Exception("Recovering a history replayed a journal that doesn't go with its log");
+            System.out.println("Journal recovers " + after.length() + " characters of history.");
+        } finally
+        {
+            if(journal != null)
+                journal.close();
+            Journal.getJournalFile(log).delete();
+            Journal.getJournalFile(copy).delete();
+            log.delete();
+            copy.delete();
+        }
+    }
+
+    private static String format(MagicCube.TwistData move)
+    {
+        return move.grip.id_within_puzzle + "," + move.direction + "," + move.slicemask;
+    }
+
+    private static void checkMove(MagicCube.TwistData move, String expected, String what) throws Exception
+    {
+        if(move == null ? expected != null : !format(move).equals(expected))
+            throw new Exception("History returned the wrong move " + what + ", got " + (move == null ? null : format(move)) + " instead of " + expected);
+    }
+
+    /*
+     * Checks the nodes of the history as written by toString(),
+     * and that the moves before current are the twists among the nodes before the "c".
+     */
+    private static void checkHistory(History hist, String expected, String what) throws Exception
+    {
+        int current[] = new int[1];
+        List<String> nodes = nodesOf(expected, current);
+        List<String> twists = new ArrayList<String>();
+        for(int i = 0; i < current[0]; ++i)
+            if(!nodes.get(i).startsWith("m"))
+                twists.add(nodes.get(i));
+        MagicCube.TwistData moves[] = hist.movesArray();
+        List<String> got = new ArrayList<String>();
+        for(int i = 0; i < moves.length; ++i)
+            got.add(format(moves[i]));
+        if(!hist.toString().equals(expected) || !got.equals(twists) || hist.countTwists() != twists.size())
+            throw new Exception("History went wrong " + what + ", got " + hist + " with moves " + got + " instead of " + expected);
+    }
+
+    /*
+     * Splits the given output of History.toString() into its nodes,
+     * setting current[0] to the index of the current one.
+     */
+    private static List<String> nodesOf(String history, int current[])
+    {
+        List<String> nodes = new ArrayList<String>();
+        current[0] = -1;
+        String tokens[] = history.substring(0, history.length() - 1).trim().split("\\s+"); // without the final '.'
+        for(int i = 0; i < tokens.length; ++i)
+        {
+            if(tokens[i].equals("c"))
+                current[0] = nodes.size();
+            else if(tokens[i].length() > 0)
+                nodes.add(tokens[i]);
+        }
+        if(current[0] == -1)
+            current[0] = nodes.size();
+        return nodes;
+    }
+
+    /*
+     * Jumps around in a long history, making sure that starting from
+     * its checkpoints gives the same states as replaying every move,
+     * whether the history gets replayed a few twists at a time or in parallel.
+     */
+    private static void testHistoryCheckpoints(String schlafli, int len) throws Exception
+    {
+        com.superliminal.util.PropertyManager.top.setProperty("checkpoints.interval", "7");
+        final PolytopePuzzleDescription puzzle = new PolytopePuzzleDescription(schlafli, len, null);
+        java.util.Random rand = new java.util.Random(0);
+        History hist = new History(len);
+        addRandomTwists(hist, puzzle, 300, rand);
+        final int state[] = new int[puzzle.nStickers()];
+        final int scratch[] = new int[puzzle.nStickers()];
+        History.Replayer replayer = new History.Replayer() {
+            @Override
+            public void setState(int colors[]) {
+                System.arraycopy(colors == null ? puzzle.getSticker2Face() : colors, 0, state, 0, state.length);
+            }
+            @Override
+            public int[] getState() {
+                return state;
+            }
+            @Override
+            public boolean apply(MagicCube.TwistData move) {
+                return apply(state, move, scratch);
+            }
+            @Override
+            public boolean apply(int someState[], MagicCube.TwistData move, int someScratch[]) {
+                puzzle.applyTwistToState(someState, move.grip.id_within_puzzle, move.direction, move.slicemask, someScratch);
+                return true;
+            }
+        };
+        int nJumps = 200;
+        for(int iJump = 0; iJump < nJumps; ++iJump)
+        {
+            if(iJump == nJumps / 2)
+            {
+                // Change the history part way through, which must invalidate the later checkpoints.
+                hist.truncate();
+                addRandomTwists(hist, puzzle, 100, rand);
+            }
+            hist.goToEnd();
+            int nMoves = hist.countMoves(false);
+            hist.goToBeginning();
+            for(int nNext = rand.nextInt(nMoves + 1); nNext > 0; --nNext)
+                hist.goToNext();
+            hist.replayToCurrent(replayer);
+
+            int expected[] = puzzle.getSticker2Face().clone();
+            MagicCube.TwistData moves[] = hist.movesArray();
+            for(int i = 0; i < moves.length; ++i)
+                puzzle.applyTwistToState(expected, moves[i].grip.id_within_puzzle, moves[i].direction, moves[i].slicemask, scratch);
+            if(!Arrays.equals(state, expected))
+                throw new Exception("Replaying from history checkpoints went wrong after " + moves.length + " moves");
+        }
+        com.superliminal.util.PropertyManager.top.remove("checkpoints.interval");
+        System.out.println("History checkpoints agree on " + nJumps + " jumps.");
+    }
+
+    /*
+     * Compresses random twist sequences full of repeats, inverses and parallel slices,
+     * making sure they get shorter but still do the same thing.
+     */
+    private static void testHistoryCompress(String puzzles[][]) throws Exception
+    {
+        java.util.Random rand = new java.util.Random(0);
+        for(int i = 0; i < puzzles.length; ++i)
+        {
+            PolytopePuzzleDescription puzzle = new PolytopePuzzleDescription(puzzles[i][0], Double.parseDouble(puzzles[i][1]), null);
+            int scratch[] = new int[puzzle.nStickers()];
+            for(int iTest = 0; iTest < 20; ++iTest)
+            {
+                List<MagicCube.TwistData> moves = new ArrayList<MagicCube.TwistData>();
+                int nGrips = 1 + rand.nextInt(3); // few grips so that there's lots to combine
+                int grips[] = new int[nGrips];
+                for(int g = 0; g < nGrips; ++g)
+                {
+                    do
+                        grips[g] = rand.nextInt(puzzle.nGrips());
+                    while(puzzle.getGripSymmetryOrders()[grips[g]] < 2);
+                }
+                for(int iMove = 0; iMove < 60; ++iMove)
+                {
+                    int grip = grips[rand.nextInt(nGrips)];
+                    int slicemask = rand.nextInt(5) == 0 ? -1 : 1 + rand.nextInt((1 << puzzle.getNumSlicesForGrip(grip)) - 1);
+                    moves.add(new MagicCube.TwistData(grip, rand.nextBoolean() ? 1 : -1, slicemask));
+                    if(rand.nextInt(4) == 0)
+                        moves.add(new MagicCube.TwistData(grip, -moves.get(moves.size() - 1).direction, slicemask));
+                }
+                MagicCube.TwistData before[] = moves.toArray(new MagicCube.TwistData[moves.size()]);
+                MagicCube.TwistData after[] = History.compress(before, puzzle);
+                int expected[] = puzzle.getSticker2Face().clone(), state[] = puzzle.getSticker2Face().clone();
+                for(MagicCube.TwistData move : before)
+                    puzzle.applyTwistToState(expected, move.grip.id_within_puzzle, move.direction, move.slicemask, scratch);
+                for(MagicCube.TwistData move : after)
+                    puzzle.applyTwistToState(state, move.grip.id_within_puzzle, move.direction, move.slicemask, scratch);
+                if(!Arrays.equals(state, expected) || after.length >= before.length)
+                    throw new Exception("Compressing " + before.length + " twists of " + puzzles[i][0] + " " + puzzles[i][1] + " went wrong, got " + after.length);
+                if(History.compress(after, puzzle).length != after.length)
+                    throw new Exception("Compressing " + puzzles[i][0] + " " + puzzles[i][1] + " twists twice shrank them again");
+                // A compressed History still holds only single steps, which still do the same thing.
+                History hist = new History((int) Double.parseDouble(puzzles[i][1]));
+                hist.apply(before);
+                hist.compress(puzzle);
+                History reread = new History((int) Double.parseDouble(puzzles[i][1]));
+                if(!reread.read(new java.io.PushbackReader(new java.io.StringReader(hist.toString()))))
+                    throw new Exception("Compressed " + puzzles[i][0] + " " + puzzles[i][1] + " history didn't read back");
+                state = puzzle.getSticker2Face().clone();
+                for(MagicCube.TwistData move : reread.movesArray())
+                {
+                    if(move.direction != MagicCube.CCW && move.direction != MagicCube.CW)
+                        throw new Exception("Compressing a " + puzzles[i][0] + " " + puzzles[i][1] + " history left a multi-step twist in it");
+                    puzzle.applyTwistToState(state, move.grip.id_within_puzzle, move.direction, move.slicemask, scratch);
+                }
+                if(!Arrays.equals(state, expected))
+                    throw new Exception("Compressing a " + puzzles[i][0] + " " + puzzles[i][1] + " history changed what it does");
+            }
+        }
+        System.out.println("History compression agrees on " + puzzles.length + " puzzles.");
+    }
+
+    private static boolean sameMoves(MagicCube.TwistData moves1[], MagicCube.TwistData moves2[])
+    {
+        if(moves1.length != moves2.length)
+            return false;
+        for(int i = 0; i < moves1.length; ++i)
+            if(moves1[i].grip.id_within_puzzle != moves2[i].grip.id_within_puzzle
+                || moves1[i].direction != moves2[i].direction
+                || moves1[i].slicemask != moves2[i].slicemask)
+                return false;
+        return true;
+    }
+
+    /*
+     * Computes autorotating rest frames and twisting frames, with shadows and without,
+     * making sure that computeFrame settles down to not allocating anything.
+     * The JIT compiler can allocate a little now and then when it kicks in,
+     * so this waits for a long enough run of frames that allocated nothing.
+     */
+    private static void testFrameAllocations(String puzzles[][]) throws Exception
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        float rot4d[][] = new float[4][4], rot2d[][] = {{100, 0}, {0, -100}, {200, 200}};
+        float towardsSun[] = {.82f, 1.55f, 3.3f}, groundNormal[] = {0, 1, .05f};
+        VecMath.normalize(towardsSun, towardsSun);
+        int oldThreshold = PipelineUtils.parallelVertsThreshold;
+        PipelineUtils.parallelVertsThreshold = 0; // only the serial pipeline promises not to allocate
+        try
+        {
+            for(int i = 0; i < puzzles.length; ++i)
+            {
+                PolytopePuzzleDescription puzzle = new PolytopePuzzleDescription(puzzles[i][0], Double.parseDouble(puzzles[i][1]), null);
+                PipelineUtils.AnimFrame frame = new PipelineUtils.AnimFrame();
+                int grip = 0;
+                while(puzzle.getGripSymmetryOrders()[grip] < 2)
+                    ++grip;
+                int nFrames = 0, nClean = 0;
+                for(; nClean < 100; ++nFrames)
+                {
+                    if(nFrames == 2000)
+                        throw new Exception("Computing frames of " + puzzles[i][0] + " " + puzzles[i][1] + " kept allocating memory");
+                    // a rotation in the xw plane, like autorotation would do
+                    float angle = nFrames * .01f;
+                    for(int r = 0; r < 4; ++r)
+                        for(int c = 0; c < 4; ++c)
+                            rot4d[r][c] = r == c ? 1.f : 0.f;
+                    rot4d[0][0] = rot4d[3][3] = (float) Math.cos(angle);
+                    rot4d[0][3] = (float) Math.sin(angle);
+                    rot4d[3][0] = -rot4d[0][3];
+
+                    long before = threads.getCurrentThreadAllocatedBytes();
+                    boolean twisting = nFrames % 3 == 0;
+                    PipelineUtils.computeFrame(frame, puzzle, .7f, .5f, twisting ? grip : -1, 1, 3, (nFrames % 30) / 30.f, rot4d, 5.2f, 4.8f, rot2d,
+                        towardsSun, nFrames % 2 == 0 ? groundNormal : null, -1.f, false);
+                    long after = threads.getCurrentThreadAllocatedBytes();
+                    nClean = after == before ? nClean + 1 : 0;
+                }
+                System.out.println(puzzles[i][0] + " " + puzzles[i][1] + " stopped allocating after " + (nFrames - nClean) + " frames.");
+            }
+        }
+        finally
+        {
+            PipelineUtils.parallelVertsThreshold = oldThreshold;
+        }
+        System.out.println("Frames of " + puzzles.length + " puzzles computed without allocating.");
+    }
+
+    /*
+     * Makes sure that repainting an unchanged rest frame reuses it,
+     * and that changing anything it depends on computes it again.
+     */
+    private static void testRestFrameReuse() throws Exception
+    {
+        PuzzleManager manager = new PuzzleManager(null, 0, null);
+        manager.puzzleDescription = new PolytopePuzzleDescription("{4,3,3}", 3, null);
+        RotationHandler rotationHandler = new RotationHandler();
+        float sunVec[] = {.82f, 1.55f, 3.3f};
+        PipelineUtils.AnimFrame frame = manager.computeFrame(.7f, .5f, rotationHandler, 5.2f, 4.8f, 100, 200, 200, sunVec, true, false, null);
+        frame.verts[0] = Float.NaN; // gets overwritten if the frame is computed again
+        if(!Float.isNaN(manager.computeFrame(.7f, .5f, rotationHandler, 5.2f, 4.8f, 100, 200, 200, sunVec, true, false, null).verts[0]))
+            throw new Exception("Repainting an unchanged rest frame computed it again");
+        if(Float.isNaN(manager.computeFrame(.7f, .6f, rotationHandler, 5.2f, 4.8f, 100, 200, 200, sunVec, true, false, null).verts[0]))
+            throw new Exception("Changing the sticker shrink didn't compute the rest frame again");
+        frame.verts[0] = Float.NaN;
+        rotationHandler.current4dView()[0][1] += 1e-6;
+        if(Float.isNaN(manager.computeFrame(.7f, .6f, rotationHandler, 5.2f, 4.8f, 100, 200, 200, sunVec, true, false, null).verts[0]))
+            throw new Exception("Changing the view didn't compute the rest frame again");
+        System.out.println("Rest frames get reused until something changes.");
+    }
+
+    /*
+     * Makes sure that frames computed in blocks on the pipeline pool
+     * come out exactly the same as ones computed all at once.
+     */
+    private static void testParallelFrames(String puzzles[][]) throws Exception
+    {
+        float rot4d[][] = new float[4][4], rot2d[][] = {{100, 0}, {0, -100}, {200, 200}};
+        float towardsSun[] = {.82f, 1.55f, 3.3f}, groundNormal[] = {0, 1, .05f};
+        VecMath.normalize(towardsSun, towardsSun);
+        int oldThreshold = PipelineUtils.parallelVertsThreshold;
+        try
+        {
+            for(int i = 0; i < puzzles.length; ++i)
+            {
+                PolytopePuzzleDescription puzzle = new PolytopePuzzleDescription(puzzles[i][0], Double.parseDouble(puzzles[i][1]), null);
+                PipelineUtils.AnimFrame serial = new PipelineUtils.AnimFrame(), parallel = new PipelineUtils.AnimFrame();
+                int grip = 0;
+                while(puzzle.getGripSymmetryOrders()[grip] < 2)
+                    ++grip;
+                for(int iFrame = 0; iFrame < 12; ++iFrame)
+                {
+                    float angle = iFrame * .3f;
+                    for(int r = 0; r < 4; ++r)
+                        for(int c = 0; c < 4; ++c)
+                            rot4d[r][c] = r == c ? 1.f : 0.f;
+                    rot4d[0][0] = rot4d[3][3] = (float) Math.cos(angle);
+                    rot4d[0][3] = (float) Math.sin(angle);
+                    rot4d[3][0] = -rot4d[0][3];
+                    rot4d[1][1] = rot4d[2][2] = (float) Math.cos(angle * .7f);
+                    rot4d[1][2] = (float) Math.sin(angle * .7f);
+                    rot4d[2][1] = -rot4d[1][2];
+                    boolean twisting = iFrame % 3 == 0;
+                    float ground[] = iFrame % 2 == 0 ? groundNormal : null;
+                    PipelineUtils.parallelVertsThreshold = 0;
+                    PipelineUtils.computeFrame(serial, puzzle, .7f, .5f, twisting ? grip : -1, 1, 3, .4f, rot4d, 5.2f, 4.8f, rot2d,
+                        towardsSun, ground, -1.f, false);
+                    PipelineUtils.parallelVertsThreshold = 1;
+                    PipelineUtils.computeFrame(parallel, puzzle, .7f, .5f, twisting ? grip : -1, 1, 3, .4f, rot4d, 5.2f, 4.8f, rot2d,
+                        towardsSun, ground, -1.f, false);
+                    String which = puzzles[i][0] + " " + puzzles[i][1] + " frame " + iFrame;
+                    if(!java.util.Arrays.equals(serial.verts, parallel.verts))
+                        throw new Exception("Verts of " + which + " came out different in parallel");
+                    if(ground != null && !java.util.Arrays.equals(serial.shadowVerts, parallel.shadowVerts))
+                        throw new Exception("Shadow verts of " + which + " came out different in parallel");
+                    if(serial.drawListSize != parallel.drawListSize || serial.shadowDrawListSize != parallel.shadowDrawListSize)
+                        throw new Exception("Draw list of " + which + " came out a different size in parallel");
+                    for(int j = 0; j < Math.max(serial.drawListSize, serial.shadowDrawListSize); ++j)
+                    {
+                        int i0i1[] = serial.drawList[j];
+                        if(!java.util.Arrays.equals(i0i1, parallel.drawList[j]))
+                            throw new Exception("Draw list of " + which + " came out in a different order in parallel");
+                        if(serial.brightnesses[i0i1[0]][i0i1[1]] != parallel.brightnesses[i0i1[0]][i0i1[1]])
+                            throw new Exception("Brightnesses of " + which + " came out different in parallel");
+                    }
+                }
+            }
+        }
+        finally
+        {
+            PipelineUtils.parallelVertsThreshold = oldThreshold;
+        }
+        System.out.println("Frames of " + puzzles.length + " puzzles came out the same in parallel.");
+    }
+
+    private static void addRandomTwists(History hist, PolytopePuzzleDescription puzzle, int nTwists, java.util.Random rand)
+    {
+        for(int i = 0; i < nTwists; ++i)
+        {
+            int grip;
+            do
+                grip = rand.nextInt(puzzle.nGrips());
+            while(puzzle.getGripSymmetryOrders()[grip] < 2);
+            hist.apply(new MagicCube.TwistData(grip, rand.nextBoolean() ? 1 : -1, 1 + rand.nextInt((1 << puzzle.getNumSlicesForGrip(grip)) - 1)));
+            if(rand.nextInt(20) == 0)
+                hist.mark(History.MARK_SETUP_MOVES);
+        }
+    }
+
+    private static boolean isSolvedTheHardWay(PolytopePuzzleDescription puzzle, int state[])
+    {
+        int sticker2face[] = puzzle.getSticker2Face();
+        int faceColor[] = new int[puzzle.nFaces()];
+        Arrays.fill(faceColor, -1);
+        for(int s = 0; s < state.length; ++s)
+        {
+            if(faceColor[sticker2face[s]] == -1)
+                faceColor[sticker2face[s]] = state[s];
+            else if(faceColor[sticker2face[s]] != state[s])
+                return false;
+        }
+        return true;
+    }
+
+    // Hash of everything about a built puzzle that the rest of the program looks at.
+    private static int fingerprint(PolytopePuzzleDescription puzzle)
+    {
+        float gripCoords[][] = new float[puzzle.nGrips()][];
+        for(int iGrip = 0; iGrip < gripCoords.length; ++iGrip)
+            gripCoords[iGrip] = puzzle.getGripCoords(iGrip);
+        return Arrays.deepHashCode(new Object[] {
+            puzzle.getStandardStickerVertsAtRest(),
+            puzzle.getStickerInds(),
+            puzzle.getSticker2Face(),
+            puzzle.getSticker2Cubie(),
+            puzzle.getFace2OppositeFace(),
+            puzzle.getGrip2Face(),
+            puzzle.getGripSymmetryOrders(),
+            gripCoords,
+        });
     }
 }
\ No newline at end of file